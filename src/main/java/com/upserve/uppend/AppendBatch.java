@@ -0,0 +1,91 @@
+package com.upserve.uppend;
+
+import java.util.*;
+
+/**
+ * A batch of values to append to an {@code AppendOnlyStore} in a single call.
+ * Values are grouped by partition and key as they are added, so the store
+ * resolves each partition and key once per batch rather than once per value.
+ * Values under the same partition and key are appended in the order they
+ * were added. A batch is not thread safe.
+ */
+public class AppendBatch {
+    private final Map<String, Map<String, List<byte[]>>> partitions;
+    private int size;
+    private long bytes;
+
+    public AppendBatch() {
+        partitions = new HashMap<>();
+    }
+
+    /**
+     * Add a value to append under a given partition and key
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key to store under
+     * @param value the value to append
+     * @return this batch
+     */
+    public AppendBatch add(String partitionEntropy, String key, byte[] value) {
+        if (partitionEntropy == null) {
+            throw new NullPointerException("null partition");
+        }
+        if (key == null) {
+            throw new NullPointerException("null key");
+        }
+        if (value == null) {
+            throw new NullPointerException("null value");
+        }
+        partitions
+                .computeIfAbsent(partitionEntropy, partition -> new HashMap<>())
+                .computeIfAbsent(key, k -> new ArrayList<>())
+                .add(value);
+        size++;
+        bytes += value.length;
+        return this;
+    }
+
+    /**
+     * Add several values to append under a given partition and key
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key to store under
+     * @param values the values to append, in order
+     * @return this batch
+     */
+    public AppendBatch addAll(String partitionEntropy, String key, Collection<byte[]> values) {
+        values.forEach(value -> add(partitionEntropy, key, value));
+        return this;
+    }
+
+    /**
+     * @return the number of values in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the total number of value bytes in this batch
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Remove all values from this batch so it can be reused
+     */
+    public void clear() {
+        partitions.clear();
+        size = 0;
+        bytes = 0;
+    }
+
+    Map<String, Map<String, List<byte[]>>> partitions() {
+        return partitions;
+    }
+}
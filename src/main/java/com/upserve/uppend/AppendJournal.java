@@ -0,0 +1,326 @@
+package com.upserve.uppend;
+
+import com.google.common.hash.*;
+import com.upserve.uppend.lookup.LookupKey;
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A write ahead journal of appends with group commit. Appenders enqueue their values and a single committer thread
+ * writes everything queued as one sequential write, forces it with one fsync, applies the values to the partitions and
+ * then completes the futures of the appenders. A store flush truncates the journal while holding the commit lock, so
+ * the journal only ever holds the values appended since the last flush.
+ *
+ * Each record holds the blob position reserved for its value in the partition before the record is written, and the
+ * value is appended at exactly that position. If the process or the machine dies, {@link #replay} passes each value in
+ * the journal with its position, so the store can skip the values whose position is in their key and append the rest
+ * again. A commit which fails removes its records, or cancels the record of a value which failed to append, so the
+ * values whose callers were told the append failed are never replayed.
+ *
+ * Record: [int payload length][int checksum][long position, or -1 if cancelled][int partition length][partition][int key length][key][value]
+ */
+class AppendJournal implements Closeable {
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final HashFunction hashFunction = Hashing.murmur3_32();
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    private static final long CANCELLED = -1;
+
+    private static final Entry STOP = new Entry(null, null, null);
+
+    @FunctionalInterface
+    interface Reserver {
+        long reserve(String partitionEntropy, LookupKey key, byte[] value);
+    }
+
+    @FunctionalInterface
+    interface Applier {
+        void apply(String partitionEntropy, LookupKey key, byte[] value, long position);
+    }
+
+    @FunctionalInterface
+    interface Replayer {
+        void replay(String partitionEntropy, LookupKey key, byte[] value, long position);
+    }
+
+    private static class Entry {
+        private final String partitionEntropy;
+        private final LookupKey key;
+        private final byte[] value;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private long position;
+        private ByteBuffer record;
+
+        private Entry(String partitionEntropy, LookupKey key, byte[] value) {
+            this.partitionEntropy = partitionEntropy;
+            this.key = key;
+            this.value = value;
+        }
+
+        private ByteBuffer record() {
+            byte[] partition = partitionEntropy.getBytes(StandardCharsets.UTF_8);
+            int payloadLength = 16 + partition.length + key.byteLength() + value.length;
+            ByteBuffer buffer = ByteBuffer.allocate(8 + payloadLength);
+            buffer.putInt(payloadLength);
+            buffer.position(8);
+            buffer.putLong(position);
+            buffer.putInt(partition.length).put(partition);
+            buffer.putInt(key.byteLength()).put(key.bytes());
+            buffer.put(value);
+            buffer.putInt(4, hashFunction.hashBytes(buffer.array(), 8, payloadLength).asInt());
+            buffer.flip();
+            record = buffer;
+            return buffer;
+        }
+
+        /**
+         * @return the header of the record, marked cancelled, to write over the header in the journal
+         */
+        private ByteBuffer cancelledHeader() {
+            byte[] bytes = record.array();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.putLong(8, CANCELLED);
+            buffer.putInt(4, hashFunction.hashBytes(bytes, 8, bytes.length - 8).asInt());
+            return ByteBuffer.wrap(bytes, 0, 16);
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Reserver reserver;
+    private final Applier applier;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Thread committer;
+    private volatile boolean closed;
+
+    AppendJournal(Path path, String name, Reserver reserver, Applier applier) {
+        this.path = path;
+        this.reserver = reserver;
+        this.applier = applier;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to open journal: " + path, e);
+        }
+
+        committer = new Thread(this::commitLoop, "uppend-journal-" + name);
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Journal a value and append it to its partition
+     *
+     * @param partitionEntropy the partition to append under
+     * @param key the key to append under
+     * @param value the value to append
+     * @return a future completed once the value is forced to the journal and appended to the partition
+     */
+    CompletableFuture<Void> append(String partitionEntropy, LookupKey key, byte[] value) {
+        Entry entry = new Entry(partitionEntropy, key, value);
+        if (closed) {
+            entry.future.completeExceptionally(new IllegalStateException("journal is closed: " + path));
+        } else {
+            queue.add(entry);
+        }
+        return entry.future;
+    }
+
+    /**
+     * Run a store flush with commits paused, then truncate the journal since every value it holds is in the flushed
+     * partitions. The journal is kept if the flush throws.
+     *
+     * @param flush the flush of the partitions, which must throw unless every partition was flushed
+     */
+    void checkpoint(Runnable flush) {
+        commitLock.lock();
+        try {
+            flush.run();
+            channel.truncate(0);
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to truncate journal: " + path, e);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Commit the queued values, stop the committer and close the journal, running the close of the partitions as the
+     * final checkpoint
+     *
+     * @param close the close of the partitions
+     */
+    void close(Runnable close) throws IOException {
+        closed = true;
+        queue.add(STOP);
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for journal commits: " + path);
+        }
+        checkpoint(close);
+        channel.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(() -> {});
+    }
+
+    private void commitLoop() {
+        List<Entry> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                log.warn("journal committer interrupted: {}", path);
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            stopping = batch.remove(STOP);
+            if (!batch.isEmpty()) commit(batch);
+            batch.clear();
+        }
+        // Anything enqueued after the stop raced the close
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            entry.future.completeExceptionally(new IllegalStateException("journal is closed: " + path));
+        }
+    }
+
+    private void commit(List<Entry> batch) {
+        commitLock.lock();
+        try {
+            long start = -1;
+            long[] offsets = new long[batch.size()];
+            try {
+                start = channel.position();
+                ByteBuffer[] records = new ByteBuffer[batch.size()];
+                long offset = start;
+                for (int i = 0; i < records.length; i++) {
+                    Entry entry = batch.get(i);
+                    entry.position = reserver.reserve(entry.partitionEntropy, entry.key, entry.value);
+                    records[i] = entry.record();
+                    offsets[i] = offset;
+                    offset += records[i].remaining();
+                }
+                long remaining = offset - start;
+                while (remaining > 0) {
+                    remaining -= channel.write(records);
+                }
+                channel.force(false);
+            } catch (IOException | RuntimeException e) {
+                log.error("unable to commit {} values to journal {}", batch.size(), path, e);
+                RuntimeException cause = e instanceof IOException ? new UncheckedIOException("unable to commit to journal: " + path, (IOException) e) : (RuntimeException) e;
+                // The appenders are told the values were not appended, so their records must not be replayed
+                if (start >= 0) {
+                    try {
+                        channel.truncate(start);
+                    } catch (IOException truncateException) {
+                        log.error("unable to remove failed commit from journal {}, its values may be replayed", path, truncateException);
+                        cause.addSuppressed(truncateException);
+                    }
+                }
+                batch.forEach(entry -> entry.future.completeExceptionally(cause));
+                return;
+            }
+
+            boolean cancelled = false;
+            for (int i = 0; i < batch.size(); i++) {
+                Entry entry = batch.get(i);
+                try {
+                    applier.apply(entry.partitionEntropy, entry.key, entry.value, entry.position);
+                    entry.future.complete(null);
+                } catch (RuntimeException e) {
+                    cancelled |= cancel(entry, offsets[i], e);
+                    entry.future.completeExceptionally(e);
+                }
+            }
+            if (cancelled) {
+                try {
+                    channel.force(false);
+                } catch (IOException e) {
+                    log.error("unable to force cancelled records of journal {}, their values may be replayed", path, e);
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        log.trace("committed {} values to journal {}", batch.size(), path);
+    }
+
+    private boolean cancel(Entry entry, long offset, RuntimeException failure) {
+        try {
+            ByteBuffer header = entry.cancelledHeader();
+            while (header.hasRemaining()) {
+                channel.write(header, offset + header.position());
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("unable to cancel record of failed append in journal {}, its value may be replayed", path, e);
+            failure.addSuppressed(e);
+            return false;
+        }
+    }
+
+    /**
+     * Pass the values in a journal left by a store which was not closed, up to the first incomplete record, with the
+     * blob position reserved for each in its partition. Cancelled records are skipped.
+     *
+     * @param path the journal
+     * @param replayer appends a value to its partition unless it is already there
+     * @return the number of values replayed
+     */
+    static int replay(Path path, Replayer replayer) {
+        if (!Files.exists(path)) return 0;
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while (position + 8 <= size) {
+                header.clear();
+                channel.read(header, position);
+                int payloadLength = header.getInt(0);
+                if (payloadLength < 16 || position + 8 + payloadLength > size) break;
+
+                ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+                while (payload.hasRemaining()) {
+                    if (channel.read(payload, position + 8 + payload.position()) < 0) break;
+                }
+                if (header.getInt(4) != hashFunction.hashBytes(payload.array()).asInt()) break;
+
+                position += 8 + payloadLength;
+                payload.flip();
+                long appendPosition = payload.getLong();
+                if (appendPosition == CANCELLED) continue;
+                byte[] partition = new byte[payload.getInt()];
+                payload.get(partition);
+                byte[] key = new byte[payload.getInt()];
+                payload.get(key);
+                byte[] value = new byte[payload.remaining()];
+                payload.get(value);
+                replayer.replay(new String(partition, StandardCharsets.UTF_8), new LookupKey(key), value, appendPosition);
+                count++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to replay journal: " + path, e);
+        }
+        return count;
+    }
+}
@@ -3,7 +3,7 @@ package com.upserve.uppend;
 import com.google.common.collect.Maps;
 
 import java.io.*;
-import java.util.Map;
+import java.util.*;
 import java.util.function.*;
 import java.util.stream.Stream;
 
@@ -43,6 +43,20 @@ public class AppendOnlyObjectStore<T> implements AutoCloseable, RegisteredFlusha
         store.append(partitionEntropy, key, serializer.apply(value));
     }
 
+    /**
+     * Append several objects under a given key in a single batch
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key to store under
+     * @param values the values to append, in order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    public void appendAll(String partitionEntropy, String key, Collection<T> values) {
+        AppendBatch batch = new AppendBatch();
+        values.forEach(value -> batch.add(partitionEntropy, key, serializer.apply(value)));
+        store.appendAll(batch);
+    }
+
     /**
      * Read objects that have been stored under a given partition and key in
      * parallel
@@ -69,6 +83,48 @@ public class AppendOnlyObjectStore<T> implements AutoCloseable, RegisteredFlusha
         return store.readSequential(partitionEntropy, key).map(deserializer);
     }
 
+    /**
+     * Read objects that have been stored under a given partition and key,
+     * newest first
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @return a stream of the stored objects in reverse storage order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    public Stream<T> readReverse(String partitionEntropy, String key) {
+        return store.readReverse(partitionEntropy, key).map(deserializer);
+    }
+
+    /**
+     * Read a range of the objects that have been stored under a given
+     * partition and key in the order they were stored
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param offset the index of the first object to return
+     * @param limit the maximum number of objects to return
+     * @return a stream of at most limit objects in storage order
+     * @throws IllegalArgumentException if partition is invalid or offset or limit is negative
+     */
+    public Stream<T> readRange(String partitionEntropy, String key, long offset, int limit) {
+        return store.readRange(partitionEntropy, key, offset, limit).map(deserializer);
+    }
+
+    /**
+     * Read the last n objects that were stored under a given partition and
+     * key in the order they were stored
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param n the maximum number of objects to return
+     * @return a stream of at most n objects in storage order
+     * @throws IllegalArgumentException if partition is invalid or n is negative
+     */
+    public Stream<T> readLastN(String partitionEntropy, String key, int n) {
+        return store.readLastN(partitionEntropy, key, n).map(deserializer);
+    }
+
     /**
      * Read the last object that was stored under a given partition and key
      *
@@ -81,6 +137,19 @@ public class AppendOnlyObjectStore<T> implements AutoCloseable, RegisteredFlusha
         return deserializer.apply(store.readLast(partitionEntropy, key));
     }
 
+    /**
+     * Count the objects that have been stored under a given partition and key
+     * without reading them
+     *
+     * @param partitionEntropy the partition under which to count
+     * @param key the key under which to count
+     * @return the number of stored objects, or 0 if none
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    public long count(String partitionEntropy, String key) {
+        return store.count(partitionEntropy, key);
+    }
+
     /**
      * Enumerate the keys in the data store
      *
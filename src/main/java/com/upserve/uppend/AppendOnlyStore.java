@@ -4,6 +4,7 @@ import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.upserve.uppend.lookup.FlushStats;
 
 import java.io.Flushable;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Add byte arrays under a key and partition, and retrieve them. Note the
@@ -21,6 +22,83 @@ public interface AppendOnlyStore extends ReadOnlyAppendOnlyStore, RegisteredFlus
      */
     void append(String partitionEntropy, String key, byte[] value);
 
+    /**
+     * Append a byte array under a given partition and binary key. Keys are
+     * compared as bytes, so binary keys sort with string keys by their bytes.
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key bytes to store under
+     * @param value the value to append
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    void append(String partitionEntropy, byte[] key, byte[] value);
+
+    /**
+     * Append a byte array under a given partition and key through the
+     * journal of a store built with {@link AppendOnlyStoreBuilder#withJournal}.
+     * Concurrent appends are forced to the journal together with a single
+     * fsync, so the value survives a crash once the future completes.
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key to store under
+     * @param value the value to append
+     * @return a future completed when the value is durable and readable
+     * @throws IllegalArgumentException if partition is invalid
+     * @throws IllegalStateException if the store has no journal
+     */
+    CompletableFuture<Void> appendDurable(String partitionEntropy, String key, byte[] value);
+
+    /**
+     * Append a byte array under a given partition and binary key through the
+     * journal, as {@link #appendDurable(String, String, byte[])} does
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key bytes to store under
+     * @param value the value to append
+     * @return a future completed when the value is durable and readable
+     * @throws IllegalArgumentException if partition is invalid
+     * @throws IllegalStateException if the store has no journal
+     */
+    CompletableFuture<Void> appendDurable(String partitionEntropy, byte[] key, byte[] value);
+
+    /**
+     * Queue a byte array to append under a given partition and key on the
+     * append workers of the store. Values queued for a partition are appended
+     * in order. The bytes queued and not yet appended are bounded: when the
+     * bound is reached the caller blocks, or the future is rejected if the
+     * store was built with
+     * {@link AppendOnlyStoreBuilder#withAsyncAppendRejectWhenFull}.
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key to store under
+     * @param value the value to append
+     * @return a future completed when the value is appended
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    CompletableFuture<Void> appendAsync(String partitionEntropy, String key, byte[] value);
+
+    /**
+     * Queue a byte array to append under a given partition and binary key, as
+     * {@link #appendAsync(String, String, byte[])} does
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key bytes to store under
+     * @param value the value to append
+     * @return a future completed when the value is appended
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    CompletableFuture<Void> appendAsync(String partitionEntropy, byte[] key, byte[] value);
+
+    /**
+     * Append all the byte arrays in a batch. The partition, key lookup and
+     * block chain work is done once per partition and key in the batch
+     * rather than once per value.
+     *
+     * @param batch the values to append
+     * @throws IllegalArgumentException if a partition is invalid
+     */
+    void appendAll(AppendBatch batch);
+
     /**
      * Flush any pending appends to durable storage. Will not return until
      * the flush is completed.
@@ -11,6 +11,7 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
     public static final int DEFAULT_BLOBS_PER_BLOCK = 127;
 
     private int blobsPerBlock = DEFAULT_BLOBS_PER_BLOCK;
+    private int maximumBlobsPerBlock = 0; // blocks do not grow unless set above blobsPerBlock
 
     // Blob Cache Options
     public static final int DEFAULT_BLOB_PAGE_SIZE = 4 * 1024 * 1024;
@@ -23,12 +24,41 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
 
     private ExecutorService blobCacheExecutorService = ForkJoinPool.commonPool();
 
+    // Change Log Options
+    private boolean changeLog = false;
+
+    // Journal Options
+    private boolean journal = false;
+
+    // Async Append Options
+    public static final int DEFAULT_ASYNC_APPEND_WORKERS = 4;
+    public static final int DEFAULT_ASYNC_APPEND_MAX_IN_FLIGHT_BYTES = 64 * 1024 * 1024;
+
+    private int asyncAppendWorkers = DEFAULT_ASYNC_APPEND_WORKERS;
+    private int asyncAppendMaxInFlightBytes = DEFAULT_ASYNC_APPEND_MAX_IN_FLIGHT_BYTES;
+    private boolean asyncAppendRejectWhenFull = false;
+    private boolean lockFreeAppends = false;
+
     // Blocked Long Options
     public AppendOnlyStoreBuilder withBlobsPerBlock(int blobsPerBlock) {
         this.blobsPerBlock = blobsPerBlock;
         return this;
     }
 
+    /**
+     * Grow the blocks of each key geometrically, from blobsPerBlock values in the first block up to this many values.
+     * Only applies to new partitions, which are created with extended blocks that also make counting the values of a
+     * key a single read. Extended blocks can not be opened by versions which predate them; values no larger than
+     * blobsPerBlock keep the fixed size blocks of blobsPerBlock values.
+     *
+     * @param maximumBlobsPerBlock the largest number of values in a block
+     * @return the builder
+     */
+    public AppendOnlyStoreBuilder withMaximumBlobsPerBlock(int maximumBlobsPerBlock) {
+        this.maximumBlobsPerBlock = maximumBlobsPerBlock;
+        return this;
+    }
+
     // Blob Cache Options
     public AppendOnlyStoreBuilder withBlobPageSize(int blobPageSize) {
         this.blobPageSize = blobPageSize;
@@ -50,6 +80,84 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
         return this;
     }
 
+    // Change Log Options
+
+    /**
+     * Log the position of each value appended to the store so {@link ReadOnlyAppendOnlyStore#changesSince} can stream
+     * the values appended after a checkpoint. Costs a second, small append per key appended.
+     *
+     * @param changeLog true to log the appends
+     * @return the builder
+     */
+    public AppendOnlyStoreBuilder withChangeLog(boolean changeLog) {
+        this.changeLog = changeLog;
+        return this;
+    }
+
+    // Journal Options
+
+    /**
+     * Write {@link AppendOnlyStore#appendDurable} values to a journal with group commit, and replay the journal left
+     * by a crash when the store is next opened for writing
+     *
+     * @param journal true to start the journal
+     * @return the builder
+     */
+    public AppendOnlyStoreBuilder withJournal(boolean journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    // Async Append Options
+
+    /**
+     * Set the number of threads appending the values of {@link AppendOnlyStore#appendAsync}. The partitions are
+     * divided between the threads, so the values of a partition are appended in order.
+     *
+     * @param asyncAppendWorkers the number of threads, started on the first async append
+     * @return the builder
+     */
+    public AppendOnlyStoreBuilder withAsyncAppendWorkers(int asyncAppendWorkers) {
+        this.asyncAppendWorkers = asyncAppendWorkers;
+        return this;
+    }
+
+    /**
+     * Bound the bytes of the async appends which are queued but not yet appended
+     *
+     * @param asyncAppendMaxInFlightBytes the bound
+     * @return the builder
+     */
+    public AppendOnlyStoreBuilder withAsyncAppendMaxInFlightBytes(int asyncAppendMaxInFlightBytes) {
+        this.asyncAppendMaxInFlightBytes = asyncAppendMaxInFlightBytes;
+        return this;
+    }
+
+    /**
+     * Reject async appends when the in flight bytes are full rather than blocking the producer
+     *
+     * @param asyncAppendRejectWhenFull true to reject
+     * @return the builder
+     */
+    public AppendOnlyStoreBuilder withAsyncAppendRejectWhenFull(boolean asyncAppendRejectWhenFull) {
+        this.asyncAppendRejectWhenFull = asyncAppendRejectWhenFull;
+        return this;
+    }
+
+    /**
+     * Append to the blocks of each key with compare and set rather than the striped locks. Only applies to partitions
+     * with extended blocks (see {@link #withMaximumBlobsPerBlock(int)}) of at most 32768 values. An append which fails
+     * between reserving its slots and publishing them, and can not return its reservation because a later append has
+     * reserved after it, leaves the appends to that block timing out until the store is reopened.
+     *
+     * @param lockFreeAppends true to append without the striped locks
+     * @return the builder
+     */
+    public AppendOnlyStoreBuilder withLockFreeAppends(boolean lockFreeAppends) {
+        this.lockFreeAppends = lockFreeAppends;
+        return this;
+    }
+
     public AppendOnlyStore build() {
         return build(false);
     }
@@ -65,6 +173,7 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
     }
 
     public PageCache buildBlobPageCache(String metricsPrefix) {
+        if (getSharedPageCache() != null) return getSharedPageCache().view(getBlobPageSize(), getDir());
         return new PageCache(
                 getBlobPageSize(),
                 getInitialBlobPageCacheSize(),
@@ -78,6 +187,10 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
         return blobsPerBlock;
     }
 
+    public int getMaximumBlobsPerBlock() {
+        return Math.max(blobsPerBlock, maximumBlobsPerBlock);
+    }
+
     public int getBlobPageSize() {
         return blobPageSize;
     }
@@ -94,22 +207,58 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
         return blobCacheExecutorService;
     }
 
+    public boolean isChangeLog() {
+        return changeLog;
+    }
+
+    public boolean isJournal() {
+        return journal;
+    }
+
+    public int getAsyncAppendWorkers() {
+        return asyncAppendWorkers;
+    }
+
+    public int getAsyncAppendMaxInFlightBytes() {
+        return asyncAppendMaxInFlightBytes;
+    }
+
+    public boolean isAsyncAppendRejectWhenFull() {
+        return asyncAppendRejectWhenFull;
+    }
+
+    public boolean isLockFreeAppends() {
+        return lockFreeAppends;
+    }
+
     @Override
     public String toString() {
         return "AppendOnlyStoreBuilder{" +
                 "blobsPerBlock=" + blobsPerBlock +
+                ", maximumBlobsPerBlock=" + maximumBlobsPerBlock +
                 ", blobPageSize=" + blobPageSize +
                 ", maximumCachedBlobPages=" + maximumCachedBlobPages +
                 ", initialBlobPageCacheSize=" + initialBlobPageCacheSize +
                 ", blobCacheExecutorService=" + blobCacheExecutorService +
+                ", changeLog=" + changeLog +
+                ", journal=" + journal +
+                ", asyncAppendWorkers=" + asyncAppendWorkers +
+                ", asyncAppendMaxInFlightBytes=" + asyncAppendMaxInFlightBytes +
+                ", asyncAppendRejectWhenFull=" + asyncAppendRejectWhenFull +
+                ", lockFreeAppends=" + lockFreeAppends +
                 ", storeName='" + storeName + '\'' +
                 ", partitionSize=" + partitionSize +
                 ", lookupHashSize=" + lookupHashSize +
+                ", lookupHashIndex=" + lookupHashIndex +
+                ", lookupBloomFilterFpp=" + lookupBloomFilterFpp +
+                ", lookupMetadataRuns=" + lookupMetadataRuns +
+                ", lookupKeyBlocks=" + lookupKeyBlocks +
                 ", lookupPageSize=" + lookupPageSize +
                 ", initialLookupPageCacheSize=" + initialLookupPageCacheSize +
                 ", maximumLookupPageCacheSize=" + maximumLookupPageCacheSize +
                 ", maximumLookupKeyCacheWeight=" + maximumLookupKeyCacheWeight +
                 ", initialLookupKeyCacheSize=" + initialLookupKeyCacheSize +
+                ", offHeapLookupKeyLength=" + offHeapLookupKeyLength +
                 ", maximumMetaDataCacheWeight=" + maximumMetaDataCacheWeight +
                 ", initialMetaDataCacheSize=" + initialMetaDataCacheSize +
                 ", metadataTTL=" + metadataTTL +
@@ -117,6 +266,8 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
                 ", lookupKeyCacheExecutorService=" + lookupKeyCacheExecutorService +
                 ", lookupMetaDataCacheExecutorService=" + lookupMetaDataCacheExecutorService +
                 ", lookupPageCacheExecutorService=" + lookupPageCacheExecutorService +
+                ", sharedPageCache=" + sharedPageCache +
+                ", cacheManager=" + cacheManager +
                 ", flushDelaySeconds=" + flushDelaySeconds +
                 ", flushThreshold=" + flushThreshold +
                 ", dir=" + dir +
@@ -8,9 +8,10 @@ import org.slf4j.Logger;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.*;
-import java.util.function.BiConsumer;
+import java.util.function.*;
 import java.util.stream.*;
 
 public class AppendStorePartition extends Partition implements Flushable, Closeable {
@@ -21,6 +22,7 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
     private final BlockedLongs blocks;
     private final VirtualAppendOnlyBlobStore[] blobs;
     private final VirtualPageFile blobFile;
+    private final ChangeLog changeLog;
 
     private static Path blobsFile(Path partitiondDir) {
         return partitiondDir.resolve("blobStore");
@@ -30,8 +32,13 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
         return partitiondDir.resolve("blockedLongs");
     }
 
-    public static AppendStorePartition createPartition(Path parentDir, String partition, int hashSize, int flushThreshold, int metadataPageSize, int blockSize, PageCache blobPageCache, PageCache keyPageCache, LookupCache lookupCache) {
+    private static Path changesFile(Path partitiondDir) {
+        return partitiondDir.resolve("changes");
+    }
+
+    public static AppendStorePartition createPartition(Path parentDir, String partition, AppendOnlyStoreBuilder builder, PageCache blobPageCache, PageCache keyPageCache, LookupCache lookupCache) {
         validatePartition(partition);
+        int hashSize = builder.getLookupHashSize();
         Path partitiondDir = parentDir.resolve(partition);
         try {
             Files.createDirectories(partitiondDir);
@@ -39,102 +46,255 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
             throw new UncheckedIOException("Unable to make partition directory: " + partitiondDir, e);
         }
 
-        BlockedLongs blocks = new BlockedLongs(blocksFile(partitiondDir), blockSize, false);
+        BlockedLongs blocks = new BlockedLongs(blocksFile(partitiondDir), builder.getBlobsPerBlock(), builder.getMaximumBlobsPerBlock(), builder.isLockFreeAppends(), false);
 
         VirtualPageFile blobs = new VirtualPageFile(blobsFile(partitiondDir), hashSize, false, blobPageCache);
-        VirtualPageFile metadata = new VirtualPageFile(metadataPath(partitiondDir), hashSize, metadataPageSize, false);
+        VirtualPageFile metadata = new VirtualPageFile(metadataPath(partitiondDir), hashSize, builder.getMetadataPageSize(), false);
         VirtualPageFile keys = new VirtualPageFile(keysPath(partitiondDir), hashSize, false, keyPageCache);
+        ChangeLog changes = builder.isChangeLog() ? new ChangeLog(changesFile(partitiondDir), hashSize, false, blobPageCache) : null;
 
-
-        return new AppendStorePartition(keys, metadata, blobs, blocks, PartitionLookupCache.create(partition, lookupCache), hashSize, flushThreshold, false);
+        return new AppendStorePartition(keys, metadata, blobs, blocks, changes, PartitionLookupCache.create(partition, lookupCache), hashSize, builder.getLookupDataOptions(), false);
     }
 
-    public static AppendStorePartition openPartition(Path parentDir, String partition, int hashSize, int flushThreshold, int metadataPageSize, int blockSize, PageCache blobPageCache, PageCache keyPageCache, LookupCache lookupCache, boolean readOnly) {
+    public static AppendStorePartition openPartition(Path parentDir, String partition, AppendOnlyStoreBuilder builder, PageCache blobPageCache, PageCache keyPageCache, LookupCache lookupCache, boolean readOnly) {
         validatePartition(partition);
+        int hashSize = builder.getLookupHashSize();
         Path partitiondDir = parentDir.resolve(partition);
 
         if (!(Files.exists(blocksFile(partitiondDir)) && Files.exists(metadataPath(partitiondDir))
                 && Files.exists(keysPath(partitiondDir)) && Files.exists(blobsFile(partitiondDir)))) return null;
 
-        BlockedLongs blocks = new BlockedLongs(blocksFile(partitiondDir), blockSize, readOnly);
+        BlockedLongs blocks = new BlockedLongs(blocksFile(partitiondDir), builder.getBlobsPerBlock(), builder.getMaximumBlobsPerBlock(), builder.isLockFreeAppends(), readOnly);
 
         VirtualPageFile blobs = new VirtualPageFile(blobsFile(partitiondDir), hashSize, readOnly, blobPageCache);
-        VirtualPageFile metadata = new VirtualPageFile(metadataPath(partitiondDir), hashSize, metadataPageSize, readOnly);
+        VirtualPageFile metadata = new VirtualPageFile(metadataPath(partitiondDir), hashSize, builder.getMetadataPageSize(), readOnly);
         VirtualPageFile keys = new VirtualPageFile(keysPath(partitiondDir), hashSize, readOnly, keyPageCache);
 
-        return new AppendStorePartition(keys, metadata, blobs, blocks, PartitionLookupCache.create(partition, lookupCache), hashSize, flushThreshold, false);
+        // A reader follows the change log of an existing partition whether or not it was asked for; a writer only
+        // starts one when asked, so the log covers the appends since it was enabled
+        ChangeLog changes = (builder.isChangeLog() && !readOnly) || Files.exists(changesFile(partitiondDir)) ? new ChangeLog(changesFile(partitiondDir), hashSize, readOnly, blobPageCache) : null;
+
+        return new AppendStorePartition(keys, metadata, blobs, blocks, changes, PartitionLookupCache.create(partition, lookupCache), hashSize, builder.getLookupDataOptions(), false);
     }
 
-    protected AppendStorePartition(VirtualPageFile longKeyFile, VirtualPageFile metadataBlobFile, VirtualPageFile blobsFile, BlockedLongs blocks, PartitionLookupCache lookupCache, int hashSize, int flushThreshold, boolean readOnly) {
-        super(longKeyFile, metadataBlobFile, lookupCache, hashSize, flushThreshold, readOnly);
+    protected AppendStorePartition(VirtualPageFile longKeyFile, VirtualPageFile metadataBlobFile, VirtualPageFile blobsFile, BlockedLongs blocks, ChangeLog changeLog, PartitionLookupCache lookupCache, int hashSize, LookupDataOptions lookupOptions, boolean readOnly) {
+        super(longKeyFile, metadataBlobFile, lookupCache, hashSize, lookupOptions, readOnly);
 
 
         this.blocks = blocks;
         this.blobFile = blobsFile;
+        this.changeLog = changeLog;
         blobs = IntStream.range(0, hashSize)
                 .mapToObj(virtualFileNumber -> new VirtualAppendOnlyBlobStore(virtualFileNumber, blobsFile))
                 .toArray(VirtualAppendOnlyBlobStore[]::new);
     }
 
-    void append(String key, byte[] blob) {
-        LookupKey lookupKey = new LookupKey(key);
+    void append(LookupKey lookupKey, byte[] blob) {
+        final int hash = keyHash(lookupKey);
+        appendAt(hash, lookupKey, blob, blobs[hash].append(blob));
+    }
+
+    /**
+     * Reserve the blob position of a value before appending it with {@link #appendReserved}, so a journal can record
+     * exactly where the value goes
+     *
+     * @param lookupKey the key
+     * @param blob the value
+     * @return the reserved blob position
+     */
+    long reserve(LookupKey lookupKey, byte[] blob) {
+        return blobs[keyHash(lookupKey)].reserve(blob);
+    }
+
+    /**
+     * Append a value at the blob position reserved for it
+     *
+     * @param lookupKey the key
+     * @param blob the value
+     * @param blobPos the position from {@link #reserve}
+     */
+    void appendReserved(LookupKey lookupKey, byte[] blob, long blobPos) {
         final int hash = keyHash(lookupKey);
+        blobs[hash].writeReserved(blobPos, blob);
+        appendAt(hash, lookupKey, blob, blobPos);
+    }
 
-        final long blobPos = blobs[hash].append(blob);
+    private void appendAt(int hash, LookupKey lookupKey, byte[] blob, long blobPos) {
         final long blockPos = lookups[hash].putIfNotExists(lookupKey, blocks::allocate);
         blocks.append(blockPos, blobPos);
-        log.trace("appending {} bytes (blob pos {}, block pos {}) for hash '{}', key '{}'", blob.length, blobPos, blockPos, hash, key);
+        if (changeLog != null) changeLog.append(hash, lookupKey, new long[]{blobPos}, 0, 1);
+        log.trace("appending {} bytes (blob pos {}, block pos {}) for hash '{}', key '{}'", blob.length, blobPos, blockPos, hash, lookupKey);
+    }
+
+    void appendAll(Map<String, List<byte[]>> keyValues) {
+        appendAll(keyValues, LookupKey::new);
+    }
+
+    void appendAllKeys(Map<LookupKey, List<byte[]>> keyValues) {
+        appendAll(keyValues, Function.identity());
     }
 
-    Stream<byte[]> read(String key) {
-        LookupKey lookupKey = new LookupKey(key);
+    private <K> void appendAll(Map<K, List<byte[]>> keyValues, Function<K, LookupKey> keyFunction) {
+        // Group the keys by virtual file so each hash writes its blobs with a single position reservation
+        Map<Integer, List<Map.Entry<LookupKey, List<byte[]>>>> keysByHash = new HashMap<>();
+        keyValues.forEach((key, values) -> {
+            LookupKey lookupKey = keyFunction.apply(key);
+            keysByHash.computeIfAbsent(keyHash(lookupKey), hash -> new ArrayList<>()).add(Maps.immutableEntry(lookupKey, values));
+        });
+
+        keysByHash.forEach((hash, entries) -> {
+            List<byte[]> hashBlobs = new ArrayList<>();
+            entries.forEach(entry -> hashBlobs.addAll(entry.getValue()));
+
+            final long[] blobPositions = blobs[hash].appendAll(hashBlobs);
+
+            int offset = 0;
+            for (Map.Entry<LookupKey, List<byte[]>> entry : entries) {
+                final int count = entry.getValue().size();
+                final long blockPos = lookups[hash].putIfNotExists(entry.getKey(), blocks::allocate);
+                blocks.appendAll(blockPos, blobPositions, offset, count);
+                if (changeLog != null) changeLog.append(hash, entry.getKey(), blobPositions, offset, count);
+                offset += count;
+            }
+            log.trace("appended {} blobs for {} keys in hash '{}'", blobPositions.length, entries.size(), hash);
+        });
+    }
+
+    /**
+     * Get the blob positions of a key at or after a position, for matching the values of a journal to the positions
+     * reserved for them
+     *
+     * @param lookupKey the key
+     * @param fromPosition the smallest blob position to return
+     * @return the blob positions of the key's values at or after fromPosition
+     */
+    Set<Long> blobPositions(LookupKey lookupKey, long fromPosition) {
+        Set<Long> positions = new HashSet<>();
+        blocks.valuesIterator(lookups[keyHash(lookupKey)].getValue(lookupKey)).forEachRemaining((long blobPos) -> {
+            if (blobPos >= fromPosition) positions.add(blobPos);
+        });
+        return positions;
+    }
+
+    Stream<byte[]> read(LookupKey lookupKey) {
         final int hash = keyHash(lookupKey);
 
-        return blocks.values(lookups[hash].getValue(lookupKey)).parallel().mapToObj(blobs[hash]::read);
-        // Consider sorting by blob pos or even grouping by the page of the blob pos and then flat-mapping the reads by page.
+        final Long pos = lookups[hash].getValue(lookupKey);
+        return blobs[hash].read(blocks.valuesIterator(pos), blocks.count(pos));
     }
 
-    Stream<byte[]> readSequential(String key) {
-        LookupKey lookupKey = new LookupKey(key);
+    Stream<byte[]> readSequential(LookupKey lookupKey) {
         final int hash = keyHash(lookupKey);
 
         return blocks.values(lookups[hash].getValue(lookupKey)).mapToObj(blobs[hash]::read);
     }
 
-    byte[] readLast(String key) {
-        LookupKey lookupKey = new LookupKey(key);
+    void read(LookupKey lookupKey, Consumer<ByteBuffer> consumer) {
+        final int hash = keyHash(lookupKey);
+
+        blocks.valuesIterator(lookups[hash].getValue(lookupKey)).forEachRemaining((long blobPos) -> blobs[hash].readBuffer(blobPos, consumer));
+    }
+
+    Stream<byte[]> readReverse(LookupKey lookupKey) {
+        final int hash = keyHash(lookupKey);
+
+        return blocks.reverseValues(lookups[hash].getValue(lookupKey)).mapToObj(blobs[hash]::read);
+    }
+
+    Stream<byte[]> readRange(LookupKey lookupKey, long offset, int limit) {
+        final int hash = keyHash(lookupKey);
+
+        return blocks.values(lookups[hash].getValue(lookupKey), offset, limit).mapToObj(blobs[hash]::read);
+    }
+
+    Stream<byte[]> readLastN(LookupKey lookupKey, int n) {
+        final int hash = keyHash(lookupKey);
+
+        return blocks.lastValues(lookups[hash].getValue(lookupKey), n).mapToObj(blobs[hash]::read);
+    }
+
+    byte[] readLast(LookupKey lookupKey) {
         final int hash = keyHash(lookupKey);
 
         return blobs[hash].read(blocks.lastValue(lookups[hash].getValue(lookupKey)));
     }
 
+    long count(LookupKey lookupKey) {
+        final int hash = keyHash(lookupKey);
+
+        return blocks.count(lookups[hash].getValue(lookupKey));
+    }
+
     Stream<Map.Entry<String, Stream<byte[]>>> scan() {
         return IntStream.range(0, hashSize)
                 .parallel()
                 .boxed()
-                .flatMap(virtualFileNumber ->
-                        lookups[virtualFileNumber].scan().map(entry -> Maps.immutableEntry(
-                                entry.getKey().string(),
-                                blocks.values(entry.getValue()).mapToObj(blobs[virtualFileNumber]::read)
-                        ))
-                );
+                .flatMap(this::scan);
     }
 
+    Stream<Map.Entry<String, Stream<byte[]>>> scan(int virtualFileNumber) {
+        return lookups[virtualFileNumber].scan().map(entry -> Maps.immutableEntry(
+                entry.getKey().string(),
+                blocks.values(entry.getValue()).mapToObj(blobs[virtualFileNumber]::read)
+        ));
+    }
 
     void scan(BiConsumer<String, Stream<byte[]>> callback) {
+        scan(LookupKey::string, callback);
+    }
+
+    void scanBytes(BiConsumer<byte[], Stream<byte[]>> callback) {
+        scan(LookupKey::bytes, callback);
+    }
+
+    private <K> void scan(Function<LookupKey, K> keyFunction, BiConsumer<K, Stream<byte[]>> callback) {
         IntStream.range(0, hashSize)
                 .parallel()
                 .boxed()
                 .forEach(virtualFileNumber ->
-                        lookups[virtualFileNumber].scan().forEach(entry -> callback.accept(entry.getKey().string(), blocks.values(entry.getValue()).mapToObj(blobs[virtualFileNumber]::read))
+                        lookups[virtualFileNumber].scan().forEach(entry -> callback.accept(keyFunction.apply(entry.getKey()), blocks.values(entry.getValue()).mapToObj(blobs[virtualFileNumber]::read))
                         ));
     }
 
     Stream<String> keys() {
+        return keys(LookupKey::string);
+    }
+
+    Stream<byte[]> keyBytes() {
+        return keys(LookupKey::bytes);
+    }
+
+    Stream<String> keys(int virtualFileNumber) {
+        return lookups[virtualFileNumber].keys().map(LookupKey::string);
+    }
+
+    Stream<byte[]> keyBytes(int virtualFileNumber) {
+        return lookups[virtualFileNumber].keys().map(LookupKey::bytes);
+    }
+
+    private <K> Stream<K> keys(Function<LookupKey, K> keyFunction) {
         return IntStream.range(0, hashSize)
                 .parallel()
                 .boxed()
-                .flatMap(virtualFileNumber -> lookups[virtualFileNumber].keys().map(LookupKey::string));
+                .flatMap(virtualFileNumber -> lookups[virtualFileNumber].keys().map(keyFunction));
+    }
+
+    /**
+     * Read the values appended to a hash of this partition after a position in its change log
+     *
+     * @param virtualFileNumber the hash to read
+     * @param position the change log position to read from
+     * @param consumer called with the key bytes and the value of each change
+     * @return the change log position after the last change read, which is the given position if the partition has no
+     * change log
+     */
+    long changesSince(int virtualFileNumber, long position, BiConsumer<byte[], byte[]> consumer) {
+        if (changeLog == null) return position;
+        return changeLog.read(virtualFileNumber, position, (key, blobPositions) -> {
+            for (long blobPos : blobPositions) {
+                consumer.accept(key, blobs[virtualFileNumber].read(blobPos));
+            }
+        });
     }
 
     @Override
@@ -147,6 +307,7 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
         metadataBlobFile.flush();
         blobFile.flush();
         blocks.flush();
+        if (changeLog != null) changeLog.flush();
 
         log.debug("Finished flush for partition: {}", lookupCache.getPartition());
     }
@@ -160,6 +321,7 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
         metadataBlobFile.close();
         blobFile.close();
         blocks.close();
+        if (changeLog != null) changeLog.close();
 
         SafeDeleting.removeDirectory(longKeyFile.getFilePath().getParent());
     }
@@ -172,5 +334,6 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
         metadataBlobFile.close();
         blobFile.close();
         blocks.close();
+        if (changeLog != null) changeLog.close();
     }
 }
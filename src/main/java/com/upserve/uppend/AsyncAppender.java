@@ -0,0 +1,210 @@
+package com.upserve.uppend;
+
+import com.upserve.uppend.lookup.LookupKey;
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * Appends values on worker threads so callers do not wait on the partitions. Each worker drains the queue of the
+ * partitions hashed to it, so the values of a partition are appended in the order they were queued and by one thread,
+ * and appends everything it drained for a partition as one batch. A semaphore of in flight bytes bounds the values
+ * queued but not yet appended: a producer blocks until earlier values are appended, or is rejected, when it is full.
+ */
+class AsyncAppender implements Closeable {
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    private static final Entry STOP = new Entry(null, null, null, 0);
+
+    private static class Entry {
+        private final String partitionEntropy;
+        private final LookupKey key;
+        private final byte[] value;
+        private final int permits;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Entry(String partitionEntropy, LookupKey key, byte[] value, int permits) {
+            this.partitionEntropy = partitionEntropy;
+            this.key = key;
+            this.value = value;
+            this.permits = permits;
+        }
+    }
+
+    private final String name;
+    private final BiConsumer<String, Map<LookupKey, List<byte[]>>> appender;
+    private final Function<String, String> partitionHash;
+    private final List<BlockingQueue<Entry>> queues;
+    private final Thread[] workers;
+    private final Semaphore inFlightBytes;
+    private final int maxInFlightBytes;
+    private final boolean rejectWhenFull;
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    /**
+     * @param name the store name, for the worker threads
+     * @param workers the number of worker threads
+     * @param maxInFlightBytes the bound on the bytes queued and not yet appended
+     * @param rejectWhenFull true to reject a producer when the bound is reached, false to block it
+     * @param partitionHash maps the partition of a value to its partition directory, which selects its worker
+     * @param appender appends the values by key for a partition
+     */
+    AsyncAppender(String name, int workers, int maxInFlightBytes, boolean rejectWhenFull, Function<String, String> partitionHash, BiConsumer<String, Map<LookupKey, List<byte[]>>> appender) {
+        if (workers < 1) throw new IllegalArgumentException("async append workers must be >= 1: " + workers);
+        if (maxInFlightBytes < 1) throw new IllegalArgumentException("async append in flight bytes must be >= 1: " + maxInFlightBytes);
+
+        this.name = name;
+        this.appender = appender;
+        this.partitionHash = partitionHash;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.rejectWhenFull = rejectWhenFull;
+        inFlightBytes = new Semaphore(maxInFlightBytes);
+
+        queues = new ArrayList<>(workers);
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+            queues.add(queue);
+            this.workers[i] = new Thread(() -> drain(queue), "uppend-async-append-" + name + "-" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Queue a value to append
+     *
+     * @param partitionEntropy the partition to append under
+     * @param key the key to append under
+     * @param value the value to append
+     * @return a future completed when the value is appended, or completed exceptionally with a
+     * {@link RejectedExecutionException} if the in flight bytes are full and producers are rejected
+     */
+    CompletableFuture<Void> append(String partitionEntropy, LookupKey key, byte[] value) {
+        // A value larger than the bound takes all of it rather than waiting forever
+        final int permits = Math.max(1, Math.min(value.length, maxInFlightBytes));
+        final Entry entry = new Entry(partitionEntropy, key, value, permits);
+
+        if (rejectWhenFull) {
+            if (!inFlightBytes.tryAcquire(permits)) {
+                entry.future.completeExceptionally(new RejectedExecutionException("async append in flight bytes full for " + name));
+                return entry.future;
+            }
+        } else {
+            try {
+                inFlightBytes.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                entry.future.completeExceptionally(e);
+                return entry.future;
+            }
+        }
+
+        // Queue under the read lock so no value is queued behind the stop of a closing worker
+        final Lock lock = closeLock.readLock();
+        lock.lock();
+        try {
+            if (!closed) {
+                queues.get(Math.abs(partitionHash.apply(partitionEntropy).hashCode() % queues.size())).add(entry);
+                return entry.future;
+            }
+        } finally {
+            lock.unlock();
+        }
+        inFlightBytes.release(permits);
+        entry.future.completeExceptionally(new IllegalStateException("async appender is closed for " + name));
+        return entry.future;
+    }
+
+    /**
+     * Get the bytes queued and not yet appended
+     *
+     * @return the in flight bytes
+     */
+    int inFlightBytes() {
+        return maxInFlightBytes - inFlightBytes.availablePermits();
+    }
+
+    /**
+     * Append the queued values and stop the workers
+     */
+    @Override
+    public void close() throws IOException {
+        final Lock lock = closeLock.writeLock();
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            for (BlockingQueue<Entry> queue : queues) {
+                queue.add(STOP);
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for async appends of " + name);
+        }
+        // Only a worker which was interrupted leaves values behind
+        for (BlockingQueue<Entry> queue : queues) {
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                if (entry == STOP) continue;
+                inFlightBytes.release(entry.permits);
+                entry.future.completeExceptionally(new IllegalStateException("async appender is closed for " + name));
+            }
+        }
+    }
+
+    private void drain(BlockingQueue<Entry> queue) {
+        List<Entry> entries = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                entries.add(queue.take());
+            } catch (InterruptedException e) {
+                log.warn("async append worker interrupted for {}", name);
+                break;
+            }
+            queue.drainTo(entries, MAX_BATCH_SIZE - 1);
+            stopping = entries.remove(STOP);
+            if (!entries.isEmpty()) append(entries);
+            entries.clear();
+        }
+    }
+
+    private void append(List<Entry> entries) {
+        Map<String, List<Entry>> entriesByPartition = new LinkedHashMap<>();
+        entries.forEach(entry -> entriesByPartition.computeIfAbsent(entry.partitionEntropy, partition -> new ArrayList<>()).add(entry));
+
+        entriesByPartition.forEach((partitionEntropy, partitionEntries) -> {
+            Map<LookupKey, List<byte[]>> keyValues = new HashMap<>();
+            partitionEntries.forEach(entry -> keyValues.computeIfAbsent(entry.key, key -> new ArrayList<>()).add(entry.value));
+            RuntimeException failure = null;
+            try {
+                appender.accept(partitionEntropy, keyValues);
+            } catch (RuntimeException e) {
+                log.error("unable to append {} values to partition {} of {}", partitionEntries.size(), partitionEntropy, name, e);
+                failure = e;
+            }
+            // Release before completing so a caller waiting on the future sees the bytes returned
+            inFlightBytes.release(partitionEntries.stream().mapToInt(entry -> entry.permits).sum());
+            for (Entry entry : partitionEntries) {
+                if (failure == null) entry.future.complete(null);
+                else entry.future.completeExceptionally(failure);
+            }
+        });
+    }
+}
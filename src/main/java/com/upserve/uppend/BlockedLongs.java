@@ -1,20 +1,44 @@
 package com.upserve.uppend;
 
 import com.google.common.util.concurrent.Striped;
-import com.upserve.uppend.util.*;
 import org.slf4j.Logger;
 
 import java.io.*;
-import java.lang.invoke.MethodHandles;
+import java.lang.invoke.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
-import java.util.concurrent.locks.Lock;
-import java.util.function.Supplier;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
 import java.util.stream.*;
 
+/**
+ * Chains of blocks of longs, one chain per key, in a single file. The position of the next free byte is kept in a
+ * separate .pos file.
+ * <p>
+ * Fixed size blocks hold valuesPerBlock values:
+ * size|-next(long), prev|-last(long), values(long[valuesPerBlock])
+ * <p>
+ * Extended blocks record their capacity and the index in the chain of their first value in the header, so the number
+ * of values in a chain is read from its last block. The first block of a chain holds valuesPerBlock values and each
+ * following block holds twice as many values as the block before it, up to maxValuesPerBlock:
+ * size|-next(long), prev|-last(long), capacity(long), firstIndex(long), values(long[capacity])
+ * <p>
+ * The layout is chosen when the file is created and recorded after the position in the .pos file, with the largest
+ * number of values in a block so chains keep growing the same way when the file is reopened; an 8 byte .pos file holds
+ * fixed size blocks:
+ * pos(long), format(int), maxValuesPerBlock(int)
+ * <p>
+ * Extended blocks can be appended to without locks: the high bits of the capacity word count the values reserved in
+ * the block, tagged with an epoch chosen when the file is opened so reservations left by a writer which died are
+ * ignored. An append reserves its slots with a compare and set of the capacity word, writes its values, and publishes
+ * them by setting the size once the values reserved before it are published. The append which reserves the slot past
+ * the capacity extends the chain, linking the new block with a compare and set of the size of the full block:
+ * capacity(long) = epoch(16 bits)|reserved(16 bits)|capacity(32 bits)
+ */
 public class BlockedLongs implements AutoCloseable, Flushable {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
@@ -22,18 +46,44 @@ public class BlockedLongs implements AutoCloseable, Flushable {
     private static final int LOCK_SIZE = 10007;
     private final Striped<Lock> stripedLocks;
 
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final long CAPACITY_MASK = 0xffffffffL;
+    private static final int RESERVED_SHIFT = 32;
+    private static final long RESERVED_MASK = 0xffff;
+    private static final int EPOCH_SHIFT = 48;
+    // Leave room in the reserved count for the appends waiting on the extension of a full block
+    private static final int MAX_LOCK_FREE_CAPACITY = 1 << 15;
+    private static final int PUBLISH_SPINS = 1 << 10;
+    private static final long PUBLISH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final boolean lockFree;
+    private final long epoch;
+    private final LongAdder lockFreeAppenders = new LongAdder();
+    private final ReentrantLock exclusiveLock = new ReentrantLock();
+    private volatile boolean exclusive;
+
     private static final int PAGE_SIZE = 4 * 1024 * 1024; // allocate 4 MB chunks
     private static final int MAX_PAGES = 1024 * 1024; // max 4 TB (~800 MB heap)
+    private static final int PAGE_CHUNK_BITS = 10; // pages are tracked in chunks of 1024 pages (4 GB) allocated as needed
+    private static final int PAGE_CHUNK_SIZE = 1 << PAGE_CHUNK_BITS;
+
+    private static final int FIXED_HEADER_SIZE = 16;
+    private static final int EXTENDED_HEADER_SIZE = 32;
+    private static final int EXTENDED_BLOCKS_FORMAT = 1;
+
+    private static final PrimitiveIterator.OfLong EMPTY_ITERATOR = LongStream.empty().iterator();
 
     private final Path file;
 
     private final int valuesPerBlock;
+    private final int maxValuesPerBlock;
     private final int blockSize;
+    private final boolean extendedBlocks;
+    private final int headerSize;
 
     private final FileChannel blocks;
-    private final MappedByteBuffer[] pages;
-
-    private final Supplier<ByteBuffer> bufferLocal;
+    private final AtomicReferenceArray<AtomicReferenceArray<MappedByteBuffer>> pages;
 
     private final FileChannel blocksPos;
     private final MappedByteBuffer posBuf;
@@ -48,6 +98,40 @@ public class BlockedLongs implements AutoCloseable, Flushable {
 
 
     public BlockedLongs(Path file, int valuesPerBlock, boolean readOnly) {
+        this(file, valuesPerBlock, valuesPerBlock, false, false, readOnly);
+    }
+
+    /**
+     * Open or create a blocked longs file. A new file uses extended blocks, which grow up to maxValuesPerBlock, when
+     * maxValuesPerBlock is greater than valuesPerBlock, and fixed size blocks, which older readers can open, otherwise;
+     * an existing file keeps the layout it was created with.
+     *
+     * @param file the blocks file
+     * @param valuesPerBlock the number of values in the first block of a chain
+     * @param maxValuesPerBlock the largest number of values in a block
+     * @param readOnly open the file read only
+     */
+    public BlockedLongs(Path file, int valuesPerBlock, int maxValuesPerBlock, boolean readOnly) {
+        this(file, valuesPerBlock, maxValuesPerBlock, maxValuesPerBlock > valuesPerBlock, false, readOnly);
+    }
+
+    /**
+     * Open or create a blocked longs file, optionally appending to extended blocks with compare and set rather than the
+     * striped locks. Lock free appends do not wait on a lock, but an append which fails between reserving its slots
+     * and publishing them, when it can not return its reservation, leaves the later appends to the block timing out
+     * until the file is reopened. Files with fixed size blocks or blocks of more than 32768 values use the locks.
+     *
+     * @param file the blocks file
+     * @param valuesPerBlock the number of values in the first block of a chain
+     * @param maxValuesPerBlock the largest number of values in a block
+     * @param lockFreeAppends true to append to extended blocks with compare and set
+     * @param readOnly open the file read only
+     */
+    public BlockedLongs(Path file, int valuesPerBlock, int maxValuesPerBlock, boolean lockFreeAppends, boolean readOnly) {
+        this(file, valuesPerBlock, maxValuesPerBlock, maxValuesPerBlock > valuesPerBlock, lockFreeAppends, readOnly);
+    }
+
+    private BlockedLongs(Path file, int valuesPerBlock, int maxValuesPerBlock, boolean createExtended, boolean lockFreeAppends, boolean readOnly) {
         if (file == null) {
             throw new IllegalArgumentException("null file");
         }
@@ -67,16 +151,21 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         if (valuesPerBlock < 1) {
             throw new IllegalArgumentException("bad (< 1) values per block: " + valuesPerBlock);
         }
+        if (maxValuesPerBlock < valuesPerBlock) {
+            throw new IllegalArgumentException("bad (< " + valuesPerBlock + ") max values per block: " + maxValuesPerBlock);
+        }
 
         appendCounter = new LongAdder();
         allocCounter = new LongAdder();
         valuesReadCounter = new LongAdder();
 
         this.valuesPerBlock = valuesPerBlock;
-        blockSize = 16 + valuesPerBlock * 8;
+        blockSize = FIXED_HEADER_SIZE + valuesPerBlock * 8;
 
         // size | -next
         // prev | -last
+        // capacity (extended blocks only)
+        // firstIndex (extended blocks only)
         StandardOpenOption[] openOptions;
         if (readOnly) {
             openOptions = new StandardOpenOption[]{StandardOpenOption.READ};
@@ -90,32 +179,53 @@ public class BlockedLongs implements AutoCloseable, Flushable {
             throw new UncheckedIOException("unable to init blocks file: " + file, e);
         }
 
+        pages = new AtomicReferenceArray<>(MAX_PAGES / PAGE_CHUNK_SIZE);
         if (readOnly) {
-            stripedLocks = null;
-            pages = null;
-            currentPage = null;
-
+            currentPage = new AtomicInteger(0);
         } else {
-            stripedLocks = Striped.lock(LOCK_SIZE);
-
-            pages = new MappedByteBuffer[MAX_PAGES];
-
             ensurePage(0);
             currentPage = new AtomicInteger(0);
         }
 
-        bufferLocal = ThreadLocalByteBuffers.threadLocalByteBufferSupplier(blockSize);
-
         try {
             blocksPos = FileChannel.open(posFile, openOptions);
-            if (blocksPos.size() > 8) {
-                throw new IllegalStateException("bad (!= 8) size for block pos file: " + posFile);
+            long posFileSize = blocksPos.size();
+            if (posFileSize != 0 && posFileSize != 8 && posFileSize != 16) {
+                throw new IllegalStateException("bad (!= 8 or 16) size for block pos file: " + posFile);
+            }
+            if (posFileSize == 0) {
+                extendedBlocks = createExtended;
+            } else {
+                extendedBlocks = posFileSize == 16;
+                if (!extendedBlocks && maxValuesPerBlock > valuesPerBlock) {
+                    log.info("existing blocks file {} uses fixed size blocks of {} values, ignoring max values per block {}", file, valuesPerBlock, maxValuesPerBlock);
+                }
             }
             try {
-                posBuf = blocksPos.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, 8);
+                posBuf = blocksPos.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, extendedBlocks ? 16 : 8);
             } catch (IOException e) {
                 throw new UncheckedIOException("unable to map pos buffer at in " + posFile, e);
             }
+            if (extendedBlocks) {
+                if (posFileSize == 0) {
+                    posBuf.putInt(8, EXTENDED_BLOCKS_FORMAT);
+                    posBuf.putInt(12, maxValuesPerBlock);
+                }
+                int format = posBuf.getInt(8);
+                if (format != EXTENDED_BLOCKS_FORMAT) {
+                    throw new IllegalStateException("unknown blocks format (" + format + "): " + posFile);
+                }
+                int storedMaxValuesPerBlock = posBuf.getInt(12);
+                if (storedMaxValuesPerBlock < 1) {
+                    throw new IllegalStateException("bad (< 1) max values per block (" + storedMaxValuesPerBlock + "): " + posFile);
+                }
+                if (storedMaxValuesPerBlock != maxValuesPerBlock) {
+                    log.info("existing blocks file {} grows blocks up to {} values, ignoring max values per block {}", file, storedMaxValuesPerBlock, maxValuesPerBlock);
+                }
+                this.maxValuesPerBlock = storedMaxValuesPerBlock;
+            } else {
+                this.maxValuesPerBlock = valuesPerBlock;
+            }
             long pos = posBuf.getLong(0);
             if (pos < 0) {
                 throw new IllegalStateException("negative pos (" + pos + "): " + posFile);
@@ -129,6 +239,22 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         } catch (IOException e) {
             throw new UncheckedIOException("unable to init blocks pos file: " + posFile, e);
         }
+
+        headerSize = extendedBlocks ? EXTENDED_HEADER_SIZE : FIXED_HEADER_SIZE;
+
+        // Fixed size blocks have no capacity word to reserve slots in
+        lockFree = lockFreeAppends && !readOnly && extendedBlocks && this.maxValuesPerBlock <= MAX_LOCK_FREE_CAPACITY;
+        epoch = (long) ThreadLocalRandom.current().nextInt(1, 1 << 16) << EPOCH_SHIFT;
+        stripedLocks = readOnly || lockFree ? null : Striped.lock(LOCK_SIZE);
+    }
+
+    /**
+     * Whether this file uses extended blocks
+     *
+     * @return true if each block records its own capacity and first index
+     */
+    public boolean isExtendedBlocks() {
+        return extendedBlocks;
     }
 
     /**
@@ -137,13 +263,31 @@ public class BlockedLongs implements AutoCloseable, Flushable {
      * @return the position of the new block
      */
     public long allocate() {
-        log.trace("allocating block of {} bytes in {}", blockSize, file);
+        return allocate(valuesPerBlock);
+    }
+
+    long allocate(int capacity) {
+        final int size = extendedBlocks ? EXTENDED_HEADER_SIZE + capacity * 8 : blockSize;
+        log.trace("allocating block of {} bytes in {}", size, file);
         allocCounter.increment();
-        long pos = posMem.getAndAdd(blockSize);
+        long pos = posMem.getAndAdd(size);
         posBuf.putLong(0, posMem.get());
+        if (extendedBlocks) writeLong(pos + 16, capacity);
         return pos;
     }
 
+    private int capacity(long blockPos) {
+        return extendedBlocks ? (int) readLong(blockPos + 16) : valuesPerBlock;
+    }
+
+    private int nextCapacity(int capacity) {
+        return extendedBlocks ? (int) Math.min(2L * capacity, maxValuesPerBlock) : valuesPerBlock;
+    }
+
+    private void writeFirstIndex(long newPos, long last, int lastCapacity) {
+        if (extendedBlocks) writeLong(newPos + 24, readLong(last + 24) + lastCapacity);
+    }
+
     /**
      * get some stats about the blocked long store
      * @return Stats about activity in this BlockedLongs
@@ -173,6 +317,12 @@ public class BlockedLongs implements AutoCloseable, Flushable {
 
         appendCounter.increment();
 
+        if (lockFree) {
+            appendLockFree(pos, new long[]{val}, 0, 1);
+            log.trace("appended value {} to {} at {}", val, file, pos);
+            return;
+        }
+
         Lock lock = stripedLocks.getAt((int) (pos % LOCK_SIZE));
         lock.lock();
         try {
@@ -190,21 +340,23 @@ public class BlockedLongs implements AutoCloseable, Flushable {
                 writeLong(pos + 8, -last);
             }
 
-            if (size > valuesPerBlock) {
-                throw new IllegalStateException("too high num values: expected <= " + valuesPerBlock + ", got " + size + ": pos=" + pos + " in path: " + file);
+            final int capacity = capacity(last);
+            if (size > capacity) {
+                throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + pos + " in path: " + file);
             }
-            if (size == valuesPerBlock) {
-                long newPos = allocate();
+            if (size == capacity) {
+                long newPos = allocate(nextCapacity(capacity));
                 // write new value in new block
                 writeLong(newPos, 1);
                 writeLong(newPos + 8, last);
-                writeLong(newPos + 16, val);
+                writeFirstIndex(newPos, last, capacity);
+                writeLong(newPos + headerSize, val);
                 // link to last->next
                 writeLong(last, -newPos);
                 // link to first->last
                 writeLong(pos + 8, -newPos);
             } else {
-                writeLong(last + 16 + 8 * size, val);
+                writeLong(last + headerSize + 8 * size, val);
                 writeLong(last, size + 1);
             }
         } finally {
@@ -213,69 +365,453 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         log.trace("appended value {} to {} at {}", val, file, pos);
     }
 
+    /**
+     * Append several values to the block chain starting at pos, holding the lock once for all of them
+     *
+     * @param pos the position of the first block in the chain
+     * @param vals the array holding the values to append
+     * @param offset the index in vals of the first value to append
+     * @param length the number of values to append
+     */
+    public void appendAll(final long pos, final long[] vals, final int offset, final int length) {
+        log.trace("appending {} values to {} at {}", length, file, pos);
+        if (readOnly) throw new RuntimeException("Can not append a read only blocked longs file: " + file);
+        if (length == 0) return;
+        // size | -next
+        // prev | -last
+
+        appendCounter.add(length);
+
+        if (lockFree) {
+            appendLockFree(pos, vals, offset, length);
+            log.trace("appended {} values to {} at {}", length, file, pos);
+            return;
+        }
+
+        Lock lock = stripedLocks.getAt((int) (pos % LOCK_SIZE));
+        lock.lock();
+        try {
+            final long prev = readLong(pos + 8);
+            if (prev > 0) {
+                throw new IllegalStateException("append called at non-starting block: pos=" + pos + " in path: " + file);
+            }
+            long last = prev == 0 ? pos : -prev;
+            long size = readLong(last);
+            if (size < 0) {
+                log.debug("Read repair for last block with a next: pos=" + pos + " in path: " + file);
+                last = -size;
+                size = readLong(last);
+                writeLong(pos + 8, -last);
+            }
+
+            int capacity = capacity(last);
+            if (size > capacity) {
+                throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + pos + " in path: " + file);
+            }
+
+            int index = offset;
+            final int end = offset + length;
+
+            // fill the remaining space in the last block
+            int count = (int) Math.min(capacity - size, end - index);
+            if (count > 0) {
+                for (int i = 0; i < count; i++) {
+                    writeLong(last + headerSize + 8 * (size + i), vals[index + i]);
+                }
+                writeLong(last, size + count);
+                index += count;
+            }
+
+            // write each new block completely before linking it into the chain
+            while (index < end) {
+                final int lastCapacity = capacity;
+                capacity = nextCapacity(capacity);
+                long newPos = allocate(capacity);
+                count = Math.min(capacity, end - index);
+                writeLong(newPos + 8, last);
+                writeFirstIndex(newPos, last, lastCapacity);
+                for (int i = 0; i < count; i++) {
+                    writeLong(newPos + headerSize + 8 * i, vals[index + i]);
+                }
+                writeLong(newPos, count);
+                // link to last->next
+                writeLong(last, -newPos);
+                // link to first->last
+                writeLong(pos + 8, -newPos);
+
+                last = newPos;
+                index += count;
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.trace("appended {} values to {} at {}", length, file, pos);
+    }
+
+    /**
+     * Append values without locks. The values of one call stay in order but may be interleaved with the values of
+     * concurrent appends where they span blocks.
+     */
+    private void appendLockFree(final long pos, final long[] vals, final int offset, final int length) {
+        enterLockFree();
+        try {
+            final long prev = readLongVolatile(pos + 8);
+            if (prev > 0) {
+                throw new IllegalStateException("append called at non-starting block: pos=" + pos + " in path: " + file);
+            }
+            long last = prev == 0 ? pos : -prev;
+
+            // A block allocated for an extension which another append made first is left unused in the file
+            long spare = -1;
+            int index = offset;
+            final int end = offset + length;
+            while (index < end) {
+                final long size = readLongVolatile(last);
+                if (size < 0) {
+                    // Read repair: the next block is linked but first->last is not updated yet
+                    final long next = -size;
+                    casLong(pos + 8, last == pos ? 0 : -last, -next);
+                    last = next;
+                    continue;
+                }
+
+                final long capacityWord = readLongVolatile(last + 16);
+                final int capacity = (int) (capacityWord & CAPACITY_MASK);
+                // Reservations from another epoch were never published, so the size is what was reserved
+                final long reserved = (capacityWord >>> EPOCH_SHIFT << EPOCH_SHIFT) == epoch ? (capacityWord >>> RESERVED_SHIFT) & RESERVED_MASK : size;
+                final long block = last;
+                if (reserved > capacity) {
+                    // Another append is extending the full block, or returning its reservation if it failed to
+                    await(block, () -> readLongVolatile(block) < 0 || readLongVolatile(block + 16) != capacityWord, "the next block");
+                    continue;
+                }
+
+                // Map the pages the values go to before reserving, so the writes after the reservation can not fail
+                final long target;
+                if (reserved < capacity) {
+                    target = block;
+                } else {
+                    if (spare < 0 || capacity(spare) != nextCapacity(capacity)) spare = allocate(nextCapacity(capacity));
+                    target = spare;
+                }
+                page(target + headerSize + 8L * capacity(target) - 8);
+
+                final int count = reserved < capacity ? (int) Math.min(capacity - reserved, end - index) : 1;
+                final long reservation = epoch | (reserved + count) << RESERVED_SHIFT | capacity;
+                if (!casLong(block + 16, capacityWord, reservation)) continue;
+
+                try {
+                    if (reserved < capacity) {
+                        for (int i = 0; i < count; i++) {
+                            writeLong(block + headerSize + 8 * (reserved + i), vals[index + i]);
+                        }
+                        await(block, () -> readLongVolatile(block) == reserved, "value " + reserved);
+                        writeLongRelease(block, reserved + count);
+                        index += count;
+                    } else {
+                        // The slot past the capacity: write the next block completely before linking it into the chain
+                        await(block, () -> readLongVolatile(block) == capacity, "value " + capacity);
+                        final int newCapacity = capacity(spare);
+                        final int newCount = Math.min(newCapacity, end - index);
+                        final long newPos = spare;
+                        writeLong(newPos + 16, epoch | (long) newCount << RESERVED_SHIFT | newCapacity);
+                        writeLong(newPos + 8, block);
+                        writeFirstIndex(newPos, block, capacity);
+                        for (int i = 0; i < newCount; i++) {
+                            writeLong(newPos + headerSize + 8 * i, vals[index + i]);
+                        }
+                        writeLong(newPos, newCount);
+                        // link to last->next
+                        if (!casLong(block, capacity, -newPos)) {
+                            throw new IllegalStateException("full block extended twice: block=" + block + " in path: " + file);
+                        }
+                        spare = -1;
+                        // link to first->last, unless a read repair already has
+                        casLong(pos + 8, block == pos ? 0 : -block, -newPos);
+
+                        last = newPos;
+                        index += newCount;
+                    }
+                } catch (RuntimeException | Error e) {
+                    // Nothing after the reservation is published, so it can be returned unless a later append reserved
+                    if (!casLong(block + 16, reservation, epoch | reserved << RESERVED_SHIFT | capacity)) {
+                        log.error("unable to return reservation of {} values at {} of block {} in path: {}", count, reserved, block, file);
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            exitLockFree();
+        }
+    }
+
+    /**
+     * Wait for the appends which reserved slots before this one to publish them, or for the extension of a full
+     * block. They only have values to write, so a wait which does not end means a writer failed between its
+     * reservation and its publication.
+     */
+    private void await(long block, BooleanSupplier done, String waitingFor) {
+        long deadline = 0;
+        for (int spins = 0; !done.getAsBoolean(); spins++) {
+            if (spins < PUBLISH_SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            final long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + PUBLISH_TIMEOUT_NANOS;
+            } else if (now - deadline > 0) {
+                throw new IllegalStateException("timed out waiting for " + waitingFor + " of block " + block + " in path: " + file);
+            }
+            Thread.yield();
+        }
+    }
+
+    private void enterLockFree() {
+        while (true) {
+            lockFreeAppenders.increment();
+            if (!exclusive) return;
+            lockFreeAppenders.decrement();
+            // Wait for the clear, close or trim holding the file
+            exclusiveLock.lock();
+            exclusiveLock.unlock();
+        }
+    }
+
+    private void exitLockFree() {
+        lockFreeAppenders.decrement();
+    }
+
+    /**
+     * Hold the file for a clear, close or trim: take every striped lock, or for lock free appends stop new appends and
+     * wait for the appends in progress
+     */
+    private void lockAll() {
+        if (lockFree) {
+            exclusiveLock.lock();
+            exclusive = true;
+            while (lockFreeAppenders.sum() != 0) {
+                Thread.onSpinWait();
+            }
+        } else {
+            IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).lock());
+        }
+    }
+
+    private void unlockAll() {
+        if (lockFree) {
+            exclusive = false;
+            exclusiveLock.unlock();
+        } else {
+            IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).unlock());
+        }
+    }
+
     public LongStream values(Long pos) {
-        log.trace("streaming values from {} at {}", file, pos);
+        return StreamSupport.longStream(
+                Spliterators.spliteratorUnknownSize(valuesIterator(pos), Spliterator.ORDERED | Spliterator.NONNULL),
+                false
+        );
+    }
+
+    /**
+     * Iterate over the values in the block chain starting at pos. The values are read in place from the mapped pages
+     * of the file, one block at a time, as the iterator advances.
+     *
+     * @param pos the position of the first block in the chain, or null for a missing key
+     * @return an iterator over the values in the order they were appended
+     */
+    public PrimitiveIterator.OfLong valuesIterator(Long pos) {
+        return valuesIterator(pos, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Stream a range of the values in the block chain starting at pos, in the order they were appended
+     *
+     * @param pos the position of the first block in the chain, or null for a missing key
+     * @param offset the index of the first value to return
+     * @param limit the maximum number of values to return
+     * @return a stream of at most limit values
+     */
+    public LongStream values(Long pos, long offset, long limit) {
+        return StreamSupport.longStream(
+                Spliterators.spliteratorUnknownSize(valuesIterator(pos, offset, limit), Spliterator.ORDERED | Spliterator.NONNULL),
+                false
+        );
+    }
+
+    /**
+     * Stream the last n values in the block chain starting at pos, in the order they were appended
+     *
+     * @param pos the position of the first block in the chain, or null for a missing key
+     * @param n the maximum number of values to return
+     * @return a stream of at most n values
+     */
+    public LongStream lastValues(Long pos, long n) {
+        if (n < 0) throw new IllegalArgumentException("negative number of values: " + n);
+        return values(pos, Math.max(0, count(pos) - n), n);
+    }
+
+    /**
+     * Iterate over a range of the values in the block chain starting at pos. Whole blocks before the offset are
+     * skipped by reading only their headers. Extended blocks start from the last block of the chain and follow the
+     * prev pointers when the offset is in the later half of the chain.
+     *
+     * @param pos the position of the first block in the chain, or null for a missing key
+     * @param offset the index of the first value to return
+     * @param limit the maximum number of values to return
+     * @return an iterator over at most limit values in the order they were appended
+     */
+    public PrimitiveIterator.OfLong valuesIterator(Long pos, long offset, long limit) {
+        log.trace("iterating values from {} at {} (offset {}, limit {})", file, pos, offset, limit);
+        if (offset < 0) throw new IllegalArgumentException("negative offset: " + offset);
+        if (limit < 0) throw new IllegalArgumentException("negative limit: " + limit);
 
         valuesReadCounter.increment();
 
         if (pos == null) {
             // pos will be null for missing keys
-            return LongStream.empty();
+            return EMPTY_ITERATOR;
         }
 
-        if (pos < 0 || pos > size()) {
-            log.error("Bad position value {} in file {} of size {}", pos, file, size());
-            return LongStream.empty();
+        final long size = size();
+        if (pos < 0 || pos > size) {
+            log.error("Bad position value {} in file {} of size {}", pos, file, size);
+            return EMPTY_ITERATOR;
+        }
+        if (pos == size || limit == 0) {
+            return EMPTY_ITERATOR;
         }
 
-        ByteBuffer buf = readBlock(pos);
-        if (buf == null) {
-            return LongStream.empty();
+        long block = pos;
+        long firstIndex = 0;
+        if (extendedBlocks && offset > 0) {
+            final long last = lastBlock(pos);
+            final long lastFirstIndex = readLong(last + 24);
+            if (offset >= lastFirstIndex / 2) {
+                block = last;
+                while (block != pos && readLong(block + 24) > offset) {
+                    block = readLong(block + 8);
+                }
+                firstIndex = readLong(block + 24);
+            }
         }
-        buf.flip();
 
         // size | -next
         // prev | -last
+        long blockSize = readLong(block);
+        int capacity = capacity(block);
+        while (blockSize < 0 && offset >= firstIndex + capacity) {
+            firstIndex += capacity;
+            block = -blockSize;
+            blockSize = readLong(block);
+            capacity = capacity(block);
+        }
+        if (offset - firstIndex >= capacity) {
+            return EMPTY_ITERATOR;
+        }
 
-        long size = buf.getLong();
-        buf.getLong();
+        return new BlockValuesIterator(block, (int) (offset - firstIndex), limit);
+    }
 
-        if (size < 0) {
-            long nextPos = -size;
-            long[] values = new long[valuesPerBlock];
-            for (int i = 0; i < valuesPerBlock; i++) {
-                values[i] = buf.getLong();
-            }
-            return LongStreams.lazyConcat(Arrays.stream(values), () -> values(nextPos));
-        } else if (size > valuesPerBlock) {
-            throw new IllegalStateException("too high num values: expected <= " + valuesPerBlock + ", got " + size);
-        } else if (size == 0) {
-            return LongStream.empty();
+    /**
+     * Stream the values in the block chain starting at pos, newest first
+     *
+     * @param pos the position of the first block in the chain, or null for a missing key
+     * @return a stream of the values in the reverse of the order they were appended
+     */
+    public LongStream reverseValues(Long pos) {
+        return StreamSupport.longStream(
+                Spliterators.spliteratorUnknownSize(reverseValuesIterator(pos), Spliterator.ORDERED | Spliterator.NONNULL),
+                false
+        );
+    }
+
+    /**
+     * Iterate over the values in the block chain starting at pos, newest first. The iterator starts at the last block,
+     * found from the -last pointer of the first block, and follows the prev pointers, so blocks are only read as the
+     * iterator reaches them.
+     *
+     * @param pos the position of the first block in the chain, or null for a missing key
+     * @return an iterator over the values in the reverse of the order they were appended
+     */
+    public PrimitiveIterator.OfLong reverseValuesIterator(Long pos) {
+        log.trace("iterating values in reverse from {} at {}", file, pos);
+
+        valuesReadCounter.increment();
+
+        if (pos == null) {
+            return EMPTY_ITERATOR;
+        }
+
+        final long size = size();
+        if (pos < 0 || pos > size) {
+            log.error("Bad position value {} in file {} of size {}", pos, file, size);
+            return EMPTY_ITERATOR;
+        }
+        if (pos == size) {
+            return EMPTY_ITERATOR;
+        }
+
+        return new ReverseBlockValuesIterator(pos);
+    }
+
+    /**
+     * Count the values in the block chain starting at pos without reading them. Extended blocks read the count from
+     * the last block of the chain, fixed size blocks walk the headers of the chain.
+     *
+     * @param pos the position of the first block in the chain, or null for a missing key
+     * @return the number of values
+     */
+    public long count(Long pos) {
+        log.trace("counting values from {} at {}", file, pos);
+
+        if (pos == null || pos < 0 || pos >= size()) {
+            return 0;
+        }
+
+        // size | -next
+        // prev | -last
+        if (extendedBlocks) {
+            final long last = lastBlock(pos);
+            return readLong(last + 24) + readLong(last);
         } else {
-            int numValues = (int) size;
-            long[] values = new long[numValues];
-            for (int i = 0; i < numValues; i++) {
-                values[i] = buf.getLong();
-            }
-            if (log.isTraceEnabled()) {
-                String valuesStr = Arrays.toString(values);
-                log.trace("got values from {} at {}: {}", file, pos, valuesStr);
+            long count = 0;
+            long block = pos;
+            long size = readLong(block);
+            while (size < 0) {
+                count += valuesPerBlock;
+                block = -size;
+                size = readLong(block);
             }
-            return Arrays.stream(values);
+            return count + size;
         }
     }
 
+    /**
+     * Find the last block of the chain starting at pos, following the next pointer of a block which is not yet linked
+     * from the first block
+     */
+    private long lastBlock(long pos) {
+        final long prev = readLong(pos + 8);
+        if (prev > 0) {
+            throw new IllegalStateException("read called at non-starting block: pos=" + pos + " in path: " + file);
+        }
+        long last = prev == 0 ? pos : -prev;
+        long size = readLong(last);
+        while (size < 0) {
+            last = -size;
+            size = readLong(last);
+        }
+        return last;
+    }
+
     public long lastValue(long pos) {
         log.trace("reading last value from {} at {}", file, pos);
 
-        if (pos >= posMem.get()) {
-            return -1;
-        }
-        ByteBuffer buf = readBlock(pos);
-        if (buf == null) {
+        if (pos >= size()) {
             return -1;
         }
-        buf.flip();
 
         // size | -next
         // prev | -last
@@ -292,33 +828,34 @@ public class BlockedLongs implements AutoCloseable, Flushable {
             }
             return -1;
         }
-        if (size < 0) {
+        while (size < 0) {
             log.debug("Read recovery for last block (at " + last + "): pos=" + pos);
             last = -size;
             size = readLong(last);
         }
-        if (size > valuesPerBlock) {
-            throw new IllegalStateException("too high num values: expected <= " + valuesPerBlock + ", got " + size + ": pos=" + pos);
+        final int capacity = capacity(last);
+        if (size > capacity) {
+            throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + pos);
         }
-        long value = readLong(last + 16 + 8 * (size - 1));
+        long value = readLong(last + headerSize + 8 * (size - 1));
         log.trace("got value from {} at {}: {}", file, pos, value);
         return value;
     }
 
     public void clear() {
         log.debug("clearing {}", file);
-        IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).lock());
+        lockAll();
         try {
             blocks.truncate(0);
             posBuf.putLong(0, 0);
             posMem.set(0);
-            Arrays.fill(pages, null);
+            clearPages();
             currentPage.set(0);
             ensurePage(0);
         } catch (IOException e) {
             throw new UncheckedIOException("unable to clear", e);
         } finally {
-            IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).unlock());
+            unlockAll();
         }
     }
 
@@ -332,13 +869,13 @@ public class BlockedLongs implements AutoCloseable, Flushable {
             return;
         }
 
-        IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).lock());
+        lockAll();
         try {
             flush();
             blocks.close();
             blocksPos.close();
         } finally {
-            IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).unlock());
+            unlockAll();
         }
     }
 
@@ -348,40 +885,27 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         log.debug("flushing {}", file);
         posBuf.force();
 
-        Arrays.stream(pages)
-                .parallel()
+        IntStream.range(0, pages.length())
+                .mapToObj(pages::get)
                 .filter(Objects::nonNull)
+                .flatMap(chunk -> IntStream.range(0, PAGE_CHUNK_SIZE).mapToObj(chunk::get))
+                .filter(Objects::nonNull)
+                .parallel()
                 .forEach(MappedByteBuffer::force);
 
         log.debug("flushed {}", file);
     }
 
     public void trim() {
-        IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).lock());
+        lockAll();
         try {
             flush();
-            Arrays.fill(pages, null);
+            clearPages();
             currentPage.set(0);
             ensurePage(0);
         } finally {
-            IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).unlock());
-        }
-    }
-
-    private ByteBuffer readBlock(long pos) {
-        ByteBuffer buf = bufferLocal.get();
-        try {
-            int numRead = blocks.read(buf, pos);
-            if (numRead == -1) {
-                return null;
-            }
-            if (numRead != blockSize) {
-                throw new RuntimeException("read bad block size from " + file + " at pos " + pos + ": got " + numRead + ", expected " + blockSize);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("unable to read block at pos " + pos + ": " + file, e);
+            unlockAll();
         }
-        return buf;
     }
 
     private long readLong(long pos) {
@@ -394,6 +918,21 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         page(pos).putLong(pagePos, val);
     }
 
+    private long readLongVolatile(long pos) {
+        int pagePos = (int) (pos % (long) PAGE_SIZE);
+        return (long) LONGS.getVolatile(page(pos), pagePos);
+    }
+
+    private void writeLongRelease(long pos, long val) {
+        int pagePos = (int) (pos % (long) PAGE_SIZE);
+        LONGS.setRelease(page(pos), pagePos, val);
+    }
+
+    private boolean casLong(long pos, long expected, long val) {
+        int pagePos = (int) (pos % (long) PAGE_SIZE);
+        return LONGS.compareAndSet(page(pos), pagePos, expected, val);
+    }
+
     private MappedByteBuffer page(long pos) {
         long pageIndexLong = pos / PAGE_SIZE;
         if (pageIndexLong > Integer.MAX_VALUE) {
@@ -401,13 +940,17 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         }
         int pageIndex = (int) pageIndexLong;
 
+        if (readOnly) {
+            return readOnlyPage(pageIndex, (int) (pos % (long) PAGE_SIZE) + 8);
+        }
+
         MappedByteBuffer page = ensurePage(pageIndex);
         preloadPage(pageIndex + 1);
         return page;
     }
 
     private void preloadPage(int pageIndex) {
-        if (pageIndex < MAX_PAGES && pages[pageIndex] == null) {
+        if (pageIndex < MAX_PAGES && getPage(pageIndex) == null) {
             // preload page
             int prev = currentPage.getAndUpdate(current -> current < pageIndex ? pageIndex : current);
             if (prev < pageIndex) {
@@ -416,11 +959,39 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         }
     }
 
+    /**
+     * Map a page read only. The file may not extend to the end of the last page, so the page is mapped up to the end
+     * of the file and mapped again if a later read needs more of it.
+     */
+    private MappedByteBuffer readOnlyPage(int pageIndex, int minSize) {
+        MappedByteBuffer page = getPage(pageIndex);
+        if (page == null || page.capacity() < minSize) {
+            synchronized (pages) {
+                page = getPage(pageIndex);
+                if (page == null || page.capacity() < minSize) {
+                    long pageStart = (long) pageIndex * PAGE_SIZE;
+                    try {
+                        long mapSize = Math.min(PAGE_SIZE, blocks.size() - pageStart);
+                        if (mapSize < minSize) {
+                            throw new IllegalStateException("read past the end (" + (pageStart + minSize) + ") of " + file);
+                        }
+                        page = blocks.map(FileChannel.MapMode.READ_ONLY, pageStart, mapSize);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("unable to map page at page index " + pageIndex + " (" + pageStart + " + " + PAGE_SIZE + ") in " + file, e);
+                    }
+                    putPage(pageIndex, page);
+                    currentPage.getAndUpdate(current -> current < pageIndex ? pageIndex : current);
+                }
+            }
+        }
+        return page;
+    }
+
     private MappedByteBuffer ensurePage(int pageIndex) {
-        MappedByteBuffer page = pages[pageIndex];
+        MappedByteBuffer page = getPage(pageIndex);
         if (page == null) {
             synchronized (pages) {
-                page = pages[pageIndex];
+                page = getPage(pageIndex);
                 if (page == null) {
                     long pageStart = (long) pageIndex * PAGE_SIZE;
                     try {
@@ -428,10 +999,128 @@ public class BlockedLongs implements AutoCloseable, Flushable {
                     } catch (IOException e) {
                         throw new UncheckedIOException("unable to map page at page index " + pageIndex + " (" + pageStart + " + " + PAGE_SIZE + ") in " + file, e);
                     }
-                    pages[pageIndex] = page;
+                    putPage(pageIndex, page);
                 }
             }
         }
         return page;
     }
+
+    private MappedByteBuffer getPage(int pageIndex) {
+        final AtomicReferenceArray<MappedByteBuffer> chunk = pages.get(pageIndex >>> PAGE_CHUNK_BITS);
+        return chunk == null ? null : chunk.get(pageIndex & (PAGE_CHUNK_SIZE - 1));
+    }
+
+    /**
+     * Record a mapped page, allocating its chunk of the page table if it is the first page mapped in the chunk. Called
+     * holding the pages monitor.
+     */
+    private void putPage(int pageIndex, MappedByteBuffer page) {
+        final int chunkIndex = pageIndex >>> PAGE_CHUNK_BITS;
+        AtomicReferenceArray<MappedByteBuffer> chunk = pages.get(chunkIndex);
+        if (chunk == null) {
+            chunk = new AtomicReferenceArray<>(PAGE_CHUNK_SIZE);
+            pages.set(chunkIndex, chunk);
+        }
+        chunk.set(pageIndex & (PAGE_CHUNK_SIZE - 1), page);
+    }
+
+    private void clearPages() {
+        synchronized (pages) {
+            IntStream.range(0, pages.length()).forEach(chunkIndex -> pages.set(chunkIndex, null));
+        }
+    }
+
+    /**
+     * Walks a block chain in place: the header of each block is read when the iterator reaches it and the values are
+     * read one at a time from the mapped pages.
+     */
+    private class BlockValuesIterator implements PrimitiveIterator.OfLong {
+        private long block;
+        private long nextBlock;
+        private int count;
+        private int index;
+        private long remaining;
+
+        BlockValuesIterator(long pos, int index, long limit) {
+            load(pos);
+            this.index = index;
+            remaining = limit;
+        }
+
+        private void load(long pos) {
+            // size | -next
+            // prev | -last
+            block = pos;
+            index = 0;
+            final long size = readLong(pos);
+            final int capacity = capacity(pos);
+            if (size < 0) {
+                nextBlock = -size;
+                count = capacity;
+            } else if (size > capacity) {
+                throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + pos + " in path: " + file);
+            } else {
+                nextBlock = 0;
+                count = (int) size;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (remaining <= 0) return false;
+            while (index >= count) {
+                if (nextBlock <= 0) return false;
+                load(nextBlock);
+            }
+            return true;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) throw new NoSuchElementException("no more values in block chain in path: " + file);
+            remaining--;
+            return readLong(block + headerSize + 8L * index++);
+        }
+    }
+
+    /**
+     * Walks a block chain from the last block back to the first block, reading the values of each block from the end
+     */
+    private class ReverseBlockValuesIterator implements PrimitiveIterator.OfLong {
+        private final long first;
+        private long block;
+        private int index;
+
+        ReverseBlockValuesIterator(long pos) {
+            first = pos;
+            block = lastBlock(pos);
+
+            // size | -next
+            // prev | -last
+            final long size = readLong(block);
+            final int capacity = capacity(block);
+            if (size > capacity) {
+                throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + block + " in path: " + file);
+            }
+            index = (int) size - 1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index < 0) {
+                if (block == first) return false;
+                // Every block before the last one is full
+                block = readLong(block + 8);
+                index = capacity(block) - 1;
+            }
+            return true;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) throw new NoSuchElementException("no more values in block chain in path: " + file);
+            return readLong(block + headerSize + 8L * index--);
+        }
+    }
 }
@@ -0,0 +1,237 @@
+package com.upserve.uppend;
+
+import com.codahale.metrics.*;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.upserve.uppend.blobs.PageCache;
+import com.upserve.uppend.lookup.LookupCache;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares cache memory budgets among the stores in a JVM. Builders given the same manager use views of one byte
+ * bounded page cache, so the page budget is shared by whichever pages are hottest across all the stores. The lookup
+ * key and metadata cache budgets are divided among the registered stores and rebalanced periodically: every store
+ * keeps a minimum share and the rest is divided in proportion to each store's recent misses. Misses are a proxy for
+ * the hits a store would gain from more memory, not a measure of them: a store scanning keys it never reads again
+ * misses often but gains little, so the minimum share bounds what a store with useful hits can lose to such a store.
+ * Allocations move half way to the target on each rebalance to avoid oscillation.
+ *
+ * Only on heap lookup key caches can be resized, so stores with an off heap lookup key cache can not be managed.
+ */
+public class CacheManager implements Closeable {
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int DEFAULT_REBALANCE_SECONDS = 30;
+
+    // Each store keeps at least this fraction of an equal share of each budget
+    static final double MINIMUM_SHARE = 0.25;
+
+    static final String CACHE_MANAGER_METRICS = "CacheManager";
+    static final String LOOKUP_KEY_CACHE_ALLOCATION = "lookupKeyCacheAllocation";
+    static final String METADATA_CACHE_ALLOCATION = "metadataCacheAllocation";
+    static final String PAGE_CACHE_RESIDENT_BYTES = "pageCacheResidentBytes";
+
+    private final PageCache pageCache;
+    private final long lookupKeyCacheBudget;
+    private final long metadataCacheBudget;
+    private final MetricRegistry metricRegistry;
+    private final String metricsRootName;
+
+    private final Map<LookupCache, ManagedStore> stores;
+    private final ScheduledExecutorService rebalanceExecutor;
+
+    /**
+     * @param pageCacheBytes the budget for the shared page cache, or 0 to let each store build its own page caches
+     * @param lookupKeyCacheBudget the budget in bytes for the lookup key caches of all the stores
+     * @param metadataCacheBudget the budget in bytes for the metadata caches of all the stores
+     * @param rebalanceSeconds the period between rebalances, or 0 to rebalance only when {@link #rebalance()} is called
+     * @param metricRegistry a registry for allocation gauges or null
+     * @param metricsRootName the root name for the gauges
+     */
+    public CacheManager(long pageCacheBytes, long lookupKeyCacheBudget, long metadataCacheBudget, int rebalanceSeconds, MetricRegistry metricRegistry, String metricsRootName) {
+        if (lookupKeyCacheBudget < 0 || metadataCacheBudget < 0 || pageCacheBytes < 0) {
+            throw new IllegalArgumentException("Cache budgets must be >= 0");
+        }
+        this.lookupKeyCacheBudget = lookupKeyCacheBudget;
+        this.metadataCacheBudget = metadataCacheBudget;
+        this.metricRegistry = metricRegistry;
+        this.metricsRootName = metricsRootName;
+
+        pageCache = pageCacheBytes > 0 ? new PageCache(FileStoreBuilder.DEFAULT_INITIAL_LOOKUP_PAGE_CACHE_SIZE, pageCacheBytes, ForkJoinPool.commonPool(), null) : null;
+        if (pageCache != null && metricRegistry != null) {
+            metricRegistry.register(MetricRegistry.name(metricsRootName, CACHE_MANAGER_METRICS, PAGE_CACHE_RESIDENT_BYTES), (Gauge<Long>) pageCache::residentBytes);
+        }
+
+        stores = new LinkedHashMap<>();
+
+        if (rebalanceSeconds > 0) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            rebalanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cache-manager-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            rebalanceExecutor.scheduleWithFixedDelay(this::rebalance, rebalanceSeconds, rebalanceSeconds, TimeUnit.SECONDS);
+        } else {
+            rebalanceExecutor = null;
+        }
+    }
+
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * Manage the lookup cache of a store. The budgets are split evenly among the stores when one is added.
+     *
+     * @param storeName the name of the store, used for the metrics
+     * @param lookupCache the lookup cache of the store
+     * @throws IllegalArgumentException if the lookup cache has an off heap key cache, which can not be resized
+     */
+    public synchronized void register(String storeName, LookupCache lookupCache) {
+        if (lookupCache.isOffHeapKeyCache()) throw new IllegalArgumentException("Can not manage the off heap lookup key cache of store " + storeName);
+        if (stores.containsKey(lookupCache)) throw new IllegalStateException("Lookup cache already registered for store " + storeName);
+        ManagedStore store = new ManagedStore(storeName, lookupCache);
+        stores.put(lookupCache, store);
+        if (metricRegistry != null) {
+            metricRegistry.register(store.metricName(LOOKUP_KEY_CACHE_ALLOCATION), (Gauge<Long>) () -> store.keyAllocation);
+            metricRegistry.register(store.metricName(METADATA_CACHE_ALLOCATION), (Gauge<Long>) () -> store.metadataAllocation);
+        }
+        splitEvenly();
+        log.info("registered store {} with cache manager", storeName);
+    }
+
+    public synchronized void deregister(LookupCache lookupCache) {
+        ManagedStore store = stores.remove(lookupCache);
+        if (store == null) return;
+        if (metricRegistry != null) {
+            metricRegistry.remove(store.metricName(LOOKUP_KEY_CACHE_ALLOCATION));
+            metricRegistry.remove(store.metricName(METADATA_CACHE_ALLOCATION));
+        }
+        splitEvenly();
+        log.info("deregistered store {} from cache manager", store.storeName);
+    }
+
+    /**
+     * The current lookup key cache allocation of each store
+     *
+     * @return the allocations in bytes by store name
+     */
+    public synchronized Map<String, Long> getLookupKeyCacheAllocations() {
+        Map<String, Long> allocations = new LinkedHashMap<>();
+        stores.values().forEach(store -> allocations.put(store.storeName, store.keyAllocation));
+        return allocations;
+    }
+
+    /**
+     * The current metadata cache allocation of each store
+     *
+     * @return the allocations in bytes by store name
+     */
+    public synchronized Map<String, Long> getMetadataCacheAllocations() {
+        Map<String, Long> allocations = new LinkedHashMap<>();
+        stores.values().forEach(store -> allocations.put(store.storeName, store.metadataAllocation));
+        return allocations;
+    }
+
+    /**
+     * Move each store's allocations towards its share of the budgets given the misses since the last rebalance
+     */
+    public synchronized void rebalance() {
+        if (stores.isEmpty()) return;
+        try {
+            long[] keyMisses = new long[stores.size()];
+            long[] metadataMisses = new long[stores.size()];
+            int i = 0;
+            for (ManagedStore store : stores.values()) {
+                CacheStats keyStats = store.lookupCache.keyStats();
+                CacheStats metadataStats = store.lookupCache.metadataStats();
+                keyMisses[i] = Math.max(0, keyStats.missCount() - store.lastKeyMisses);
+                metadataMisses[i] = Math.max(0, metadataStats.missCount() - store.lastMetadataMisses);
+                store.lastKeyMisses = keyStats.missCount();
+                store.lastMetadataMisses = metadataStats.missCount();
+                i++;
+            }
+
+            long[] keyTargets = targets(lookupKeyCacheBudget, keyMisses);
+            long[] metadataTargets = targets(metadataCacheBudget, metadataMisses);
+            i = 0;
+            for (ManagedStore store : stores.values()) {
+                store.allocate((store.keyAllocation + keyTargets[i]) / 2, (store.metadataAllocation + metadataTargets[i]) / 2);
+                i++;
+            }
+        } catch (RuntimeException e) {
+            log.error("Unable to rebalance caches", e);
+        }
+    }
+
+    /**
+     * Divide a budget giving each store a minimum share and the rest in proportion to its misses, used as a proxy for
+     * the hits it would gain from a larger share
+     *
+     * @param budget the budget to divide
+     * @param misses the recent misses of each store
+     * @return the target allocation of each store
+     */
+    static long[] targets(long budget, long[] misses) {
+        int numStores = misses.length;
+        long minimum = (long) (budget * MINIMUM_SHARE / numStores);
+        long remaining = budget - minimum * numStores;
+        long totalMisses = Arrays.stream(misses).sum();
+
+        long[] targets = new long[numStores];
+        for (int i = 0; i < numStores; i++) {
+            double share = totalMisses == 0 ? 1.0 / numStores : (double) misses[i] / totalMisses;
+            targets[i] = minimum + (long) (remaining * share);
+        }
+        return targets;
+    }
+
+    private void splitEvenly() {
+        if (stores.isEmpty()) return;
+        long keyShare = lookupKeyCacheBudget / stores.size();
+        long metadataShare = metadataCacheBudget / stores.size();
+        stores.values().forEach(store -> store.allocate(keyShare, metadataShare));
+    }
+
+    @Override
+    public void close() {
+        if (rebalanceExecutor != null) rebalanceExecutor.shutdownNow();
+        if (metricRegistry != null && pageCache != null) {
+            metricRegistry.remove(MetricRegistry.name(metricsRootName, CACHE_MANAGER_METRICS, PAGE_CACHE_RESIDENT_BYTES));
+        }
+    }
+
+    private class ManagedStore {
+        private final String storeName;
+        private final LookupCache lookupCache;
+        private volatile long keyAllocation;
+        private volatile long metadataAllocation;
+        private long lastKeyMisses;
+        private long lastMetadataMisses;
+
+        ManagedStore(String storeName, LookupCache lookupCache) {
+            this.storeName = storeName;
+            this.lookupCache = lookupCache;
+            CacheStats keyStats = lookupCache.keyStats();
+            lastKeyMisses = keyStats.missCount();
+            lastMetadataMisses = lookupCache.metadataStats().missCount();
+        }
+
+        void allocate(long keyAllocation, long metadataAllocation) {
+            this.keyAllocation = keyAllocation;
+            this.metadataAllocation = metadataAllocation;
+            lookupCache.setMaximumKeyWeight(keyAllocation);
+            lookupCache.setMaximumMetadataWeight(metadataAllocation);
+        }
+
+        String metricName(String allocation) {
+            return MetricRegistry.name(metricsRootName, CACHE_MANAGER_METRICS, storeName, allocation);
+        }
+    }
+}
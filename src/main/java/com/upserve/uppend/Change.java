@@ -0,0 +1,67 @@
+package com.upserve.uppend;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A value appended to an {@code AppendOnlyStore}, as read from its change log
+ * by {@link ReadOnlyAppendOnlyStore#changesSince}
+ */
+public final class Change {
+    private final String partition;
+    private final byte[] key;
+    private final byte[] value;
+
+    Change(String partition, byte[] key, byte[] value) {
+        this.partition = partition;
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * Get the partition the value was appended to. This is the partition
+     * directory name, which is a hash of the partition the value was appended
+     * under when the store hashes its partitions.
+     *
+     * @return the partition
+     */
+    public String getPartition() {
+        return partition;
+    }
+
+    /**
+     * Get the key the value was appended under
+     *
+     * @return the key
+     */
+    public String getKey() {
+        return new String(key, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Get the bytes of the key the value was appended under, for stores with
+     * binary keys
+     *
+     * @return the key bytes
+     */
+    public byte[] getKeyBytes() {
+        return key;
+    }
+
+    /**
+     * Get the value
+     *
+     * @return the value
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "Change{" +
+                "partition='" + partition + '\'' +
+                ", key=" + getKey() +
+                ", value=" + value.length + " bytes" +
+                '}';
+    }
+}
@@ -0,0 +1,103 @@
+package com.upserve.uppend;
+
+import com.google.common.hash.*;
+import com.upserve.uppend.blobs.*;
+import com.upserve.uppend.lookup.LookupKey;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * The log of the appends to a partition, with a virtual file for each lookup hash. Each record holds a key and the
+ * positions of the values appended for it in the blob file of the same hash, so a consumer can read the values
+ * appended after a position without scanning the partition. Appends to the log of a hash are serialized and write
+ * the size of a record before reserving it, so every reserved record has its size even if its writer fails. Records
+ * are checksummed: a reader stops at the last record if it is not completely written, since its writer may still be
+ * writing it, and resumes from there next time. A record which is not completely written but is followed by another
+ * was abandoned by its writer, so readers step over it.
+ *
+ * Record: [int checksum][int key length][key][long blob position]...
+ */
+class ChangeLog implements Flushable, Closeable {
+    private static final HashFunction hashFunction = Hashing.murmur3_32();
+
+    private final VirtualPageFile logFile;
+    private final VirtualAppendOnlyBlobStore[] logs;
+
+    ChangeLog(Path path, int hashSize, boolean readOnly, PageCache pageCache) {
+        logFile = new VirtualPageFile(path, hashSize, readOnly, pageCache);
+        logs = IntStream.range(0, hashSize)
+                .mapToObj(virtualFileNumber -> new VirtualAppendOnlyBlobStore(virtualFileNumber, logFile))
+                .toArray(VirtualAppendOnlyBlobStore[]::new);
+    }
+
+    /**
+     * Log the positions of values appended for a key
+     *
+     * @param hash the lookup hash of the key
+     * @param key the key
+     * @param blobPositions the positions of the values in the blob file for the hash
+     * @param offset the index of the first position to log
+     * @param count the number of positions to log
+     */
+    void append(int hash, LookupKey key, long[] blobPositions, int offset, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + key.byteLength() + 8 * count);
+        buffer.position(4);
+        buffer.putInt(key.byteLength());
+        buffer.put(key.bytes());
+        buffer.asLongBuffer().put(blobPositions, offset, count);
+        buffer.putInt(0, hashFunction.hashBytes(buffer.array(), 4, buffer.capacity() - 4).asInt());
+        synchronized (logs[hash]) {
+            logs[hash].appendSizeFirst(buffer.array());
+        }
+    }
+
+    /**
+     * Read the records logged for a hash after a position
+     *
+     * @param hash the lookup hash
+     * @param position the position to read from, 0 for the start of the log
+     * @param consumer called with the key and the blob positions of each record
+     * @return the position after the last complete record
+     */
+    long read(int hash, long position, BiConsumer<byte[], long[]> consumer) {
+        final long limit = logs[hash].getPosition();
+        byte[] record;
+        while ((record = logs[hash].readIfBefore(position, limit)) != null) {
+            final long nextPosition = position + VirtualAppendOnlyBlobStore.recordSize(record);
+            if (record.length >= 8 && ByteBuffer.wrap(record).getInt() == hashFunction.hashBytes(record, 4, record.length - 4).asInt()) {
+                ByteBuffer buffer = ByteBuffer.wrap(record, 4, record.length - 4);
+                byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                long[] blobPositions = new long[buffer.remaining() / 8];
+                buffer.asLongBuffer().get(blobPositions);
+                consumer.accept(key, blobPositions);
+            } else if (nextPosition >= limit) {
+                break; // the last record may still be being written
+            }
+            position = nextPosition;
+        }
+        return position;
+    }
+
+    int getHashSize() {
+        return logs.length;
+    }
+
+    Path getFilePath() {
+        return logFile.getFilePath();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        logFile.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        logFile.close();
+    }
+}
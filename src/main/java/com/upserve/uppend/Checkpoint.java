@@ -0,0 +1,109 @@
+package com.upserve.uppend;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A position in the change logs of an {@code AppendOnlyStore}: for each
+ * partition, the position reached in the log of each of its lookup hashes.
+ * Returned by {@link ReadOnlyAppendOnlyStore#changesSince} and passed back to
+ * it to resume after the changes already consumed. A checkpoint can be
+ * persisted with {@link #toBytes()} and restored with {@link #fromBytes}.
+ * Checkpoints are immutable.
+ * <p>
+ * A checkpoint holds a long for every lookup hash of every partition, so its
+ * size grows with the number of partitions times the lookup hash size of the
+ * store: a store of 10,000 partitions with a hash size of 256 has checkpoints
+ * of about 20MB.
+ */
+public final class Checkpoint {
+    /**
+     * The checkpoint before any change
+     */
+    public static final Checkpoint EMPTY = new Checkpoint(Collections.emptyMap());
+
+    private final Map<String, long[]> positions;
+
+    Checkpoint(Map<String, long[]> positions) {
+        this.positions = positions;
+    }
+
+    /**
+     * Get the change log position reached for a lookup hash of a partition
+     *
+     * @param partition the partition directory name
+     * @param hash the lookup hash
+     * @return the position, or 0 if the checkpoint has no changes for it
+     */
+    long position(String partition, int hash) {
+        long[] partitionPositions = positions.get(partition);
+        return partitionPositions == null || hash >= partitionPositions.length ? 0 : partitionPositions[hash];
+    }
+
+    /**
+     * Serialize the checkpoint
+     *
+     * @return the bytes of the checkpoint
+     */
+    public byte[] toBytes() {
+        int size = 4;
+        for (Map.Entry<String, long[]> entry : positions.entrySet()) {
+            size += 8 + entry.getKey().getBytes(StandardCharsets.UTF_8).length + 8 * entry.getValue().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(positions.size());
+        positions.forEach((partition, partitionPositions) -> {
+            byte[] name = partition.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(name.length);
+            buffer.put(name);
+            buffer.putInt(partitionPositions.length);
+            for (long position : partitionPositions) {
+                buffer.putLong(position);
+            }
+        });
+        return buffer.array();
+    }
+
+    /**
+     * Deserialize a checkpoint written by {@link #toBytes()}
+     *
+     * @param bytes the bytes of the checkpoint
+     * @return the checkpoint
+     */
+    public static Checkpoint fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int numPartitions = buffer.getInt();
+        Map<String, long[]> positions = new HashMap<>(numPartitions);
+        for (int i = 0; i < numPartitions; i++) {
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            long[] partitionPositions = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(partitionPositions);
+            buffer.position(buffer.position() + 8 * partitionPositions.length);
+            positions.put(new String(name, StandardCharsets.UTF_8), partitionPositions);
+        }
+        return new Checkpoint(positions);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Checkpoint that = (Checkpoint) o;
+        if (!positions.keySet().equals(that.positions.keySet())) return false;
+        return positions.entrySet().stream().allMatch(entry -> Arrays.equals(entry.getValue(), that.positions.get(entry.getKey())));
+    }
+
+    @Override
+    public int hashCode() {
+        return positions.entrySet().stream().mapToInt(entry -> entry.getKey().hashCode() ^ Arrays.hashCode(entry.getValue())).sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpoint{" +
+                "partitions=" + positions.size() +
+                '}';
+    }
+}
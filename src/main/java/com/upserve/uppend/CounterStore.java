@@ -19,6 +19,17 @@ public interface CounterStore extends ReadOnlyCounterStore, RegisteredFlushable
      */
     Long set(String partitionEntropy, String key, long value);
 
+    /**
+     * Set the counter under a given partition and binary key, to the given value
+     *
+     * @param partitionEntropy the partition to increment under
+     * @param key the key bytes to increment under
+     * @param value the value to set
+     * @return the old value of the counter or Null if it was previously unset
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    Long set(String partitionEntropy, byte[] key, long value);
+
     /**
      * Increment by 1 the counter under a given partition and key, whose value
      * is initialized to 0
@@ -44,6 +55,31 @@ public interface CounterStore extends ReadOnlyCounterStore, RegisteredFlushable
      */
     long increment(String partitionEntropy, String key, long delta);
 
+    /**
+     * Increment by 1 the counter under a given partition and binary key, whose
+     * value is initialized to 0
+     *
+     * @param partitionEntropy the partition to increment under
+     * @param key the key bytes to increment under
+     * @return the new value of the counter
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    default long increment(String partitionEntropy, byte[] key) {
+        return increment(partitionEntropy, key, 1);
+    }
+
+    /**
+     * Increment by a given amount the counter under a given partition and
+     * binary key, whose value is initialized to 0
+     *
+     * @param partitionEntropy the partition to increment under
+     * @param key the key bytes to increment under
+     * @param delta the amount to add to the current value
+     * @return the new value of the counter
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    long increment(String partitionEntropy, byte[] key, long delta);
+
     /**
      * Flush any pending appends to durable storage. Will not return until
      * the flush is completed.
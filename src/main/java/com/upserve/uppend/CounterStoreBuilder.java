@@ -41,11 +41,16 @@ public class CounterStoreBuilder extends FileStoreBuilder<CounterStoreBuilder> {
                 "storeName='" + storeName + '\'' +
                 ", partitionSize=" + partitionSize +
                 ", lookupHashSize=" + lookupHashSize +
+                ", lookupHashIndex=" + lookupHashIndex +
+                ", lookupBloomFilterFpp=" + lookupBloomFilterFpp +
+                ", lookupMetadataRuns=" + lookupMetadataRuns +
+                ", lookupKeyBlocks=" + lookupKeyBlocks +
                 ", lookupPageSize=" + lookupPageSize +
                 ", initialLookupPageCacheSize=" + initialLookupPageCacheSize +
                 ", maximumLookupPageCacheSize=" + maximumLookupPageCacheSize +
                 ", maximumLookupKeyCacheWeight=" + maximumLookupKeyCacheWeight +
                 ", initialLookupKeyCacheSize=" + initialLookupKeyCacheSize +
+                ", offHeapLookupKeyLength=" + offHeapLookupKeyLength +
                 ", maximumMetaDataCacheWeight=" + maximumMetaDataCacheWeight +
                 ", initialMetaDataCacheSize=" + initialMetaDataCacheSize +
                 ", metadataTTL=" + metadataTTL +
@@ -53,6 +58,8 @@ public class CounterStoreBuilder extends FileStoreBuilder<CounterStoreBuilder> {
                 ", lookupKeyCacheExecutorService=" + lookupKeyCacheExecutorService +
                 ", lookupMetaDataCacheExecutorService=" + lookupMetaDataCacheExecutorService +
                 ", lookupPageCacheExecutorService=" + lookupPageCacheExecutorService +
+                ", sharedPageCache=" + sharedPageCache +
+                ", cacheManager=" + cacheManager +
                 ", flushDelaySeconds=" + flushDelaySeconds +
                 ", flushThreshold=" + flushThreshold +
                 ", dir=" + dir +
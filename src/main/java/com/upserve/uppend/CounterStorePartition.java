@@ -10,14 +10,15 @@ import java.io.*;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.*;
 import java.util.*;
-import java.util.function.ObjLongConsumer;
+import java.util.function.*;
 import java.util.stream.*;
 
 public class CounterStorePartition extends Partition implements Flushable, Closeable {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    public static CounterStorePartition createPartition(Path partentDir, String partition, int hashSize, int flushThreshold, int metadataPageSize, PageCache keyPageCache, LookupCache lookupCache) {
+    public static CounterStorePartition createPartition(Path partentDir, String partition, FileStoreBuilder<?> builder, PageCache keyPageCache, LookupCache lookupCache) {
         validatePartition(partition);
+        int hashSize = builder.getLookupHashSize();
         Path partitiondDir = partentDir.resolve(partition);
         try {
             Files.createDirectories(partitiondDir);
@@ -25,46 +26,44 @@ public class CounterStorePartition extends Partition implements Flushable, Close
             throw new UncheckedIOException("Unable to make partition directory: " + partitiondDir, e);
         }
 
-        VirtualPageFile metadata = new VirtualPageFile(metadataPath(partitiondDir), hashSize, metadataPageSize, false);
+        VirtualPageFile metadata = new VirtualPageFile(metadataPath(partitiondDir), hashSize, builder.getMetadataPageSize(), false);
         VirtualPageFile keys = new VirtualPageFile(keysPath(partitiondDir), hashSize, false, keyPageCache);
 
 
-        return new CounterStorePartition(keys, metadata, PartitionLookupCache.create(partition, lookupCache), hashSize, flushThreshold, false);
+        return new CounterStorePartition(keys, metadata, PartitionLookupCache.create(partition, lookupCache), hashSize, builder.getLookupDataOptions(), false);
     }
 
-    public static CounterStorePartition openPartition(Path partentDir, String partition, int hashSize, int flushThreshold, int metadataPageSize, PageCache keyPageCache, LookupCache lookupCache, boolean readOnly) {
+    public static CounterStorePartition openPartition(Path partentDir, String partition, FileStoreBuilder<?> builder, PageCache keyPageCache, LookupCache lookupCache, boolean readOnly) {
         validatePartition(partition);
+        int hashSize = builder.getLookupHashSize();
         Path partitiondDir = partentDir.resolve(partition);
 
         if (!(Files.exists(metadataPath(partitiondDir)) && Files.exists(keysPath(partitiondDir)))) return null;
 
 
-        VirtualPageFile metadata = new VirtualPageFile(metadataPath(partitiondDir), hashSize, metadataPageSize, readOnly);
+        VirtualPageFile metadata = new VirtualPageFile(metadataPath(partitiondDir), hashSize, builder.getMetadataPageSize(), readOnly);
         VirtualPageFile keys = new VirtualPageFile(keysPath(partitiondDir), hashSize, readOnly, keyPageCache);
 
-        return new CounterStorePartition(keys, metadata, PartitionLookupCache.create(partition, lookupCache), hashSize, flushThreshold, false);
+        return new CounterStorePartition(keys, metadata, PartitionLookupCache.create(partition, lookupCache), hashSize, builder.getLookupDataOptions(), false);
     }
 
-    private CounterStorePartition(VirtualPageFile longKeyFile, VirtualPageFile metadataBlobFile, PartitionLookupCache lookupCache, int hashSize, int flushThreshold, boolean readOnly) {
-        super(longKeyFile, metadataBlobFile, lookupCache, hashSize, flushThreshold, readOnly);
+    private CounterStorePartition(VirtualPageFile longKeyFile, VirtualPageFile metadataBlobFile, PartitionLookupCache lookupCache, int hashSize, LookupDataOptions lookupOptions, boolean readOnly) {
+        super(longKeyFile, metadataBlobFile, lookupCache, hashSize, lookupOptions, readOnly);
     }
 
-    public Long set(String key, long value) {
-        LookupKey lookupKey = new LookupKey(key);
+    public Long set(LookupKey lookupKey, long value) {
         final int hash = keyHash(lookupKey);
 
         return lookups[hash].put(lookupKey, value);
     }
 
-    public long increment(String key, long delta) {
-        LookupKey lookupKey = new LookupKey(key);
+    public long increment(LookupKey lookupKey, long delta) {
         final int hash = keyHash(lookupKey);
 
         return lookups[hash].increment(lookupKey, delta);
     }
 
-    public Long get(String key) {
-        LookupKey lookupKey = new LookupKey(key);
+    public Long get(LookupKey lookupKey) {
         final int hash = keyHash(lookupKey);
 
         return lookups[hash].getValue(lookupKey);
@@ -74,22 +73,50 @@ public class CounterStorePartition extends Partition implements Flushable, Close
         return IntStream.range(0, hashSize)
                 .parallel()
                 .boxed()
-                .flatMap(virtualFileNumber -> lookups[virtualFileNumber].scan().map(entry -> Maps.immutableEntry(entry.getKey().string(), entry.getValue())));
+                .flatMap(this::scan);
+    }
+
+    Stream<Map.Entry<String, Long>> scan(int virtualFileNumber) {
+        return lookups[virtualFileNumber].scan().map(entry -> Maps.immutableEntry(entry.getKey().string(), entry.getValue()));
     }
 
     public void scan(ObjLongConsumer<String> callback) {
+        scan(LookupKey::string, callback);
+    }
+
+    void scanBytes(ObjLongConsumer<byte[]> callback) {
+        scan(LookupKey::bytes, callback);
+    }
+
+    private <K> void scan(Function<LookupKey, K> keyFunction, ObjLongConsumer<K> callback) {
 
         IntStream.range(0, hashSize)
                 .parallel()
                 .boxed()
-                .forEach(virtualFileNumber -> lookups[virtualFileNumber].scan((keyLookup, value) -> callback.accept(keyLookup.string(), value)));
+                .forEach(virtualFileNumber -> lookups[virtualFileNumber].scan((keyLookup, value) -> callback.accept(keyFunction.apply(keyLookup), value)));
     }
 
     Stream<String> keys() {
+        return keys(LookupKey::string);
+    }
+
+    Stream<byte[]> keyBytes() {
+        return keys(LookupKey::bytes);
+    }
+
+    Stream<String> keys(int virtualFileNumber) {
+        return lookups[virtualFileNumber].keys().map(LookupKey::string);
+    }
+
+    Stream<byte[]> keyBytes(int virtualFileNumber) {
+        return lookups[virtualFileNumber].keys().map(LookupKey::bytes);
+    }
+
+    private <K> Stream<K> keys(Function<LookupKey, K> keyFunction) {
         return IntStream.range(0, hashSize)
                 .parallel()
                 .boxed()
-                .flatMap(virtualFileNumber -> lookups[virtualFileNumber].keys().map(LookupKey::string));
+                .flatMap(virtualFileNumber -> lookups[virtualFileNumber].keys().map(keyFunction));
     }
 
     @Override
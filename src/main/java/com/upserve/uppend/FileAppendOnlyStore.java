@@ -1,6 +1,7 @@
 package com.upserve.uppend;
 
 import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.collect.Maps;
 import com.upserve.uppend.blobs.PageCache;
 import com.upserve.uppend.lookup.*;
 import com.upserve.uppend.util.SafeDeleting;
@@ -8,8 +9,11 @@ import org.slf4j.Logger;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.Stream;
 
@@ -21,6 +25,11 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
     private final PageCache blobPageCache;
     private final PageCache keyPageCache;
     private final LookupCache lookupCache;
+    private final CacheManager cacheManager;
+    private final AppendJournal journal;
+    private final Supplier<AsyncAppender> asyncAppenderSupplier;
+    private volatile AsyncAppender asyncAppender;
+    private boolean asyncAppenderClosed;
 
     private final Function<String, AppendStorePartition> openPartitionFunction;
     private final Function<String, AppendStorePartition> createPartitionFunction;
@@ -33,10 +42,55 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
         keyPageCache = builder.buildLookupPageCache(getName());
 
         lookupCache = builder.buildLookupCache(getName(), readOnly);
+        cacheManager = builder.getCacheManager();
+        if (cacheManager != null) cacheManager.register(getName(), lookupCache);
+
+        openPartitionFunction = partitionKey -> AppendStorePartition.openPartition(partitionsDir, partitionKey, builder, blobPageCache, keyPageCache, lookupCache, readOnly);
+
+        createPartitionFunction = partitionKey -> AppendStorePartition.createPartition(partitionsDir, partitionKey, builder, blobPageCache, keyPageCache, lookupCache);
+
+        asyncAppenderSupplier = () -> new AsyncAppender(getName(), builder.getAsyncAppendWorkers(), builder.getAsyncAppendMaxInFlightBytes(), builder.isAsyncAppendRejectWhenFull(), this::partitionHash, (partitionEntropy, keyValues) -> getOrCreate(partitionEntropy).appendAllKeys(keyValues));
+
+        // Replay a journal left by a crash whether or not this store journals, since its values may be nowhere else
+        Path journalPath = dir.resolve("journal");
+        if (readOnly) {
+            if (Files.exists(journalPath)) log.warn("not replaying journal of store opened in read only mode: {}", journalPath);
+            journal = null;
+        } else {
+            JournalReplay replay = new JournalReplay();
+            int replayed = AppendJournal.replay(journalPath, replay::replay);
+            if (replayed > 0) {
+                log.warn("replayed {} journaled values into {}, {} of which were already appended", replayed, getName(), replay.skipped);
+                flushPartitions();
+            }
+            try {
+                Files.deleteIfExists(journalPath);
+            } catch (IOException e) {
+                throw new UncheckedIOException("unable to remove replayed journal: " + journalPath, e);
+            }
+            journal = builder.isJournal() ? new AppendJournal(journalPath, getName(), (partitionEntropy, key, value) -> getOrCreate(partitionEntropy).reserve(key, value), (partitionEntropy, key, value, position) -> getOrCreate(partitionEntropy).appendReserved(key, value, position)) : null;
+        }
+    }
 
-        openPartitionFunction = partitionKey -> AppendStorePartition.openPartition(partitionsDir, partitionKey, builder.getLookupHashSize(), builder.getFlushThreshold(), builder.getMetadataPageSize(), builder.getBlobsPerBlock(), blobPageCache, keyPageCache, lookupCache, readOnly);
-
-        createPartitionFunction = partitionKey -> AppendStorePartition.createPartition(partitionsDir, partitionKey, builder.getLookupHashSize(), builder.getFlushThreshold(), builder.getMetadataPageSize(), builder.getBlobsPerBlock(), blobPageCache, keyPageCache, lookupCache);
+    /**
+     * Appends journaled values unless they are already in their partition. A value is already there if its key holds
+     * the blob position reserved for it. The positions of a key are read once, when it is first replayed and before any
+     * value is appended again, starting from the position of its first record since the positions in a blob file are
+     * reserved in journal order.
+     */
+    private class JournalReplay {
+        private final Map<AppendStorePartition, Map<LookupKey, Set<Long>>> appendedPositions = new HashMap<>();
+        private int skipped;
+
+        void replay(String partitionEntropy, LookupKey key, byte[] value, long position) {
+            AppendStorePartition partition = getOrCreate(partitionEntropy);
+            Set<Long> appended = appendedPositions.computeIfAbsent(partition, p -> new HashMap<>()).computeIfAbsent(key, k -> partition.blobPositions(key, position));
+            if (appended.contains(position)) {
+                skipped++;
+            } else {
+                appendPartition(partitionEntropy, key, value);
+            }
+        }
     }
 
     @Override
@@ -83,13 +137,105 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
 
     @Override
     public void append(String partitionEntropy, String key, byte[] value) {
+        append(partitionEntropy, new LookupKey(key), value);
+    }
+
+    @Override
+    public void append(String partitionEntropy, byte[] key, byte[] value) {
+        append(partitionEntropy, lookupKey(key), value);
+    }
+
+    private void append(String partitionEntropy, LookupKey key, byte[] value) {
         log.trace("appending for partition '{}', key '{}'", partitionEntropy, key);
         if (readOnly) throw new RuntimeException("Can not append to store opened in read only mode:" + dir);
+        appendPartition(partitionEntropy, key, value);
+    }
+
+    private void appendPartition(String partitionEntropy, LookupKey key, byte[] value) {
         getOrCreate(partitionEntropy).append(key, value);
     }
 
+    @Override
+    public CompletableFuture<Void> appendDurable(String partitionEntropy, String key, byte[] value) {
+        return appendDurable(partitionEntropy, new LookupKey(key), value);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendDurable(String partitionEntropy, byte[] key, byte[] value) {
+        return appendDurable(partitionEntropy, lookupKey(key), value);
+    }
+
+    private CompletableFuture<Void> appendDurable(String partitionEntropy, LookupKey key, byte[] value) {
+        log.trace("journaling for partition '{}', key '{}'", partitionEntropy, key);
+        if (readOnly) throw new RuntimeException("Can not append to store opened in read only mode:" + dir);
+        if (journal == null) throw new IllegalStateException("Can not append durably to store without a journal:" + dir);
+        // Validate before journaling so an invalid partition can not fail the replay
+        Partition.validatePartition(partitionHash(partitionEntropy));
+        return journal.append(partitionEntropy, key, value);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendAsync(String partitionEntropy, String key, byte[] value) {
+        return appendAsync(partitionEntropy, new LookupKey(key), value);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendAsync(String partitionEntropy, byte[] key, byte[] value) {
+        return appendAsync(partitionEntropy, lookupKey(key), value);
+    }
+
+    private CompletableFuture<Void> appendAsync(String partitionEntropy, LookupKey key, byte[] value) {
+        log.trace("queueing append for partition '{}', key '{}'", partitionEntropy, key);
+        if (readOnly) throw new RuntimeException("Can not append to store opened in read only mode:" + dir);
+        Partition.validatePartition(partitionHash(partitionEntropy));
+        return getAsyncAppender().append(partitionEntropy, key, value);
+    }
+
+    private AsyncAppender getAsyncAppender() {
+        AsyncAppender result = asyncAppender;
+        if (result == null) {
+            synchronized (asyncAppenderSupplier) {
+                result = asyncAppender;
+                if (result == null) {
+                    if (asyncAppenderClosed) throw new IllegalStateException("Can not append to closed store:" + dir);
+                    asyncAppender = result = asyncAppenderSupplier.get();
+                }
+            }
+        }
+        return result;
+    }
+
+    private void stopAsyncAppender() {
+        synchronized (asyncAppenderSupplier) {
+            if (asyncAppender != null) {
+                try {
+                    asyncAppender.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error stopping async appends of store " + name, e);
+                }
+                asyncAppender = null;
+            }
+        }
+    }
+
+    @Override
+    public void appendAll(AppendBatch batch) {
+        log.trace("appending batch of {} values", batch.size());
+        if (readOnly) throw new RuntimeException("Can not append to store opened in read only mode:" + dir);
+        batch.partitions().forEach((partitionEntropy, keyValues) -> getOrCreate(partitionEntropy).appendAll(keyValues));
+    }
+
     @Override
     public Stream<byte[]> read(String partitionEntropy, String key) {
+        return read(partitionEntropy, new LookupKey(key));
+    }
+
+    @Override
+    public Stream<byte[]> read(String partitionEntropy, byte[] key) {
+        return read(partitionEntropy, lookupKey(key));
+    }
+
+    private Stream<byte[]> read(String partitionEntropy, LookupKey key) {
         log.trace("reading in partition {} with key {}", partitionEntropy, key);
 
         return getIfPresent(partitionEntropy)
@@ -99,30 +245,139 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
 
     @Override
     public Stream<byte[]> readSequential(String partitionEntropy, String key) {
+        return readSequential(partitionEntropy, new LookupKey(key));
+    }
+
+    @Override
+    public Stream<byte[]> readSequential(String partitionEntropy, byte[] key) {
+        return readSequential(partitionEntropy, lookupKey(key));
+    }
+
+    private Stream<byte[]> readSequential(String partitionEntropy, LookupKey key) {
         log.trace("reading sequential in partition {} with key {}", partitionEntropy, key);
         return getIfPresent(partitionEntropy)
                 .map(partitionObject -> partitionObject.readSequential(key))
                 .orElse(Stream.empty());
     }
 
+    @Override
+    public void read(String partitionEntropy, String key, Consumer<ByteBuffer> consumer) {
+        read(partitionEntropy, new LookupKey(key), consumer);
+    }
+
+    @Override
+    public void read(String partitionEntropy, byte[] key, Consumer<ByteBuffer> consumer) {
+        read(partitionEntropy, lookupKey(key), consumer);
+    }
+
+    private void read(String partitionEntropy, LookupKey key, Consumer<ByteBuffer> consumer) {
+        log.trace("reading buffers in partition {} with key {}", partitionEntropy, key);
+        getIfPresent(partitionEntropy).ifPresent(partitionObject -> partitionObject.read(key, consumer));
+    }
+
+    @Override
+    public Stream<byte[]> readReverse(String partitionEntropy, String key) {
+        return readReverse(partitionEntropy, new LookupKey(key));
+    }
+
+    @Override
+    public Stream<byte[]> readReverse(String partitionEntropy, byte[] key) {
+        return readReverse(partitionEntropy, lookupKey(key));
+    }
+
+    private Stream<byte[]> readReverse(String partitionEntropy, LookupKey key) {
+        log.trace("reading reverse in partition {} with key {}", partitionEntropy, key);
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.readReverse(key))
+                .orElse(Stream.empty());
+    }
+
+    @Override
+    public Stream<byte[]> readRange(String partitionEntropy, String key, long offset, int limit) {
+        return readRange(partitionEntropy, new LookupKey(key), offset, limit);
+    }
+
+    @Override
+    public Stream<byte[]> readRange(String partitionEntropy, byte[] key, long offset, int limit) {
+        return readRange(partitionEntropy, lookupKey(key), offset, limit);
+    }
+
+    private Stream<byte[]> readRange(String partitionEntropy, LookupKey key, long offset, int limit) {
+        log.trace("reading range in partition {} with key {} from {} limit {}", partitionEntropy, key, offset, limit);
+        if (offset < 0) throw new IllegalArgumentException("negative offset: " + offset);
+        if (limit < 0) throw new IllegalArgumentException("negative limit: " + limit);
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.readRange(key, offset, limit))
+                .orElse(Stream.empty());
+    }
+
+    @Override
+    public Stream<byte[]> readLastN(String partitionEntropy, String key, int n) {
+        return readLastN(partitionEntropy, new LookupKey(key), n);
+    }
+
+    @Override
+    public Stream<byte[]> readLastN(String partitionEntropy, byte[] key, int n) {
+        return readLastN(partitionEntropy, lookupKey(key), n);
+    }
+
+    private Stream<byte[]> readLastN(String partitionEntropy, LookupKey key, int n) {
+        log.trace("reading last {} in partition {} with key {}", n, partitionEntropy, key);
+        if (n < 0) throw new IllegalArgumentException("negative number of values: " + n);
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.readLastN(key, n))
+                .orElse(Stream.empty());
+    }
+
+    @Override
     public byte[] readLast(String partitionEntropy, String key) {
+        return readLast(partitionEntropy, new LookupKey(key));
+    }
+
+    @Override
+    public byte[] readLast(String partitionEntropy, byte[] key) {
+        return readLast(partitionEntropy, lookupKey(key));
+    }
+
+    private byte[] readLast(String partitionEntropy, LookupKey key) {
         log.trace("reading last in partition {} with key {}", partitionEntropy, key);
         return getIfPresent(partitionEntropy)
                 .map(partitionObject -> partitionObject.readLast(key))
                 .orElse(null);
     }
 
+    @Override
+    public long count(String partitionEntropy, String key) {
+        return count(partitionEntropy, new LookupKey(key));
+    }
+
+    @Override
+    public long count(String partitionEntropy, byte[] key) {
+        return count(partitionEntropy, lookupKey(key));
+    }
+
+    private long count(String partitionEntropy, LookupKey key) {
+        log.trace("counting in partition {} with key {}", partitionEntropy, key);
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.count(key))
+                .orElse(0L);
+    }
+
     @Override
     public Stream<String> keys() {
         log.trace("getting keys for {}", getName());
-        return streamPartitions()
-                .flatMap(AppendStorePartition::keys);
+        return flatMapLookups(AppendStorePartition::keys);
+    }
+
+    @Override
+    public Stream<byte[]> keyBytes() {
+        log.trace("getting key bytes for {}", getName());
+        return flatMapLookups(AppendStorePartition::keyBytes);
     }
 
     @Override
     public Stream<Map.Entry<String, Stream<byte[]>>> scan() {
-        return streamPartitions()
-                .flatMap(AppendStorePartition::scan);
+        return flatMapLookups(AppendStorePartition::scan);
     }
 
     @Override
@@ -131,18 +386,46 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
                 .forEach(partitionObject -> partitionObject.scan(callback));
     }
 
+    @Override
+    public void scanBytes(BiConsumer<byte[], Stream<byte[]>> callback) {
+        streamPartitions()
+                .forEach(partitionObject -> partitionObject.scanBytes(callback));
+    }
+
+    @Override
+    public Checkpoint changesSince(Checkpoint checkpoint, Consumer<Change> consumer) {
+        log.trace("reading changes for {}", getName());
+        Map<String, long[]> positions = new ConcurrentHashMap<>();
+        flatMapLookups((partitionObject, virtualFileNumber) -> Stream.of(Maps.immutableEntry(partitionObject, virtualFileNumber)))
+                .forEach(entry -> {
+                    final AppendStorePartition partitionObject = entry.getKey();
+                    final int hash = entry.getValue();
+                    final String partition = partitionObject.lookupCache.getPartition();
+
+                    long position = partitionObject.changesSince(hash, checkpoint.position(partition, hash), (key, value) -> consumer.accept(new Change(partition, key, value)));
+                    positions.computeIfAbsent(partition, p -> new long[partitionObject.hashSize])[hash] = position;
+                });
+        return new Checkpoint(positions);
+    }
+
     @Override
     public void clear() {
         if (readOnly) throw new RuntimeException("Can not clear a store opened in read only mode:" + name);
         log.trace("clearing");
 
-        closeInternal();
+        Runnable clear = () -> {
+            // The workers restart on the next async append
+            stopAsyncAppender();
+            closePartitions();
 
-        try {
-            SafeDeleting.removeDirectory(partitionsDir);
-        } catch (IOException e) {
-            throw new UncheckedIOException("Failed to clear partitions directory", e);
-        }
+            try {
+                SafeDeleting.removeDirectory(partitionsDir);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to clear partitions directory", e);
+            }
+        };
+        if (journal == null) clear.run();
+        else journal.checkpoint(clear);
     }
 
     @Override
@@ -161,6 +444,12 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
         // Check non null because the super class is registered in the autoflusher before the constructor finishes
         if (readOnly) throw new RuntimeException("Can not flush a store opened in read only mode:" + name);
 
+        if (journal == null) flushPartitions();
+        else journal.checkpoint(this::flushPartitions);
+    }
+
+    private void flushPartitions() {
+        // Throw if any partition fails to flush, so a journal checkpoint does not truncate values which are not flushed
         partitionMap.values().parallelStream().forEach(appendStorePartition -> {
             try {
                 appendStorePartition.flush();
@@ -170,10 +459,8 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
                 } else {
                     throw new UncheckedIOException("Error flushing store " + name, e);
                 }
-
             } catch (IOException e) {
-                if (isClosed.get())
-                    throw new UncheckedIOException("Error flushing store " + name, e);
+                throw new UncheckedIOException("Error flushing store " + name, e);
             }
         });
     }
@@ -187,7 +474,26 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
     }
 
     @Override
-    protected void closeInternal() {
+    public void close() {
+        super.close();
+        if (cacheManager != null) cacheManager.deregister(lookupCache);
+    }
+
+    @Override
+    protected void closeInternal() throws IOException {
+        // Stop the journal first so its last commits reach the partitions before they close
+        Runnable close = () -> {
+            synchronized (asyncAppenderSupplier) {
+                asyncAppenderClosed = true;
+                stopAsyncAppender();
+            }
+            closePartitions();
+        };
+        if (journal == null) close.run();
+        else journal.close(close);
+    }
+
+    private void closePartitions() {
         partitionMap.values().parallelStream().forEach(appendStorePartition -> {
             try {
                 appendStorePartition.close();
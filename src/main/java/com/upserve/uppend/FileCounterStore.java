@@ -17,6 +17,7 @@ public class FileCounterStore extends FileStore<CounterStorePartition> implement
 
     private final PageCache keyPageCache;
     private final LookupCache lookupCache;
+    private final CacheManager cacheManager;
     private final Function<String, CounterStorePartition> openPartitionFunction;
     private final Function<String, CounterStorePartition> createPartitionFunction;
 
@@ -25,9 +26,11 @@ public class FileCounterStore extends FileStore<CounterStorePartition> implement
 
         keyPageCache = builder.buildLookupPageCache(getName());
         lookupCache = builder.buildLookupCache(getName(), readOnly);
+        cacheManager = builder.getCacheManager();
+        if (cacheManager != null) cacheManager.register(getName(), lookupCache);
 
-        openPartitionFunction = partitionKey -> CounterStorePartition.openPartition(partitionsDir, partitionKey, builder.getLookupHashSize(), builder.getFlushThreshold(), builder.getMetadataPageSize(), keyPageCache, lookupCache, readOnly);
-        createPartitionFunction = partitionKey -> CounterStorePartition.createPartition(partitionsDir, partitionKey, builder.getLookupHashSize(), builder.getFlushThreshold(), builder.getMetadataPageSize(), keyPageCache, lookupCache);
+        openPartitionFunction = partitionKey -> CounterStorePartition.openPartition(partitionsDir, partitionKey, builder, keyPageCache, lookupCache, readOnly);
+        createPartitionFunction = partitionKey -> CounterStorePartition.createPartition(partitionsDir, partitionKey, builder, keyPageCache, lookupCache);
     }
 
     @Override
@@ -37,6 +40,15 @@ public class FileCounterStore extends FileStore<CounterStorePartition> implement
 
     @Override
     public Long set(String partitionEntropy, String key, long value) {
+        return set(partitionEntropy, new LookupKey(key), value);
+    }
+
+    @Override
+    public Long set(String partitionEntropy, byte[] key, long value) {
+        return set(partitionEntropy, lookupKey(key), value);
+    }
+
+    private Long set(String partitionEntropy, LookupKey key, long value) {
         log.trace("setting {}={} in partition '{}'", key, value, partitionEntropy);
         if (readOnly) throw new RuntimeException("Can not set value of counter store opened in read only mode:" + dir);
         return getOrCreate(partitionEntropy).set(key, value);
@@ -44,6 +56,15 @@ public class FileCounterStore extends FileStore<CounterStorePartition> implement
 
     @Override
     public long increment(String partitionEntropy, String key, long delta) {
+        return increment(partitionEntropy, new LookupKey(key), delta);
+    }
+
+    @Override
+    public long increment(String partitionEntropy, byte[] key, long delta) {
+        return increment(partitionEntropy, lookupKey(key), delta);
+    }
+
+    private long increment(String partitionEntropy, LookupKey key, long delta) {
         log.trace("incrementing by {} key '{}' in partition '{}'", delta, key, partitionEntropy);
         if (readOnly)
             throw new RuntimeException("Can not increment value of counter store opened in read only mode:" + dir);
@@ -52,6 +73,15 @@ public class FileCounterStore extends FileStore<CounterStorePartition> implement
 
     @Override
     public Long get(String partitionEntropy, String key) {
+        return get(partitionEntropy, new LookupKey(key));
+    }
+
+    @Override
+    public Long get(String partitionEntropy, byte[] key) {
+        return get(partitionEntropy, lookupKey(key));
+    }
+
+    private Long get(String partitionEntropy, LookupKey key) {
         log.trace("getting value for key '{}' in partition '{}'", key, partitionEntropy);
         return getIfPresent(partitionEntropy).map(partitionObject -> partitionObject.get(key)).orElse(null);
     }
@@ -59,14 +89,18 @@ public class FileCounterStore extends FileStore<CounterStorePartition> implement
     @Override
     public Stream<String> keys() {
         log.trace("getting keys in {}", getName());
-        return streamPartitions()
-                .flatMap(CounterStorePartition::keys);
+        return flatMapLookups(CounterStorePartition::keys);
+    }
+
+    @Override
+    public Stream<byte[]> keyBytes() {
+        log.trace("getting key bytes in {}", getName());
+        return flatMapLookups(CounterStorePartition::keyBytes);
     }
 
     @Override
     public Stream<Map.Entry<String, Long>> scan() {
-        return streamPartitions()
-                .flatMap(CounterStorePartition::scan);
+        return flatMapLookups(CounterStorePartition::scan);
     }
 
     @Override
@@ -75,6 +109,12 @@ public class FileCounterStore extends FileStore<CounterStorePartition> implement
                 .forEach(partitionObject -> partitionObject.scan(callback));
     }
 
+    @Override
+    public void scanBytes(ObjLongConsumer<byte[]> callback) {
+        streamPartitions()
+                .forEach(partitionObject -> partitionObject.scanBytes(callback));
+    }
+
     @Override
     public FlushStats getFlushStats() {
         return lookupCache.getFlushStats();
@@ -156,6 +196,12 @@ public class FileCounterStore extends FileStore<CounterStorePartition> implement
         });
     }
 
+    @Override
+    public void close() {
+        super.close();
+        if (cacheManager != null) cacheManager.deregister(lookupCache);
+    }
+
     @Override
     protected void closeInternal() {
         partitionMap.values().parallelStream().forEach(counterStorePartition -> {
@@ -1,6 +1,8 @@
 package com.upserve.uppend;
 
+import com.google.common.collect.Maps;
 import com.google.common.hash.*;
+import com.upserve.uppend.lookup.LookupKey;
 import org.slf4j.Logger;
 
 import java.io.*;
@@ -11,10 +13,10 @@ import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Function;
-import java.util.stream.Stream;
+import java.util.function.*;
+import java.util.stream.*;
 
-abstract class FileStore<T> implements AutoCloseable, RegisteredFlushable, Trimmable {
+abstract class FileStore<T extends Partition> implements AutoCloseable, RegisteredFlushable, Trimmable {
     public static final int MAX_NUM_PARTITIONS = 9999;
 
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -110,6 +112,20 @@ abstract class FileStore<T> implements AutoCloseable, RegisteredFlushable, Trimm
         );
     }
 
+    /**
+     * Wrap binary key bytes as a lookup key. The bytes are copied since the key may be held by the write cache and
+     * the lookup key cache after the call returns.
+     *
+     * @param key the key bytes
+     * @return the lookup key
+     */
+    static LookupKey lookupKey(byte[] key) {
+        if (key == null) {
+            throw new NullPointerException("null key given");
+        }
+        return new LookupKey(key.clone());
+    }
+
     Stream<T> streamPartitions() {
         try {
             Files
@@ -131,6 +147,22 @@ abstract class FileStore<T> implements AutoCloseable, RegisteredFlushable, Trimm
     }
 
 
+    /**
+     * Stream the results of a function applied to each LookupData of every partition. A parallel stream nested in
+     * flatMap is consumed sequentially, so the lookups are listed first and the returned stream splits over all of
+     * them rather than over the partitions only.
+     *
+     * @param function called with a partition and the virtual file number of a lookup in it
+     * @param <R> the type of the results
+     * @return a parallel stream of the results for all the lookups
+     */
+    <R> Stream<R> flatMapLookups(BiFunction<T, Integer, Stream<R>> function) {
+        List<Map.Entry<T, Integer>> lookups = streamPartitions()
+                .flatMap(partition -> IntStream.range(0, partition.hashSize).mapToObj(virtualFileNumber -> Maps.immutableEntry(partition, virtualFileNumber)))
+                .collect(Collectors.toList());
+        return lookups.parallelStream().flatMap(entry -> function.apply(entry.getKey(), entry.getValue()));
+    }
+
     protected abstract void flushInternal() throws IOException;
 
     protected abstract void closeInternal() throws IOException;
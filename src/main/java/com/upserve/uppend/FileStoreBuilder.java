@@ -3,7 +3,7 @@ package com.upserve.uppend;
 import com.codahale.metrics.MetricRegistry;
 import com.github.benmanes.caffeine.cache.stats.*;
 import com.upserve.uppend.blobs.PageCache;
-import com.upserve.uppend.lookup.LookupCache;
+import com.upserve.uppend.lookup.*;
 import com.upserve.uppend.metrics.MetricsStatsCounter;
 
 import java.nio.file.Path;
@@ -20,12 +20,15 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
     // Long lookup Cache Options
     public static final int DEFAULT_PARTITION_SIZE = 0;
     public static final int DEFAULT_LOOKUP_HASH_SIZE = 256;
+    public static final double DEFAULT_LOOKUP_BLOOM_FILTER_FPP = 0; // no bloom filter
+    public static final int DEFAULT_LOOKUP_METADATA_RUNS = 0; // Rewrite the full metadata on every flush by default
     public static final int DEFAULT_LOOKUP_PAGE_SIZE = 256 * 1024;
     public static final int DEFAULT_INITIAL_LOOKUP_PAGE_CACHE_SIZE = 1024;
     public static final int DEFAULT_MAXIMUM_LOOKUP_PAGE_CACHE_SIZE = 16 * 1024;
 
     public static final long DEFAULT_MAXIMUM_LOOKUP_KEY_CACHE_WEIGHT = 1_000_000;
     public static final int DEFAULT_INITIAL_LOOKUP_KEY_CACHE_SIZE = 1000;
+    public static final int DEFAULT_OFF_HEAP_LOOKUP_KEY_LENGTH = 0; // On heap by default
 
     public static final long DEFAULT_MAXIMUM_METADATA_CACHE_WEIGHT = 1_000_000;
     public static final int DEFAULT_INITIAL_METADATA_CACHE_SIZE = 1000;
@@ -35,6 +38,10 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
     String storeName = "";
     int partitionSize = DEFAULT_PARTITION_SIZE;
     int lookupHashSize = DEFAULT_LOOKUP_HASH_SIZE;
+    boolean lookupHashIndex = false;
+    double lookupBloomFilterFpp = DEFAULT_LOOKUP_BLOOM_FILTER_FPP;
+    int lookupMetadataRuns = DEFAULT_LOOKUP_METADATA_RUNS;
+    boolean lookupKeyBlocks = false;
 
     int lookupPageSize = DEFAULT_LOOKUP_PAGE_SIZE;
     int initialLookupPageCacheSize = DEFAULT_INITIAL_LOOKUP_PAGE_CACHE_SIZE;
@@ -42,12 +49,16 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
 
     long maximumLookupKeyCacheWeight = DEFAULT_MAXIMUM_LOOKUP_KEY_CACHE_WEIGHT;
     int initialLookupKeyCacheSize = DEFAULT_INITIAL_LOOKUP_KEY_CACHE_SIZE;
+    int offHeapLookupKeyLength = DEFAULT_OFF_HEAP_LOOKUP_KEY_LENGTH;
 
     long maximumMetaDataCacheWeight = DEFAULT_MAXIMUM_METADATA_CACHE_WEIGHT;
     int initialMetaDataCacheSize = DEFAULT_INITIAL_METADATA_CACHE_SIZE;
     int metadataTTL = DEFAULT_METADATA_TTL;
     int metaDataPageSize = DEFAULT_METADATA_PAGE_SIZE;
 
+    PageCache sharedPageCache = null;
+    CacheManager cacheManager = null;
+
     ExecutorService lookupKeyCacheExecutorService = ForkJoinPool.commonPool();
     ExecutorService lookupMetaDataCacheExecutorService = ForkJoinPool.commonPool();
     ExecutorService lookupPageCacheExecutorService = ForkJoinPool.commonPool();
@@ -71,6 +82,78 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return (T) this;
     }
 
+    /**
+     * Persist a hash index of the keys with the lookup metadata so point lookups probe the index and read a single
+     * key instead of bisecting the sorted keys. The sorted key order is still kept for scans. Stores written without
+     * the index build it on their next flush. Can not be combined with the lookup bloom filter or the lookup key
+     * blocks.
+     *
+     * @param lookupHashIndex true to write the hash index
+     * @return the builder
+     * @throws IllegalStateException if the lookup bloom filter or the lookup key blocks are enabled
+     */
+    @SuppressWarnings("unchecked")
+    public T withLookupHashIndex(boolean lookupHashIndex) {
+        if (lookupHashIndex && lookupBloomFilterFpp > 0) {
+            throw new IllegalStateException("Can not use the lookup hash index with the lookup bloom filter");
+        }
+        if (lookupHashIndex && lookupKeyBlocks) {
+            throw new IllegalStateException("Can not use the lookup hash index with the lookup key blocks");
+        }
+        this.lookupHashIndex = lookupHashIndex;
+        return (T) this;
+    }
+
+    /**
+     * Persist a bloom filter of the keys with the lookup metadata so lookups of new keys skip the bisect. Off by
+     * default. Can not be combined with the lookup hash index, which already answers a lookup of a new key with a
+     * single probe.
+     *
+     * @param lookupBloomFilterFpp the false positive probability of the filter, or 0 for no filter
+     * @return the builder
+     * @throws IllegalStateException if the lookup hash index is enabled
+     */
+    @SuppressWarnings("unchecked")
+    public T withLookupBloomFilterFpp(double lookupBloomFilterFpp) {
+        if (lookupBloomFilterFpp > 0 && lookupHashIndex) {
+            throw new IllegalStateException("Can not use the lookup bloom filter with the lookup hash index");
+        }
+        this.lookupBloomFilterFpp = lookupBloomFilterFpp;
+        return (T) this;
+    }
+
+    /**
+     * Write the keys of each flush as a small sorted run appended after the lookup metadata instead of rewriting the
+     * metadata for all the keys. The runs are merged into the metadata in the background once there are this many.
+     *
+     * @param lookupMetadataRuns the number of runs which triggers a merge, or 0 to rewrite the metadata on every flush
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withLookupMetadataRuns(int lookupMetadataRuns) {
+        this.lookupMetadataRuns = lookupMetadataRuns;
+        return (T) this;
+    }
+
+    /**
+     * Persist the sorted keys in prefix compressed blocks with the lookup metadata so a lookup bisects the keys in
+     * memory and reads only the value of a key it finds, instead of reading a key from the lookup file for every
+     * probe. Stores written without the blocks build them on their next flush. Can not be combined with the lookup
+     * hash index, which would be written but never read since lookups bisect the blocks.
+     *
+     * @param lookupKeyBlocks true to write the key blocks
+     * @return the builder
+     * @throws IllegalStateException if the lookup hash index is enabled
+     */
+    @SuppressWarnings("unchecked")
+    public T withLookupKeyBlocks(boolean lookupKeyBlocks) {
+        if (lookupKeyBlocks && lookupHashIndex) {
+            throw new IllegalStateException("Can not use the lookup key blocks with the lookup hash index");
+        }
+        this.lookupKeyBlocks = lookupKeyBlocks;
+        return (T) this;
+    }
+
     @SuppressWarnings("unchecked")
     public T withLookupPageSize(int lookupPageSize) {
         this.lookupPageSize = lookupPageSize;
@@ -101,6 +184,24 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return (T) this;
     }
 
+    /**
+     * Keep the lookup key cache in direct buffers instead of on heap. The maximum lookup key cache weight is then the
+     * number of bytes of off heap memory used by the cache; keys longer than the given length are not cached. The off
+     * heap cache is allocated once at its full size, so it can not be resized by a cache manager.
+     *
+     * @param offHeapLookupKeyLength the longest key to cache in bytes, or 0 to cache keys on heap
+     * @return the builder
+     * @throws IllegalStateException if the store has a cache manager
+     */
+    @SuppressWarnings("unchecked")
+    public T withOffHeapLookupKeyCache(int offHeapLookupKeyLength) {
+        if (offHeapLookupKeyLength > 0 && cacheManager != null) {
+            throw new IllegalStateException("Can not use an off heap lookup key cache with a cache manager");
+        }
+        this.offHeapLookupKeyLength = offHeapLookupKeyLength;
+        return (T) this;
+    }
+
     @SuppressWarnings("unchecked")
     public T withMaximumMetaDataCacheWeight(long maximumMetaDataCacheWeight) {
         this.maximumMetaDataCacheWeight = maximumMetaDataCacheWeight;
@@ -125,6 +226,37 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return (T) this;
     }
 
+    /**
+     * Use views of a page cache shared with other stores for the lookup and blob pages of this store instead of
+     * building a cache for each. Create the shared cache bounded by bytes to put all the stores under one memory budget.
+     *
+     * @param sharedPageCache the shared page cache
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withSharedPageCache(PageCache sharedPageCache) {
+        this.sharedPageCache = sharedPageCache;
+        return (T) this;
+    }
+
+    /**
+     * Put this store under the memory budgets of a cache manager shared with other stores. The store uses the page
+     * cache of the manager, unless a shared page cache is given, and its lookup caches are resized by the manager.
+     * Cache stats are always recorded for stores with a manager since the manager divides the budget by misses.
+     *
+     * @param cacheManager the cache manager
+     * @return the builder
+     * @throws IllegalStateException if the store has an off heap lookup key cache
+     */
+    @SuppressWarnings("unchecked")
+    public T withCacheManager(CacheManager cacheManager) {
+        if (cacheManager != null && offHeapLookupKeyLength > 0) {
+            throw new IllegalStateException("Can not use a cache manager with an off heap lookup key cache");
+        }
+        this.cacheManager = cacheManager;
+        return (T) this;
+    }
+
     @SuppressWarnings("unchecked")
     public T withLookupKeyCacheExecutorService(ExecutorService lookupKeyCacheExecutorService) {
         this.lookupKeyCacheExecutorService = lookupKeyCacheExecutorService;
@@ -238,6 +370,8 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
     }
 
     public PageCache buildLookupPageCache(String metricsPrefix) {
+        PageCache sharedPageCache = getSharedPageCache();
+        if (sharedPageCache != null) return sharedPageCache.view(getLookupPageSize(), getDir());
         return new PageCache(
                 getLookupPageSize(),
                 getInitialLookupPageCacheSize(),
@@ -252,16 +386,24 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
     }
 
     public LookupCache buildLookupCache(String metricsPrefix, boolean readOnly) {
+        Supplier<StatsCounter> keyStatsSupplier = metricsSupplier(metricsPrefix, LOOKUP_KEY_CACHE_METRICS);
+        Supplier<StatsCounter> metadataStatsSupplier = metricsSupplier(metricsPrefix, METADATA_CACHE_METRICS);
+        if (cacheManager != null) {
+            if (keyStatsSupplier == null) keyStatsSupplier = ConcurrentStatsCounter::new;
+            if (metadataStatsSupplier == null) metadataStatsSupplier = ConcurrentStatsCounter::new;
+        }
+
         return new LookupCache(
                 getInitialLookupKeyCacheSize(),
                 getMaximumLookupKeyCacheWeight(),
+                getOffHeapLookupKeyLength(),
                 getLookupKeyCacheExecutorService(),
-                metricsSupplier(metricsPrefix, LOOKUP_KEY_CACHE_METRICS),
+                keyStatsSupplier,
                 getInitialMetaDataCacheSize(),
                 getMaximumMetaDataCacheWeight(),
                 readOnly ? getMetadataTTL() : 0,
                 getLookupMetaDataCacheExecutorService(),
-                metricsSupplier(metricsPrefix, METADATA_CACHE_METRICS)
+                metadataStatsSupplier
         );
     }
 
@@ -270,6 +412,31 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return lookupHashSize;
     }
 
+    public boolean isLookupHashIndex() {
+        return lookupHashIndex;
+    }
+
+    public double getLookupBloomFilterFpp() {
+        return lookupBloomFilterFpp;
+    }
+
+    public int getLookupMetadataRuns() {
+        return lookupMetadataRuns;
+    }
+
+    public boolean isLookupKeyBlocks() {
+        return lookupKeyBlocks;
+    }
+
+    public LookupDataOptions getLookupDataOptions() {
+        return LookupDataOptions.DEFAULT
+                .withFlushThreshold(getFlushThreshold())
+                .withHashIndex(isLookupHashIndex())
+                .withBloomFilterFpp(getLookupBloomFilterFpp())
+                .withMaximumMetadataRuns(getLookupMetadataRuns())
+                .withKeyBlocks(isLookupKeyBlocks());
+    }
+
     public int getLookupPageSize() {
         return lookupPageSize;
     }
@@ -294,6 +461,10 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return initialLookupKeyCacheSize;
     }
 
+    public int getOffHeapLookupKeyLength() {
+        return offHeapLookupKeyLength;
+    }
+
     public long getMaximumMetaDataCacheWeight() {
         return maximumMetaDataCacheWeight;
     }
@@ -334,6 +505,15 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return metadataTTL;
     }
 
+    public PageCache getSharedPageCache() {
+        if (sharedPageCache == null && cacheManager != null) return cacheManager.getPageCache();
+        return sharedPageCache;
+    }
+
+    public CacheManager getCacheManager() {
+        return cacheManager;
+    }
+
     public ExecutorService getLookupKeyCacheExecutorService() {
         return lookupKeyCacheExecutorService;
     }
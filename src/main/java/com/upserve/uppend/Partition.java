@@ -1,6 +1,5 @@
 package com.upserve.uppend;
 
-import com.google.common.hash.*;
 import com.upserve.uppend.blobs.*;
 import com.upserve.uppend.lookup.*;
 
@@ -11,20 +10,16 @@ import java.util.stream.IntStream;
 public abstract class Partition {
     private static final int MAX_HASH_SIZE = 1 << 24; /* 16,777,216 */
 
-    private static final int HASH_SEED = 219370429;
-
     final VirtualPageFile longKeyFile;
     final VirtualPageFile metadataBlobFile;
 
     final PartitionLookupCache lookupCache;
 
-    private final HashFunction hashFunction;
-
     final int hashSize;
 
     final LookupData[] lookups;
 
-    Partition(VirtualPageFile longKeyFile, VirtualPageFile metadataBlobFile, PartitionLookupCache lookupCache, int hashSize, int flushThreshold, boolean readOnly) {
+    Partition(VirtualPageFile longKeyFile, VirtualPageFile metadataBlobFile, PartitionLookupCache lookupCache, int hashSize, LookupDataOptions lookupOptions, boolean readOnly) {
         this.longKeyFile = longKeyFile;
         this.metadataBlobFile = metadataBlobFile;
 
@@ -39,18 +34,12 @@ public abstract class Partition {
             throw new IllegalArgumentException("hashSize must be <= " + MAX_HASH_SIZE);
         }
 
-        if (hashSize == 1) {
-            hashFunction = null;
-        } else {
-            hashFunction = Hashing.murmur3_32(HASH_SEED);
-        }
-
         lookups = IntStream.range(0, hashSize)
                 .mapToObj(virtualFileNumber -> new LookupData(
                                 new VirtualLongBlobStore(virtualFileNumber, longKeyFile),
                                 new VirtualMutableBlobStore(virtualFileNumber, metadataBlobFile),
                                 lookupCache,
-                                flushThreshold,
+                                lookupOptions,
                                 readOnly
                         )
                 )
@@ -58,10 +47,10 @@ public abstract class Partition {
     }
 
     int keyHash(LookupKey key) {
-        if (hashFunction == null){
+        if (hashSize == 1){
             return 0;
         } else {
-            return Math.abs(hashFunction.hashBytes(key.bytes()).asInt()) % hashSize;
+            return Math.abs(key.hashCode()) % hashSize;
         }
     }
 
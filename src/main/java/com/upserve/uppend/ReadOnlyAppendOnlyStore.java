@@ -2,8 +2,9 @@ package com.upserve.uppend;
 
 import com.github.benmanes.caffeine.cache.stats.CacheStats;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.function.BiConsumer;
+import java.util.function.*;
 import java.util.stream.Stream;
 
 /**
@@ -21,6 +22,17 @@ public interface ReadOnlyAppendOnlyStore extends Trimmable, AutoCloseable {
      */
     Stream<byte[]> read(String partitionEntropy, String key);
 
+    /**
+     * Read byte arrays that have been stored under a given partition and key in
+     * parallel
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key bytes under which to retrieve
+     * @return a parallel stream of the stored byte arrays
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    Stream<byte[]> read(String partitionEntropy, byte[] key);
+
     /**
      * Read byte arrays that have been stored under a given partition and key in
      * the order they were stored
@@ -32,6 +44,117 @@ public interface ReadOnlyAppendOnlyStore extends Trimmable, AutoCloseable {
      */
     Stream<byte[]> readSequential(String partitionEntropy, String key);
 
+    /**
+     * Read byte arrays that have been stored under a given partition and key in
+     * the order they were stored
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key bytes under which to retrieve
+     * @return a stream of the stored byte arrays in storage order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    Stream<byte[]> readSequential(String partitionEntropy, byte[] key);
+
+
+    /**
+     * Read the values that have been stored under a given partition and key
+     * in the order they were stored, passing each to the consumer as a read
+     * only buffer. Values within a single page are not copied, so a buffer is
+     * only valid until the consumer returns.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param consumer called with each stored value
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    void read(String partitionEntropy, String key, Consumer<ByteBuffer> consumer);
+
+    /**
+     * Read the values that have been stored under a given partition and key
+     * in the order they were stored, passing each to the consumer as a read
+     * only buffer. Values within a single page are not copied, so a buffer is
+     * only valid until the consumer returns.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key bytes under which to retrieve
+     * @param consumer called with each stored value
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    void read(String partitionEntropy, byte[] key, Consumer<ByteBuffer> consumer);
+
+    /**
+     * Read byte arrays that have been stored under a given partition and key,
+     * newest first. Older values are only read as the stream reaches them.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @return a stream of the stored byte arrays in reverse storage order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    Stream<byte[]> readReverse(String partitionEntropy, String key);
+
+    /**
+     * Read byte arrays that have been stored under a given partition and key,
+     * newest first. Older values are only read as the stream reaches them.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key bytes under which to retrieve
+     * @return a stream of the stored byte arrays in reverse storage order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    Stream<byte[]> readReverse(String partitionEntropy, byte[] key);
+
+    /**
+     * Read a range of the byte arrays that have been stored under a given
+     * partition and key in the order they were stored. Blocks before the
+     * offset are skipped without reading their values.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param offset the index of the first byte array to return
+     * @param limit the maximum number of byte arrays to return
+     * @return a stream of at most limit byte arrays in storage order
+     * @throws IllegalArgumentException if partition is invalid or offset or limit is negative
+     */
+    Stream<byte[]> readRange(String partitionEntropy, String key, long offset, int limit);
+
+    /**
+     * Read a range of the byte arrays that have been stored under a given
+     * partition and key in the order they were stored. Blocks before the
+     * offset are skipped without reading their values.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key bytes under which to retrieve
+     * @param offset the index of the first byte array to return
+     * @param limit the maximum number of byte arrays to return
+     * @return a stream of at most limit byte arrays in storage order
+     * @throws IllegalArgumentException if partition is invalid or offset or limit is negative
+     */
+    Stream<byte[]> readRange(String partitionEntropy, byte[] key, long offset, int limit);
+
+    /**
+     * Read the last n byte arrays that were stored under a given partition
+     * and key in the order they were stored
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param n the maximum number of byte arrays to return
+     * @return a stream of at most n byte arrays in storage order
+     * @throws IllegalArgumentException if partition is invalid or n is negative
+     */
+    Stream<byte[]> readLastN(String partitionEntropy, String key, int n);
+
+    /**
+     * Read the last n byte arrays that were stored under a given partition
+     * and key in the order they were stored
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key bytes under which to retrieve
+     * @param n the maximum number of byte arrays to return
+     * @return a stream of at most n byte arrays in storage order
+     * @throws IllegalArgumentException if partition is invalid or n is negative
+     */
+    Stream<byte[]> readLastN(String partitionEntropy, byte[] key, int n);
 
     /**
      * Read the last byte array that was stored under a given partition and key
@@ -43,6 +166,38 @@ public interface ReadOnlyAppendOnlyStore extends Trimmable, AutoCloseable {
      */
     byte[] readLast(String partitionEntropy, String key);
 
+    /**
+     * Read the last byte array that was stored under a given partition and key
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key bytes under which to retrieve
+     * @return the stored byte array, or null if none
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    byte[] readLast(String partitionEntropy, byte[] key);
+
+    /**
+     * Count the byte arrays that have been stored under a given partition and
+     * key without reading them
+     *
+     * @param partitionEntropy the partition under which to count
+     * @param key the key under which to count
+     * @return the number of stored byte arrays, or 0 if none
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    long count(String partitionEntropy, String key);
+
+    /**
+     * Count the byte arrays that have been stored under a given partition and
+     * key without reading them
+     *
+     * @param partitionEntropy the partition under which to count
+     * @param key the key bytes under which to count
+     * @return the number of stored byte arrays, or 0 if none
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    long count(String partitionEntropy, byte[] key);
+
     /**
      * Enumerate the keys in the append store
      *
@@ -51,6 +206,14 @@ public interface ReadOnlyAppendOnlyStore extends Trimmable, AutoCloseable {
      */
     Stream<String> keys();
 
+    /**
+     * Enumerate the keys in the append store as bytes, for stores with
+     * binary keys
+     *
+     * @return a stream of key bytes
+     */
+    Stream<byte[]> keyBytes();
+
 
     /**
      * Scan all the keys and values in the append store, returning a stream of
@@ -68,6 +231,30 @@ public interface ReadOnlyAppendOnlyStore extends Trimmable, AutoCloseable {
      */
     void scan(BiConsumer<String, Stream<byte[]>> callback);
 
+    /**
+     * Scan the append store, calling the given function with the bytes of
+     * each key and stream of byte array values
+     *
+     * @param callback function to call for each key and stream of values
+     */
+    void scanBytes(BiConsumer<byte[], Stream<byte[]>> callback);
+
+    /**
+     * Read the values appended to the store after a checkpoint, calling the
+     * given function with each. Changes are only logged by stores built with
+     * {@link AppendOnlyStoreBuilder#withChangeLog}. Values appended under the
+     * same partition and key are passed in the order they were appended; the
+     * function is called from several threads at once. The checkpoint holds a
+     * position for each lookup hash of each partition, so it grows with the
+     * number of partitions times the lookup hash size.
+     *
+     * @param checkpoint the checkpoint returned by the previous call, or
+     * {@link Checkpoint#EMPTY} to read every logged change
+     * @param consumer function to call for each change
+     * @return the checkpoint after the changes passed to the consumer
+     */
+    Checkpoint changesSince(Checkpoint checkpoint, Consumer<Change> consumer);
+
     CacheStats getBlobPageCacheStats();
 
     CacheStats getKeyPageCacheStats();
@@ -17,6 +17,16 @@ public interface ReadOnlyCounterStore extends Trimmable, AutoCloseable {
      */
     Long get(String partitionEntropy, String key);
 
+    /**
+     * Get the value for a given partition and binary key
+     *
+     * @param partitionEntropy the partition to getLookupData
+     * @param key the key bytes to getLookupData
+     * @return the value for the given partition and key, or Null if not found
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    Long get(String partitionEntropy, byte[] key);
+
     /**
      * Enumerate the keys in the counterStore
      *
@@ -25,6 +35,14 @@ public interface ReadOnlyCounterStore extends Trimmable, AutoCloseable {
      */
     Stream<String> keys();
 
+    /**
+     * Enumerate the keys in the counterStore as bytes, for stores with binary
+     * keys
+     *
+     * @return a stream of key bytes
+     */
+    Stream<byte[]> keyBytes();
+
     /**
      * Scan all the keys and values, returning a stream of
      * entries
@@ -41,6 +59,14 @@ public interface ReadOnlyCounterStore extends Trimmable, AutoCloseable {
      */
     void scan(ObjLongConsumer<String> callback);
 
+    /**
+     * Scan the counter store, calling the given function with the bytes of
+     * each key and counter value
+     *
+     * @param callback function to call for each key and value
+     */
+    void scanBytes(ObjLongConsumer<byte[]> callback);
+
     CacheStats getKeyPageCacheStats();
 
     CacheStats getLookupKeyCacheStats();
@@ -28,6 +28,11 @@ public class FilePage implements Page {
 
     }
 
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
     @Override
     public int get(int pagePosition, byte[] dst, int bufferOffset) {
         final int desiredRead = dst.length - bufferOffset;
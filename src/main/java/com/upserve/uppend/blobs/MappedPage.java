@@ -1,16 +1,30 @@
 package com.upserve.uppend.blobs;
 
+import org.slf4j.Logger;
+
+import java.lang.invoke.*;
+import java.lang.reflect.Field;
 import java.nio.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.Integer.min;
 
 /**
  * Mapped Byte Buffer backed implementation of Page
+ * <p>
+ * The page starts with one reference held by its owner. Readers pin the page with retain and release; when the owner
+ * releases its reference (a PageCache evicting the page) the mapping is unmapped as soon as the last reader is done,
+ * rather than when the garbage collector gets to the buffer.
  */
 public class MappedPage implements Page {
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
 
     private final MappedByteBuffer buffer;
+    private final ByteBuffer readOnlyBuffer;
     private final int pageSize;
+    private final AtomicInteger references;
 
     /**
      * Constructor for a MappedPage
@@ -20,6 +34,78 @@ public class MappedPage implements Page {
     public MappedPage(MappedByteBuffer buffer) {
         this.pageSize = buffer.capacity();
         this.buffer = buffer;
+        this.readOnlyBuffer = buffer.asReadOnlyBuffer();
+        this.references = new AtomicInteger(1);
+    }
+
+    @Override
+    public boolean retain() {
+        int current;
+        do {
+            current = references.get();
+            if (current == 0) return false;
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    @Override
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            unmap(buffer);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Page released more times than it was retained");
+        }
+    }
+
+    boolean isReleased() {
+        return references.get() == 0;
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable t) {
+            log.warn("Unable to unmap page, leaving it for the garbage collector", t);
+        }
+    }
+
+    /**
+     * sun.misc.Unsafe.invokeCleaner bound to the Unsafe instance, looked up reflectively so the page can be unmapped
+     * without waiting for the garbage collector
+     *
+     * @return the method handle or null if it is not available
+     */
+    private static MethodHandle invokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.info("Explicit unmapping of pages is not available", e);
+            return null;
+        }
+    }
+
+    @Override
+    public int getInt(int pagePosition) {
+        // Absolute get does not need a local buffer
+        return buffer.getInt(pagePosition);
+    }
+
+    @Override
+    public ByteBuffer slice(int pagePosition, int length) {
+        if (pagePosition + length > pageSize) return null;
+        return readOnlyBuffer.duplicate().position(pagePosition).limit(pagePosition + length).slice();
     }
 
     @Override
@@ -1,5 +1,9 @@
 package com.upserve.uppend.blobs;
 
+import com.google.common.primitives.Ints;
+
+import java.nio.ByteBuffer;
+
 /**
  * Currently only MappedByteBuffer and FilePage are implemented - could implement on heap caching using
  * read once byte[]!
@@ -8,4 +12,44 @@ public interface Page {
     int get(int pagePosition, byte[] dst, int bufferOffset);
 
     int put(int pagePosition, byte[] src, int bufferOffset);
+
+    int getPageSize();
+
+    /**
+     * Read an int which lies entirely within the page
+     *
+     * @param pagePosition the position of the int in the page
+     * @return the int
+     */
+    default int getInt(int pagePosition) {
+        byte[] buf = new byte[4];
+        if (get(pagePosition, buf, 0) != 4) throw new IllegalStateException("int at " + pagePosition + " is not within the page");
+        return Ints.fromByteArray(buf);
+    }
+
+    /**
+     * A read only view of bytes which lie entirely within the page, without copying them
+     *
+     * @param pagePosition the position of the first byte in the page
+     * @param length the number of bytes
+     * @return a read only buffer over the bytes or null if this page can not provide one
+     */
+    default ByteBuffer slice(int pagePosition, int length) {
+        return null;
+    }
+
+    /**
+     * Pin the page so it is not released while in use. Every successful call must be matched by a call to release.
+     *
+     * @return false if the page has already been released and must be fetched again
+     */
+    default boolean retain() {
+        return true;
+    }
+
+    /**
+     * Unpin the page, releasing its resources if it has been evicted and is no longer in use
+     */
+    default void release() {
+    }
 }
@@ -10,6 +10,7 @@ import java.nio.file.Path;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.function.*;
+import java.util.stream.Collectors;
 
 /**
  * A cache of memory mapped file pages
@@ -17,15 +18,63 @@ import java.util.function.*;
  * Concurrent writes to random new pages cause the JVM to crash in JDK less than 9
  * Attempted solution to force the buffer when it extends the file failed to fix the issue. See testHammerPageCache
  * Uppend should not make concurrent writes to multiple pages in normal operation - unless blobs are larger than a page
+ * <p>
+ * A cache bounded by a number of bytes can be shared by the blob and key pages of many stores, each using a view with
+ * its own page size. Pages evicted from a byte bounded cache are unmapped as soon as no reader has them pinned.
  */
 public class PageCache implements Flushable {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
     private final Cache<PageKey, Page> pageCache;
     private final int pageSize;
+    private final boolean byteWeighted;
+    // The directory whose pages are invalidated by flush in a view of a shared cache, or null for all pages
+    private final Path scope;
+
+    /**
+     * Create a page cache bounded by a number of bytes. Use {@link #view(int, Path)} to get the cache for each store.
+     *
+     * @param initialCacheSize the initial number of pages
+     * @param maximumCacheBytes the maximum bytes of pages to hold
+     * @param executorService the executor for cache maintenance and releasing evicted pages
+     * @param metricsSupplier a stats counter supplier or null
+     */
+    public PageCache(int initialCacheSize, long maximumCacheBytes, ExecutorService executorService, Supplier<StatsCounter> metricsSupplier) {
+        this.pageSize = 0;
+        this.byteWeighted = true;
+        this.scope = null;
+
+        Caffeine<PageKey, Page> cacheBuilder = Caffeine
+                .<PageKey, Page>newBuilder()
+                .executor(executorService)
+                .initialCapacity(initialCacheSize)
+                .maximumWeight(maximumCacheBytes)
+                .<PageKey, Page>weigher((key, page) -> page.getPageSize())
+                .<PageKey, Page>removalListener((key, page, cause) -> {
+                    log.debug("Called removal on {} with cause {}", key, cause);
+                    // Drop the cache's reference - the page is unmapped once the last reader releases it
+                    if (page != null) page.release();
+                });
+
+        if (metricsSupplier != null) {
+            cacheBuilder = cacheBuilder.recordStats(metricsSupplier);
+        }
+
+        this.pageCache = cacheBuilder
+                .<PageKey, Page>build();
+    }
+
+    private PageCache(PageCache shared, int pageSize, Path scope) {
+        this.pageCache = shared.pageCache;
+        this.byteWeighted = shared.byteWeighted;
+        this.pageSize = pageSize;
+        this.scope = scope;
+    }
 
     public PageCache(int pageSize, int initialCacheSize, int maximumCacheSize, ExecutorService executorService, Supplier<StatsCounter> metricsSupplier) {
         this.pageSize = pageSize;
+        this.byteWeighted = false;
+        this.scope = null;
 
         Caffeine<PageKey, Page> cacheBuilder = Caffeine
                 .<PageKey, Page>newBuilder()
@@ -45,10 +94,36 @@ public class PageCache implements Flushable {
 
     }
 
+    /**
+     * A view of this cache for the files of one store sharing the cache entries and memory budget
+     *
+     * @param pageSize the page size of the files which will use the view
+     * @param scope the directory of the files, flushing the view only invalidates their pages
+     * @return the view
+     */
+    public PageCache view(int pageSize, Path scope) {
+        return new PageCache(this, pageSize, scope);
+    }
+
     public int getPageSize() {
         return pageSize;
     }
 
+    /**
+     * The bytes of the pages currently held by the cache. Evicted pages which are still pinned by a reader are not
+     * counted.
+     *
+     * @return the resident bytes
+     */
+    public long residentBytes() {
+        pageCache.cleanUp();
+        if (byteWeighted) {
+            return pageCache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L);
+        } else {
+            return pageCache.estimatedSize() * pageSize;
+        }
+    }
+
     Page get(long pos, Path path, Function<PageKey, Page> pageLoader) {
         return pageCache.get(new PageKey(path, pos), pageLoader);
     }
@@ -63,6 +138,14 @@ public class PageCache implements Flushable {
 
     @Override
     public void flush() {
-        pageCache.invalidateAll();
+        if (scope == null) {
+            pageCache.invalidateAll();
+        } else {
+            pageCache.invalidateAll(
+                    pageCache.asMap().keySet().stream()
+                            .filter(key -> key.getFilePath().startsWith(scope))
+                            .collect(Collectors.toList())
+            );
+        }
     }
 }
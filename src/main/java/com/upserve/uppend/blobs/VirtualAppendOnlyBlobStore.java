@@ -3,21 +3,109 @@ package com.upserve.uppend.blobs;
 import org.slf4j.Logger;
 
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.*;
 
 public class VirtualAppendOnlyBlobStore extends VirtualPageFileIO {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+    // Upper bound on the bytes written by a single bulk append
+    static final int MAX_BULK_APPEND_SIZE = 16 * 1024 * 1024;
+
+    // Upper bound on the positions read as one page group
+    static final int MAX_READ_GROUP_SIZE = 1024;
+
+    // Upper bound on the page groups handed off by one split of a parallel read
+    static final int MAX_SPLIT_GROUPS = 64;
+
     public VirtualAppendOnlyBlobStore(int virtualFileNumber, VirtualPageFile virtualPageFile) {
         super(virtualFileNumber, virtualPageFile);
     }
 
     public long append(byte[] bytes) {
-        final long pos = appendPosition(recordSize(bytes));
+        final long pos = reserve(bytes);
+        writeReserved(pos, bytes);
+        return pos;
+    }
+
+    /**
+     * Reserve the space for a blob without writing it, so its position is known before it is appended
+     *
+     * @param bytes the blob to reserve space for
+     * @return the position to write the blob at with {@link #writeReserved(long, byte[])}
+     */
+    public long reserve(byte[] bytes) {
+        return appendPosition(recordSize(bytes));
+    }
+
+    /**
+     * Write a blob at the position reserved for it
+     *
+     * @param pos the position from {@link #reserve(byte[])}
+     * @param bytes the blob the space was reserved for
+     */
+    public void writeReserved(long pos, byte[] bytes) {
         write(pos, byteRecord(bytes));
         if (log.isTraceEnabled()) log.trace("appended {} bytes to {} at pos {}", bytes.length, virtualFileNumber, pos);
+    }
+
+    /**
+     * Append a blob, writing its size before the space for it is reserved, so a reader can step over the record even
+     * if the writer fails before writing the blob. Appends to the store must be serialized by the caller.
+     *
+     * @param bytes the blob to append
+     * @return the position of the blob
+     */
+    public long appendSizeFirst(byte[] bytes) {
+        final long pos = getPosition();
+        writeInt(pos, bytes.length);
+        if (appendPosition(recordSize(bytes)) != pos) {
+            throw new IllegalStateException("Concurrent append to virtual file " + virtualFileNumber);
+        }
+        write(pos + 4, bytes);
         return pos;
     }
 
+    /**
+     * Append several blobs, reserving space for all of them at once and writing them as one contiguous record.
+     * Batches larger than {@link #MAX_BULK_APPEND_SIZE} bytes are split into several contiguous writes.
+     *
+     * @param values the blobs to append
+     * @return the position of each blob, in the order given
+     */
+    public long[] appendAll(List<byte[]> values) {
+        final long[] positions = new long[values.size()];
+
+        int start = 0;
+        while (start < values.size()) {
+            int end = start;
+            int bulkSize = 0;
+            do {
+                bulkSize += recordSize(values.get(end));
+                end++;
+            } while (end < values.size() && bulkSize + (long) recordSize(values.get(end)) <= MAX_BULK_APPEND_SIZE);
+
+            final byte[] bulkBytes = new byte[bulkSize];
+            final long pos = appendPosition(bulkSize);
+
+            int offset = 0;
+            for (int i = start; i < end; i++) {
+                byte[] bytes = values.get(i);
+                positions[i] = pos + offset;
+                System.arraycopy(int2bytes(bytes.length), 0, bulkBytes, offset, 4);
+                System.arraycopy(bytes, 0, bulkBytes, offset + 4, bytes.length);
+                offset += recordSize(bytes);
+            }
+            write(pos, bulkBytes);
+            if (log.isTraceEnabled()) log.trace("appended {} blobs ({} bytes) to {} at pos {}", end - start, bulkSize, virtualFileNumber, pos);
+
+            start = end;
+        }
+        return positions;
+    }
+
     public long getPosition() {
         return super.getPosition();
     }
@@ -32,6 +120,167 @@ public class VirtualAppendOnlyBlobStore extends VirtualPageFileIO {
         return buf;
     }
 
+    /**
+     * Read a blob whose record lies entirely before a limit, for readers which may race the writers of the records
+     * near the limit
+     *
+     * @param pos the position of the blob
+     * @param limit the position the record must end before
+     * @return the blob, or null if the size read would put the record past the limit
+     */
+    public byte[] readIfBefore(long pos, long limit) {
+        if (pos + 4 > limit) return null;
+        int size = readInt(pos);
+        if (size < 0 || pos + 4 + size > limit) return null;
+        byte[] buf = new byte[size];
+        super.read(pos + 4, buf);
+        return buf;
+    }
+
+    /**
+     * Read a blob without copying it when it lies within a single mapped page. The buffer is a read only view which
+     * is only valid until the consumer returns, so consumers should not hold on to it.
+     *
+     * @param pos the position of the blob
+     * @param consumer accepts a read only buffer over the blob
+     */
+    public void readBuffer(long pos, Consumer<ByteBuffer> consumer) {
+        if (log.isTraceEnabled()) log.trace("read buffer from  {} @ {}", virtualFileNumber, pos);
+        int size = readInt(pos);
+        readBuffer(pos + 4, size, consumer);
+    }
+
+    /**
+     * Read the blobs at several positions in parallel. Consecutive positions which start in the same page are read as
+     * one group, so each page is fetched from the page cache once per group rather than once per blob.
+     *
+     * @param positions the positions of the blobs, in storage order
+     * @return an ordered parallel stream of the blobs in the order of the positions
+     */
+    public Stream<byte[]> read(long[] positions) {
+        return read(Arrays.stream(positions).iterator(), positions.length);
+    }
+
+    /**
+     * Read the blobs at the positions of an iterator in parallel. The positions are taken from the iterator as the
+     * stream is consumed, in groups of at most {@link #MAX_READ_GROUP_SIZE} consecutive positions which start in the
+     * same page, so the positions are never all collected before the first blob is read. Each group fetches its page
+     * from the page cache once.
+     *
+     * @param positions the positions of the blobs, in storage order
+     * @return an ordered parallel stream of the blobs in the order of the positions
+     */
+    public Stream<byte[]> read(PrimitiveIterator.OfLong positions) {
+        return read(positions, Long.MAX_VALUE);
+    }
+
+    /**
+     * Read the blobs at the positions of an iterator in parallel, as {@link #read(PrimitiveIterator.OfLong)}. The
+     * expected number of positions bounds how far a parallel stream splits the iterator ahead of the reads.
+     *
+     * @param positions the positions of the blobs, in storage order
+     * @param expectedSize the expected number of positions, or Long.MAX_VALUE if unknown
+     * @return an ordered parallel stream of the blobs in the order of the positions
+     */
+    public Stream<byte[]> read(PrimitiveIterator.OfLong positions, long expectedSize) {
+        return StreamSupport.stream(new PageGroupSpliterator(positions, expectedSize), true)
+                .map(group -> readGroup(group, 0, group.length))
+                .flatMap(Arrays::stream);
+    }
+
+    private byte[][] readGroup(long[] positions, int start, int end) {
+        final int pageNumber = pageNumber(positions[start]);
+        final Page page = pinExistingPage(pageNumber);
+
+        byte[][] result = new byte[end - start][];
+        try {
+            for (int i = start; i < end; i++) {
+                long pos = positions[i];
+                byte[] buf = new byte[readInt(page, pageNumber, pos)];
+                read(page, pageNumber, pos + 4, buf);
+                result[i - start] = buf;
+            }
+        } finally {
+            page.release();
+        }
+        return result;
+    }
+
+    /**
+     * Splits the positions of an iterator into page groups. Like {@link Spliterators.AbstractSpliterator}, each split
+     * hands off a batch of one more group than the last, up to {@link #MAX_SPLIT_GROUPS}, and the estimate is the
+     * expected number of positions less those handed off, so a parallel stream stops splitting once the rest is small
+     * and reads it as it is taken from the iterator.
+     */
+    private class PageGroupSpliterator implements Spliterator<long[]> {
+        private final PrimitiveIterator.OfLong positions;
+        private final long[] buffer = new long[MAX_READ_GROUP_SIZE];
+        private long pending;
+        private boolean hasPending;
+        private long estimate;
+        private int batch;
+
+        PageGroupSpliterator(PrimitiveIterator.OfLong positions, long expectedSize) {
+            this.positions = positions;
+            estimate = expectedSize;
+        }
+
+        private long[] nextGroup() {
+            if (!hasPending) {
+                if (!positions.hasNext()) return null;
+                pending = positions.nextLong();
+            }
+            hasPending = false;
+
+            final int pageNumber = pageNumber(pending);
+            int size = 0;
+            buffer[size++] = pending;
+            while (size < buffer.length && positions.hasNext()) {
+                long pos = positions.nextLong();
+                if (pageNumber(pos) != pageNumber) {
+                    pending = pos;
+                    hasPending = true;
+                    break;
+                }
+                buffer[size++] = pos;
+            }
+            return Arrays.copyOf(buffer, size);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super long[]> action) {
+            long[] group = nextGroup();
+            if (group == null) return false;
+            action.accept(group);
+            return true;
+        }
+
+        @Override
+        public Spliterator<long[]> trySplit() {
+            final int size = Math.min(batch + 1, MAX_SPLIT_GROUPS);
+            final Object[] groups = new Object[size];
+            int count = 0;
+            long[] group;
+            while (count < size && (group = nextGroup()) != null) {
+                groups[count++] = group;
+                if (estimate != Long.MAX_VALUE) estimate = Math.max(0, estimate - group.length);
+            }
+            if (count == 0) return null;
+            batch = count;
+            return Spliterators.spliterator(groups, 0, count, Spliterator.ORDERED | Spliterator.NONNULL);
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
+
     public static int recordSize(byte[] inputBytes) {
         return inputBytes.length + 4;
     }
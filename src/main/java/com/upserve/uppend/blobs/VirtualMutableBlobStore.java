@@ -43,6 +43,27 @@ public class VirtualMutableBlobStore extends VirtualPageFileIO {
         }
     }
 
+    /**
+     * Read a blob at a position which may hold a partially written or stale record, such as the end of a sequence of
+     * records appended one after another
+     *
+     * @param pos the position of the record
+     * @return the bytes or null if there is no valid record at the position
+     */
+    public byte[] readIfValid(long pos) {
+        if (!isPageAllocated(pos + 7)) return null;
+        int size = readInt(pos);
+        if (size <= 0 || !isPageAllocated(pos + 8 + size - 1)) return null;
+        byte[] buf = new byte[size];
+
+        byte[] checksum = new byte[4];
+        read(pos + 4, checksum);
+
+        read(pos + 8, buf);
+
+        return Arrays.equals(checksum, hashFunction.hashBytes(buf).asBytes()) ? buf : null;
+    }
+
     public static int recordSize(byte[] inputBytes) {
         return inputBytes.length + 8;
     }
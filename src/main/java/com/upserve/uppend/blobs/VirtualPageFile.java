@@ -39,8 +39,10 @@ import java.util.stream.IntStream;
  * Pages:
  * previousPageStart(long), pageSize(bytes), nextPageStart(long)
  * <p>
- * A fixed number of pages per virtual file are allocated at startup - exceeding this number would be... bad
- * TODO - fix this!
+ * The table holds the start of the first PAGES_PER_VIRUAL_FILE pages of each virtual file. Pages beyond the table are
+ * recorded only by the nextPageStart pointers of the page chain. Their starts are kept in a growable in memory table
+ * for each virtual file, which is rebuilt from the chain when the file is opened and extended by following the chain
+ * as new pages are allocated, so the file format is unchanged. The in memory table is read without locks.
  */
 public class VirtualPageFile implements Flushable, Closeable {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -52,8 +54,8 @@ public class VirtualPageFile implements Flushable, Closeable {
     private static final int HEADER_RECORD_SIZE = 8 + 8 + 8 + 4;
     /* firstPageStart, lastPageStart, currentPosition, pageCount */
 
-    // Maximum number of pages allowed per virtual file
-    private static final int PAGES_PER_VIRUAL_FILE = 1000;
+    // Number of pages per virtual file with a start position in the page table; later pages use the overflow table
+    static final int PAGES_PER_VIRUAL_FILE = 1000;
 
     private final Path filePath;
     private final FileChannel channel;
@@ -70,6 +72,7 @@ public class VirtualPageFile implements Flushable, Closeable {
     private final AtomicInteger[] virtualFilePageCounts; // the number of pages currently allocated for each virtual file
 
     private final LongBuffer pageTable; // Indexable list of page start locations for each virtual file
+    private final OverflowPageTable[] overflowPageTables; // page start locations past the end of the page table for each virtual file
 
     private final int virtualFiles;
     private final int pageSize;
@@ -180,6 +183,10 @@ public class VirtualPageFile implements Flushable, Closeable {
         }
     }
 
+    int getPageSize() {
+        return pageSize;
+    }
+
     /**
      * Get the position in the page for the virtual file position
      *
@@ -198,7 +205,7 @@ public class VirtualPageFile implements Flushable, Closeable {
      */
     int pageNumber(long pos) {
         long result = (pos / (long) pageSize);
-        if (result >= PAGES_PER_VIRUAL_FILE)
+        if (result > Integer.MAX_VALUE)
             throw new IllegalStateException("The position " + pos + " exceeds the page limit for file" + getFilePath());
         return (int) result;
     }
@@ -326,6 +333,11 @@ public class VirtualPageFile implements Flushable, Closeable {
             throw new UncheckedIOException("unable to map header for path: " + filePath, e);
         }
 
+        overflowPageTables = IntStream
+                .range(0, virtualFiles)
+                .mapToObj(virtualFileNumber -> new OverflowPageTable())
+                .toArray(OverflowPageTable[]::new);
+
         firstPagePositions = IntStream
                 .range(0, virtualFiles)
                 .mapToLong(this::getHeaderFirstPage)
@@ -380,7 +392,7 @@ public class VirtualPageFile implements Flushable, Closeable {
         long firstPageStart = firstPagePositions[virtualFileNumber].get();
         long finalPageStart = lastPagePositions[virtualFileNumber].get();
 
-        long[] pageStarts = IntStream.range(0, PAGES_PER_VIRUAL_FILE).mapToLong(page -> getRawPageStart(virtualFileNumber, page)).toArray();
+        long[] pageStarts = IntStream.range(0, PAGES_PER_VIRUAL_FILE).mapToLong(page -> getTablePageStart(virtualFileNumber, page)).toArray();
 
         if (pageCount == 0) {
             if (virtualFilePosition != 0 || firstPageStart != 0 || finalPageStart != 0 || Arrays.stream(pageStarts).anyMatch(val -> val != 0)) {
@@ -394,14 +406,22 @@ public class VirtualPageFile implements Flushable, Closeable {
 
         if (firstPageStart != pageStarts[0])
             throw new IllegalStateException("Header first pageStart does not match table page 0 start in file " + getFilePath());
-        if (finalPageStart != pageStarts[pageCount - 1])
+        if (pageCount <= PAGES_PER_VIRUAL_FILE && finalPageStart != pageStarts[pageCount - 1])
             throw new IllegalStateException("Header last pageStart does not match table page last start in file " + getFilePath());
 
+        OverflowPageTable overflowPageTable = overflowPageTables[virtualFileNumber];
+
         long nextPageStart = firstPageStart;
         long lastPageStart = -1L;
         for (int page = 0; page < pageCount; page++) {
-            if (nextPageStart != pageStarts[page])
-                throw new IllegalStateException("Head pointer does not match table page start in file " + getFilePath());
+            if (page < PAGES_PER_VIRUAL_FILE) {
+                if (nextPageStart != pageStarts[page])
+                    throw new IllegalStateException("Head pointer does not match table page start in file " + getFilePath());
+            } else {
+                // Pages past the end of the table are only recorded in the chain
+                if (!overflowPageTable.add(page - PAGES_PER_VIRUAL_FILE, nextPageStart))
+                    throw new IllegalStateException("Head pointer does not match overflow page start in file " + getFilePath());
+            }
             if (readTailPointer(nextPageStart) != lastPageStart)
                 throw new IllegalStateException("Corrupt tail pointer in first page in file " + getFilePath());
 
@@ -410,13 +430,51 @@ public class VirtualPageFile implements Flushable, Closeable {
             nextPageStart = readHeadPointer(nextPageStart);
         }
 
+        if (finalPageStart != lastPageStart)
+            throw new IllegalStateException("Header last pageStart does not match the last page in the chain in file " + getFilePath());
+
         if (nextPageStart != -1) throw new IllegalStateException("Last head pointer not equal -1 in file " + getFilePath());
     }
 
     private long getRawPageStart(int virtualFileNumber, int pageNumber) {
+        if (pageNumber < PAGES_PER_VIRUAL_FILE) {
+            return getTablePageStart(virtualFileNumber, pageNumber);
+        } else {
+            return getOverflowPageStart(virtualFileNumber, pageNumber - PAGES_PER_VIRUAL_FILE);
+        }
+    }
+
+    private long getTablePageStart(int virtualFileNumber, int pageNumber) {
         return pageTable.get(PAGES_PER_VIRUAL_FILE * virtualFileNumber + pageNumber);
     }
 
+    /**
+     * Get the start of a page past the end of the page table, following the head pointers of the page chain from the
+     * last known page if another process (or this one) has allocated pages since they were last read.
+     *
+     * @param virtualFileNumber the virtual file number
+     * @param overflowIndex the page number less the size of the page table
+     * @return the page start or 0 if the page is not yet linked in the chain
+     */
+    private long getOverflowPageStart(int virtualFileNumber, int overflowIndex) {
+        OverflowPageTable overflowPageTable = overflowPageTables[virtualFileNumber];
+        int size;
+        while ((size = overflowPageTable.size()) <= overflowIndex) {
+            long previousPageStart = size == 0 ?
+                    getTablePageStart(virtualFileNumber, PAGES_PER_VIRUAL_FILE - 1) :
+                    overflowPageTable.get(size - 1);
+            if (previousPageStart <= 0) return 0L;
+
+            long nextPageStart = readHeadPointer(previousPageStart);
+            if (nextPageStart <= 0) return 0L;
+            // Threads following the chain at the same time add the same page start
+            if (!overflowPageTable.add(size, nextPageStart)) {
+                throw new IllegalStateException("Overflow page table out of sync at page " + (PAGES_PER_VIRUAL_FILE + size) + " for virtual file " + virtualFileNumber + " in file " + getFilePath());
+            }
+        }
+        return overflowPageTable.get(overflowIndex);
+    }
+
     private long getValidPageStart(int virtualFileNumber, int pageNumber) {
         if (pageNumber == -1) return -1L;
         long result = getRawPageStart(virtualFileNumber, pageNumber);
@@ -430,8 +488,16 @@ public class VirtualPageFile implements Flushable, Closeable {
     }
 
     private void putPageStart(int virtualFileNumber, int pageNumber, long position) {
-        int index = PAGES_PER_VIRUAL_FILE * virtualFileNumber + pageNumber;
-        pageTable.put(index, position);
+        if (pageNumber < PAGES_PER_VIRUAL_FILE) {
+            int index = PAGES_PER_VIRUAL_FILE * virtualFileNumber + pageNumber;
+            pageTable.put(index, position);
+        } else {
+            // The head pointer of the previous page is already written, so the page may have been read from the chain
+            int overflowIndex = pageNumber - PAGES_PER_VIRUAL_FILE;
+            if (!overflowPageTables[virtualFileNumber].add(overflowIndex, position)) {
+                throw new IllegalStateException("Overflow page table out of sync at page " + pageNumber + " for virtual file " + virtualFileNumber + " in file " + getFilePath());
+            }
+        }
     }
 
     private long getHeaderFirstPage(int virtualFileNumber) {
@@ -547,4 +613,58 @@ public class VirtualPageFile implements Flushable, Closeable {
         }
         return longBuffer.flip().getLong();
     }
+
+    /**
+     * The page starts of a virtual file past the end of the page table. Starts are only added at the end of the table
+     * and are held in fixed size chunks which are never moved, so a reader takes no lock: a start is visible once the
+     * size is advanced past it. Only adding a chunk copies the chunk array.
+     */
+    private static class OverflowPageTable {
+        private static final int CHUNK_BITS = 10;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+        private final AtomicInteger size = new AtomicInteger();
+
+        int size() {
+            return size.get();
+        }
+
+        long get(int index) {
+            return chunks[index >>> CHUNK_BITS].get(index & (CHUNK_SIZE - 1));
+        }
+
+        /**
+         * Add the start of a page if it is the next page in the table, or check the start already in the table
+         *
+         * @param index the index of the page in the table
+         * @param pageStart the start of the page
+         * @return false if the index is past the end of the table or a different start is in the table
+         */
+        boolean add(int index, long pageStart) {
+            final int current = size.get();
+            if (index < current) return get(index) == pageStart;
+            if (index > current) return false;
+
+            final AtomicLongArray chunk = chunk(index >>> CHUNK_BITS);
+            final int chunkIndex = index & (CHUNK_SIZE - 1);
+            if (!chunk.compareAndSet(chunkIndex, 0, pageStart) && chunk.get(chunkIndex) != pageStart) return false;
+            size.compareAndSet(index, index + 1);
+            return true;
+        }
+
+        private AtomicLongArray chunk(int chunkNumber) {
+            AtomicLongArray[] current = chunks;
+            if (chunkNumber < current.length) return current[chunkNumber];
+            synchronized (this) {
+                current = chunks;
+                if (chunkNumber >= current.length) {
+                    current = Arrays.copyOf(current, chunkNumber + 1);
+                    current[chunkNumber] = new AtomicLongArray(CHUNK_SIZE);
+                    chunks = current;
+                }
+                return current[chunkNumber];
+            }
+        }
+    }
 }
@@ -7,7 +7,7 @@ import org.slf4j.Logger;
 import java.lang.invoke.MethodHandles;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicStampedReference;
-import java.util.function.Supplier;
+import java.util.function.*;
 
 public class VirtualPageFileIO {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -93,16 +93,13 @@ public class VirtualPageFileIO {
     private int writePagedOffset(long pos, byte[] bytes, int offset) {
         int pageNumber = virtualPageFile.pageNumber(pos);
 
-        Page page;
-        int[] holder = new int[1];
-        page = lastPage.get(holder);
-        if (holder[0] != pageNumber) {
-            page = virtualPageFile.getCachedOrCreatePage(virtualFileNumber, pageNumber, useMappedPages);
-            lastPage.set(page, pageNumber);
-        }
-
+        Page page = pinnedPage(pageNumber, true);
         int bytesWritten;
-        bytesWritten = page.put(virtualPageFile.pagePosition(pos), bytes, offset);
+        try {
+            bytesWritten = page.put(virtualPageFile.pagePosition(pos), bytes, offset);
+        } finally {
+            page.release();
+        }
 
         if (bytesWritten < (bytes.length - offset)) {
             bytesWritten += writePagedOffset(pos + bytesWritten, bytes, offset + bytesWritten);
@@ -111,12 +108,48 @@ public class VirtualPageFileIO {
     }
 
     int readInt(long pos) {
-        // TODO make thread local byte array?
+        final int pagePosition = virtualPageFile.pagePosition(pos);
+        if (pagePosition + 4 <= virtualPageFile.getPageSize()) {
+            Page page = pinnedPage(virtualPageFile.pageNumber(pos), false);
+            try {
+                return page.getInt(pagePosition);
+            } finally {
+                page.release();
+            }
+        }
         byte[] buf = new byte[4];
         read(pos, buf);
         return Ints.fromByteArray(buf);
     }
 
+    /**
+     * Read bytes as a read only buffer. Bytes within a single mapped page are passed as a view of the page without
+     * copying; bytes which span pages are copied. The page is pinned while the consumer runs, so the buffer is only
+     * valid until the consumer returns.
+     *
+     * @param pos the position to read from
+     * @param length the number of bytes to read
+     * @param consumer accepts a read only buffer positioned at the first byte
+     */
+    void readBuffer(long pos, int length, Consumer<ByteBuffer> consumer) {
+        final int pagePosition = virtualPageFile.pagePosition(pos);
+        if (pagePosition + length <= virtualPageFile.getPageSize()) {
+            Page page = pinnedPage(virtualPageFile.pageNumber(pos), false);
+            try {
+                ByteBuffer slice = page.slice(pagePosition, length);
+                if (slice != null) {
+                    consumer.accept(slice);
+                    return;
+                }
+            } finally {
+                page.release();
+            }
+        }
+        byte[] buf = new byte[length];
+        read(pos, buf);
+        consumer.accept(ByteBuffer.wrap(buf).asReadOnlyBuffer());
+    }
+
     long readLong(long pos) {
         // TODO make thread local byte array?
         byte[] buf = new byte[8];
@@ -124,6 +157,53 @@ public class VirtualPageFileIO {
         return Longs.fromByteArray(buf);
     }
 
+    int pageNumber(long pos) {
+        return virtualPageFile.pageNumber(pos);
+    }
+
+    /**
+     * Get an existing page pinned for the caller, who must release it
+     *
+     * @param pageNumber the number of the page
+     * @return the pinned page
+     */
+    Page pinExistingPage(int pageNumber) {
+        return pinnedPage(pageNumber, false);
+    }
+
+    int readInt(Page page, int pageNumber, long pos) {
+        final int pagePosition = virtualPageFile.pagePosition(pos);
+        if (virtualPageFile.pageNumber(pos) == pageNumber && pagePosition + 4 <= virtualPageFile.getPageSize()) {
+            return page.getInt(pagePosition);
+        }
+        byte[] buf = new byte[4];
+        read(page, pageNumber, pos, buf);
+        return Ints.fromByteArray(buf);
+    }
+
+    /**
+     * Read using a page the caller has pinned, falling back to the paged read for bytes outside of it
+     *
+     * @param page the page to read from
+     * @param pageNumber the number of the page
+     * @param pos the position to read from
+     * @param buf the buffer to fill
+     */
+    void read(Page page, int pageNumber, long pos, byte[] buf) {
+        if (buf.length == 0) return;
+        if (virtualPageFile.pageNumber(pos) != pageNumber) {
+            read(pos, buf);
+            return;
+        }
+        int result = page.get(virtualPageFile.pagePosition(pos), buf, 0);
+        if (result < buf.length) {
+            result += readPagedOffset(pos + result, buf, result);
+        }
+        if (result != buf.length) {
+            throw new IllegalStateException("Unable to read requested bytes");
+        }
+    }
+
     void read(long pos, byte[] buf) {
         if (buf.length == 0) return;
         final int result = readPagedOffset(pos, buf, 0);
@@ -132,19 +212,38 @@ public class VirtualPageFileIO {
         }
     }
 
+    /**
+     * Get a page pinned for the caller, who must release it. The last page used is reused unless it has since been
+     * evicted and released by the page cache.
+     *
+     * @param pageNumber the number of the page
+     * @param create allocate the page if it does not exist
+     * @return the pinned page
+     */
+    private Page pinnedPage(int pageNumber, boolean create) {
+        int[] holder = new int[1];
+        Page page = lastPage.get(holder);
+        if (holder[0] == pageNumber && page.retain()) return page;
+
+        do {
+            page = create ? virtualPageFile.getCachedOrCreatePage(virtualFileNumber, pageNumber, useMappedPages) :
+                    virtualPageFile.getExistingPage(virtualFileNumber, pageNumber);
+        } while (!page.retain());
+        lastPage.set(page, pageNumber);
+        return page;
+    }
+
     private int readPagedOffset(long pos, byte[] buf, int offset) {
         int pageNumber = virtualPageFile.pageNumber(pos);
 
-        Page page;
-        int[] holder = new int[1];
-        page = lastPage.get(holder);
-        if (holder[0] != pageNumber) {
-            page = virtualPageFile.getExistingPage(virtualFileNumber, pageNumber);
-            lastPage.set(page, pageNumber);
-        }
+        Page page = pinnedPage(pageNumber, false);
 
         int bytesRead;
-        bytesRead = page.get(virtualPageFile.pagePosition(pos), buf, offset);
+        try {
+            bytesRead = page.get(virtualPageFile.pagePosition(pos), buf, offset);
+        } finally {
+            page.release();
+        }
 
         if (bytesRead < (buf.length - offset)) {
             // TODO see if it is faster to use the head pointer to the next page start rather than recursion here?
@@ -0,0 +1,108 @@
+package com.upserve.uppend.lookup;
+
+import com.google.common.hash.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter of the flushed keys in a LookupData, persisted after the keyStorageOrder in the metadata blob. A key
+ * the filter does not contain is definitely not flushed, so the lookup can skip the bisect and its key reads.
+ * The filter is sized with room to grow so that each flush can copy it and add the new keys; it is rebuilt from the
+ * keys only when the number of keys exceeds the expected insertions.
+ */
+class LookupBloomFilter {
+    // Tag for the trailing metadata section - readers without the filter ignore the trailing bytes
+    static final int TAG = 0x424c4f4d; // "BLOM"
+
+    private static final int MIN_EXPECTED_KEYS = 1024;
+
+    private final BloomFilter<byte[]> filter;
+    private final int expectedKeys;
+    private final double fpp;
+
+    private LookupBloomFilter(BloomFilter<byte[]> filter, int expectedKeys, double fpp) {
+        this.filter = filter;
+        this.expectedKeys = expectedKeys;
+        this.fpp = fpp;
+    }
+
+    /**
+     * Create an empty filter with room for twice as many keys
+     *
+     * @param numKeys the number of keys the filter will hold now
+     * @param fpp the desired false positive probability once the filter is full
+     * @return the empty filter
+     */
+    static LookupBloomFilter create(int numKeys, double fpp) {
+        int expectedKeys = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_EXPECTED_KEYS, 2L * numKeys));
+        return new LookupBloomFilter(BloomFilter.create(Funnels.byteArrayFunnel(), expectedKeys, fpp), expectedKeys, fpp);
+    }
+
+    boolean hasCapacity(int numKeys) {
+        return numKeys <= expectedKeys;
+    }
+
+    double getFpp() {
+        return fpp;
+    }
+
+    boolean mightContain(LookupKey key) {
+        return filter.mightContain(key.bytes());
+    }
+
+    void put(LookupKey key) {
+        filter.put(key.bytes());
+    }
+
+    /**
+     * Approximate size of the filter bits in bytes
+     *
+     * @return the weight in bytes
+     */
+    int byteSize() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) (-expectedKeys * Math.log(fpp) / (Math.log(2) * Math.log(2)) / 8));
+    }
+
+    LookupBloomFilter copy() {
+        return new LookupBloomFilter(filter.copy(), expectedKeys, fpp);
+    }
+
+    /**
+     * Serialize the filter section including the tag
+     *
+     * @return the bytes to append to the metadata blob
+     */
+    byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataOutputStream dataOut = new DataOutputStream(out)) {
+            dataOut.writeInt(TAG);
+            dataOut.writeInt(expectedKeys);
+            dataOut.writeDouble(fpp);
+            filter.writeTo(dataOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to serialize bloom filter", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Read the filter from a buffer positioned after the section tag
+     *
+     * @param buffer the metadata buffer
+     * @return the filter
+     */
+    static LookupBloomFilter readFrom(ByteBuffer buffer) {
+        int expectedKeys = buffer.getInt();
+        double fpp = buffer.getDouble();
+        try {
+            InputStream in = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            int available = in.available();
+            BloomFilter<byte[]> filter = BloomFilter.readFrom(in, Funnels.byteArrayFunnel());
+            buffer.position(buffer.position() + available - in.available());
+            return new LookupBloomFilter(filter, expectedKeys, fpp);
+        } catch (IOException e) {
+            throw new IllegalStateException("Bloom filter is corrupted", e);
+        }
+    }
+}
@@ -7,7 +7,7 @@ import org.slf4j.Logger;
 import java.io.Flushable;
 import java.lang.invoke.MethodHandles;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 
 public class LookupCache implements Flushable {
@@ -15,6 +15,11 @@ public class LookupCache implements Flushable {
 
     // An LRU cache of Lookup Keys
     private final Cache<PartitionLookupKey, Long> keyLongLookupCache;
+    // Used in place of the LRU cache when the key cache is kept off heap
+    private final OffHeapLookupKeyCache offHeapKeyCache;
+
+    private final ConcurrentHashMap<String, Integer> partitionIds;
+    private final AtomicInteger nextPartitionId;
 
     private final LoadingCache<LookupData, LookupMetadata> lookupMetaDataCache;
 
@@ -24,21 +29,49 @@ public class LookupCache implements Flushable {
     private final LongAdder lookupsFlushed;
 
     public LookupCache(int initialKeyCapacity, long maximumKeyWeight, ExecutorService executorServiceKeyCache, Supplier<StatsCounter> keyCacheMetricsSupplier, int intialMetaDataCapacity, long maximumMetaDataWeight, int metadataTTL, ExecutorService executorServiceMetaDataCache, Supplier<StatsCounter> metadataCacheMetricsSupplier) {
+        this(initialKeyCapacity, maximumKeyWeight, 0, executorServiceKeyCache, keyCacheMetricsSupplier, intialMetaDataCapacity, maximumMetaDataWeight, metadataTTL, executorServiceMetaDataCache, metadataCacheMetricsSupplier);
+    }
 
-        Caffeine<PartitionLookupKey, Long> keyCacheBuilder = Caffeine
-                .<PartitionLookupKey, Long>newBuilder()
-                .executor(executorServiceKeyCache)
-                .initialCapacity(initialKeyCapacity)
-                .maximumWeight(maximumKeyWeight)  // bytes
-                .<PartitionLookupKey, Long>weigher((k, v) -> k.weight());
-
-        if (keyCacheMetricsSupplier != null) {
-            keyCacheBuilder = keyCacheBuilder.recordStats(keyCacheMetricsSupplier);
-        }
+    /**
+     * @param initialKeyCapacity the initial capacity of the on heap key cache
+     * @param maximumKeyWeight the maximum key bytes in the on heap key cache or the memory used by the off heap cache
+     * @param offHeapKeyLength the maximum key length cached by an off heap key cache, or 0 to cache keys on heap
+     * @param executorServiceKeyCache the executor for the on heap key cache
+     * @param keyCacheMetricsSupplier the stats counter for the key cache or null
+     * @param intialMetaDataCapacity the initial capacity of the metadata cache
+     * @param maximumMetaDataWeight the maximum weight of the metadata cache
+     * @param metadataTTL the time to live of cached metadata in seconds or 0 to never expire
+     * @param executorServiceMetaDataCache the executor for the metadata cache
+     * @param metadataCacheMetricsSupplier the stats counter for the metadata cache or null
+     */
+    public LookupCache(int initialKeyCapacity, long maximumKeyWeight, int offHeapKeyLength, ExecutorService executorServiceKeyCache, Supplier<StatsCounter> keyCacheMetricsSupplier, int intialMetaDataCapacity, long maximumMetaDataWeight, int metadataTTL, ExecutorService executorServiceMetaDataCache, Supplier<StatsCounter> metadataCacheMetricsSupplier) {
 
         keyCacheActive = maximumKeyWeight > 0;
-
-        keyLongLookupCache = keyCacheBuilder.<PartitionLookupKey, Long>build();
+        partitionIds = new ConcurrentHashMap<>();
+        nextPartitionId = new AtomicInteger();
+
+        if (keyCacheActive && offHeapKeyLength > 0) {
+            keyLongLookupCache = null;
+            offHeapKeyCache = new OffHeapLookupKeyCache(
+                    maximumKeyWeight,
+                    offHeapKeyLength,
+                    keyCacheMetricsSupplier != null ? keyCacheMetricsSupplier.get() : StatsCounter.disabledStatsCounter()
+            );
+        } else {
+            Caffeine<PartitionLookupKey, Long> keyCacheBuilder = Caffeine
+                    .<PartitionLookupKey, Long>newBuilder()
+                    .executor(executorServiceKeyCache)
+                    .initialCapacity(initialKeyCapacity)
+                    .maximumWeight(maximumKeyWeight)  // bytes
+                    .<PartitionLookupKey, Long>weigher((k, v) -> k.weight());
+
+            if (keyCacheMetricsSupplier != null) {
+                keyCacheBuilder = keyCacheBuilder.recordStats(keyCacheMetricsSupplier);
+            }
+
+            keyLongLookupCache = keyCacheBuilder.<PartitionLookupKey, Long>build();
+            offHeapKeyCache = null;
+        }
 
         keysFlushed = new LongAdder();
         lookupsFlushed = new LongAdder();
@@ -75,6 +108,20 @@ public class LookupCache implements Flushable {
         return keyCacheActive;
     }
 
+    public boolean isOffHeapKeyCache() {
+        return offHeapKeyCache != null;
+    }
+
+    /**
+     * A small integer id for the partition used to key the off heap cache
+     *
+     * @param partition the partition name
+     * @return the id of the partition
+     */
+    int partitionId(String partition) {
+        return partitionIds.computeIfAbsent(partition, p -> nextPartitionId.getAndIncrement());
+    }
+
     public void putLookup(PartitionLookupKey key, long val) {
         keyLongLookupCache.put(key, val);
     }
@@ -83,6 +130,14 @@ public class LookupCache implements Flushable {
         return keyLongLookupCache.get(lookupKey, cacheLoader);
     }
 
+    void putLookup(int partitionId, LookupKey key, long val) {
+        offHeapKeyCache.put(partitionId, key, val);
+    }
+
+    Long getLong(int partitionId, LookupKey lookupKey, Function<LookupKey, Long> cacheLoader) {
+        return offHeapKeyCache.get(partitionId, lookupKey, cacheLoader);
+    }
+
     public LookupMetadata getMetadata(LookupData key) {
         return lookupMetaDataCache.get(key, LookupData::loadMetadata);
     }
@@ -92,13 +147,48 @@ public class LookupCache implements Flushable {
     }
 
     public CacheStats keyStats() {
-        if (keyCacheActive) {
+        if (offHeapKeyCache != null) {
+            return offHeapKeyCache.stats();
+        } else if (keyCacheActive) {
             return keyLongLookupCache.stats();
         } else {
             return CacheStats.empty();
         }
     }
 
+    /**
+     * The current maximum weight of the on heap key cache
+     *
+     * @return the maximum weight or 0 if the key cache is off heap or unbounded
+     */
+    public long getMaximumKeyWeight() {
+        if (keyLongLookupCache == null) return 0;
+        return keyLongLookupCache.policy().eviction().map(eviction -> eviction.getMaximum()).orElse(0L);
+    }
+
+    /**
+     * Resize the on heap key cache, evicting keys if it shrinks. The off heap cache has a fixed size.
+     *
+     * @param maximumKeyWeight the new maximum weight in bytes
+     */
+    public void setMaximumKeyWeight(long maximumKeyWeight) {
+        if (keyLongLookupCache == null || !keyCacheActive) return;
+        keyLongLookupCache.policy().eviction().ifPresent(eviction -> eviction.setMaximum(maximumKeyWeight));
+    }
+
+    public long getMaximumMetadataWeight() {
+        return lookupMetaDataCache.policy().eviction().map(eviction -> eviction.getMaximum()).orElse(0L);
+    }
+
+    /**
+     * Resize the metadata cache, evicting metadata if it shrinks
+     *
+     * @param maximumMetadataWeight the new maximum weight in bytes
+     */
+    public void setMaximumMetadataWeight(long maximumMetadataWeight) {
+        lookupMetaDataCache.policy().eviction().ifPresent(eviction -> eviction.setMaximum(maximumMetadataWeight));
+    }
+
     public CacheStats metadataStats() {
         return lookupMetaDataCache.stats();
     }
@@ -106,6 +196,10 @@ public class LookupCache implements Flushable {
     @Override
     public void flush() {
         lookupMetaDataCache.invalidateAll();
-        keyLongLookupCache.invalidateAll();
+        if (offHeapKeyCache != null) {
+            offHeapKeyCache.invalidateAll();
+        } else {
+            keyLongLookupCache.invalidateAll();
+        }
     }
 }
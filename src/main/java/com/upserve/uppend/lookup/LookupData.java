@@ -8,7 +8,7 @@ import org.slf4j.Logger;
 import java.io.*;
 import java.lang.invoke.MethodHandles;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 import java.util.function.*;
@@ -25,6 +25,11 @@ public class LookupData implements Flushable {
 
     private final int flushThreshold;
 
+    private final boolean hashIndex;
+    private final double bloomFilterFpp;
+    private final int maximumMetadataRuns;
+    private final boolean keyBlocks;
+
     // The container for stuff we need to write - Only new keys can be in the write cache
     final ConcurrentHashMap<LookupKey, Long> writeCache;
     // keys written but not yet written to the metadata live here
@@ -55,6 +60,17 @@ public class LookupData implements Flushable {
     }
 
     public LookupData(VirtualLongBlobStore keyLongBlobs, VirtualMutableBlobStore metadataBlobs, PartitionLookupCache lookupCache, int flushThreshold, boolean readOnly) {
+        this(keyLongBlobs, metadataBlobs, lookupCache, LookupDataOptions.DEFAULT.withFlushThreshold(flushThreshold), readOnly);
+    }
+
+    /**
+     * @param keyLongBlobs the key and value store
+     * @param metadataBlobs the store for the key metadata
+     * @param lookupCache the cache for keys and metadata
+     * @param options the flush threshold and the layout of the metadata
+     * @param readOnly open in read only mode
+     */
+    public LookupData(VirtualLongBlobStore keyLongBlobs, VirtualMutableBlobStore metadataBlobs, PartitionLookupCache lookupCache, LookupDataOptions options, boolean readOnly) {
 
         this.keyLongBlobs = keyLongBlobs;
         this.metadataBlobs = metadataBlobs;
@@ -70,7 +86,11 @@ public class LookupData implements Flushable {
 
         this.readOnly = readOnly;
 
-        this.flushThreshold = flushThreshold;
+        flushThreshold = options.getFlushThreshold();
+        hashIndex = options.isHashIndex();
+        bloomFilterFpp = options.getBloomFilterFpp();
+        maximumMetadataRuns = options.getMaximumMetadataRuns();
+        keyBlocks = options.isKeyBlocks();
 
         if (readOnly) {
             writeCache = null;
@@ -358,15 +378,18 @@ public class LookupData implements Flushable {
     }
 
     private synchronized LookupMetadata repairMetadata() {
-        int[] sortedPositions = keyLongBlobs.positionBlobStream()
+        long[] sortedPositions = keyLongBlobs.positionBlobStream()
                 .sorted(Comparator.comparing(entry -> new LookupKey(entry.getValue())))
-                .mapToInt(entry -> entry.getKey().intValue())
+                .mapToLong(Map.Entry::getKey)
                 .toArray();
         try {
             int sortedPositionsSize = sortedPositions.length;
-            LookupKey minKey = sortedPositionsSize > 0 ? readKey((long) sortedPositions[0]) : null;
-            LookupKey maxKey = sortedPositionsSize > 0 ? readKey((long) sortedPositions[sortedPositionsSize - 1]) : null;
-            return LookupMetadata.generateMetadata(minKey, maxKey, sortedPositions, metadataBlobs, metaDataGeneration.incrementAndGet());
+            LookupKey minKey = sortedPositionsSize > 0 ? readKey(sortedPositions[0]) : null;
+            LookupKey maxKey = sortedPositionsSize > 0 ? readKey(sortedPositions[sortedPositionsSize - 1]) : null;
+            LookupHashIndex index = hashIndex ? buildHashIndex(null, sortedPositions, Collections.emptySet()) : null;
+            LookupBloomFilter filter = bloomFilterFpp > 0 ? buildBloomFilter(null, sortedPositions, Collections.emptySet()) : null;
+            LookupKeyBlocks blocks = keyBlocks ? buildKeyBlocks(null, sortedPositions, Collections.emptySet()) : null;
+            return LookupMetadata.generateMetadata(minKey, maxKey, sortedPositions, index, filter, blocks, newRunsId(), metadataBlobs, metaDataGeneration.incrementAndGet());
         } catch (IOException e) {
             throw new UncheckedIOException("Unable to write repaired metadata!", e);
         }
@@ -418,6 +441,8 @@ public class LookupData implements Flushable {
         // Now stream the keys and do sorted merge join on the keyStorageOrder from the current metadata
 
         int currentMetadataGeneration = currentMetadata.getMetadataGeneration();
+        // Keys written as a run do not need their place in the sort order of the current metadata
+        boolean needsSortIndex = !appendsRuns(currentMetadata);
         log.debug("Flushing {} entries", keys.size());
 
         try {
@@ -427,22 +452,19 @@ public class LookupData implements Flushable {
             keys.stream()
                     .peek(key -> {
                         // Check the metadata generation of the LookupKeys
-                        if (key.getMetaDataGeneration() != currentMetadataGeneration) {
+                        if (needsSortIndex && key.getMetaDataGeneration() != currentMetadataGeneration) {
                             // Update the index of the key for the current metadata generation for so we can insert it correctly
-                            currentMetadata.findKey(keyLongBlobs, key);
+                            currentMetadata.bisect(keyLongBlobs, key);
                         }
                     })
+                    // Append in sort order so keys which are bisected together are stored in the same pages
+                    .sorted()
                     .forEach(key -> {
                                 writeCache.computeIfPresent(key, (k, v) -> {
                                     flushCache.put(k, v);
 
                                     if (k.byteLength() > 256) log.warn("Key length greater than 256: {}", key.toString());
-                                    final long pos = keyLongBlobs.append(v, k.bytes());
-                                    if (pos > Integer.MAX_VALUE) {
-                                        // TODO is there a way to deal with this?
-                                        throw new IllegalStateException("Maximum key store size exceeded!");
-                                    }
-                                    key.setPosition((int) pos);
+                                    key.setPosition(keyLongBlobs.append(v, k.bytes()));
 
                                     return null;
                                 });
@@ -458,9 +480,11 @@ public class LookupData implements Flushable {
 
     }
 
-    void generateMetaData(LookupMetadata currentMetadata) {
-        int[] currentKeySortOrder = currentMetadata.getKeyStorageOrder();
+    private boolean appendsRuns(LookupMetadata currentMetadata) {
+        return maximumMetadataRuns > 0 && currentMetadata.getRunsId() != 0;
+    }
 
+    void generateMetaData(LookupMetadata currentMetadata) {
         int flushSize = flushCache.size();
 
         // Update the counter and flush again if there are still more entries in the write cache than the threshold
@@ -468,9 +492,93 @@ public class LookupData implements Flushable {
             AutoFlusher.submitWork(this::flush);
         }
 
-        int[] newKeySortOrder = new int[currentKeySortOrder.length + flushSize];
+        if (appendsRuns(currentMetadata)) {
+            writeMetadataRun(currentMetadata);
+        } else {
+            writeMergedMetadata(currentMetadata, flushCache.keySet());
+        }
+    }
+
+    /**
+     * Write the flushed keys as a sorted run after the current metadata. Flush cost depends only on the number of new
+     * keys; the runs are merged into the metadata in the background once there are maximumMetadataRuns of them.
+     *
+     * @param currentMetadata the metadata the run is appended to
+     */
+    private void writeMetadataRun(LookupMetadata currentMetadata) {
+        List<LookupKey> newKeys = new ArrayList<>(flushCache.keySet());
+        if (newKeys.isEmpty()) return;
+        newKeys.sort(LookupKey::compareTo);
+        long[] newKeySortOrder = newKeys.stream().mapToLong(LookupKey::getPosition).toArray();
+
+        LookupMetadata metadata;
+        synchronized (flushReference) {
+            metadata = currentMetadata.appendRun(newKeys.get(0), newKeys.get(newKeys.size() - 1), newKeySortOrder, metadataBlobs, metaDataGeneration.incrementAndGet());
+            partitionLookupCache.putMetadata(this, metadata);
+        }
+
+        if (metadata.getRuns().size() >= maximumMetadataRuns) {
+            AutoFlusher.submitWork(this::compactMetadata);
+        }
+    }
+
+    /**
+     * Merge the runs into the metadata. Submitted to the flusher pool when a flush writes the last allowed run; it is
+     * synchronized with flush so no run is appended while the new metadata is written.
+     */
+    synchronized void compactMetadata() {
+        LookupMetadata currentMetadata;
+        try {
+            metadataWriteLock.lock();
+            currentMetadata = partitionLookupCache.getMetadata(this);
+            flushReference.set(currentMetadata);
+        } finally {
+            metadataWriteLock.unlock();
+        }
+
+        try {
+            if (currentMetadata.getRuns().size() >= maximumMetadataRuns) mergeRuns(currentMetadata);
+        } catch (RuntimeException e) {
+            log.warn("Unable to merge lookup metadata runs", e);
+        } finally {
+            flushReference.set(null);
+        }
+    }
+
+    /**
+     * Write new metadata containing the keys of the runs of the current metadata
+     *
+     * @param currentMetadata the metadata with runs
+     * @return the merged metadata
+     */
+    private LookupMetadata mergeRuns(LookupMetadata currentMetadata) {
+        log.debug("Merging {} runs", currentMetadata.getRuns().size());
+        Set<LookupKey> runKeys = new HashSet<>();
+        for (LookupMetadata run : currentMetadata.getRuns()) {
+            for (int i = 0; i < run.getNumSortedKeys(); i++) {
+                long position = run.keyPosition(i);
+                LookupKey key = readKey(position);
+                key.setPosition(position);
+                currentMetadata.bisect(keyLongBlobs, key);
+                runKeys.add(key);
+            }
+        }
+        return writeMergedMetadata(currentMetadata, runKeys);
+    }
+
+    /**
+     * Write new metadata with the new keys merged into the sort order of the current metadata
+     *
+     * @param currentMetadata the current metadata
+     * @param newKeys the new keys marked with their positions and the sort index to insert them after
+     * @return the new metadata
+     */
+    private LookupMetadata writeMergedMetadata(LookupMetadata currentMetadata, Set<LookupKey> newKeys) {
+        int currentNumKeys = currentMetadata.getNumSortedKeys();
+
+        long[] newKeySortOrder = new long[currentNumKeys + newKeys.size()];
 
-        Map<Integer, List<LookupKey>> newKeysGroupedBySortOrderIndex = flushCache.keySet().stream().collect(Collectors.groupingBy(LookupKey::getInsertAfterSortIndex, Collectors.toList()));
+        Map<Integer, List<LookupKey>> newKeysGroupedBySortOrderIndex = newKeys.stream().collect(Collectors.groupingBy(LookupKey::getInsertAfterSortIndex, Collectors.toList()));
 
         int index = 0;
 
@@ -479,14 +587,14 @@ public class LookupData implements Flushable {
 
         List<LookupKey> newEntries = null;
 
-        for (int i = -1; i < currentKeySortOrder.length; i++) {
+        for (int i = -1; i < currentNumKeys; i++) {
             newEntries = newKeysGroupedBySortOrderIndex.getOrDefault(i, Collections.emptyList());
             newEntries.sort(LookupKey::compareTo);
 
             if (i == -1) {
                 if (newEntries.size() > 0) minKey = newEntries.get(0);
             } else {
-                newKeySortOrder[index] = currentKeySortOrder[i];
+                newKeySortOrder[index] = currentMetadata.keyPosition(i);
                 index++;
             }
 
@@ -495,23 +603,105 @@ public class LookupData implements Flushable {
                 index++;
             }
 
-            if (i == currentKeySortOrder.length - 1 && newEntries.size() > 0) {
+            if (i == currentNumKeys - 1 && newEntries.size() > 0) {
                 maxKey = newEntries.get(newEntries.size() - 1);
             }
         }
 
         log.debug("Finished creating sortOrder");
 
+        LookupHashIndex newHashIndex = hashIndex ? buildHashIndex(currentMetadata.getHashIndex(), newKeySortOrder, newKeys) : null;
+        LookupBloomFilter newBloomFilter = bloomFilterFpp > 0 ? buildBloomFilter(currentMetadata.getBloomFilter(), newKeySortOrder, newKeys) : null;
+        LookupKeyBlocks newKeyBlocks = keyBlocks ? buildKeyBlocks(currentMetadata.getKeyBlocks(), newKeySortOrder, newKeys) : null;
+
         try {
             synchronized (flushReference) {
-                LookupMetadata metadata = LookupMetadata.generateMetadata(minKey, maxKey, newKeySortOrder, metadataBlobs, metaDataGeneration.incrementAndGet());
+                LookupMetadata metadata = LookupMetadata.generateMetadata(minKey, maxKey, newKeySortOrder, newHashIndex, newBloomFilter, newKeyBlocks, newRunsId(), metadataBlobs, metaDataGeneration.incrementAndGet());
                 partitionLookupCache.putMetadata(this, metadata);
+                return metadata;
             }
         } catch (IOException e) {
             throw new UncheckedIOException("Failed to write new metadata!", e);
         }
     }
 
+    private long newRunsId() {
+        return maximumMetadataRuns > 0 ? ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE) : 0L;
+    }
+
+    /**
+     * Build the hash index for the next metadata generation. Entries are copied from the current index and the new
+     * keys added; if there is no current index (the store was written without one) all the keys are read once to
+     * build it.
+     *
+     * @param currentIndex the index of the current metadata or null
+     * @param keyPositions the positions of all the keys in the next metadata
+     * @param newKeys the flushed keys, marked with their positions, to add
+     * @return the new index
+     */
+    private LookupHashIndex buildHashIndex(LookupHashIndex currentIndex, long[] keyPositions, Set<LookupKey> newKeys) {
+        LookupHashIndex index = new LookupHashIndex(keyPositions.length);
+        if (currentIndex != null) {
+            currentIndex.copyTo(index);
+            for (LookupKey key : newKeys) {
+                index.put(LookupHashIndex.fingerprint(key), key.getPosition());
+            }
+        } else {
+            for (long position : keyPositions) {
+                index.put(LookupHashIndex.fingerprint(readKey(position)), position);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Build the bloom filter for the next metadata generation. The current filter is copied and the new keys added
+     * while it has capacity; otherwise a larger filter is built by reading all the keys once.
+     *
+     * @param currentFilter the filter of the current metadata or null
+     * @param keyPositions the positions of all the keys in the next metadata
+     * @param newKeys the flushed keys to add
+     * @return the new filter
+     */
+    private LookupBloomFilter buildBloomFilter(LookupBloomFilter currentFilter, long[] keyPositions, Set<LookupKey> newKeys) {
+        LookupBloomFilter filter;
+        if (currentFilter != null && currentFilter.getFpp() == bloomFilterFpp && currentFilter.hasCapacity(keyPositions.length)) {
+            filter = currentFilter.copy();
+            newKeys.forEach(filter::put);
+        } else {
+            filter = LookupBloomFilter.create(keyPositions.length, bloomFilterFpp);
+            for (long position : keyPositions) {
+                filter.put(readKey(position));
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Build the key blocks for the next metadata generation. The current keys are decoded from the current blocks in
+     * sort order and merged with the new keys; if there are no current blocks (the store was written without them)
+     * the existing keys are read once to build them.
+     *
+     * @param currentBlocks the key blocks of the current metadata or null
+     * @param keyPositions the positions of all the keys in the next metadata in sort order
+     * @param newKeys the flushed keys, marked with their positions, to add
+     * @return the new key blocks
+     */
+    private LookupKeyBlocks buildKeyBlocks(LookupKeyBlocks currentBlocks, long[] keyPositions, Set<LookupKey> newKeys) {
+        Map<Long, byte[]> newKeyBytes = newKeys.stream().collect(Collectors.toMap(LookupKey::getPosition, LookupKey::bytes));
+        Iterator<byte[]> currentKeys = currentBlocks == null ? null : currentBlocks.iterator();
+
+        LookupKeyBlocks.Builder builder = new LookupKeyBlocks.Builder(keyPositions.length);
+        for (long position : keyPositions) {
+            byte[] bytes = newKeyBytes.get(position);
+            if (bytes == null) {
+                bytes = currentKeys == null ? readKey(position).bytes() : currentKeys.next();
+            }
+            builder.add(bytes);
+        }
+        return builder.build();
+    }
+
     void flushCacheToReadCache() {
         Iterator<Map.Entry<LookupKey, Long>> iterator = flushCache.entrySet().iterator();
         while (iterator.hasNext()) {
@@ -558,6 +748,12 @@ public class LookupData implements Flushable {
             }
 
             try {
+                if (maximumMetadataRuns == 0 && !currentMetadata.getRuns().isEmpty()) {
+                    // Runs written with a different configuration must be merged before keys are placed in the sort order
+                    currentMetadata = mergeRuns(currentMetadata);
+                    flushReference.set(currentMetadata);
+                }
+
                 flushWriteCache(currentMetadata);
 
                 generateMetaData(currentMetadata);
@@ -572,87 +768,45 @@ public class LookupData implements Flushable {
         }
     }
 
-    private int[] getKeyPosition() {
+    private long[] getKeyPosition() {
         if (readOnly) {
-            return getMetadata().getKeyStorageOrder();
+            return getMetadata().getKeyPositions();
         } else {
-            return IntStream.concat(
-                    flushCache.keySet().stream().mapToInt(LookupKey::getPosition),
-                    Arrays.stream(getMetadata().getKeyStorageOrder())
+            return LongStream.concat(
+                    flushCache.keySet().stream().mapToLong(LookupKey::getPosition),
+                    Arrays.stream(getMetadata().getKeyPositions())
             ).distinct().toArray();
         }
     }
 
     public Stream<LookupKey> keys() {
-        LookupDataIterator<LookupKey> iter;
+        LookupDataSpliterator<LookupKey> spliterator;
         try {
             consistentWriteCacheReadLock.lock(); // Read lock the WriteCache while initializing the KeyIterator
-            Set<LookupKey> keySet = writeCacheKeySetCopy();
-            iter = new LookupDataIterator<>(
-                    getKeyPosition(),
-                    keySet.size(),
-                    keySet.iterator(),
-                    position -> {
-                        LookupKey key = readKey(position);
-                        return key;
-                    }
-            );
+            spliterator = new LookupDataSpliterator<>(getKeyPosition(), writeCacheKeySetCopy(), this::readKey);
         } finally {
             consistentWriteCacheReadLock.unlock();
         }
-        Spliterator<LookupKey> spliter = Spliterators.spliterator(
-                iter,
-                iter.getNumKeys(),
-                Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.SIZED
-        );
-        return StreamSupport.stream(spliter, true);
+        return StreamSupport.stream(spliterator, true);
     }
 
     public Stream<Map.Entry<LookupKey, Long>> scan() {
-
-        LookupDataIterator<Map.Entry<LookupKey, Long>> iter;
+        LookupDataSpliterator<Map.Entry<LookupKey, Long>> spliterator;
         try {
             consistentWriteCacheReadLock.lock(); // Read lock the WriteCache while initializing the KeyIterator
-            Map<LookupKey, Long> map = writeCacheCopy();
-            iter = new LookupDataIterator<>(
+            spliterator = new LookupDataSpliterator<>(
                     getKeyPosition(),
-                    map.size(),
-                    map.entrySet().stream().map(entry -> Maps.immutableEntry(entry.getKey(), entry.getValue())).iterator(),
+                    writeCacheCopy().entrySet().stream().map(entry -> Maps.immutableEntry(entry.getKey(), entry.getValue())).collect(Collectors.toList()),
                     this::readEntry
             );
         } finally {
             consistentWriteCacheReadLock.unlock();
         }
-
-        Spliterator<Map.Entry<LookupKey, Long>> spliter = Spliterators.spliterator(
-                iter,
-                iter.getNumKeys(),
-                Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.SIZED
-        );
-        return StreamSupport.stream(spliter, true);
+        return StreamSupport.stream(spliterator, true);
     }
 
     public void scan(BiConsumer<LookupKey, Long> keyValueFunction) {
-        final int[] positions;
-        final Map<LookupKey, Long> writeCacheCopy;
-        try {
-            consistentWriteCacheReadLock.lock(); // Read lock the WriteCache while initializing the data to scan
-            positions = getKeyPosition();
-
-            writeCacheCopy = writeCacheCopy();
-        } finally {
-            consistentWriteCacheReadLock.unlock();
-        }
-
-        writeCacheCopy
-                .forEach(keyValueFunction);
-
-        // Read but do not cache these keys - easy to add but is it helpful?
-        Arrays.stream(positions)
-                .parallel()
-                .mapToObj(this::readEntry)
-                .forEach(entry -> keyValueFunction
-                        .accept(entry.getKey(), entry.getValue()));
+        scan().forEach(entry -> keyValueFunction.accept(entry.getKey(), entry.getValue()));
     }
 
 }
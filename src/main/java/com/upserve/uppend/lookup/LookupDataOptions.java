@@ -0,0 +1,109 @@
+package com.upserve.uppend.lookup;
+
+/**
+ * The options of the LookupData of a partition, shared by every LookupData of a store. Immutable: each with method
+ * returns a copy with one option changed.
+ */
+public class LookupDataOptions {
+    public static final LookupDataOptions DEFAULT = new LookupDataOptions(-1, false, 0, 0, false);
+
+    private final int flushThreshold;
+    private final boolean hashIndex;
+    private final double bloomFilterFpp;
+    private final int maximumMetadataRuns;
+    private final boolean keyBlocks;
+
+    private LookupDataOptions(int flushThreshold, boolean hashIndex, double bloomFilterFpp, int maximumMetadataRuns, boolean keyBlocks) {
+        if (bloomFilterFpp < 0 || bloomFilterFpp >= 1) {
+            throw new IllegalArgumentException("bloomFilterFpp must be >= 0 and < 1: " + bloomFilterFpp);
+        }
+        if (hashIndex && bloomFilterFpp > 0) {
+            throw new IllegalArgumentException("bloom filter can not be used with the hash index");
+        }
+        if (hashIndex && keyBlocks) {
+            throw new IllegalArgumentException("key blocks can not be used with the hash index");
+        }
+        if (maximumMetadataRuns < 0) {
+            throw new IllegalArgumentException("maximumMetadataRuns must be >= 0: " + maximumMetadataRuns);
+        }
+        this.flushThreshold = flushThreshold;
+        this.hashIndex = hashIndex;
+        this.bloomFilterFpp = bloomFilterFpp;
+        this.maximumMetadataRuns = maximumMetadataRuns;
+        this.keyBlocks = keyBlocks;
+    }
+
+    /**
+     * @param flushThreshold the number of new keys which triggers a flush or -1 to disable
+     * @return the options with the flush threshold
+     */
+    public LookupDataOptions withFlushThreshold(int flushThreshold) {
+        return new LookupDataOptions(flushThreshold, hashIndex, bloomFilterFpp, maximumMetadataRuns, keyBlocks);
+    }
+
+    /**
+     * @param hashIndex write a hash index with the metadata so point lookups do not need to bisect the sorted keys
+     * @return the options with the hash index
+     */
+    public LookupDataOptions withHashIndex(boolean hashIndex) {
+        return new LookupDataOptions(flushThreshold, hashIndex, bloomFilterFpp, maximumMetadataRuns, keyBlocks);
+    }
+
+    /**
+     * @param bloomFilterFpp the false positive probability of the bloom filter written with the metadata, or 0 for no
+     *                       bloom filter. Can not be used with the hash index
+     * @return the options with the bloom filter
+     */
+    public LookupDataOptions withBloomFilterFpp(double bloomFilterFpp) {
+        return new LookupDataOptions(flushThreshold, hashIndex, bloomFilterFpp, maximumMetadataRuns, keyBlocks);
+    }
+
+    /**
+     * @param maximumMetadataRuns write each flush as a sorted run after the metadata and merge the runs into the
+     *                            metadata once there are this many, or 0 to rewrite the metadata on every flush
+     * @return the options with the metadata runs
+     */
+    public LookupDataOptions withMaximumMetadataRuns(int maximumMetadataRuns) {
+        return new LookupDataOptions(flushThreshold, hashIndex, bloomFilterFpp, maximumMetadataRuns, keyBlocks);
+    }
+
+    /**
+     * @param keyBlocks write the sorted keys in prefix compressed blocks with the metadata so bisect compares keys
+     *                  in memory rather than reading them from the key store. Can not be used with the hash index
+     * @return the options with the key blocks
+     */
+    public LookupDataOptions withKeyBlocks(boolean keyBlocks) {
+        return new LookupDataOptions(flushThreshold, hashIndex, bloomFilterFpp, maximumMetadataRuns, keyBlocks);
+    }
+
+    public int getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    public boolean isHashIndex() {
+        return hashIndex;
+    }
+
+    public double getBloomFilterFpp() {
+        return bloomFilterFpp;
+    }
+
+    public int getMaximumMetadataRuns() {
+        return maximumMetadataRuns;
+    }
+
+    public boolean isKeyBlocks() {
+        return keyBlocks;
+    }
+
+    @Override
+    public String toString() {
+        return "LookupDataOptions{" +
+                "flushThreshold=" + flushThreshold +
+                ", hashIndex=" + hashIndex +
+                ", bloomFilterFpp=" + bloomFilterFpp +
+                ", maximumMetadataRuns=" + maximumMetadataRuns +
+                ", keyBlocks=" + keyBlocks +
+                '}';
+    }
+}
@@ -0,0 +1,79 @@
+package com.upserve.uppend.lookup;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Spliterator over a snapshot of the keys of a LookupData: the positions of the flushed keys, which are read as they
+ * are reached, followed by the entries copied from the write cache. Both are arrays so the spliterator splits by index
+ * range, like the spliterator of an array, and a parallel scan of a single LookupData uses every core.
+ */
+class LookupDataSpliterator<T> implements Spliterator<T> {
+    // Ranges smaller than this are not split - reading a key is cheap relative to forking a task
+    private static final int MINIMUM_SPLIT_SIZE = 64;
+
+    private final long[] positions;
+    private final Object[] writeCacheSnapshot;
+    private final LongFunction<T> reader;
+
+    private int index;
+    private final int fence;
+
+    /**
+     * @param positions the positions of the flushed keys to read
+     * @param writeCacheSnapshot the values for the keys in the write cache
+     * @param reader reads the value for a flushed key from its position
+     */
+    LookupDataSpliterator(long[] positions, Collection<T> writeCacheSnapshot, LongFunction<T> reader) {
+        this(positions, writeCacheSnapshot.toArray(), reader, 0, positions.length + writeCacheSnapshot.size());
+    }
+
+    private LookupDataSpliterator(long[] positions, Object[] writeCacheSnapshot, LongFunction<T> reader, int index, int fence) {
+        this.positions = positions;
+        this.writeCacheSnapshot = writeCacheSnapshot;
+        this.reader = reader;
+        this.index = index;
+        this.fence = fence;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T get(int i) {
+        // Read but do not cache the flushed keys - easy to add but is it helpful?
+        return i < positions.length ? reader.apply(positions[i]) : (T) writeCacheSnapshot[i - positions.length];
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (index >= fence) return false;
+        action.accept(get(index++));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        int i = index;
+        index = fence;
+        for (; i < fence; i++) {
+            action.accept(get(i));
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        int low = index;
+        int mid = (low + fence) >>> 1;
+        if (mid - low < MINIMUM_SPLIT_SIZE) return null;
+        index = mid;
+        return new LookupDataSpliterator<>(positions, writeCacheSnapshot, reader, low, mid);
+    }
+
+    @Override
+    public long estimateSize() {
+        return fence - index;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.IMMUTABLE;
+    }
+}
@@ -0,0 +1,150 @@
+package com.upserve.uppend.lookup;
+
+import com.google.common.hash.*;
+
+import java.nio.*;
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * An open addressing hash table of key fingerprints to key positions in the longBlob file. It is persisted after the
+ * keyStorageOrder in the metadata blob so that a point lookup costs a probe of the in memory table and a single read
+ * of the candidate key rather than a bisect over the sorted keys. Only flushed keys are indexed; the sorted
+ * keyStorageOrder is still maintained for scans and for placing new keys at flush.
+ */
+class LookupHashIndex {
+    // Tag for the trailing metadata section - readers without the index ignore the trailing bytes
+    static final int TAG = 0x48494458; // "HIDX"
+    // Tag for an index with positions past Integer.MAX_VALUE which are written as longs
+    static final int LONG_POSITIONS_TAG = 0x4849444c; // "HIDL"
+
+    // A different seed from the partition hash so the fingerprints are not correlated with the LookupData they land in
+    private static final HashFunction FINGERPRINT_FUNCTION = Hashing.murmur3_32(0x5bd1e995);
+
+    private static final int EMPTY = -1;
+
+    private final int mask;
+    private final int[] fingerprints;
+    // Positions are held as ints until a position passes Integer.MAX_VALUE; exactly one of these is not null
+    private int[] positions;
+    private long[] longPositions;
+
+    /**
+     * Create an empty index with at least twice as many slots as keys
+     *
+     * @param numKeys the number of keys the index will hold
+     */
+    LookupHashIndex(int numKeys) {
+        int slots = Integer.highestOneBit(Math.max(2, numKeys) * 2 - 1) << 1;
+        if (slots <= 0) throw new IllegalArgumentException("Too many keys for the hash index: " + numKeys);
+        mask = slots - 1;
+        fingerprints = new int[slots];
+        positions = new int[slots];
+        Arrays.fill(positions, EMPTY);
+    }
+
+    private LookupHashIndex(int[] fingerprints, int[] positions, long[] longPositions) {
+        this.mask = fingerprints.length - 1;
+        this.fingerprints = fingerprints;
+        this.positions = positions;
+        this.longPositions = longPositions;
+    }
+
+    static int fingerprint(LookupKey key) {
+        return FINGERPRINT_FUNCTION.hashBytes(key.bytes()).asInt();
+    }
+
+    void put(int fingerprint, long position) {
+        if (longPositions == null && position > Integer.MAX_VALUE) {
+            longPositions = Arrays.stream(positions).asLongStream().toArray();
+            positions = null;
+        }
+        int slot = fingerprint & mask;
+        while (position(slot) != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        fingerprints[slot] = fingerprint;
+        if (longPositions == null) {
+            positions[slot] = (int) position;
+        } else {
+            longPositions[slot] = position;
+        }
+    }
+
+    private long position(int slot) {
+        return longPositions == null ? positions[slot] : longPositions[slot];
+    }
+
+    /**
+     * Copy the entries of this index into a larger one
+     *
+     * @param target the index to copy into
+     */
+    void copyTo(LookupHashIndex target) {
+        for (int slot = 0; slot < fingerprints.length; slot++) {
+            long position = position(slot);
+            if (position != EMPTY) target.put(fingerprints[slot], position);
+        }
+    }
+
+    /**
+     * Find the position of a key by probing for its fingerprint
+     *
+     * @param fingerprint the fingerprint of the key
+     * @param isKeyAt confirms that the key stored at a candidate position is the key we are looking for
+     * @return the position of the key or -1 if it is not in the index
+     */
+    long find(int fingerprint, LongPredicate isKeyAt) {
+        int slot = fingerprint & mask;
+        long position;
+        while ((position = position(slot)) != EMPTY) {
+            if (fingerprints[slot] == fingerprint && isKeyAt.test(position)) return position;
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    int byteSize() {
+        return 8 + (longPositions == null ? 8 : 12) * fingerprints.length;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(longPositions == null ? TAG : LONG_POSITIONS_TAG);
+        buffer.putInt(fingerprints.length);
+        buffer.asIntBuffer().put(fingerprints);
+        buffer.position(buffer.position() + 4 * fingerprints.length);
+        if (longPositions == null) {
+            buffer.asIntBuffer().put(positions);
+            buffer.position(buffer.position() + 4 * positions.length);
+        } else {
+            buffer.asLongBuffer().put(longPositions);
+            buffer.position(buffer.position() + 8 * longPositions.length);
+        }
+    }
+
+    /**
+     * Read the index from a buffer positioned after the section tag
+     *
+     * @param buffer the metadata buffer
+     * @param longPositions true if the section tag was {@link #LONG_POSITIONS_TAG}
+     * @return the index
+     */
+    static LookupHashIndex readFrom(ByteBuffer buffer, boolean longPositions) {
+        int slots = buffer.getInt();
+        if (slots <= 0 || Integer.bitCount(slots) != 1) throw new IllegalStateException("Hash index has an invalid size: " + slots);
+        int[] fingerprints = new int[slots];
+        buffer.asIntBuffer().get(fingerprints);
+        buffer.position(buffer.position() + 4 * slots);
+        if (longPositions) {
+            long[] positions = new long[slots];
+            buffer.asLongBuffer().get(positions);
+            buffer.position(buffer.position() + 8 * slots);
+            return new LookupHashIndex(fingerprints, null, positions);
+        } else {
+            int[] positions = new int[slots];
+            buffer.asIntBuffer().get(positions);
+            buffer.position(buffer.position() + 4 * slots);
+            return new LookupHashIndex(fingerprints, positions, null);
+        }
+    }
+}
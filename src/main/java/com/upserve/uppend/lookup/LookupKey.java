@@ -1,28 +1,65 @@
 package com.upserve.uppend.lookup;
 
+import com.google.common.hash.*;
+
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 public class LookupKey implements Comparable<LookupKey> {
+    // The hash selects the LookupData of a key in its partition so the function and seed are part of the file format
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32(219370429);
+
     private final byte[] bytes;
+    // Computed on first use and cached like String.hashCode - 0 until then
+    private int hash;
     // Lookup block index is immutable as the lookup blocks are append only
     private int insertAfterSortIndex;
     // Used to determine whether the sort order information is valid for this LookupKey during flush
     private int metaDataGeneration;
     // the position of this key in the longBlob file
-    private int position;
+    private long position;
 
     public LookupKey(String stringValue) {
-        if (stringValue == null) {
+        this((CharSequence) stringValue);
+    }
+
+    /**
+     * Create a key from ASCII characters, validating and encoding them in a single pass without copying the
+     * characters
+     *
+     * @param value the key characters
+     * @throws IllegalArgumentException if the value contains a non ASCII character
+     */
+    public LookupKey(CharSequence value) {
+        if (value == null) {
             throw new NullPointerException("null string given");
         }
 
-        for (char c : stringValue.toCharArray()) {
-            if (c > 128)
-                throw new IllegalArgumentException("The key '" + stringValue + "' contains a non ascii character: " + c);
+        int length = value.length();
+        bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c > 127)
+                throw new IllegalArgumentException("The key '" + value + "' contains a non ascii character: " + c);
+            bytes[i] = (byte) c;
         }
+        insertAfterSortIndex = -1;
+        position = -1;
+    }
 
-        bytes = stringValue.getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Create a key from the remaining bytes of a buffer. The bytes are copied and the position of the buffer is not
+     * changed.
+     *
+     * @param buffer the key bytes
+     */
+    public LookupKey(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new NullPointerException("null buffer given");
+        }
+        bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
         insertAfterSortIndex = -1;
         position = -1;
     }
@@ -56,11 +93,11 @@ public class LookupKey implements Comparable<LookupKey> {
         return new String(bytes, StandardCharsets.US_ASCII);
     }
 
-    int getPosition() {
+    long getPosition() {
         return position;
     }
 
-    void setPosition(int position) {
+    void setPosition(long position) {
         this.position = position;
     }
 
@@ -84,12 +121,24 @@ public class LookupKey implements Comparable<LookupKey> {
 
         LookupKey lookupKey = (LookupKey) o;
 
+        if (hash != 0 && lookupKey.hash != 0 && hash != lookupKey.hash) return false;
         return Arrays.equals(bytes, lookupKey.bytes);
     }
 
+    /**
+     * The murmur3 hash of the key bytes, computed once per key and shared by the partition bucket, the lookup caches
+     * and the write cache maps
+     *
+     * @return the hash of the key
+     */
     @Override
     public int hashCode() {
-        return Arrays.hashCode(bytes);
+        int h = hash;
+        if (h == 0) {
+            h = HASH_FUNCTION.hashBytes(bytes).asInt();
+            hash = h;
+        }
+        return h;
     }
 
     @Override
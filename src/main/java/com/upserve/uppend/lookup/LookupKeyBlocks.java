@@ -0,0 +1,235 @@
+package com.upserve.uppend.lookup;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The flushed keys of a LookupData in sort order, prefix compressed in blocks like the data blocks of an SSTable and
+ * persisted after the keyStorageOrder in the metadata blob. Each key is stored as the length of the prefix it shares
+ * with the previous key, the length of the rest and the rest of its bytes. Every RESTART_INTERVAL keys a restart
+ * point stores a key whole, so a lookup bisects the restart keys and then scans a single block, comparing keys in
+ * memory instead of reading a key blob from the longBlob file for every probe.
+ *
+ * Section layout: [int numKeys][int maxKeyLength][int restarts][int[] restart offsets][int data length][data]
+ */
+class LookupKeyBlocks {
+    // Tag for the trailing metadata section - readers without the blocks ignore the trailing bytes
+    static final int TAG = 0x4b424c4b; // "KBLK"
+
+    static final int RESTART_INTERVAL = 16;
+
+    private final int numKeys;
+    private final int maxKeyLength;
+    private final int[] restarts;
+    private final byte[] data;
+
+    private LookupKeyBlocks(int numKeys, int maxKeyLength, int[] restarts, byte[] data) {
+        this.numKeys = numKeys;
+        this.maxKeyLength = maxKeyLength;
+        this.restarts = restarts;
+        this.data = data;
+    }
+
+    /**
+     * Find a key in the blocks
+     *
+     * @param key the key bytes
+     * @return the sort index of the key if it is present, otherwise (-(insertion point) - 1) where the insertion
+     * point is the sort index of the first key greater than the key
+     */
+    int find(byte[] key) {
+        if (numKeys == 0 || compareAt(restarts[0], key) > 0) return -1;
+
+        // The last restart with a key less than or equal to the key
+        int low = 0;
+        int high = restarts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (compareAt(restarts[mid], key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        byte[] current = new byte[maxKeyLength];
+        int offset = restarts[low];
+        int index = low * RESTART_INTERVAL;
+        int end = Math.min(numKeys, index + RESTART_INTERVAL);
+        for (; index < end; index++) {
+            int shared = readVarInt(offset);
+            offset += varIntSize(shared);
+            int unshared = readVarInt(offset);
+            offset += varIntSize(unshared);
+            System.arraycopy(data, offset, current, shared, unshared);
+            offset += unshared;
+
+            int comparison = Arrays.compare(current, 0, shared + unshared, key, 0, key.length);
+            if (comparison == 0) return index;
+            if (comparison > 0) return -index - 1;
+        }
+        return -end - 1;
+    }
+
+    /**
+     * Compare the whole key stored at a restart point with a key
+     */
+    private int compareAt(int restartOffset, byte[] key) {
+        int offset = restartOffset + 1; // The shared length of a restart key is always 0
+        int length = readVarInt(offset);
+        offset += varIntSize(length);
+        return Arrays.compare(data, offset, offset + length, key, 0, key.length);
+    }
+
+    /**
+     * @return an iterator over the keys in sort order
+     */
+    Iterator<byte[]> iterator() {
+        return new Iterator<>() {
+            int index = 0;
+            int offset = 0;
+            byte[] previous = new byte[0];
+
+            @Override
+            public boolean hasNext() {
+                return index < numKeys;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                int shared = readVarInt(offset);
+                offset += varIntSize(shared);
+                int unshared = readVarInt(offset);
+                offset += varIntSize(unshared);
+                byte[] key = Arrays.copyOf(previous, shared + unshared);
+                System.arraycopy(data, offset, key, shared, unshared);
+                offset += unshared;
+                index++;
+                previous = key;
+                return key;
+            }
+        };
+    }
+
+    int getNumKeys() {
+        return numKeys;
+    }
+
+    int byteSize() {
+        return 20 + 4 * restarts.length + data.length;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(TAG);
+        buffer.putInt(numKeys);
+        buffer.putInt(maxKeyLength);
+        buffer.putInt(restarts.length);
+        buffer.asIntBuffer().put(restarts);
+        buffer.position(buffer.position() + 4 * restarts.length);
+        buffer.putInt(data.length);
+        buffer.put(data);
+    }
+
+    /**
+     * Read the blocks from a buffer positioned after the section tag
+     *
+     * @param buffer the metadata buffer
+     * @return the key blocks
+     */
+    static LookupKeyBlocks readFrom(ByteBuffer buffer) {
+        int numKeys = buffer.getInt();
+        int maxKeyLength = buffer.getInt();
+        int[] restarts = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(restarts);
+        buffer.position(buffer.position() + 4 * restarts.length);
+        byte[] data = new byte[buffer.getInt()];
+        buffer.get(data);
+        return new LookupKeyBlocks(numKeys, maxKeyLength, restarts, data);
+    }
+
+    private int readVarInt(int offset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[offset++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    /**
+     * Builds the blocks from keys added in sort order
+     */
+    static class Builder {
+        private final int expectedKeys;
+        private final int[] restarts;
+        private byte[] data;
+        private int dataLength;
+        private int numKeys;
+        private int maxKeyLength;
+        private byte[] previous;
+
+        /**
+         * @param numKeys the number of keys which will be added
+         */
+        Builder(int numKeys) {
+            expectedKeys = numKeys;
+            restarts = new int[(numKeys + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+            data = new byte[Math.max(64, numKeys * 8)];
+            previous = new byte[0];
+        }
+
+        Builder add(byte[] key) {
+            if (numKeys == expectedKeys) throw new IllegalStateException("More keys added than expected: " + numKeys);
+            int shared = 0;
+            if (numKeys % RESTART_INTERVAL == 0) {
+                restarts[numKeys / RESTART_INTERVAL] = dataLength;
+            } else {
+                int limit = Math.min(previous.length, key.length);
+                while (shared < limit && previous[shared] == key[shared]) shared++;
+            }
+            int unshared = key.length - shared;
+
+            ensureCapacity(10 + unshared);
+            writeVarInt(shared);
+            writeVarInt(unshared);
+            System.arraycopy(key, shared, data, dataLength, unshared);
+            dataLength += unshared;
+
+            numKeys++;
+            maxKeyLength = Math.max(maxKeyLength, key.length);
+            previous = key;
+            return this;
+        }
+
+        LookupKeyBlocks build() {
+            if (numKeys != expectedKeys) {
+                throw new IllegalStateException("Fewer keys added than expected: " + numKeys);
+            }
+            return new LookupKeyBlocks(numKeys, maxKeyLength, restarts, Arrays.copyOf(data, dataLength));
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (dataLength + bytes > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + bytes));
+            }
+        }
+
+        private void writeVarInt(int value) {
+            while ((value & ~0x7f) != 0) {
+                data[dataLength++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[dataLength++] = (byte) value;
+        }
+    }
+}
@@ -6,52 +6,159 @@ import org.slf4j.Logger;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.nio.*;
-import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The sorted storage order of the flushed keys of a LookupData, written at position 0 of its metadata blob store.
+ * Metadata written with a runs id may be followed by delta runs: the keys of later flushes, each sorted and written
+ * in the same layout right after the previous record, so a flush does not rewrite the storage order of every key.
+ * Runs carry the runs id of their base; records found after the base with another id are stale runs of an earlier
+ * base and end the sequence.
+ *
+ * Key positions are held and written as ints, readable by earlier versions, while they all fit. Once a position
+ * passes Integer.MAX_VALUE the positions are held and written as longs and the high bit of the key count is set to
+ * flag the format.
+ *
+ * The base metadata may also carry the keys themselves in prefix compressed blocks, see {@link LookupKeyBlocks}, in
+ * which case bisect compares keys in memory and reads only the value of a key which is found.
+ */
 public class LookupMetadata {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
     private static final int MAX_BISECT_KEY_CACHE_DEPTH = 9;
 
+    // Tags for the trailing sections which mark metadata followed by runs and the runs themselves
+    static final int RUNS_BASE_TAG = 0x4c534d42; // "LSMB"
+    static final int RUN_TAG = 0x4c534d52; // "LSMR"
+
+    // Set in the key count when the key positions are written as longs
+    static final int LONG_POSITIONS_FLAG = 0x80000000;
+
     private final int metadataGeneration;
 
     private final int numKeys;
     private final LookupKey minKey;
     private final LookupKey maxKey;
+    // Exactly one of these holds the sorted key positions
     private final int[] keyStorageOrder;
+    private final long[] longKeyStorageOrder;
+    private final LookupHashIndex hashIndex;
+    private final LookupBloomFilter bloomFilter;
+    private final LookupKeyBlocks keyBlocks;
+
+    private final long runsId;
+    private final boolean run;
+    private final List<LookupMetadata> runs;
+    private final long runsEndPosition;
+    private final int runKeys;
+    private final int runsWeight;
+
+    private final ConcurrentHashMap<Long, LookupKey> bisectKeys;
+
+    public static LookupMetadata generateMetadata(LookupKey minKey, LookupKey maxKey, long[] keyStorageOrder, VirtualMutableBlobStore metaDataBlobs, int metadataGeneration) throws IOException {
+        return generateMetadata(minKey, maxKey, keyStorageOrder, null, null, null, 0L, metaDataBlobs, metadataGeneration);
+    }
 
-    private final ConcurrentHashMap<Integer, LookupKey> bisectKeys;
-
-    public static LookupMetadata generateMetadata(LookupKey minKey, LookupKey maxKey, int[] keyStorageOrder, VirtualMutableBlobStore metaDataBlobs, int metadataGeneration) throws IOException {
+    /**
+     * Write new metadata at the start of the metadata blobs
+     *
+     * @param keyBlocks the keys in sort order or null
+     * @param runsId a non zero id if runs may be appended after the metadata, otherwise 0
+     * @return the new metadata
+     */
+    static LookupMetadata generateMetadata(LookupKey minKey, LookupKey maxKey, long[] keyStorageOrder, LookupHashIndex hashIndex, LookupBloomFilter bloomFilter, LookupKeyBlocks keyBlocks, long runsId, VirtualMutableBlobStore metaDataBlobs, int metadataGeneration) throws IOException {
 
         LookupMetadata newMetadata = new LookupMetadata(
                 minKey,
                 maxKey,
                 keyStorageOrder,
+                hashIndex,
+                bloomFilter,
+                keyBlocks,
+                runsId,
+                false,
                 metadataGeneration
         );
 
-        newMetadata.writeTo(metaDataBlobs);
+        byte[] bytes = newMetadata.toBytes();
+        metaDataBlobs.write(0L, bytes);
+
+        if (runsId == 0) return newMetadata;
+        return new LookupMetadata(newMetadata, Collections.emptyList(), VirtualMutableBlobStore.recordSize(bytes), metadataGeneration);
+    }
+
+    LookupMetadata(LookupKey minKey, LookupKey maxKey, long[] keyStorageOrder, int metadataGeneration) {
+        this(minKey, maxKey, keyStorageOrder, null, null, metadataGeneration);
+    }
 
-        return newMetadata;
+    LookupMetadata(LookupKey minKey, LookupKey maxKey, long[] keyStorageOrder, LookupHashIndex hashIndex, LookupBloomFilter bloomFilter, int metadataGeneration) {
+        this(minKey, maxKey, keyStorageOrder, hashIndex, bloomFilter, null, 0L, false, metadataGeneration);
     }
 
-    LookupMetadata(LookupKey minKey, LookupKey maxKey, int[] keyStorageOrder, int metadataGeneration) {
+    private LookupMetadata(LookupKey minKey, LookupKey maxKey, long[] keyStorageOrder, LookupHashIndex hashIndex, LookupBloomFilter bloomFilter, LookupKeyBlocks keyBlocks, long runsId, boolean run, int metadataGeneration) {
         this.numKeys = keyStorageOrder.length;
         this.minKey = minKey;
         this.maxKey = maxKey;
-        this.keyStorageOrder = keyStorageOrder;
+        long maxPosition = 0;
+        for (long position : keyStorageOrder) {
+            maxPosition = Math.max(maxPosition, position);
+        }
+        if (maxPosition <= Integer.MAX_VALUE) {
+            this.keyStorageOrder = new int[numKeys];
+            for (int i = 0; i < numKeys; i++) {
+                this.keyStorageOrder[i] = (int) keyStorageOrder[i];
+            }
+            this.longKeyStorageOrder = null;
+        } else {
+            this.keyStorageOrder = null;
+            this.longKeyStorageOrder = keyStorageOrder;
+        }
+        this.hashIndex = hashIndex;
+        this.bloomFilter = bloomFilter;
+        this.keyBlocks = keyBlocks;
+        this.runsId = runsId;
+        this.run = run;
+        this.runs = Collections.emptyList();
+        this.runsEndPosition = -1;
+        this.runKeys = 0;
+        this.runsWeight = 0;
         this.metadataGeneration = metadataGeneration;
 
         bisectKeys = new ConcurrentHashMap<>();
     }
 
+    /**
+     * Copy base metadata with a new list of runs. The bisect key cache is shared since the base keys do not change.
+     */
+    private LookupMetadata(LookupMetadata base, List<LookupMetadata> runs, long runsEndPosition, int metadataGeneration) {
+        this.numKeys = base.numKeys;
+        this.minKey = base.minKey;
+        this.maxKey = base.maxKey;
+        this.keyStorageOrder = base.keyStorageOrder;
+        this.longKeyStorageOrder = base.longKeyStorageOrder;
+        this.hashIndex = base.hashIndex;
+        this.bloomFilter = base.bloomFilter;
+        this.keyBlocks = base.keyBlocks;
+        this.runsId = base.runsId;
+        this.run = false;
+        this.runs = runs;
+        this.runsEndPosition = runsEndPosition;
+        this.runKeys = runs.stream().mapToInt(LookupMetadata::getNumKeys).sum();
+        this.runsWeight = runs.stream().mapToInt(LookupMetadata::weight).sum();
+        this.metadataGeneration = metadataGeneration;
+
+        bisectKeys = base.bisectKeys;
+    }
+
     public static LookupMetadata open(VirtualMutableBlobStore metadataBlobs, int metadataGeneration) {
         if (metadataBlobs.isPageAllocated(0L)) {
             byte[] bytes = metadataBlobs.read(0L);
-            return new LookupMetadata(bytes, metadataGeneration);
+            LookupMetadata metadata = new LookupMetadata(bytes, metadataGeneration);
+            if (metadata.runsId == 0) return metadata;
+            return metadata.readRuns(metadataBlobs, VirtualMutableBlobStore.recordSize(bytes));
         } else {
-            return new LookupMetadata(null, null, new int[0], metadataGeneration);
+            return new LookupMetadata(null, null, new long[0], metadataGeneration);
         }
     }
 
@@ -60,7 +167,9 @@ public class LookupMetadata {
 
         int minKeyLength, maxKeyLength;
         try {
-            numKeys = buffer.getInt();
+            int keyCount = buffer.getInt();
+            boolean longPositions = (keyCount & LONG_POSITIONS_FLAG) != 0;
+            numKeys = keyCount & ~LONG_POSITIONS_FLAG;
             minKeyLength = buffer.getInt();
             byte[] minKeyBytes = new byte[minKeyLength];
             buffer.get(minKeyBytes); // should check result - number of bytes read
@@ -70,18 +179,144 @@ public class LookupMetadata {
             buffer.get(maxKeyBytes);
             maxKey = new LookupKey(maxKeyBytes);
 
-            IntBuffer ibuf = buffer.asIntBuffer();
-            keyStorageOrder = new int[numKeys];
-            ibuf.get(keyStorageOrder);
+            if (longPositions) {
+                keyStorageOrder = null;
+                longKeyStorageOrder = new long[numKeys];
+                buffer.asLongBuffer().get(longKeyStorageOrder);
+                buffer.position(buffer.position() + 8 * numKeys);
+            } else {
+                keyStorageOrder = new int[numKeys];
+                longKeyStorageOrder = null;
+                buffer.asIntBuffer().get(keyStorageOrder);
+                buffer.position(buffer.position() + 4 * numKeys);
+            }
+            // Optional trailing sections - unknown sections are left for newer readers
+            LookupHashIndex index = null;
+            LookupBloomFilter filter = null;
+            LookupKeyBlocks blocks = null;
+            long id = 0L;
+            boolean isRun = false;
+            while (buffer.remaining() >= 4) {
+                int tag = buffer.getInt();
+                if (tag == LookupHashIndex.TAG || tag == LookupHashIndex.LONG_POSITIONS_TAG) {
+                    index = LookupHashIndex.readFrom(buffer, tag == LookupHashIndex.LONG_POSITIONS_TAG);
+                } else if (tag == LookupBloomFilter.TAG) {
+                    filter = LookupBloomFilter.readFrom(buffer);
+                } else if (tag == LookupKeyBlocks.TAG) {
+                    blocks = LookupKeyBlocks.readFrom(buffer);
+                } else if (tag == RUNS_BASE_TAG || tag == RUN_TAG) {
+                    id = buffer.getLong();
+                    isRun = tag == RUN_TAG;
+                } else {
+                    break;
+                }
+            }
+            hashIndex = index;
+            bloomFilter = filter;
+            keyBlocks = blocks;
+            runsId = id;
+            run = isRun;
         } catch (BufferUnderflowException e) {
             throw new IllegalStateException("Meta blob is corrupted", e); // The checksum is correct - indicates a format change!
         }
 
+        runs = Collections.emptyList();
+        runsEndPosition = -1;
+        runKeys = 0;
+        runsWeight = 0;
+
         this.metadataGeneration = metadataGeneration;
 
         bisectKeys = new ConcurrentHashMap<>();
     }
 
+    /**
+     * Read the runs which follow this metadata up to the first record which is not a run of this metadata
+     *
+     * @param metadataBlobs the metadata blob store
+     * @param position the position of the first run
+     * @return the metadata with its runs
+     */
+    private LookupMetadata readRuns(VirtualMutableBlobStore metadataBlobs, long position) {
+        List<LookupMetadata> runList = new ArrayList<>();
+        byte[] bytes;
+        while ((bytes = metadataBlobs.readIfValid(position)) != null) {
+            LookupMetadata candidate;
+            try {
+                candidate = new LookupMetadata(bytes, metadataGeneration);
+            } catch (IllegalStateException e) {
+                break;
+            }
+            if (!candidate.run || candidate.runsId != runsId) break;
+            runList.add(candidate);
+            position += VirtualMutableBlobStore.recordSize(bytes);
+        }
+        return new LookupMetadata(this, Collections.unmodifiableList(runList), position, metadataGeneration);
+    }
+
+    /**
+     * Write the sorted positions of newly flushed keys as a run after this metadata and its current runs
+     *
+     * @param minKey the smallest of the new keys
+     * @param maxKey the largest of the new keys
+     * @param keyStorageOrder the positions of the new keys in sorted order
+     * @param metadataBlobs the metadata blob store
+     * @param metadataGeneration the generation of the new metadata
+     * @return the metadata including the new run
+     */
+    LookupMetadata appendRun(LookupKey minKey, LookupKey maxKey, long[] keyStorageOrder, VirtualMutableBlobStore metadataBlobs, int metadataGeneration) {
+        if (runsId == 0 || run) throw new IllegalStateException("Runs can not be appended to this metadata");
+
+        LookupMetadata newRun = new LookupMetadata(minKey, maxKey, keyStorageOrder, null, null, null, runsId, true, metadataGeneration);
+        byte[] bytes = newRun.toBytes();
+        metadataBlobs.write(runsEndPosition, bytes);
+
+        List<LookupMetadata> runList = new ArrayList<>(runs);
+        runList.add(newRun);
+        return new LookupMetadata(this, Collections.unmodifiableList(runList), runsEndPosition + VirtualMutableBlobStore.recordSize(bytes), metadataGeneration);
+    }
+
+    /**
+     * Finds the value associated with a key or null if not present using the hash index when the metadata has one,
+     * otherwise using bisect on the sorted storage order. Keys which are not in the bloom filter are not searched for.
+     * The key blocks, when present, give the sort index of a missing key without reading any keys so they are
+     * preferred over the hash index.
+     * The runs, which are not covered by the hash index or bloom filter, are bisected first.
+     * If the result is null (key not found) the key is marked so that its sortIndex can be found at flush.
+     * If the result is not null (key was found) the key is marked with its position in the longBlob file.
+     *
+     * @param longBlobStore The longBlobStore to read keys and values
+     * @param key the key to find and mark
+     * @return the position of the key
+     */
+    public Long findKey(VirtualLongBlobStore longBlobStore, LookupKey key) {
+        for (LookupMetadata deltaRun : runs) {
+            Long value = deltaRun.bisect(longBlobStore, key);
+            if (value != null) return value;
+        }
+        if (bloomFilter != null && !bloomFilter.mightContain(key)) {
+            // Definitely not flushed - mark the key so flush will bisect for its sortIndex
+            key.setMetaDataGeneration(-1);
+            return null;
+        }
+        if (hashIndex == null || keyBlocks != null || numKeys == 0) return bisect(longBlobStore, key);
+
+        final byte[] keyBytes = key.bytes();
+        long keyPosition = hashIndex.find(
+                LookupHashIndex.fingerprint(key),
+                position -> Arrays.equals(keyBytes, longBlobStore.readBlob(position))
+        );
+
+        if (keyPosition == -1) {
+            // The hash index does not give the sort index - mark the key so flush will bisect for it
+            key.setMetaDataGeneration(-1);
+            return null;
+        }
+        key.setMetaDataGeneration(metadataGeneration);
+        key.setPosition(keyPosition);
+        return longBlobStore.readLong(keyPosition);
+    }
+
     /**
      * Finds the value associated with a key or null if not present using bisect on the sorted storage order
      * If the result is null (key not found) the key is marked with the generation of the metadata used and the
@@ -92,11 +327,20 @@ public class LookupMetadata {
      * @param key the key to find and mark
      * @return the position of the key
      */
-
-    public Long findKey(VirtualLongBlobStore longBlobStore, LookupKey key) {
+    Long bisect(VirtualLongBlobStore longBlobStore, LookupKey key) {
 
         key.setMetaDataGeneration(metadataGeneration);
 
+        if (keyBlocks != null) {
+            int sortIndex = keyBlocks.find(key.bytes());
+            if (sortIndex < 0) {
+                key.setInsertAfterSortIndex(-sortIndex - 2);
+                return null;
+            }
+            key.setPosition(keyPosition(sortIndex));
+            return longBlobStore.readLong(keyPosition(sortIndex));
+        }
+
         if (numKeys == 0) {
             key.setInsertAfterSortIndex(-1);
             return null;
@@ -108,7 +352,7 @@ public class LookupMetadata {
         LookupKey upperKey = maxKey;
 
         int bisectCount = 0;
-        int keyPosition;
+        long keyPosition;
         LookupKey midpointKey;
         int midpointKeyIndex;
 
@@ -118,8 +362,8 @@ public class LookupMetadata {
             return null;
         }
         if (comparison == 0) {
-            key.setPosition(keyStorageOrder[keyIndexLower]);
-            return longBlobStore.readLong(keyStorageOrder[keyIndexLower]);
+            key.setPosition(keyPosition(keyIndexLower));
+            return longBlobStore.readLong(keyPosition(keyIndexLower));
         }
 
         comparison = upperKey.compareTo(key);
@@ -128,8 +372,8 @@ public class LookupMetadata {
             return null;
         }
         if (comparison == 0) {
-            key.setPosition(keyStorageOrder[keyIndexUpper]);
-            return longBlobStore.readLong(keyStorageOrder[keyIndexUpper]);
+            key.setPosition(keyPosition(keyIndexUpper));
+            return longBlobStore.readLong(keyPosition(keyIndexUpper));
         }
 
         if (numKeys == 2) { // There are no other values keys besides upper and lower
@@ -144,7 +388,7 @@ public class LookupMetadata {
             if (log.isTraceEnabled())
                 log.trace("reading {}: [{}, {}], [{}, {}], {}", key, keyIndexLower, keyIndexUpper, lowerKey, upperKey, midpointKeyIndex);
 
-            keyPosition = keyStorageOrder[midpointKeyIndex];
+            keyPosition = keyPosition(midpointKeyIndex);
             // Cache only the most frequently used midpoint keys
             if (bisectCount < MAX_BISECT_KEY_CACHE_DEPTH) {
                 midpointKey = bisectKeys.computeIfAbsent(keyPosition, position -> new LookupKey(longBlobStore.readBlob(position)));
@@ -172,20 +416,44 @@ public class LookupMetadata {
     }
 
     public void writeTo(VirtualMutableBlobStore metadataBlobs) {
+        metadataBlobs.write(0L, toBytes());
+    }
+
+    private byte[] toBytes() {
+        boolean longPositions = longKeyStorageOrder != null;
         int headerSize = 12 + minKey.byteLength() + maxKey.byteLength();
-        int intBufSize = 4 * numKeys;
-        ByteBuffer byteBuffer = ByteBuffer.allocate(headerSize + intBufSize);
-        byteBuffer.putInt(numKeys);
+        int intBufSize = (longPositions ? 8 : 4) * numKeys;
+        int indexSize = hashIndex == null ? 0 : hashIndex.byteSize();
+        byte[] bloomFilterBytes = bloomFilter == null ? new byte[0] : bloomFilter.toBytes();
+        int blocksSize = keyBlocks == null ? 0 : keyBlocks.byteSize();
+        int runsSize = runsId == 0 ? 0 : 12;
+        ByteBuffer byteBuffer = ByteBuffer.allocate(headerSize + intBufSize + indexSize + bloomFilterBytes.length + blocksSize + runsSize);
+        byteBuffer.putInt(longPositions ? numKeys | LONG_POSITIONS_FLAG : numKeys);
         byteBuffer.putInt(minKey.byteLength());
         byteBuffer.put(minKey.bytes());
         byteBuffer.putInt(maxKey.byteLength());
         byteBuffer.put(maxKey.bytes());
 
-        IntBuffer intBuffer = byteBuffer.asIntBuffer();
-        intBuffer.put(keyStorageOrder);
-        byteBuffer.rewind();
+        if (longPositions) {
+            byteBuffer.asLongBuffer().put(longKeyStorageOrder);
+        } else {
+            byteBuffer.asIntBuffer().put(keyStorageOrder);
+        }
+        if (hashIndex != null) {
+            byteBuffer.position(headerSize + intBufSize);
+            hashIndex.writeTo(byteBuffer);
+        }
+        byteBuffer.position(headerSize + intBufSize + indexSize);
+        byteBuffer.put(bloomFilterBytes);
+        if (keyBlocks != null) {
+            keyBlocks.writeTo(byteBuffer);
+        }
+        if (runsId != 0) {
+            byteBuffer.putInt(run ? RUN_TAG : RUNS_BASE_TAG);
+            byteBuffer.putLong(runsId);
+        }
 
-        metadataBlobs.write(0L, byteBuffer.array());
+        return byteBuffer.array();
     }
 
     @Override
@@ -194,6 +462,7 @@ public class LookupMetadata {
                 "numKeys=" + numKeys +
                 ", minKey=" + minKey +
                 ", maxKey=" + maxKey +
+                ", runs=" + runs.size() +
                 '}';
     }
 
@@ -202,19 +471,85 @@ public class LookupMetadata {
     }
 
     /**
-     * Size of keyStorageOrder in bytes
+     * Size of keyStorageOrder, the hash index, the bloom filter, the key blocks and the runs in bytes
      * @return the weight in bytes
      */
     public int weight() {
-        return numKeys * 4;
+        return numKeys * (longKeyStorageOrder == null ? 4 : 8) + runsWeight + (hashIndex == null ? 0 : hashIndex.byteSize()) + (bloomFilter == null ? 0 : bloomFilter.byteSize()) + (keyBlocks == null ? 0 : keyBlocks.byteSize());
     }
 
+    /**
+     * @return the number of keys including the keys in runs
+     */
     public int getNumKeys() {
+        return numKeys + runKeys;
+    }
+
+    /**
+     * @return the number of keys in the sort order, not including the keys in runs
+     */
+    public int getNumSortedKeys() {
         return numKeys;
     }
 
-    public int[] getKeyStorageOrder() {
-        return keyStorageOrder;
+    long getRunsId() {
+        return runsId;
+    }
+
+    List<LookupMetadata> getRuns() {
+        return runs;
+    }
+
+    LookupHashIndex getHashIndex() {
+        return hashIndex;
+    }
+
+    LookupBloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    LookupKeyBlocks getKeyBlocks() {
+        return keyBlocks;
+    }
+
+    /**
+     * A copy of the sorted key positions; use {@link #keyPosition(int)} with {@link #getNumSortedKeys()} to read them
+     * without copying
+     *
+     * @return the sorted positions of the keys, not including the keys in runs
+     */
+    public long[] getKeyStorageOrder() {
+        long[] positions = new long[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            positions[i] = keyPosition(i);
+        }
+        return positions;
+    }
+
+    /**
+     * @param sortIndex the index of a key in sort order, below {@link #getNumSortedKeys()}
+     * @return the position of the key
+     */
+    public long keyPosition(int sortIndex) {
+        return longKeyStorageOrder == null ? keyStorageOrder[sortIndex] : longKeyStorageOrder[sortIndex];
+    }
+
+    /**
+     * @return the positions of all the keys including the keys in runs
+     */
+    long[] getKeyPositions() {
+        if (runs.isEmpty()) return getKeyStorageOrder();
+        long[] positions = new long[numKeys + runKeys];
+        for (int i = 0; i < numKeys; i++) {
+            positions[i] = keyPosition(i);
+        }
+        int index = numKeys;
+        for (LookupMetadata deltaRun : runs) {
+            for (int i = 0; i < deltaRun.numKeys; i++) {
+                positions[index++] = deltaRun.keyPosition(i);
+            }
+        }
+        return positions;
     }
 
     public LookupKey getMinKey() {
@@ -0,0 +1,245 @@
+package com.upserve.uppend.lookup;
+
+import com.github.benmanes.caffeine.cache.stats.*;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * A fixed size, set associative cache of lookup key values held in direct buffers. Each slot stores the partition id,
+ * the key hash, the long value and the key bytes inline, so a cached entry costs no heap objects. Keys longer than
+ * the configured maximum are not cached. Each set is evicted with the CLOCK algorithm: a hit sets the reference bit of
+ * the slot and the hand clears reference bits until it finds a slot to replace. The clock hand of a set is kept in the
+ * padding of its first slot, and sets share a fixed number of striped locks, so the heap used does not grow with the
+ * size of the cache.
+ *
+ * Slot layout: [int partitionId + 1 (0 when empty)][int hash][long value][int key length][byte referenced]
+ * [byte clock hand (first slot of a set only)][pad][key]
+ */
+public class OffHeapLookupKeyCache {
+    static final int WAYS = 8;
+
+    private static final int PARTITION_OFFSET = 0;
+    private static final int HASH_OFFSET = 4;
+    private static final int VALUE_OFFSET = 8;
+    private static final int KEY_LENGTH_OFFSET = 16;
+    private static final int REFERENCED_OFFSET = 20;
+    private static final int CLOCK_HAND_OFFSET = 21;
+    private static final int KEY_OFFSET = 24;
+
+    // Direct buffers are limited to 2GB so sets are spread over segments of at most this size
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private static final int LOCK_STRIPES = 1024;
+
+    private final int maximumKeyLength;
+    private final int slotSize;
+    private final int setSize;
+    private final int numSets;
+    private final int setsPerSegment;
+    private final ByteBuffer[] segments;
+    private final Object[] locks;
+    private final StatsCounter statsCounter;
+
+    /**
+     * @param maximumBytes the off heap memory to use for the slots
+     * @param maximumKeyLength the longest key, in bytes, which will be cached
+     * @param statsCounter the counter to record stats with
+     */
+    public OffHeapLookupKeyCache(long maximumBytes, int maximumKeyLength, StatsCounter statsCounter) {
+        if (maximumKeyLength < 1) throw new IllegalArgumentException("maximumKeyLength must be >= 1: " + maximumKeyLength);
+
+        this.maximumKeyLength = maximumKeyLength;
+        this.statsCounter = statsCounter;
+
+        slotSize = (KEY_OFFSET + maximumKeyLength + 7) & ~7;
+        setSize = slotSize * WAYS;
+        long sets = Math.max(1, maximumBytes / setSize);
+        if (sets > Integer.MAX_VALUE) throw new IllegalArgumentException("Off heap key cache is too large: " + maximumBytes);
+        numSets = (int) sets;
+
+        setsPerSegment = Math.max(1, MAX_SEGMENT_SIZE / setSize);
+        int numSegments = (numSets + setsPerSegment - 1) / setsPerSegment;
+        segments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            int segmentSets = Math.min(setsPerSegment, numSets - i * setsPerSegment);
+            segments[i] = ByteBuffer.allocateDirect(segmentSets * setSize);
+        }
+
+        locks = new Object[Math.min(numSets, LOCK_STRIPES)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Get the value for a key, calling the loader and caching the result if it is not present. The loader is called
+     * without holding the lock for the set; if the key was put while it loaded, the cached value is kept and returned
+     * rather than overwritten by the load. Null results are not cached.
+     *
+     * @param partitionId the id of the partition the key belongs to
+     * @param key the key
+     * @param loader the function to load the value of a key which is not cached
+     * @return the value or null if the loader returns null
+     */
+    public Long get(int partitionId, LookupKey key, Function<LookupKey, Long> loader) {
+        if (key.byteLength() > maximumKeyLength) {
+            statsCounter.recordMisses(1);
+            return load(key, loader);
+        }
+
+        final int hash = hash(partitionId, key);
+        final int set = Math.floorMod(hash, numSets);
+        final ByteBuffer segment = segments[set / setsPerSegment];
+        final int setStart = (set % setsPerSegment) * setSize;
+
+        final Object lock = lockFor(set);
+
+        synchronized (lock) {
+            int slot = find(segment, setStart, partitionId, hash, key);
+            if (slot != -1) {
+                segment.put(slot + REFERENCED_OFFSET, (byte) 1);
+                statsCounter.recordHits(1);
+                return segment.getLong(slot + VALUE_OFFSET);
+            }
+        }
+        statsCounter.recordMisses(1);
+
+        Long value = load(key, loader);
+        if (value == null) return null;
+
+        synchronized (lock) {
+            int slot = find(segment, setStart, partitionId, hash, key);
+            if (slot != -1) return segment.getLong(slot + VALUE_OFFSET);
+            write(segment, victim(segment, setStart), partitionId, hash, key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Put the value for a key, replacing the cached value if there is one
+     *
+     * @param partitionId the id of the partition the key belongs to
+     * @param key the key
+     * @param value the value
+     */
+    public void put(int partitionId, LookupKey key, long value) {
+        if (key.byteLength() > maximumKeyLength) return;
+
+        final int hash = hash(partitionId, key);
+        final int set = Math.floorMod(hash, numSets);
+        final ByteBuffer segment = segments[set / setsPerSegment];
+        final int setStart = (set % setsPerSegment) * setSize;
+
+        synchronized (lockFor(set)) {
+            int slot = find(segment, setStart, partitionId, hash, key);
+            if (slot != -1) {
+                segment.putLong(slot + VALUE_OFFSET, value);
+                segment.put(slot + REFERENCED_OFFSET, (byte) 1);
+            } else {
+                write(segment, victim(segment, setStart), partitionId, hash, key, value);
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        for (int set = 0; set < numSets; set++) {
+            final ByteBuffer segment = segments[set / setsPerSegment];
+            final int setStart = (set % setsPerSegment) * setSize;
+            synchronized (lockFor(set)) {
+                for (int way = 0; way < WAYS; way++) {
+                    segment.putInt(setStart + way * slotSize + PARTITION_OFFSET, 0);
+                }
+            }
+        }
+    }
+
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    /**
+     * @return the number of keys the cache can hold
+     */
+    public long capacity() {
+        return (long) numSets * WAYS;
+    }
+
+    private Long load(LookupKey key, Function<LookupKey, Long> loader) {
+        long start = System.nanoTime();
+        Long value;
+        try {
+            value = loader.apply(key);
+        } catch (RuntimeException | Error e) {
+            statsCounter.recordLoadFailure(System.nanoTime() - start);
+            throw e;
+        }
+        if (value == null) {
+            statsCounter.recordLoadFailure(System.nanoTime() - start);
+        } else {
+            statsCounter.recordLoadSuccess(System.nanoTime() - start);
+        }
+        return value;
+    }
+
+    private int find(ByteBuffer segment, int setStart, int partitionId, int hash, LookupKey key) {
+        final byte[] bytes = key.bytes();
+        for (int way = 0; way < WAYS; way++) {
+            int slot = setStart + way * slotSize;
+            if (segment.getInt(slot + PARTITION_OFFSET) == partitionId + 1
+                    && segment.getInt(slot + HASH_OFFSET) == hash
+                    && segment.getInt(slot + KEY_LENGTH_OFFSET) == bytes.length
+                    && keyEquals(segment, slot + KEY_OFFSET, bytes)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean keyEquals(ByteBuffer segment, int keyStart, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (segment.get(keyStart + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private Object lockFor(int set) {
+        return locks[set % locks.length];
+    }
+
+    private int victim(ByteBuffer segment, int setStart) {
+        for (int way = 0; way < WAYS; way++) {
+            int slot = setStart + way * slotSize;
+            if (segment.getInt(slot + PARTITION_OFFSET) == 0) return slot;
+        }
+
+        int hand = segment.get(setStart + CLOCK_HAND_OFFSET);
+        while (true) {
+            int slot = setStart + hand * slotSize;
+            hand = (hand + 1) % WAYS;
+            if (segment.get(slot + REFERENCED_OFFSET) == 0) {
+                segment.put(setStart + CLOCK_HAND_OFFSET, (byte) hand);
+                statsCounter.recordEviction(1);
+                return slot;
+            }
+            segment.put(slot + REFERENCED_OFFSET, (byte) 0);
+        }
+    }
+
+    private static void write(ByteBuffer segment, int slot, int partitionId, int hash, LookupKey key, long value) {
+        final byte[] bytes = key.bytes();
+        segment.putInt(slot + HASH_OFFSET, hash);
+        segment.putLong(slot + VALUE_OFFSET, value);
+        segment.putInt(slot + KEY_LENGTH_OFFSET, bytes.length);
+        segment.put(slot + REFERENCED_OFFSET, (byte) 0);
+        for (int i = 0; i < bytes.length; i++) {
+            segment.put(slot + KEY_OFFSET + i, bytes[i]);
+        }
+        segment.putInt(slot + PARTITION_OFFSET, partitionId + 1);
+    }
+
+    private static int hash(int partitionId, LookupKey key) {
+        int hash = key.hashCode() * 0x9E3779B9 + partitionId;
+        return hash ^ (hash >>> 16);
+    }
+}
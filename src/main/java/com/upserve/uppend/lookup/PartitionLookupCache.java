@@ -9,6 +9,7 @@ public class PartitionLookupCache {
 
     private final LookupCache lookupCache;
     private final String partition;
+    private final int partitionId;
 
 
     public static PartitionLookupCache create(String partition, LookupCache lookupCache) {
@@ -18,6 +19,7 @@ public class PartitionLookupCache {
     public PartitionLookupCache(String partition, LookupCache lookupCache) {
         this.partition = partition;
         this.lookupCache = lookupCache;
+        this.partitionId = lookupCache.partitionId(partition);
     }
 
     public String getPartition() {
@@ -25,11 +27,20 @@ public class PartitionLookupCache {
     }
 
     public void putLookup(LookupKey key, long val) {
-        lookupCache.putLookup(new PartitionLookupKey(partition, key), val);
+        if (lookupCache.isOffHeapKeyCache()) {
+            lookupCache.putLookup(partitionId, key, val);
+        } else {
+            lookupCache.putLookup(new PartitionLookupKey(partition, key), val);
+        }
     }
 
     public Long getLong(LookupKey lookupKey, Function<PartitionLookupKey, Long> cacheLoader) {
-        return lookupCache.getLong(new PartitionLookupKey(partition, lookupKey), cacheLoader);
+        if (lookupCache.isOffHeapKeyCache()) {
+            // Only allocate the PartitionLookupKey on a miss
+            return lookupCache.getLong(partitionId, lookupKey, key -> cacheLoader.apply(new PartitionLookupKey(partition, key)));
+        } else {
+            return lookupCache.getLong(new PartitionLookupKey(partition, lookupKey), cacheLoader);
+        }
     }
 
     public boolean isKeyCacheActive(){
@@ -26,7 +26,7 @@ public class PartitionLookupKey {
 
     @Override
     public int hashCode() {
-        return Objects.hash(lookupKey, partition);
+        return 31 * lookupKey.hashCode() + partition.hashCode();
     }
 
     public int weight() {
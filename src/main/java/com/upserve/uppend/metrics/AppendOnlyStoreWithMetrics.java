@@ -6,8 +6,10 @@ import com.google.common.collect.Maps;
 import com.upserve.uppend.*;
 import com.upserve.uppend.lookup.FlushStats;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.function.BiConsumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.*;
 import java.util.stream.Stream;
 
 public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
@@ -81,6 +83,78 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public void append(String partitionEntropy, byte[] key, byte[] value) {
+        final Timer.Context context = writeTimer.time();
+        try {
+            writeBytesMeter.mark(value.length);
+            store.append(partitionEntropy, key, value);
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> appendDurable(String partitionEntropy, String key, byte[] value) {
+        // Time until the value is durable, which includes waiting for the group commit
+        final Timer.Context context = writeTimer.time();
+        try {
+            writeBytesMeter.mark(value.length);
+            return store.appendDurable(partitionEntropy, key, value).whenComplete((result, throwable) -> context.stop());
+        } catch (RuntimeException e) {
+            context.stop();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> appendDurable(String partitionEntropy, byte[] key, byte[] value) {
+        final Timer.Context context = writeTimer.time();
+        try {
+            writeBytesMeter.mark(value.length);
+            return store.appendDurable(partitionEntropy, key, value).whenComplete((result, throwable) -> context.stop());
+        } catch (RuntimeException e) {
+            context.stop();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> appendAsync(String partitionEntropy, String key, byte[] value) {
+        // Time until the value is appended, which includes waiting in the queue
+        final Timer.Context context = writeTimer.time();
+        try {
+            writeBytesMeter.mark(value.length);
+            return store.appendAsync(partitionEntropy, key, value).whenComplete((result, throwable) -> context.stop());
+        } catch (RuntimeException e) {
+            context.stop();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> appendAsync(String partitionEntropy, byte[] key, byte[] value) {
+        final Timer.Context context = writeTimer.time();
+        try {
+            writeBytesMeter.mark(value.length);
+            return store.appendAsync(partitionEntropy, key, value).whenComplete((result, throwable) -> context.stop());
+        } catch (RuntimeException e) {
+            context.stop();
+            throw e;
+        }
+    }
+
+    @Override
+    public void appendAll(AppendBatch batch) {
+        final Timer.Context context = writeTimer.time();
+        try {
+            writeBytesMeter.mark(batch.bytes());
+            store.appendAll(batch);
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public void register(int seconds) {
         store.register(seconds);
@@ -112,6 +186,17 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public Stream<byte[]> read(String partitionEntropy, byte[] key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.read(partitionEntropy, key)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public Stream<byte[]> readSequential(String partitionEntropy, String key) {
         final Timer.Context context = readTimer.time();
@@ -123,6 +208,109 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public Stream<byte[]> readSequential(String partitionEntropy, byte[] key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readSequential(partitionEntropy, key)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public void read(String partitionEntropy, String key, Consumer<ByteBuffer> consumer) {
+        final Timer.Context context = readTimer.time();
+        try {
+            store.read(partitionEntropy, key, buffer -> {
+                readBytesMeter.mark(buffer.remaining());
+                consumer.accept(buffer);
+            });
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public void read(String partitionEntropy, byte[] key, Consumer<ByteBuffer> consumer) {
+        final Timer.Context context = readTimer.time();
+        try {
+            store.read(partitionEntropy, key, buffer -> {
+                readBytesMeter.mark(buffer.remaining());
+                consumer.accept(buffer);
+            });
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Stream<byte[]> readReverse(String partitionEntropy, String key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readReverse(partitionEntropy, key)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Stream<byte[]> readReverse(String partitionEntropy, byte[] key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readReverse(partitionEntropy, key)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Stream<byte[]> readRange(String partitionEntropy, String key, long offset, int limit) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readRange(partitionEntropy, key, offset, limit)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Stream<byte[]> readRange(String partitionEntropy, byte[] key, long offset, int limit) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readRange(partitionEntropy, key, offset, limit)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Stream<byte[]> readLastN(String partitionEntropy, String key, int n) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readLastN(partitionEntropy, key, n)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Stream<byte[]> readLastN(String partitionEntropy, byte[] key, int n) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readLastN(partitionEntropy, key, n)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public byte[] readLast(String partitionEntropy, String key) {
         final Timer.Context context = readTimer.time();
@@ -135,6 +323,38 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public byte[] readLast(String partitionEntropy, byte[] key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            byte[] bytes = store.readLast(partitionEntropy, key);
+            readBytesMeter.mark(bytes.length);
+            return bytes;
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public long count(String partitionEntropy, String key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.count(partitionEntropy, key);
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public long count(String partitionEntropy, byte[] key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.count(partitionEntropy, key);
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public Stream<String> keys() {
         final Timer.Context context = keysTimer.time();
@@ -145,6 +365,16 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public Stream<byte[]> keyBytes() {
+        final Timer.Context context = keysTimer.time();
+        try {
+            return store.keyBytes();
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public Stream<Map.Entry<String, Stream<byte[]>>> scan() {
         final Timer.Context context = scanTimer.time();
@@ -170,6 +400,32 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public void scanBytes(BiConsumer<byte[], Stream<byte[]>> callback) {
+        final Timer.Context context = scanTimer.time();
+        try {
+            store.scanBytes((key, vals) -> {
+                scanKeysMeter.mark(1);
+                callback.accept(key, vals.peek(bytes -> scanBytesMeter.mark(bytes.length)));
+            });
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Checkpoint changesSince(Checkpoint checkpoint, Consumer<Change> consumer) {
+        final Timer.Context context = scanTimer.time();
+        try {
+            return store.changesSince(checkpoint, change -> {
+                scanBytesMeter.mark(change.getValue().length);
+                consumer.accept(change);
+            });
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public void clear() {
         final Timer.Context context = clearTimer.time();
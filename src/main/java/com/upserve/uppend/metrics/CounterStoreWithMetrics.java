@@ -60,6 +60,16 @@ public class CounterStoreWithMetrics implements CounterStore {
         }
     }
 
+    @Override
+    public Long set(String partitionEntropy, byte[] key, long value) {
+        final Timer.Context context = metricsSetTimer.time();
+        try {
+            return store.set(partitionEntropy, key, value);
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public long increment(String partitionEntropy, String key, long delta) {
         final Timer.Context context = metricsIncrementTimer.time();
@@ -70,6 +80,16 @@ public class CounterStoreWithMetrics implements CounterStore {
         }
     }
 
+    @Override
+    public long increment(String partitionEntropy, byte[] key, long delta) {
+        final Timer.Context context = metricsIncrementTimer.time();
+        try {
+            return store.increment(partitionEntropy, key, delta);
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public void register(int seconds) {
         store.register(seconds);
@@ -100,6 +120,16 @@ public class CounterStoreWithMetrics implements CounterStore {
         }
     }
 
+    @Override
+    public Long get(String partitionEntropy, byte[] key) {
+        final Timer.Context context = metricsGetTimer.time();
+        try {
+            return store.get(partitionEntropy, key);
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public Stream<String> keys() {
         final Timer.Context context = metricsKeysTimer.time();
@@ -110,6 +140,16 @@ public class CounterStoreWithMetrics implements CounterStore {
         }
     }
 
+    @Override
+    public Stream<byte[]> keyBytes() {
+        final Timer.Context context = metricsKeysTimer.time();
+        try {
+            return store.keyBytes();
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public Stream<Map.Entry<String, Long>> scan() {
         final Timer.Context context = metricsScanTimer.time();
@@ -130,6 +170,16 @@ public class CounterStoreWithMetrics implements CounterStore {
         }
     }
 
+    @Override
+    public void scanBytes(ObjLongConsumer<byte[]> callback) {
+        final Timer.Context context = metricsScanTimer.time();
+        try {
+            store.scanBytes(callback);
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public FlushStats getFlushStats() {
         return store.getFlushStats();
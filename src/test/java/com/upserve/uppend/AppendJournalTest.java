@@ -0,0 +1,134 @@
+package com.upserve.uppend;
+
+import com.upserve.uppend.lookup.LookupKey;
+import com.upserve.uppend.util.SafeDeleting;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+import static org.junit.Assert.*;
+
+public class AppendJournalTest {
+    private final Path path = Paths.get("build/test/tmp/journal");
+
+    @Before
+    public void initialize() throws Exception {
+        SafeDeleting.removeTempPath(path);
+        Files.createDirectories(path.getParent());
+    }
+
+    @Test
+    public void testGroupCommitAndReplay() throws Exception {
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        AppendJournal journal = new AppendJournal(path, "test", (partition, key, value) -> 0L, (partition, key, value, position) -> applied.add(partition + "/" + key.string() + "=" + new String(value)));
+
+        CompletableFuture<?>[] futures = IntStream.range(0, 1000)
+                .parallel()
+                .mapToObj(i -> journal.append("partition", new LookupKey("key" + (i % 10)), String.valueOf(i).getBytes()))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(futures).join();
+        assertEquals(1000, applied.size());
+
+        // A crash now would leave every value in the journal, followed by a torn record
+        byte[] journaled = Files.readAllBytes(path);
+        journal.close();
+        assertEquals(0, Files.size(path));
+        Files.write(path, Arrays.copyOf(journaled, journaled.length + 6));
+
+        List<String> replayed = new ArrayList<>();
+        assertEquals(1000, AppendJournal.replay(path, (partition, key, value, position) -> replayed.add(partition + "/" + key.string() + "=" + new String(value))));
+        assertEquals(applied.stream().sorted().collect(Collectors.toList()), replayed.stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testAppendAfterClose() throws Exception {
+        AppendJournal journal = new AppendJournal(path, "test", (partition, key, value) -> 0L, (partition, key, value, position) -> {});
+        journal.close();
+        CompletableFuture<Void> future = journal.append("partition", new LookupKey("key"), new byte[]{1});
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testReplayPassesPositions() throws Exception {
+        AppendJournal journal = new AppendJournal(path, "test", (partition, key, value) -> Long.parseLong(key.string()), (partition, key, value, position) -> {});
+        CompletableFuture.allOf(journal.append("partition", new LookupKey("7"), new byte[]{1}), journal.append("partition", new LookupKey("9"), new byte[]{2})).join();
+        byte[] journaled = Files.readAllBytes(path);
+        journal.close();
+        Files.write(path, journaled);
+
+        List<String> replayed = new ArrayList<>();
+        assertEquals(2, AppendJournal.replay(path, (partition, key, value, position) -> replayed.add(key.string() + "@" + position)));
+        assertEquals(Arrays.asList("7@7", "9@9"), replayed);
+    }
+
+    @Test
+    public void testFailedApplyIsNotReplayed() throws Exception {
+        AppendJournal journal = new AppendJournal(path, "test", (partition, key, value) -> 0L, (partition, key, value, position) -> {
+            if (key.string().equals("bad")) throw new IllegalStateException("expected");
+        });
+        CompletableFuture<Void> good = journal.append("partition", new LookupKey("good"), new byte[]{1});
+        CompletableFuture<Void> bad = journal.append("partition", new LookupKey("bad"), new byte[]{2});
+        CompletableFuture<Void> last = journal.append("partition", new LookupKey("last"), new byte[]{3});
+        good.join();
+        last.join();
+        try {
+            bad.join();
+            fail("expected the append to fail");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        byte[] journaled = Files.readAllBytes(path);
+        journal.close();
+        Files.write(path, journaled);
+
+        List<String> replayed = new ArrayList<>();
+        assertEquals(2, AppendJournal.replay(path, (partition, key, value, position) -> replayed.add(key.string())));
+        assertEquals(Arrays.asList("good", "last"), replayed);
+    }
+
+    @Test
+    public void testFailedCommitIsRemoved() throws Exception {
+        AppendJournal journal = new AppendJournal(path, "test", (partition, key, value) -> {
+            if (key.string().equals("bad")) throw new IllegalStateException("expected");
+            return 0L;
+        }, (partition, key, value, position) -> {});
+        journal.append("partition", new LookupKey("good"), new byte[]{1}).join();
+        long size = Files.size(path);
+        try {
+            journal.append("partition", new LookupKey("bad"), new byte[]{2}).join();
+            fail("expected the append to fail");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(size, Files.size(path));
+        journal.append("partition", new LookupKey("after"), new byte[]{3}).join();
+        byte[] journaled = Files.readAllBytes(path);
+        journal.close();
+        Files.write(path, journaled);
+
+        List<String> replayed = new ArrayList<>();
+        assertEquals(2, AppendJournal.replay(path, (partition, key, value, position) -> replayed.add(key.string())));
+        assertEquals(Arrays.asList("good", "after"), replayed);
+    }
+
+    @Test
+    public void testCheckpointKeepsJournalWhenFlushFails() throws Exception {
+        AppendJournal journal = new AppendJournal(path, "test", (partition, key, value) -> 0L, (partition, key, value, position) -> {});
+        journal.append("partition", new LookupKey("key"), new byte[]{1}).join();
+        long size = Files.size(path);
+        try {
+            journal.checkpoint(() -> {
+                throw new UncheckedIOException(new IOException("flush failed"));
+            });
+            fail("expected the flush failure");
+        } catch (UncheckedIOException e) {
+            assertEquals("flush failed", e.getCause().getMessage());
+        }
+        assertEquals(size, Files.size(path));
+        journal.close();
+    }
+}
@@ -29,4 +29,29 @@ public class AppendOnlyStoreBuilderTest {
         store.flush();
         assertEquals(1, metrics.getTimers().get(MetricRegistry.name("Root", UPPEND_APPEND_STORE, store.getName(), FLUSH_TIMER_METRIC_NAME)).getCount());
     }
+
+    @Test
+    public void testLookupBloomFilterOffByDefault() {
+        assertEquals(0, Uppend.store(Paths.get("build/tmp/test/append-only-store-builder")).getLookupBloomFilterFpp(), 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLookupHashIndexRejectsBloomFilter() {
+        Uppend.store(Paths.get("build/tmp/test/append-only-store-builder")).withLookupBloomFilterFpp(0.01).withLookupHashIndex(true);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLookupBloomFilterRejectsHashIndex() {
+        Uppend.store(Paths.get("build/tmp/test/append-only-store-builder")).withLookupHashIndex(true).withLookupBloomFilterFpp(0.01);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLookupHashIndexRejectsKeyBlocks() {
+        Uppend.store(Paths.get("build/tmp/test/append-only-store-builder")).withLookupKeyBlocks(true).withLookupHashIndex(true);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLookupKeyBlocksRejectsHashIndex() {
+        Uppend.store(Paths.get("build/tmp/test/append-only-store-builder")).withLookupHashIndex(true).withLookupKeyBlocks(true);
+    }
 }
@@ -2,6 +2,7 @@ package com.upserve.uppend;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Longs;
+import com.upserve.uppend.blobs.PageCache;
 import com.upserve.uppend.util.SafeDeleting;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
@@ -11,7 +12,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
+import java.util.stream.*;
 
 import static org.junit.Assert.*;
 
@@ -225,6 +226,475 @@ public class AppendOnlyStoreTest {
         assertEquals("baz", value);
     }
 
+    @Test
+    public void testAppendAll() throws Exception {
+        store.append("partition", "foo", "zero".getBytes());
+
+        AppendBatch batch = new AppendBatch()
+                .add("partition", "foo", "one".getBytes())
+                .add("partition", "bar", "two".getBytes())
+                .add("partition", "foo", "three".getBytes())
+                .add("partition2", "foo", "four".getBytes());
+        for (int i = 0; i < 100; i++) {
+            batch.add("partition", "many", String.valueOf(i).getBytes());
+        }
+        assertEquals(104, batch.size());
+        store.appendAll(batch);
+
+        store.close();
+        store = newStore();
+
+        assertArrayEquals(new String[]{"zero", "one", "three"}, store.readSequential("partition", "foo").map(String::new).toArray(String[]::new));
+        assertArrayEquals(new String[]{"two"}, store.readSequential("partition", "bar").map(String::new).toArray(String[]::new));
+        assertArrayEquals(new String[]{"four"}, store.readSequential("partition2", "foo").map(String::new).toArray(String[]::new));
+        assertArrayEquals(
+                IntStream.range(0, 100).mapToObj(String::valueOf).toArray(String[]::new),
+                store.readSequential("partition", "many").map(String::new).toArray(String[]::new)
+        );
+        assertEquals("99", new String(store.readLast("partition", "many")));
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        assertEquals(0, store.count("partition", "foo"));
+        for (int i = 0; i < 300; i++) {
+            store.append("partition", "foo", String.valueOf(i).getBytes());
+        }
+        store.append("partition", "bar", "baz".getBytes());
+
+        assertEquals(300, store.count("partition", "foo"));
+        assertEquals(1, store.count("partition", "bar"));
+        assertEquals(0, store.count("partition", "qux"));
+        assertEquals(0, store.count("other", "foo"));
+
+        store.close();
+        store = newStore(true);
+        assertEquals(300, store.count("partition", "foo"));
+    }
+
+    @Test
+    public void testReadBuffers() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            store.append("partition", "foo", String.valueOf(i).getBytes());
+        }
+
+        List<String> results = new ArrayList<>();
+        store.read("partition", "foo", buffer -> results.add(StandardCharsets.UTF_8.decode(buffer).toString()));
+        assertEquals(IntStream.range(0, 300).mapToObj(String::valueOf).collect(Collectors.toList()), results);
+
+        results.clear();
+        store.read("partition", "bar", buffer -> results.add("unexpected"));
+        store.read("other", "foo", buffer -> results.add("unexpected"));
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void testReadReverse() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            store.append("partition", "foo", String.valueOf(i).getBytes());
+        }
+
+        assertArrayEquals(
+                IntStream.range(0, 300).map(i -> 299 - i).mapToObj(String::valueOf).toArray(String[]::new),
+                store.readReverse("partition", "foo").map(String::new).toArray(String[]::new)
+        );
+        assertArrayEquals(new String[]{"299", "298"}, store.readReverse("partition", "foo").limit(2).map(String::new).toArray(String[]::new));
+        assertEquals(0, store.readReverse("partition", "bar").count());
+        assertEquals(0, store.readReverse("other", "foo").count());
+    }
+
+    @Test
+    public void testReadRange() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            store.append("partition", "foo", String.valueOf(i).getBytes());
+        }
+
+        assertArrayEquals(new String[]{"0", "1", "2"}, store.readRange("partition", "foo", 0, 3).map(String::new).toArray(String[]::new));
+        assertArrayEquals(new String[]{"200", "201"}, store.readRange("partition", "foo", 200, 2).map(String::new).toArray(String[]::new));
+        assertArrayEquals(new String[]{"298", "299"}, store.readRange("partition", "foo", 298, 10).map(String::new).toArray(String[]::new));
+        assertEquals(0, store.readRange("partition", "foo", 300, 10).count());
+        assertEquals(0, store.readRange("partition", "bar", 0, 10).count());
+        assertEquals(0, store.readRange("other", "foo", 0, 10).count());
+
+        assertArrayEquals(new String[]{"297", "298", "299"}, store.readLastN("partition", "foo", 3).map(String::new).toArray(String[]::new));
+        assertEquals(300, store.readLastN("partition", "foo", 500).count());
+        assertEquals(0, store.readLastN("partition", "bar", 3).count());
+
+        thrown.expect(IllegalArgumentException.class);
+        store.readRange("partition", "foo", -1, 3);
+    }
+
+    @Test
+    public void testGrowingBlocks() throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        store = TestHelper.getDefaultTestBuilder().withDir(path.resolve("store-path")).withBlobsPerBlock(2).withMaximumBlobsPerBlock(64).build();
+
+        for (int i = 0; i < 500; i++) {
+            store.append("partition", "foo", String.valueOf(i).getBytes());
+        }
+        store.close();
+        store = newStore(true);
+
+        assertArrayEquals(
+                IntStream.range(0, 500).mapToObj(String::valueOf).toArray(String[]::new),
+                store.readSequential("partition", "foo").map(String::new).toArray(String[]::new)
+        );
+        assertEquals(500, store.count("partition", "foo"));
+    }
+
+    @Test
+    public void testBlocksFormat() throws Exception {
+        store.append("partition", "foo", "bar".getBytes());
+        store.close();
+        // Fixed size blocks unless blocks grow, so older versions can open the store
+        assertEquals(Collections.singletonList(8L), blocksPosFileSizes(path));
+
+        SafeDeleting.removeDirectory(path);
+        store = TestHelper.getDefaultTestBuilder().withDir(path.resolve("store-path")).withBlobsPerBlock(2).withMaximumBlobsPerBlock(64).build();
+        store.append("partition", "foo", "bar".getBytes());
+        store.close();
+        assertEquals(Collections.singletonList(16L), blocksPosFileSizes(path));
+        store = newStore();
+    }
+
+    private static List<Long> blocksPosFileSizes(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(file -> file.getFileName().toString().equals("blockedLongs.pos")).map(file -> file.toFile().length()).collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testLookupHashIndex() throws Exception {
+        AppendOnlyStoreBuilder builder = TestHelper.getDefaultTestBuilder().withLookupHashIndex(true);
+        assertLookupRoundTrip(builder);
+
+        // Misses probe to an empty slot whether they sort before, between or after the indexed keys
+        for (int i = 500; i < 2000; i++) {
+            assertEquals(0, store.count("partition", "key" + i));
+        }
+        assertEquals(0, store.count("partition", "a"));
+        assertEquals(0, store.count("partition", "key0a"));
+        assertEquals(0, store.count("partition", "zzz"));
+
+        // Keys missing from the index are readable before and after the flush which adds them
+        store.close();
+        store = builder.build();
+        store.append("partition", "key500", "new".getBytes());
+        assertEquals(1, store.count("partition", "key500"));
+        store.flush();
+        store.close();
+        store = builder.build(true);
+        assertEquals(1, store.count("partition", "key500"));
+        assertEquals(2, store.count("partition", "key0"));
+        assertEquals(501, store.keys().count());
+    }
+
+    @Test
+    public void testLookupMetadataRuns() throws Exception {
+        AppendOnlyStoreBuilder builder = TestHelper.getDefaultTestBuilder().withLookupMetadataRuns(2);
+        assertLookupRoundTrip(builder);
+
+        // Keys of merged and pending runs appended again in later runs are not added to them twice
+        store.close();
+        store = builder.build();
+        for (int flush = 0; flush < 3; flush++) {
+            for (int i = 0; i < 600; i += 3) {
+                store.append("partition", "key" + i, "again".getBytes());
+            }
+            store.flush();
+        }
+        store.close();
+        store = builder.build(true);
+
+        for (int i = 0; i < 600; i++) {
+            int expected = (i < 500 ? (i % 2 == 0 ? 2 : 1) : 0) + (i % 3 == 0 ? 3 : 0);
+            assertEquals(expected, store.count("partition", "key" + i));
+        }
+        List<String> keys = store.keys().collect(Collectors.toList());
+        assertEquals(500 + 33, keys.size());
+        assertEquals(keys.size(), new HashSet<>(keys).size());
+        assertEquals(keys.size(), store.keyCount());
+    }
+
+    @Test
+    public void testLookupKeyBlocks() throws Exception {
+        // One lookup hash so the sorted keys of the partition share the blocks
+        AppendOnlyStoreBuilder builder = TestHelper.getDefaultTestBuilder().withLongLookupHashSize(1).withLookupKeyBlocks(true).withLookupMetadataRuns(2);
+        assertLookupRoundTrip(builder);
+
+        // The first and last keys of the blocks, and the keys either side of each restart
+        List<String> sorted = store.keys().sorted().collect(Collectors.toList());
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i % 16 < 2 || i % 16 == 15 || i == sorted.size() - 1) {
+                assertEquals(Integer.parseInt(sorted.get(i).substring(3)) % 2 == 0 ? 2 : 1, store.count("partition", sorted.get(i)));
+            }
+        }
+        assertEquals("key0", sorted.get(0));
+        assertEquals("key99", sorted.get(sorted.size() - 1));
+
+        // Before the first block, between keys of a block and after the last block
+        assertEquals(0, store.count("partition", "key"));
+        assertEquals(0, store.count("partition", "jzz"));
+        assertEquals(0, store.count("partition", "key0a"));
+        assertEquals(0, store.count("partition", "key990"));
+        assertEquals(0, store.count("partition", "zzz"));
+    }
+
+    /**
+     * Append keys over five flushes and again to every other key, then reopen the store read only and check every
+     * key. The store is left open for assertions on the lookup option under test.
+     */
+    private void assertLookupRoundTrip(AppendOnlyStoreBuilder builder) throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        store = builder.withDir(path.resolve("store-path")).build();
+
+        for (int flush = 0; flush < 5; flush++) {
+            for (int i = flush * 100; i < (flush + 1) * 100; i++) {
+                store.append("partition", "key" + i, String.valueOf(i).getBytes());
+            }
+            store.flush();
+        }
+        for (int i = 0; i < 500; i += 2) {
+            store.append("partition", "key" + i, "more".getBytes());
+        }
+        store.close();
+        store = builder.build(true);
+
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i % 2 == 0 ? 2 : 1, store.count("partition", "key" + i));
+        }
+        assertEquals(0, store.count("partition", "missing"));
+        assertEquals(500, store.keys().count());
+    }
+
+    @Test
+    public void testBinaryKeys() throws Exception {
+        byte[] binaryKey = new byte[]{0x00, (byte) 0xff, (byte) 0x80};
+        byte[] reusedKey = new byte[]{0x01};
+        store.append("partition", binaryKey, "one".getBytes());
+        store.append("partition", binaryKey, "two".getBytes());
+        store.append("partition", reusedKey, "three".getBytes());
+        reusedKey[0] = 0x02;
+        store.append("partition", reusedKey, "four".getBytes());
+        store.append("partition", "ascii".getBytes(), "five".getBytes());
+        store.append("partition", "ascii", "six".getBytes());
+
+        store.close();
+        store = newStore(true);
+
+        byte[] key = new byte[]{0x00, (byte) 0xff, (byte) 0x80};
+        assertArrayEquals(new String[]{"one", "two"}, store.readSequential("partition", key).map(String::new).toArray());
+        assertArrayEquals(new String[]{"two", "one"}, store.readReverse("partition", key).map(String::new).toArray());
+        assertEquals("two", new String(store.readLast("partition", key)));
+        assertEquals(2, store.count("partition", key));
+        assertEquals(1, store.count("partition", new byte[]{0x01}));
+        assertEquals(1, store.count("partition", new byte[]{0x02}));
+        assertEquals(0, store.count("partition", new byte[]{0x03}));
+        assertArrayEquals(new String[]{"five", "six"}, store.readSequential("partition", "ascii").map(String::new).toArray());
+        assertEquals(4, store.keyBytes().count());
+
+        Map<String, List<String>> result = new ConcurrentHashMap<>();
+        store.scanBytes((scanKey, values) -> result.put(Arrays.toString(scanKey), values.map(String::new).collect(Collectors.toList())));
+        assertEquals(Arrays.asList("one", "two"), result.get(Arrays.toString(binaryKey)));
+        assertEquals(4, result.size());
+    }
+
+    @Test
+    public void testChangesSince() throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        store = TestHelper.getDefaultTestBuilder().withDir(path.resolve("store-path")).withChangeLog(true).build();
+
+        store.append("partition", "a", "one".getBytes());
+        store.append("partition", "a", "two".getBytes());
+        store.append("other", "b", "three".getBytes());
+        store.appendAll(new AppendBatch().add("partition", "c", "four".getBytes()).add("partition", "c", "five".getBytes()));
+
+        List<String> changes = Collections.synchronizedList(new ArrayList<>());
+        Checkpoint checkpoint = store.changesSince(Checkpoint.EMPTY, change -> changes.add(change.getKey() + "=" + new String(change.getValue())));
+        assertEquals(Arrays.asList("a=one", "a=two", "b=three", "c=five", "c=four"), changes.stream().sorted().collect(Collectors.toList()));
+
+        changes.clear();
+        assertEquals(checkpoint, store.changesSince(checkpoint, change -> changes.add(change.getKey())));
+        assertEquals(0, changes.size());
+
+        store.append("partition", "a", "six".getBytes());
+        store.close();
+        store = newStore(true);
+
+        Checkpoint restored = Checkpoint.fromBytes(checkpoint.toBytes());
+        assertEquals(checkpoint, restored);
+        store.changesSince(restored, change -> changes.add(change.getPartition() + ":" + change.getKey() + "=" + new String(change.getValue())));
+        assertEquals(Collections.singletonList("partition:a=six"), changes);
+    }
+
+    @Test
+    public void testAppendDurable() throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        store = TestHelper.getDefaultTestBuilder().withDir(path.resolve("store-path")).withJournal(true).build();
+
+        CompletableFuture<?>[] futures = IntStream.range(0, 100)
+                .parallel()
+                .mapToObj(i -> store.appendDurable("partition", "key" + (i % 10), String.valueOf(i).getBytes()))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(futures).join();
+        assertEquals(10, store.count("partition", "key3"));
+
+        // Crash before a flush: the journal is left with the values and the partitions are lost
+        Path journal = path.resolve("store-path").resolve("journal");
+        byte[] journaled = Files.readAllBytes(journal);
+        store.clear();
+        store.close();
+        Files.write(journal, journaled);
+
+        store = newStore();
+        assertEquals(10, store.count("partition", "key3"));
+        assertEquals(100, store.scan().flatMap(Map.Entry::getValue).count());
+        assertFalse(Files.exists(journal));
+    }
+
+    @Test
+    public void testReplaySkipsAppendedValues() throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        store = TestHelper.getDefaultTestBuilder().withDir(path.resolve("store-path")).withJournal(true).build();
+
+        CompletableFuture<?>[] futures = IntStream.range(0, 100)
+                .mapToObj(i -> store.appendDurable("partition", "key" + (i % 10), String.valueOf(i % 20).getBytes()))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(futures).join();
+
+        // Crash after the partitions were flushed but before the journal was truncated
+        Path journal = path.resolve("store-path").resolve("journal");
+        byte[] journaled = Files.readAllBytes(journal);
+        store.close();
+        Files.write(journal, journaled);
+
+        store = newStore();
+        assertEquals(10, store.count("partition", "key3"));
+        assertEquals(100, store.scan().flatMap(Map.Entry::getValue).count());
+        assertFalse(Files.exists(journal));
+    }
+
+    @Test
+    public void testReplayMatchesReservedPositions() throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        AppendOnlyStoreBuilder builder = TestHelper.getDefaultTestBuilder().withDir(path.resolve("store-path")).withLongLookupHashSize(1).withJournal(true);
+        store = builder.build();
+
+        // Journal a value, then lose it with the partitions as if the process died before applying it
+        store.appendDurable("partition", "key", "x".getBytes()).join();
+        Path journal = path.resolve("store-path").resolve("journal");
+        byte[] journaled = Files.readAllBytes(journal);
+        store.close();
+        SafeDeleting.removeDirectory(path);
+
+        // An equal value appended without the journal lands after the position reserved for the journaled one
+        store = builder.build();
+        store.append("partition", "other", "pad".getBytes());
+        store.append("partition", "key", "x".getBytes());
+        store.close();
+        Files.write(journal, journaled);
+
+        store = builder.build();
+        assertEquals(2, store.count("partition", "key"));
+    }
+
+    @Test
+    public void testAppendDurableBinaryKey() throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        store = TestHelper.getDefaultTestBuilder().withDir(path.resolve("store-path")).withJournal(true).build();
+
+        byte[] key = new byte[]{0x00, (byte) 0xff, (byte) 0x80};
+        store.appendDurable("partition", key, "one".getBytes()).join();
+        store.appendDurable("partition", key, "two".getBytes()).join();
+        assertArrayEquals(new String[]{"one", "two"}, store.readSequential("partition", key).map(String::new).toArray());
+    }
+
+    @Test
+    public void testAppendDurableWithoutJournal() {
+        thrown.expect(IllegalStateException.class);
+        store.appendDurable("partition", "key", "value".getBytes());
+    }
+
+    @Test
+    public void testAppendAsync() throws Exception {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(store.appendAsync("partition" + (i % 4), "key", String.valueOf(i).getBytes()));
+        }
+        futures.get(99).join();
+        assertArrayEquals(new String[]{"3", "7", "11"}, store.readSequential("partition3", "key").limit(3).map(String::new).toArray());
+
+        store.appendAsync("partition0", "last", "value".getBytes());
+        store.close();
+        store = newStore(true);
+        assertEquals(25, store.count("partition2", "key"));
+        assertEquals("value", new String(store.readLast("partition0", "last")));
+    }
+
+    @Test
+    public void testAppendAsyncBinaryKey() throws Exception {
+        byte[] key = new byte[]{0x00, (byte) 0xff, (byte) 0x80};
+        store.appendAsync("partition", key, "one".getBytes());
+        store.appendAsync("partition", key, "two".getBytes()).join();
+        assertArrayEquals(new String[]{"one", "two"}, store.readSequential("partition", key).map(String::new).toArray());
+    }
+
+    @Test
+    public void testNoChangeLog() throws Exception {
+        store.append("partition", "a", "one".getBytes());
+        List<Change> changes = new ArrayList<>();
+        Checkpoint checkpoint = store.changesSince(Checkpoint.EMPTY, changes::add);
+        assertEquals(0, changes.size());
+        assertEquals(checkpoint, store.changesSince(checkpoint, changes::add));
+    }
+
+    @Test
+    public void testOffHeapLookupKeyCache() throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        store = TestHelper.getDefaultTestBuilder().withDir(path.resolve("store-path")).withOffHeapLookupKeyCache(32).build();
+
+        for (int i = 0; i < 500; i++) {
+            store.append("partition" + (i % 3), "key" + i, String.valueOf(i).getBytes());
+        }
+        store.flush();
+        for (int i = 0; i < 500; i++) {
+            store.append("partition" + (i % 3), "key" + i, "more".getBytes());
+        }
+
+        for (int i = 0; i < 500; i++) {
+            assertEquals(2, store.count("partition" + (i % 3), "key" + i));
+        }
+        assertEquals(0, store.count("partition0", "key1"));
+    }
+
+    @Test
+    public void testSharedPageCache() throws Exception {
+        PageCache shared = new PageCache(64, 64 * 1024 * 1024, ForkJoinPool.commonPool(), null);
+        AppendOnlyStore other = TestHelper.getDefaultTestBuilder().withDir(path.resolve("other-store-path")).withSharedPageCache(shared).build();
+        store.close();
+        store = TestHelper.getDefaultTestBuilder().withDir(path.resolve("store-path")).withSharedPageCache(shared).build();
+
+        for (int i = 0; i < 100; i++) {
+            store.append("partition", "key" + i, ("store" + i).getBytes());
+            other.append("partition", "key" + i, ("other" + i).getBytes());
+        }
+        store.flush();
+        assertTrue(shared.residentBytes() > 0);
+        other.close();
+
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(new String[]{"store" + i}, store.read("partition", "key" + i).map(String::new).toArray(String[]::new));
+        }
+    }
+
     @Test
     public void testMultiPartition() throws Exception {
         store.append("partition", "key", "bar".getBytes());
@@ -0,0 +1,102 @@
+package com.upserve.uppend;
+
+import com.upserve.uppend.lookup.LookupKey;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.stream.*;
+
+import static org.junit.Assert.*;
+
+public class AsyncAppenderTest {
+
+    @Test
+    public void testAppendsInOrderPerPartition() throws Exception {
+        Map<String, List<String>> appended = new ConcurrentHashMap<>();
+        AsyncAppender appender = new AsyncAppender("test", 3, 1024, false, Function.identity(), (partition, keyValues) ->
+                keyValues.forEach((key, values) -> values.forEach(value -> appended.computeIfAbsent(partition + "/" + key.string(), k -> Collections.synchronizedList(new ArrayList<>())).add(new String(value))))
+        );
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(appender.append("partition" + (i % 7), new LookupKey("key" + (i % 3)), String.valueOf(i).getBytes()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        assertEquals(0, appender.inFlightBytes());
+        appender.close();
+
+        assertEquals(21, appended.size());
+        appended.forEach((key, values) -> {
+            List<Integer> ints = values.stream().map(Integer::valueOf).collect(Collectors.toList());
+            assertEquals(ints.stream().sorted().collect(Collectors.toList()), ints);
+        });
+        assertEquals(1000, appended.values().stream().mapToInt(List::size).sum());
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncAppender appender = new AsyncAppender("test", 1, 10, true, Function.identity(), (partition, keyValues) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        CompletableFuture<Void> first = appender.append("partition", new LookupKey("key"), new byte[8]);
+        CompletableFuture<Void> rejected = appender.append("partition", new LookupKey("key"), new byte[8]);
+        assertTrue(rejected.isCompletedExceptionally());
+        assertEquals(8, appender.inFlightBytes());
+
+        release.countDown();
+        first.join();
+        assertEquals(0, appender.inFlightBytes());
+        appender.append("partition", new LookupKey("key"), new byte[100]).join();
+        appender.close();
+    }
+
+    @Test
+    public void testFailedAppend() throws Exception {
+        AsyncAppender appender = new AsyncAppender("test", 1, 10, false, Function.identity(), (partition, keyValues) -> {
+            throw new IllegalStateException("expected");
+        });
+        CompletableFuture<Void> future = appender.append("partition", new LookupKey("key"), new byte[8]);
+        try {
+            future.join();
+            fail("expected the append to fail");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, appender.inFlightBytes());
+        appender.close();
+        assertTrue(appender.append("partition", new LookupKey("key"), new byte[1]).isCompletedExceptionally());
+    }
+
+    @Test
+    public void testAppendRacingClose() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            AsyncAppender appender = new AsyncAppender("test", 2, 1024, false, Function.identity(), (partition, keyValues) -> {});
+            ExecutorService producers = Executors.newFixedThreadPool(4);
+            List<Future<List<CompletableFuture<Void>>>> produced = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final int producer = i;
+                produced.add(producers.submit(() -> IntStream.range(0, 500)
+                        .mapToObj(j -> appender.append("partition" + producer, new LookupKey("key"), new byte[4]))
+                        .collect(Collectors.toList())));
+            }
+            appender.close();
+            producers.shutdown();
+
+            // Every value is either appended or failed as closed, none is left waiting on a stopped worker
+            for (Future<List<CompletableFuture<Void>>> futures : produced) {
+                for (CompletableFuture<Void> future : futures.get(10, TimeUnit.SECONDS)) {
+                    assertTrue(future.isDone());
+                }
+            }
+            assertEquals(0, appender.inFlightBytes());
+        }
+    }
+}
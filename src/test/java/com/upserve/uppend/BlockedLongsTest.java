@@ -9,6 +9,7 @@ import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import java.util.stream.*;
 
@@ -88,6 +89,312 @@ public class BlockedLongsTest {
         }, v.values(pos2).toArray());
     }
 
+    @Test
+    public void testAppendAll() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 10, readOnly);
+        long pos1 = v.allocate();
+        v.append(pos1, 0);
+        long[] vals = LongStream.range(0, 40).toArray();
+        v.appendAll(pos1, vals, 1, 8);
+        v.appendAll(pos1, vals, 9, 0);
+        v.appendAll(pos1, vals, 9, 31);
+        long pos2 = v.allocate();
+        v.appendAll(pos2, vals, 0, 10);
+        v.append(pos2, 10);
+
+        assertArrayEquals(vals, v.values(pos1).toArray());
+        assertEquals(39, v.lastValue(pos1));
+        assertArrayEquals(LongStream.range(0, 11).toArray(), v.values(pos2).toArray());
+        assertEquals(10, v.lastValue(pos2));
+        assertEquals(51, v.stats().getAppendCount());
+    }
+
+    @Test
+    public void testConcurrentLockFreeAppend() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 2, 16, true, readOnly);
+        long[] positions = LongStream.range(0, 4).map(i -> v.allocate()).toArray();
+        IntStream.range(0, 8000).parallel().forEach(i -> {
+            long pos = positions[i % positions.length];
+            if (i % 3 == 0) {
+                v.appendAll(pos, new long[]{i, i + 100_000, i + 200_000}, 0, 3);
+            } else {
+                v.append(pos, i);
+            }
+        });
+        for (int p = 0; p < positions.length; p++) {
+            final int chain = p;
+            long[] expected = IntStream.range(0, 8000)
+                    .filter(i -> i % positions.length == chain)
+                    .mapToObj(i -> i % 3 == 0 ? LongStream.of(i, i + 100_000, i + 200_000) : LongStream.of(i))
+                    .flatMapToLong(s -> s)
+                    .sorted()
+                    .toArray();
+            assertEquals(expected.length, v.count(positions[p]));
+            long[] values = v.values(positions[p]).toArray();
+            assertArrayEquals(expected, Arrays.stream(values).sorted().toArray());
+            assertCallOrder(values);
+        }
+        v.close();
+    }
+
+    @Test
+    public void testLockFreeAppendAllocationFailure() throws Exception {
+        AtomicInteger allocations = new AtomicInteger();
+        BlockedLongs v = new BlockedLongs(path, 2, 16, true, readOnly) {
+            @Override
+            long allocate(int capacity) {
+                if (capacity > 2 && allocations.incrementAndGet() % 3 == 0) throw new IllegalStateException("expected");
+                return super.allocate(capacity);
+            }
+        };
+        long pos = v.allocate();
+        Set<Integer> failed = ConcurrentHashMap.newKeySet();
+        IntStream.range(0, 3000).parallel().forEach(i -> {
+            try {
+                v.appendAll(pos, new long[]{i, i + 100_000, i + 200_000}, 0, 3);
+            } catch (IllegalStateException e) {
+                assertEquals("expected", e.getMessage());
+                failed.add(i);
+            }
+        });
+        assertFalse(failed.isEmpty());
+
+        // A failed append may have published the values before its allocation, but the others are all there
+        long[] values = v.values(pos).toArray();
+        Set<Long> appended = Arrays.stream(values).boxed().collect(Collectors.toSet());
+        assertEquals(values.length, appended.size());
+        IntStream.range(0, 3000).filter(i -> !failed.contains(i)).forEach(i -> {
+            assertTrue(appended.contains((long) i));
+            assertTrue(appended.contains(i + 100_000L));
+            assertTrue(appended.contains(i + 200_000L));
+        });
+        assertEquals(values.length, v.count(pos));
+        assertCallOrder(values);
+        v.close();
+    }
+
+    @Test
+    public void testLockFreeAppendReturnsReservation() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 2, 16, true, readOnly) {
+            @Override
+            protected void writeLong(long pos, long val) {
+                if (val == -1) throw new IllegalStateException("expected");
+                super.writeLong(pos, val);
+            }
+        };
+        long pos = v.allocate();
+        v.appendAll(pos, new long[]{1, 2}, 0, 2);
+        // Fails writing the next block after reserving the slot past the capacity of the first
+        try {
+            v.appendAll(pos, new long[]{3, -1, 4}, 0, 3);
+            fail("expected the append to fail");
+        } catch (IllegalStateException e) {
+            assertEquals("expected", e.getMessage());
+        }
+        v.append(pos, 5);
+        // Fails writing the values of its reservation in the second block
+        try {
+            v.appendAll(pos, new long[]{6, -1}, 0, 2);
+            fail("expected the append to fail");
+        } catch (IllegalStateException e) {
+            assertEquals("expected", e.getMessage());
+        }
+        v.appendAll(pos, new long[]{7, 8}, 0, 2);
+        assertArrayEquals(new long[]{1, 2, 5, 7, 8}, v.values(pos).toArray());
+        assertEquals(5, v.count(pos));
+        v.close();
+    }
+
+    private void assertCallOrder(long[] values) {
+        // The values of one call stay in order whatever they are interleaved with
+        Map<Long, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < values.length; i++) indexes.put(values[i], i);
+        for (long value : values) {
+            if (value < 100_000 && indexes.containsKey(value + 100_000)) {
+                assertTrue(indexes.get(value) < indexes.get(value + 100_000));
+                if (indexes.containsKey(value + 200_000)) assertTrue(indexes.get(value + 100_000) < indexes.get(value + 200_000));
+            }
+        }
+    }
+
+    @Test
+    public void testGrowingBlocks() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 2, 16, readOnly);
+        assertTrue(v.isExtendedBlocks());
+        long pos1 = v.allocate();
+        for (long i = 0; i < 100; i++) {
+            v.append(pos1, i);
+        }
+        long pos2 = v.allocate();
+        long[] vals = LongStream.range(0, 100).toArray();
+        v.append(pos2, 0);
+        v.appendAll(pos2, vals, 1, 99);
+
+        assertArrayEquals(vals, v.values(pos1).toArray());
+        assertArrayEquals(vals, v.values(pos2).toArray());
+        assertEquals(99, v.lastValue(pos1));
+        assertEquals(99, v.lastValue(pos2));
+        // blocks of 2, 4, 8 and 16 values then 16 values per block up to 100 values
+        assertEquals(18, v.stats().getAllocCount());
+        assertEquals(2 * (9 * 32 + (2 + 4 + 8 + 16 * 6) * 8), v.size());
+        assertEquals(100, v.count(pos1));
+        assertEquals(100, v.count(pos2));
+        v.close();
+
+        BlockedLongs reader = new BlockedLongs(path, 2, true);
+        assertTrue(reader.isExtendedBlocks());
+        assertArrayEquals(vals, reader.values(pos1).toArray());
+        reader.close();
+
+        v = new BlockedLongs(path, 2, false);
+        assertTrue(v.isExtendedBlocks());
+        v.append(pos1, 100);
+        assertArrayEquals(LongStream.range(0, 101).toArray(), v.values(pos1).toArray());
+        v.close();
+    }
+
+    @Test
+    public void testReadOnlyValuesIterator() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 4, readOnly);
+        long pos1 = v.allocate();
+        for (long i = 0; i < 10; i++) {
+            v.append(pos1, i);
+        }
+        v.flush();
+
+        BlockedLongs reader = new BlockedLongs(path, 4, true);
+        PrimitiveIterator.OfLong iter = reader.valuesIterator(pos1);
+        for (long i = 0; i < 10; i++) {
+            assertTrue(iter.hasNext());
+            assertEquals(i, iter.nextLong());
+        }
+        assertFalse(iter.hasNext());
+        assertEquals(9, reader.lastValue(pos1));
+
+        // values appended after the reader was opened are visible through the mapped pages
+        long pos2 = v.allocate();
+        v.append(pos2, 42);
+        v.append(pos1, 10);
+        assertArrayEquals(LongStream.range(0, 11).toArray(), reader.values(pos1).toArray());
+        assertArrayEquals(new long[]{42}, reader.values(pos2).toArray());
+        assertEquals(42, reader.lastValue(pos2));
+        assertFalse(reader.valuesIterator(null).hasNext());
+        reader.close();
+        v.close();
+    }
+
+    @Test
+    public void testMaxValuesPerBlockKeptForExistingFile() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 2, 16, readOnly);
+        long pos1 = v.allocate();
+        // fill blocks of 2, 4, 8 and 16 values
+        v.appendAll(pos1, LongStream.range(0, 30).toArray(), 0, 30);
+        v.close();
+
+        v = new BlockedLongs(path, 2, 4, readOnly);
+        long size = v.size();
+        v.append(pos1, 30);
+        assertEquals(size + 32 + 16 * 8, v.size());
+        assertArrayEquals(LongStream.range(0, 31).toArray(), v.values(pos1).toArray());
+        v.close();
+    }
+
+    @Test
+    public void testGrowingBlocksIgnoredForExistingFile() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 10, readOnly);
+        long pos1 = v.allocate();
+        v.append(pos1, 1);
+        v.close();
+
+        v = new BlockedLongs(path, 10, 100, readOnly);
+        assertFalse(v.isExtendedBlocks());
+        assertEquals(16 + 10 * 8, v.allocate());
+        assertArrayEquals(new long[]{1}, v.values(pos1).toArray());
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        BlockedLongs fixed = new BlockedLongs(path, 3, readOnly);
+        assertFalse(fixed.isExtendedBlocks());
+        assertEquals(0, fixed.count(null));
+        assertEquals(0, fixed.count(0L));
+        long pos1 = fixed.allocate();
+        assertEquals(0, fixed.count(pos1));
+        for (long i = 0; i < 10; i++) {
+            fixed.append(pos1, i);
+            assertEquals(i + 1, fixed.count(pos1));
+        }
+        fixed.close();
+        SafeDeleting.removeTempPath(path);
+        SafeDeleting.removeTempPath(posPath);
+
+        BlockedLongs extended = new BlockedLongs(path, 3, 6, readOnly);
+        assertTrue(extended.isExtendedBlocks());
+        long pos2 = extended.allocate();
+        long pos3 = extended.allocate();
+        for (long i = 0; i < 10; i++) {
+            extended.append(pos2, i);
+            assertEquals(i + 1, extended.count(pos2));
+        }
+        extended.appendAll(pos3, LongStream.range(0, 10).toArray(), 0, 10);
+        assertEquals(10, extended.count(pos3));
+        extended.close();
+
+        BlockedLongs reader = new BlockedLongs(path, 3, true);
+        assertEquals(10, reader.count(pos2));
+        assertEquals(10, reader.count(pos3));
+        reader.close();
+    }
+
+    @Test
+    public void testValuesRange() throws Exception {
+        assertValuesRange(new BlockedLongs(path, 3, readOnly));
+        SafeDeleting.removeTempPath(path);
+        SafeDeleting.removeTempPath(posPath);
+        assertValuesRange(new BlockedLongs(path, 2, 16, readOnly));
+    }
+
+    @Test
+    public void testReverseValues() throws Exception {
+        assertReverseValues(new BlockedLongs(path, 3, readOnly));
+        SafeDeleting.removeTempPath(path);
+        SafeDeleting.removeTempPath(posPath);
+        assertReverseValues(new BlockedLongs(path, 2, 16, readOnly));
+    }
+
+    private void assertReverseValues(BlockedLongs v) throws Exception {
+        long pos1 = v.allocate();
+        long pos2 = v.allocate();
+        assertEquals(0, v.reverseValues(pos1).count());
+        assertEquals(0, v.reverseValues(null).count());
+        for (long i = 0; i < 50; i++) {
+            v.append(pos1, i);
+            v.append(pos2, i * 10);
+            final long last = i;
+            assertArrayEquals(LongStream.rangeClosed(0, last).map(j -> last - j).toArray(), v.reverseValues(pos1).toArray());
+        }
+        assertArrayEquals(new long[]{490, 480, 470}, v.reverseValues(pos2).limit(3).toArray());
+        v.close();
+    }
+
+    private void assertValuesRange(BlockedLongs v) throws Exception {
+        long pos = v.allocate();
+        long[] vals = LongStream.range(0, 100).toArray();
+        v.appendAll(pos, vals, 0, vals.length);
+
+        for (int offset = 0; offset <= 105; offset++) {
+            for (int limit : new int[]{0, 1, 5, 50, 200}) {
+                long[] expected = LongStream.range(offset, Math.min(100, offset + limit)).toArray();
+                assertArrayEquals("offset " + offset + " limit " + limit, expected, v.values(pos, offset, limit).toArray());
+            }
+        }
+        assertArrayEquals(LongStream.range(90, 100).toArray(), v.lastValues(pos, 10).toArray());
+        assertArrayEquals(vals, v.lastValues(pos, 1000).toArray());
+        assertEquals(0, v.lastValues(pos, 0).count());
+        assertEquals(0, v.values(null, 5, 5).count());
+        v.close();
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testAppendAtNonStartingBlock() throws Exception {
         BlockedLongs v = new BlockedLongs(path, 10, readOnly);
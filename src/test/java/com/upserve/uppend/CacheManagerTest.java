@@ -0,0 +1,113 @@
+package com.upserve.uppend;
+
+import com.codahale.metrics.*;
+import com.upserve.uppend.util.SafeDeleting;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CacheManagerTest {
+    private final Path path = Paths.get("build/test/cache-manager");
+
+    private static final long KEY_BUDGET = 1024 * 1024;
+    private static final long METADATA_BUDGET = 512 * 1024;
+
+    private MetricRegistry metrics;
+    private CacheManager cacheManager;
+
+    @Before
+    public void initialize() throws IOException {
+        SafeDeleting.removeDirectory(path);
+        metrics = new MetricRegistry();
+        cacheManager = new CacheManager(16 * 1024 * 1024, KEY_BUDGET, METADATA_BUDGET, 0, metrics, "root");
+    }
+
+    @After
+    public void cleanUp() {
+        cacheManager.close();
+    }
+
+    private AppendOnlyStore newStore(String name) {
+        return TestHelper.getDefaultTestBuilder()
+                .withStoreName(name)
+                .withDir(path.resolve(name))
+                .withCacheManager(cacheManager)
+                .build();
+    }
+
+    @Test
+    public void testTargets() {
+        assertArrayEquals(new long[]{500, 500}, CacheManager.targets(1000, new long[]{0, 0}));
+        assertArrayEquals(new long[]{875, 125}, CacheManager.targets(1000, new long[]{10, 0}));
+        assertArrayEquals(new long[]{500, 500}, CacheManager.targets(1000, new long[]{10, 10}));
+        assertArrayEquals(new long[]{312, 687}, CacheManager.targets(1000, new long[]{1, 3}));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOffHeapLookupKeyCacheRejected() {
+        TestHelper.getDefaultTestBuilder().withCacheManager(cacheManager).withOffHeapLookupKeyCache(64);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCacheManagerRejectedWithOffHeapLookupKeyCache() {
+        TestHelper.getDefaultTestBuilder().withOffHeapLookupKeyCache(64).withCacheManager(cacheManager);
+    }
+
+    @Test
+    public void testRegisterSplitsEvenly() throws Exception {
+        try (AppendOnlyStore first = newStore("first")) {
+            assertEquals(KEY_BUDGET, (long) cacheManager.getLookupKeyCacheAllocations().get("first"));
+
+            try (AppendOnlyStore second = newStore("second")) {
+                Map<String, Long> keyAllocations = cacheManager.getLookupKeyCacheAllocations();
+                assertEquals(KEY_BUDGET / 2, (long) keyAllocations.get("first"));
+                assertEquals(KEY_BUDGET / 2, (long) keyAllocations.get("second"));
+                assertEquals(METADATA_BUDGET / 2, (long) cacheManager.getMetadataCacheAllocations().get("second"));
+
+                Gauge gauge = metrics.getGauges().get("root.CacheManager.second.lookupKeyCacheAllocation");
+                assertEquals(KEY_BUDGET / 2, gauge.getValue());
+            }
+
+            assertEquals(KEY_BUDGET, (long) cacheManager.getLookupKeyCacheAllocations().get("first"));
+            assertFalse(metrics.getGauges().containsKey("root.CacheManager.second.lookupKeyCacheAllocation"));
+        }
+        assertTrue(cacheManager.getLookupKeyCacheAllocations().isEmpty());
+    }
+
+    @Test
+    public void testRebalanceFavorsMisses() throws Exception {
+        try (AppendOnlyStore busy = newStore("busy"); AppendOnlyStore idle = newStore("idle")) {
+            for (int i = 0; i < 100; i++) {
+                busy.append("partition", "key" + i, "value".getBytes());
+            }
+            busy.flush();
+            for (int i = 0; i < 100; i++) {
+                assertEquals(0, busy.read("partition", "missing" + i).count());
+            }
+
+            cacheManager.rebalance();
+
+            Map<String, Long> keyAllocations = cacheManager.getLookupKeyCacheAllocations();
+            assertTrue(keyAllocations.get("busy") > keyAllocations.get("idle"));
+            assertTrue(keyAllocations.get("busy") + keyAllocations.get("idle") <= KEY_BUDGET);
+        }
+    }
+
+    @Test
+    public void testSharedPageCache() throws Exception {
+        try (AppendOnlyStore first = newStore("first"); AppendOnlyStore second = newStore("second")) {
+            first.append("partition", "key", "first".getBytes());
+            second.append("partition", "key", "second".getBytes());
+            first.flush();
+            second.flush();
+
+            assertTrue(cacheManager.getPageCache().residentBytes() > 0);
+            assertArrayEquals(new String[]{"first"}, first.read("partition", "key").map(String::new).toArray(String[]::new));
+            assertArrayEquals(new String[]{"second"}, second.read("partition", "key").map(String::new).toArray(String[]::new));
+        }
+    }
+}
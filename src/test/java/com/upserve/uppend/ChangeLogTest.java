@@ -0,0 +1,50 @@
+package com.upserve.uppend;
+
+import com.upserve.uppend.blobs.*;
+import com.upserve.uppend.lookup.LookupKey;
+import com.upserve.uppend.util.SafeDeleting;
+import org.junit.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ChangeLogTest {
+    private final Path path = Paths.get("build/test/tmp/change-log/changes");
+
+    @Before
+    public void initialize() throws Exception {
+        SafeDeleting.removeDirectory(path.getParent());
+        Files.createDirectories(path.getParent());
+    }
+
+    private PageCache pageCache() {
+        return new PageCache(1024, 16, 64, ForkJoinPool.commonPool(), null);
+    }
+
+    @Test
+    public void testReadStepsOverAbandonedRecord() throws Exception {
+        ChangeLog changeLog = new ChangeLog(path, 1, false, pageCache());
+        changeLog.append(0, new LookupKey("a"), new long[]{1, 2}, 0, 2);
+        changeLog.close();
+
+        // A record reserved by a writer which failed before writing it: the size is there but not the contents
+        VirtualPageFile logFile = new VirtualPageFile(path, 1, false, pageCache());
+        new VirtualAppendOnlyBlobStore(0, logFile).appendSizeFirst(new byte[24]);
+        logFile.close();
+
+        changeLog = new ChangeLog(path, 1, false, pageCache());
+        List<String> changes = new ArrayList<>();
+        long position = changeLog.read(0, 0, (key, blobPositions) -> changes.add(new String(key) + Arrays.toString(blobPositions)));
+        assertEquals(Collections.singletonList("a[1, 2]"), changes);
+
+        // The abandoned record was the last one so it may have still been written; once followed it is stepped over
+        changeLog.append(0, new LookupKey("b"), new long[]{3}, 0, 1);
+        changes.clear();
+        changeLog.read(0, position, (key, blobPositions) -> changes.add(new String(key) + Arrays.toString(blobPositions)));
+        assertEquals(Collections.singletonList("b[3]"), changes);
+        changeLog.close();
+    }
+}
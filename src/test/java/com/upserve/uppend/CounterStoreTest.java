@@ -201,6 +201,33 @@ public class CounterStoreTest {
         assertEquals(expected, result);
     }
 
+    @Test
+    public void testBinaryKeys() throws Exception {
+        byte[] binaryKey = new byte[]{0x00, (byte) 0xff, (byte) 0x80};
+        byte[] reusedKey = new byte[]{0x01};
+        store.increment("partition", binaryKey, 2);
+        store.increment("partition", reusedKey);
+        reusedKey[0] = 0x02;
+        store.set("partition", reusedKey, 5);
+        store.increment("partition", "ascii".getBytes());
+        store.increment("partition", "ascii");
+
+        store.close();
+        store = newStore(true);
+
+        assertEquals(Long.valueOf(2), store.get("partition", new byte[]{0x00, (byte) 0xff, (byte) 0x80}));
+        assertEquals(Long.valueOf(1), store.get("partition", new byte[]{0x01}));
+        assertEquals(Long.valueOf(5), store.get("partition", new byte[]{0x02}));
+        assertEquals(Long.valueOf(2), store.get("partition", "ascii"));
+        assertNull(store.get("partition", new byte[]{0x03}));
+        assertEquals(4, store.keyBytes().count());
+
+        Map<String, Long> result = new ConcurrentHashMap<>();
+        store.scanBytes((key, value) -> result.put(Arrays.toString(key), value));
+        assertEquals(Long.valueOf(2), result.get(Arrays.toString(binaryKey)));
+        assertEquals(Long.valueOf(2), result.get(Arrays.toString("ascii".getBytes())));
+    }
+
     @Test
     public void testExample() {
         store.increment("2017-11-30", "bbbbbbbb-bbbbbbb-bbbb-bbbbbbb-bbbb::bbbbbbb");
@@ -1,7 +1,7 @@
 package com.upserve.uppend;
 
 import com.upserve.uppend.blobs.VirtualPageFile;
-import com.upserve.uppend.lookup.LookupCache;
+import com.upserve.uppend.lookup.*;
 import com.upserve.uppend.util.SafeDeleting;
 import org.junit.*;
 
@@ -145,8 +145,8 @@ public class FileStoreTest {
     @Test
     public void testStreamPartitionsNonEmpty() {
         MyFileStore v = new MyFileStore(path.resolve("stream-partitions-non-empty"), 0);
-        v.getOrCreate("p1").append("k1", "v1".getBytes());
-        v.getOrCreate("p2").append("k2", "v2".getBytes());
+        v.getOrCreate("p1").append(new LookupKey("k1"), "v1".getBytes());
+        v.getOrCreate("p2").append(new LookupKey("k2"), "v2".getBytes());
         v.flush();
         //flush(v);
         //v.close();
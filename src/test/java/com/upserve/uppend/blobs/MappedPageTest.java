@@ -5,6 +5,7 @@ import org.junit.*;
 import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.Random;
@@ -13,6 +14,7 @@ import static java.lang.Integer.min;
 import static java.lang.Math.max;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class MappedPageTest {
     Path rootPath = Paths.get("build/test/blobs/filepage");
@@ -49,6 +51,21 @@ public class MappedPageTest {
         }
     }
 
+    @Test
+    public void testGetIntAndSlice() {
+        rwPage.put(1000, new byte[]{0, 0, 1, 2, 7, 8, 9}, 0);
+        assertEquals(258, roPage.getInt(1000));
+
+        ByteBuffer slice = roPage.slice(1004, 3);
+        assertTrue(slice.isReadOnly());
+        assertEquals(3, slice.remaining());
+        assertEquals(7, slice.get());
+        assertEquals(8, slice.get());
+        assertEquals(9, slice.get());
+
+        assertEquals(null, roPage.slice(1020, 5));
+    }
+
     @Test
     public void testZeroOffsetZeroPositionLessThanPageSize() {
         putGetHelper(281, 0, 0);
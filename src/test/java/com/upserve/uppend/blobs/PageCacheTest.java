@@ -1,5 +1,6 @@
 package com.upserve.uppend.blobs;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.upserve.uppend.*;
 import com.upserve.uppend.util.SafeDeleting;
 import org.junit.*;
@@ -8,9 +9,9 @@ import org.junit.rules.ExpectedException;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.concurrent.*;
+import java.util.stream.IntStream;
 
-import static org.junit.Assert.assertArrayEquals;
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class PageCacheTest {
     private final String name = "page_cache_test";
@@ -86,4 +87,57 @@ public class PageCacheTest {
         setup(false);
         assertEquals(512, instance.getPageSize());
     }
+
+    @Test
+    public void testByteWeightedSharedCache() throws IOException {
+        PageCache shared = new PageCache(16, 4 * 512, MoreExecutors.newDirectExecutorService(), null);
+        PageCache view = shared.view(512, rootPath);
+        assertEquals(512, view.getPageSize());
+
+        virtualPageFile = new VirtualPageFile(existingFile, 12, false, view);
+        try {
+            MappedPage first = (MappedPage) view.get(0, existingFile, pageKey -> virtualPageFile.mappedPage(pageKey.getPosition()));
+            for (int i = 1; i <= 8; i++) {
+                view.get(i * 520, existingFile, pageKey -> virtualPageFile.mappedPage(pageKey.getPosition()));
+            }
+            assertEquals(4 * 512, shared.residentBytes());
+
+            // Flushing a view only invalidates the pages of its files
+            shared.view(512, rootPath.resolve("other")).flush();
+            assertEquals(4 * 512, shared.residentBytes());
+
+            first = (MappedPage) view.get(0, existingFile, pageKey -> virtualPageFile.mappedPage(pageKey.getPosition()));
+            assertTrue(first.retain()); // Pin the page while it is invalidated
+            view.flush();
+            assertEquals(0, shared.residentBytes());
+
+            assertFalse(first.isReleased());
+            first.put(0, "abc".getBytes(), 0);
+            first.release();
+            assertTrue(first.isReleased());
+            assertFalse(first.retain());
+        } finally {
+            virtualPageFile.close();
+        }
+    }
+
+    @Test
+    public void testReadAfterEviction() throws IOException {
+        PageCache shared = new PageCache(16, 2 * 512, MoreExecutors.newDirectExecutorService(), null);
+
+        virtualPageFile = new VirtualPageFile(existingFile, 12, false, shared.view(512, rootPath));
+        try {
+            VirtualAppendOnlyBlobStore blobStore = new VirtualAppendOnlyBlobStore(3, virtualPageFile);
+            long[] positions = IntStream.range(0, 200).mapToLong(i -> blobStore.append(("blob" + i).getBytes())).toArray();
+
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 200; i++) {
+                    assertEquals("blob" + i, new String(blobStore.read(positions[i])));
+                }
+            }
+            assertTrue(shared.residentBytes() <= 2 * 512);
+        } finally {
+            virtualPageFile.close();
+        }
+    }
 }
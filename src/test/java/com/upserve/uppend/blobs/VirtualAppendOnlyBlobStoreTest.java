@@ -5,12 +5,16 @@ import com.upserve.uppend.util.SafeDeleting;
 import org.junit.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.*;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class VirtualAppendOnlyBlobStoreTest {
 
@@ -106,6 +110,94 @@ public class VirtualAppendOnlyBlobStoreTest {
                 .forEach(storeNumber -> testVirtualBlobStore(storeNumber, 2));
     }
 
+    @Test
+    public void testAppendAll() {
+        setup(25);
+        VirtualAppendOnlyBlobStore blobStore = new VirtualAppendOnlyBlobStore(3, virtualPageFile);
+
+        long first = blobStore.append("first".getBytes());
+        List<byte[]> values = IntStream.range(0, 20).mapToObj(i -> sampleValue("a", 3, i).getBytes()).collect(Collectors.toList());
+        long[] positions = blobStore.appendAll(values);
+
+        assertEquals(20, positions.length);
+        assertEquals(first + 4 + 5, positions[0]);
+        assertEquals(positions[19] + 4 + 13, blobStore.getPosition());
+        assertEquals("first", new String(blobStore.read(first)));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(sampleValue("a", 3, i), new String(blobStore.read(positions[i])));
+        }
+    }
+
+    @Test
+    public void testReadPositions() {
+        setup(25);
+        VirtualAppendOnlyBlobStore blobStore = new VirtualAppendOnlyBlobStore(5, virtualPageFile);
+
+        long[] positions = IntStream.range(0, 200).mapToLong(i -> blobStore.append(sampleValue("b", 5, i).getBytes())).toArray();
+
+        assertArrayEquals(
+                IntStream.range(0, 200).mapToObj(i -> sampleValue("b", 5, i)).toArray(String[]::new),
+                blobStore.read(positions).map(String::new).toArray(String[]::new)
+        );
+
+        // positions need not be in page order
+        long[] shuffled = new long[]{positions[150], positions[3], positions[4], positions[199], positions[3]};
+        assertArrayEquals(
+                new String[]{sampleValue("b", 5, 150), sampleValue("b", 5, 3), sampleValue("b", 5, 4), sampleValue("b", 5, 199), sampleValue("b", 5, 3)},
+                blobStore.read(shuffled).map(String::new).toArray(String[]::new)
+        );
+        assertEquals(0, blobStore.read(new long[0]).count());
+    }
+
+    @Test
+    public void testReadPositionsIterator() {
+        setup(64 * 1024);
+        VirtualAppendOnlyBlobStore blobStore = new VirtualAppendOnlyBlobStore(5, virtualPageFile);
+
+        int count = 3 * VirtualAppendOnlyBlobStore.MAX_READ_GROUP_SIZE;
+        long[] positions = IntStream.range(0, count).mapToLong(i -> blobStore.append(sampleValue("c", 5, i).getBytes())).toArray();
+
+        assertArrayEquals(
+                IntStream.range(0, count).mapToObj(i -> sampleValue("c", 5, i)).toArray(String[]::new),
+                blobStore.read(Arrays.stream(positions).iterator()).map(String::new).toArray(String[]::new)
+        );
+
+        // positions are taken from the iterator a group at a time as the stream is consumed
+        AtomicInteger taken = new AtomicInteger();
+        PrimitiveIterator.OfLong iterator = Arrays.stream(positions).peek(pos -> taken.incrementAndGet()).iterator();
+        assertEquals(sampleValue("c", 5, 0), new String(blobStore.read(iterator).sequential().findFirst().orElse(null)));
+        assertTrue(taken.get() <= VirtualAppendOnlyBlobStore.MAX_READ_GROUP_SIZE + 1);
+
+        assertArrayEquals(
+                IntStream.range(0, count).mapToObj(i -> sampleValue("c", 5, i)).toArray(String[]::new),
+                blobStore.read(Arrays.stream(positions).iterator(), count).map(String::new).toArray(String[]::new)
+        );
+
+        // a parallel stream does not split a read expected to be small, so it still takes a group at a time
+        taken.set(0);
+        iterator = Arrays.stream(positions).peek(pos -> taken.incrementAndGet()).iterator();
+        assertEquals(sampleValue("c", 5, 0), new String(blobStore.read(iterator, 0).findFirst().orElse(null)));
+        assertTrue(taken.get() <= VirtualAppendOnlyBlobStore.MAX_READ_GROUP_SIZE + 1);
+    }
+
+    @Test
+    public void testReadBuffer() {
+        setup(25);
+        VirtualAppendOnlyBlobStore blobStore = new VirtualAppendOnlyBlobStore(6, virtualPageFile);
+
+        long[] positions = IntStream.range(0, 50).mapToLong(i -> blobStore.append(sampleValue("c", 6, i).getBytes())).toArray();
+
+        for (int i = 0; i < 50; i++) {
+            final String expected = sampleValue("c", 6, i);
+            blobStore.readBuffer(positions[i], buffer -> {
+                assertTrue(buffer.isReadOnly());
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                assertEquals(expected, new String(bytes));
+            });
+        }
+    }
+
     @Test
     public void testConcurrent() {
         setup(1280);
@@ -1,13 +1,16 @@
 package com.upserve.uppend.blobs;
 
+import com.google.common.primitives.Ints;
 import com.upserve.uppend.util.SafeDeleting;
 import org.junit.*;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.stream.IntStream;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 
 public class VirtualPageFileTest {
@@ -80,4 +83,56 @@ public class VirtualPageFileTest {
     }
 
 
+
+    @Test
+    public void testPagesBeyondPageTable() throws IOException {
+        int lastPage = VirtualPageFile.PAGES_PER_VIRUAL_FILE + 250;
+        instance = new VirtualPageFile(path, 3, 64, false);
+        byte[] result = new byte[3];
+
+        instance.getCachedOrCreatePage(0, lastPage, false).put(16, "abc".getBytes(), 0);
+        instance.getCachedOrCreatePage(2, VirtualPageFile.PAGES_PER_VIRUAL_FILE, false).put(8, "def".getBytes(), 0);
+
+        VirtualPageFile reader = new VirtualPageFile(path, 3, 64, true);
+        assertTrue(reader.isPageAvailable(0, lastPage));
+        reader.getExistingPage(0, lastPage).get(16, result, 0);
+        assertArrayEquals("abc".getBytes(), result);
+
+        // Pages allocated after the reader was opened are found by following the page chain
+        instance.getCachedOrCreatePage(0, lastPage + 10, false).put(4, "ghi".getBytes(), 0);
+        assertTrue(reader.isPageAvailable(0, lastPage + 10));
+        reader.getExistingPage(0, lastPage + 10).get(4, result, 0);
+        assertArrayEquals("ghi".getBytes(), result);
+        reader.close();
+
+        instance.close();
+        instance = new VirtualPageFile(path, 3, 64, false);
+
+        instance.getExistingPage(0, lastPage).get(16, result, 0);
+        assertArrayEquals("abc".getBytes(), result);
+        instance.getExistingPage(2, VirtualPageFile.PAGES_PER_VIRUAL_FILE).get(8, result, 0);
+        assertArrayEquals("def".getBytes(), result);
+        assertFalse(instance.isPageAvailable(2, VirtualPageFile.PAGES_PER_VIRUAL_FILE + 1));
+
+        instance.getCachedOrCreatePage(2, VirtualPageFile.PAGES_PER_VIRUAL_FILE + 1, false).put(0, "jkl".getBytes(), 0);
+        instance.getExistingPage(2, VirtualPageFile.PAGES_PER_VIRUAL_FILE + 1).get(0, result, 0);
+        assertArrayEquals("jkl".getBytes(), result);
+    }
+
+    @Test
+    public void testConcurrentReadsBeyondPageTable() throws IOException {
+        int pages = VirtualPageFile.PAGES_PER_VIRUAL_FILE + 1100;
+        instance = new VirtualPageFile(path, 2, 64, false);
+        for (int page = 0; page < pages; page++) {
+            instance.getCachedOrCreatePage(1, page, false).put(0, Ints.toByteArray(page), 0);
+        }
+
+        VirtualPageFile reader = new VirtualPageFile(path, 2, 64, true);
+        IntStream.range(0, pages).parallel().map(page -> pages - 1 - page).forEach(page -> {
+            byte[] result = new byte[4];
+            reader.getExistingPage(1, page).get(0, result, 0);
+            assertEquals(page, Ints.fromByteArray(result));
+        });
+        reader.close();
+    }
 }
@@ -448,7 +448,7 @@ public class LookupDataTest {
                 });
 
         assertLookupKeyCache(0, 100_000, 100_000, 0);
-        assertLookupPagesCache(233307, 104, 104, 0);
+        assertLookupPagesCache(15329, 104, 104, 0);
         assertLookupMetadataCache(99_999, 1, 1, 0);
     }
 
@@ -526,6 +526,113 @@ public class LookupDataTest {
         });
     }
 
+    @Test
+    public void testScanSplitsByRange() {
+        LookupData data = new LookupData(keyBlobStore, mutableBlobStore, partitionLookupCache, false);
+        putAndFlush(data, 0, 1000);
+        IntStream.range(1000, 1200).forEach(i -> data.put(new LookupKey("key" + i), i));
+
+        Spliterator<Map.Entry<LookupKey, Long>> spliterator = data.scan().spliterator();
+        assertEquals(1200, spliterator.getExactSizeIfKnown());
+        assertTrue(spliterator.hasCharacteristics(Spliterator.SUBSIZED));
+
+        // Each split takes the lower half of the range, covering flushed keys first and then the write cache
+        Spliterator<Map.Entry<LookupKey, Long>> prefix = spliterator.trySplit();
+        assertEquals(600, prefix.getExactSizeIfKnown());
+        assertEquals(600, spliterator.getExactSizeIfKnown());
+
+        Set<String> keys = new HashSet<>();
+        prefix.forEachRemaining(entry -> assertTrue(keys.add(entry.getKey().string())));
+        spliterator.forEachRemaining(entry -> assertTrue(keys.add(entry.getKey().string())));
+        assertEquals(1200, keys.size());
+
+        assertEquals(1200, data.keys().parallel().map(LookupKey::string).distinct().count());
+        assertEquals(IntStream.range(0, 1200).asLongStream().sum(), data.scan().mapToLong(Map.Entry::getValue).sum());
+    }
+
+    private void putAndFlush(LookupData data, int start, int end) {
+        IntStream.range(start, end).forEach(i -> data.put(new LookupKey("key" + i), i));
+        data.flush();
+    }
+
+    private void assertKeys(LookupData data, int numKeys) {
+        for (int i = 0; i < numKeys; i++) {
+            assertEquals(Long.valueOf(i), data.getValue(new LookupKey("key" + i)));
+        }
+        assertNull(data.getValue(new LookupKey("key" + numKeys)));
+        assertEquals(numKeys, data.keyCount());
+        assertEquals(numKeys, data.keys().count());
+    }
+
+    @Test
+    public void testMetadataRuns() throws IOException {
+        LookupData data = new LookupData(keyBlobStore, mutableBlobStore, partitionLookupCache, LookupDataOptions.DEFAULT.withBloomFilterFpp(0.01).withMaximumMetadataRuns(100), false);
+        putAndFlush(data, 0, 50);
+        putAndFlush(data, 50, 60);
+        putAndFlush(data, 60, 75);
+
+        LookupMetadata metadata = lookupCache.getMetadata(data);
+        assertEquals(2, metadata.getRuns().size());
+        assertEquals(50, metadata.getKeyStorageOrder().length);
+        assertEquals(75, metadata.getNumKeys());
+        assertKeys(data, 75);
+
+        // Reload the runs from disk
+        lookupCache.flush();
+        assertEquals(2, lookupCache.getMetadata(data).getRuns().size());
+        assertKeys(data, 75);
+
+        tearDown();
+        setup(true);
+
+        data = new LookupData(keyBlobStore, mutableBlobStore, partitionLookupCache, true);
+        assertKeys(data, 75);
+    }
+
+    @Test
+    public void testMergeMetadataRuns() {
+        LookupData data = new LookupData(keyBlobStore, mutableBlobStore, partitionLookupCache, LookupDataOptions.DEFAULT.withBloomFilterFpp(0.01).withMaximumMetadataRuns(3), false);
+        putAndFlush(data, 0, 50);
+        putAndFlush(data, 100, 110);
+        putAndFlush(data, 50, 100);
+        putAndFlush(data, 110, 120);
+
+        data.compactMetadata();
+
+        LookupMetadata metadata = lookupCache.getMetadata(data);
+        assertEquals(0, metadata.getRuns().size());
+        assertEquals(120, metadata.getKeyStorageOrder().length);
+        assertKeys(data, 120);
+
+        List<LookupKey> sorted = Arrays.stream(metadata.getKeyStorageOrder()).mapToObj(position -> data.readKey((long) position)).collect(Collectors.toList());
+        assertEquals(sorted.stream().sorted().collect(Collectors.toList()), sorted);
+
+        // Stale runs after the merged metadata are not read
+        lookupCache.flush();
+        assertEquals(0, lookupCache.getMetadata(data).getRuns().size());
+        putAndFlush(data, 120, 125);
+        lookupCache.flush();
+        assertEquals(1, lookupCache.getMetadata(data).getRuns().size());
+        assertKeys(data, 125);
+    }
+
+    @Test
+    public void testMetadataRunsMergedWhenDisabled() {
+        LookupData data = new LookupData(keyBlobStore, mutableBlobStore, partitionLookupCache, LookupDataOptions.DEFAULT.withBloomFilterFpp(0.01).withMaximumMetadataRuns(100), false);
+        putAndFlush(data, 0, 50);
+        putAndFlush(data, 50, 60);
+        lookupCache.flush();
+
+        data = new LookupData(keyBlobStore, mutableBlobStore, partitionLookupCache, LookupDataOptions.DEFAULT.withBloomFilterFpp(0.01).withMaximumMetadataRuns(0), false);
+        assertKeys(data, 60);
+        putAndFlush(data, 60, 70);
+
+        LookupMetadata metadata = lookupCache.getMetadata(data);
+        assertEquals(0, metadata.getRuns().size());
+        assertEquals(70, metadata.getKeyStorageOrder().length);
+        assertKeys(data, 70);
+    }
+
     @Test
     public void testLoadReadOnlyMetadata() {
         LookupData data = new LookupData(keyBlobStore, mutableBlobStore, partitionLookupCache, true);
@@ -0,0 +1,63 @@
+package com.upserve.uppend.lookup;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class LookupKeyTest {
+
+    @Test
+    public void testConstructorsAreEquivalent() {
+        LookupKey fromString = new LookupKey("some-key");
+        LookupKey fromCharSequence = new LookupKey(new StringBuilder("some-key"));
+        LookupKey fromBytes = new LookupKey("some-key".getBytes(StandardCharsets.US_ASCII));
+
+        ByteBuffer buffer = ByteBuffer.wrap("xxsome-key".getBytes(StandardCharsets.US_ASCII));
+        buffer.position(2);
+        LookupKey fromBuffer = new LookupKey(buffer);
+        assertEquals(2, buffer.position());
+
+        for (LookupKey key : new LookupKey[]{fromCharSequence, fromBytes, fromBuffer}) {
+            assertEquals(fromString, key);
+            assertEquals(fromString.hashCode(), key.hashCode());
+            assertEquals("some-key", key.string());
+        }
+    }
+
+    @Test
+    public void testHashMatchesPartitionHash() {
+        // The hash selects the lookup data of existing stores so it must not change
+        LookupKey key = new LookupKey("some-key");
+        assertEquals(Hashing.murmur3_32(219370429).hashBytes(key.bytes()).asInt(), key.hashCode());
+        assertEquals(key.hashCode(), key.hashCode());
+    }
+
+    @Test
+    public void testNotEqual() {
+        LookupKey keyA = new LookupKey("a");
+        LookupKey keyB = new LookupKey("b");
+        keyA.hashCode();
+        keyB.hashCode();
+        assertNotEquals(keyA, keyB);
+        assertNotEquals(keyA, new LookupKey("ab"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonAscii() {
+        new LookupKey("caf\u00e9");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFirstNonAscii() {
+        new LookupKey("\u0080");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullString() {
+        new LookupKey((String) null);
+    }
+}
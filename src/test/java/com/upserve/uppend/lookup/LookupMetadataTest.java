@@ -91,7 +91,7 @@ public class LookupMetadataTest {
         buildSimpleTestData(metadataBlobs);
 
         LookupMetadata result = LookupMetadata.open(metadataBlobs, 3);
-        assertArrayEquals(new int[]{0, 12}, result.getKeyStorageOrder());
+        assertArrayEquals(new long[]{0, 12}, result.getKeyStorageOrder());
         assertEquals(new LookupKey("b"), result.getMaxKey());
         assertEquals(new LookupKey("a"), result.getMinKey());
         assertEquals(3, result.getMetadataGeneration());
@@ -101,7 +101,7 @@ public class LookupMetadataTest {
     public void testOpen() {
         LookupMetadata initialMetadata = LookupMetadata.open(metadataBlobs, 2);
 
-        assertArrayEquals(new int[]{}, initialMetadata.getKeyStorageOrder());
+        assertArrayEquals(new long[]{}, initialMetadata.getKeyStorageOrder());
         assertNull(initialMetadata.getMaxKey());
         assertNull(initialMetadata.getMinKey());
         assertEquals(2, initialMetadata.getMetadataGeneration());
@@ -115,7 +115,7 @@ public class LookupMetadataTest {
 
         LookupMetadata initialMetadata = LookupMetadata.open(metadataBlobs, 2);
 
-        assertArrayEquals(new int[]{}, initialMetadata.getKeyStorageOrder());
+        assertArrayEquals(new long[]{}, initialMetadata.getKeyStorageOrder());
         assertNull(initialMetadata.getMaxKey());
         assertNull(initialMetadata.getMinKey());
         assertEquals(2, initialMetadata.getMetadataGeneration());
@@ -124,7 +124,7 @@ public class LookupMetadataTest {
 
     @Test
     public void testEmptyLookup() {
-        LookupMetadata initialMetadata = new LookupMetadata(null, null, new int[0], 1);
+        LookupMetadata initialMetadata = new LookupMetadata(null, null, new long[0], 1);
 
         LookupKey searchKey = new LookupKey("Foo");
         Long result = initialMetadata.findKey(mockLongBlobStore, searchKey);
@@ -141,7 +141,7 @@ public class LookupMetadataTest {
     @Test
     public void testOneKeyLookupAbove() {
         LookupKey oneKey = new LookupKey("Foo");
-        LookupMetadata initialMetadata = new LookupMetadata(oneKey, oneKey, new int[]{0}, 1);
+        LookupMetadata initialMetadata = new LookupMetadata(oneKey, oneKey, new long[]{0}, 1);
 
         LookupKey searchKey = new LookupKey("Bar");
         Long result = initialMetadata.findKey(mockLongBlobStore, searchKey);
@@ -158,7 +158,7 @@ public class LookupMetadataTest {
     @Test
     public void testOneKeyLookupBelow() {
         LookupKey oneKey = new LookupKey("Foo");
-        LookupMetadata initialMetadata = new LookupMetadata(oneKey, oneKey, new int[]{0}, 1);
+        LookupMetadata initialMetadata = new LookupMetadata(oneKey, oneKey, new long[]{0}, 1);
 
         LookupKey searchKey = new LookupKey("Zar");
         Long result = initialMetadata.findKey(mockLongBlobStore, searchKey);
@@ -175,7 +175,7 @@ public class LookupMetadataTest {
     @Test
     public void testOneKeyLookupEquals() {
         LookupKey oneKey = new LookupKey("Foo");
-        LookupMetadata initialMetadata = new LookupMetadata(oneKey, oneKey, new int[]{0}, 1);
+        LookupMetadata initialMetadata = new LookupMetadata(oneKey, oneKey, new long[]{0}, 1);
 
         Long expected = 5L;
         when(mockLongBlobStore.readLong(0)).thenReturn(expected);
@@ -195,7 +195,7 @@ public class LookupMetadataTest {
     public void testTwoKeyLookupBelowLower() {
         LookupKey bKey = new LookupKey("b");
         LookupKey yKey = new LookupKey("y");
-        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new int[]{0, 1}, 1);
+        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new long[]{0, 1}, 1);
 
         LookupKey searchKey = new LookupKey("a");
         Long result = initialMetadata.findKey(mockLongBlobStore, searchKey);
@@ -213,7 +213,7 @@ public class LookupMetadataTest {
     public void testTwoKeyLookupEqualsLower() {
         LookupKey bKey = new LookupKey("b");
         LookupKey yKey = new LookupKey("y");
-        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new int[]{0, 1}, 1);
+        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new long[]{0, 1}, 1);
 
         Long expected = 5L;
         when(mockLongBlobStore.readLong(0)).thenReturn(expected);
@@ -233,7 +233,7 @@ public class LookupMetadataTest {
     public void testTwoKeyLookupInBetween() {
         LookupKey bKey = new LookupKey("b");
         LookupKey yKey = new LookupKey("y");
-        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new int[]{0, 1}, 1);
+        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new long[]{0, 1}, 1);
 
         LookupKey searchKey = new LookupKey("m");
         Long result = initialMetadata.findKey(mockLongBlobStore, searchKey);
@@ -250,7 +250,7 @@ public class LookupMetadataTest {
     public void testTwoKeyLookupEqualsUpper() {
         LookupKey bKey = new LookupKey("b");
         LookupKey yKey = new LookupKey("y");
-        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new int[]{0, 1}, 1);
+        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new long[]{0, 1}, 1);
 
         Long expected = 5L;
         when(mockLongBlobStore.readLong(1)).thenReturn(expected);
@@ -270,7 +270,7 @@ public class LookupMetadataTest {
     public void testTwoKeyLookupEqualsUpperDifferentSortOrder() {
         LookupKey bKey = new LookupKey("b");
         LookupKey yKey = new LookupKey("y");
-        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new int[]{1, 0}, 1);
+        LookupMetadata initialMetadata = new LookupMetadata(bKey, yKey, new long[]{1, 0}, 1);
 
         Long expected = 5L;
         when(mockLongBlobStore.readLong(0)).thenReturn(expected);
@@ -290,7 +290,7 @@ public class LookupMetadataTest {
     public void testTwoKeyLookupAboveUpper() {
         LookupKey bKey = new LookupKey("b");
         LookupKey yKey = new LookupKey("y");
-        LookupMetadata metadata = new LookupMetadata(bKey, yKey, new int[]{0, 1}, 1);
+        LookupMetadata metadata = new LookupMetadata(bKey, yKey, new long[]{0, 1}, 1);
 
 
         LookupKey searchKey = new LookupKey("z");
@@ -308,7 +308,7 @@ public class LookupMetadataTest {
     public void testManyKeysEqualsLastMidpoint() {
         LookupKey bKey = new LookupKey("b");
         LookupKey yKey = new LookupKey("y");
-        LookupMetadata metadata = new LookupMetadata(bKey, yKey, new int[]{12, 7, 8, 1, 11, 6, 3, 5, 10, 2, 0, 4, 9}, 1);
+        LookupMetadata metadata = new LookupMetadata(bKey, yKey, new long[]{12, 7, 8, 1, 11, 6, 3, 5, 10, 2, 0, 4, 9}, 1);
 
         when(mockLongBlobStore.readBlob(3L)).thenReturn("m".getBytes()); // First midpoint is the 6th sort value => 3
         when(mockLongBlobStore.readBlob(2L)).thenReturn("s".getBytes()); // Second midpoint is the 9th sort value => 2
@@ -342,7 +342,7 @@ public class LookupMetadataTest {
     public void testManyKeysBelowLastMidpoint() {
         LookupKey bKey = new LookupKey("b");
         LookupKey yKey = new LookupKey("y");
-        LookupMetadata metadata = new LookupMetadata(bKey, yKey, new int[]{12, 7, 8, 1, 11, 6, 3, 5, 10, 2, 0, 4, 9}, 1);
+        LookupMetadata metadata = new LookupMetadata(bKey, yKey, new long[]{12, 7, 8, 1, 11, 6, 3, 5, 10, 2, 0, 4, 9}, 1);
 
         when(mockLongBlobStore.readBlob(3L)).thenReturn("m".getBytes()); // First midpoint is the 6th sort value => 3
         when(mockLongBlobStore.readBlob(2L)).thenReturn("u".getBytes()); // Second midpoint is the 9th sort value => 2
@@ -387,7 +387,7 @@ public class LookupMetadataTest {
     public void testManyKeysAboveLastMidpoint() {
         LookupKey bKey = new LookupKey("b");
         LookupKey yKey = new LookupKey("y");
-        LookupMetadata metadata = new LookupMetadata(bKey, yKey, new int[]{12, 7, 8, 1, 11, 6, 3, 5, 10, 2, 0, 4, 9}, 1);
+        LookupMetadata metadata = new LookupMetadata(bKey, yKey, new long[]{12, 7, 8, 1, 11, 6, 3, 5, 10, 2, 0, 4, 9}, 1);
 
 
         when(mockLongBlobStore.readBlob(3L)).thenReturn("m".getBytes()); // First midpoint is the 6th sort value => 3
@@ -463,11 +463,306 @@ public class LookupMetadataTest {
                 );
     }
 
+    @Test
+    public void testHashIndexLookup() {
+        AppendOnlyStoreBuilder defaults = TestHelper.getDefaultTestBuilder()
+                .withLookupPageSize(32 * 1024)
+                .withMaximumLookupKeyCacheWeight(1024 * 1024);
+
+        PageCache pageCache = defaults.buildLookupPageCache(name);
+        LookupCache lookupCache = defaults.buildLookupCache(name);
+
+        PartitionLookupCache partitionLookupCache = PartitionLookupCache.create("partition", lookupCache);
+
+        VirtualPageFile keysData = new VirtualPageFile(keysPath, NUMBER_OF_STORES, false, pageCache);
+        VirtualLongBlobStore keyStore = new VirtualLongBlobStore(5, keysData);
+
+        // Written without the index first so the index must be built from the existing keys
+        LookupData lookupData = new LookupData(keyStore, metadataBlobs, partitionLookupCache, LookupDataOptions.DEFAULT, false);
+        List<Integer> keys = Ints.asList(IntStream.range(0, 4000).map(i -> i * 2).toArray());
+        Collections.shuffle(keys, new Random(1234));
+        keys.subList(0, 1000).forEach(k -> lookupData.put(new LookupKey(String.valueOf(k)), 1000 + k));
+        lookupData.flush();
+        assertNull(LookupMetadata.open(metadataBlobs, 2).getHashIndex());
+
+        LookupData hashedLookupData = new LookupData(keyStore, metadataBlobs, PartitionLookupCache.create("partition", lookupCache), LookupDataOptions.DEFAULT.withHashIndex(true), false);
+        keys.subList(1000, 3000).forEach(k -> hashedLookupData.put(new LookupKey(String.valueOf(k)), 1000 + k));
+        hashedLookupData.flush();
+        keys.subList(3000, 4000).forEach(k -> hashedLookupData.put(new LookupKey(String.valueOf(k)), 1000 + k));
+        hashedLookupData.flush();
+
+        LookupMetadata metadata = LookupMetadata.open(metadataBlobs, 2);
+        assertNotNull(metadata.getHashIndex());
+        assertEquals(4000, metadata.getNumKeys());
+
+        new Random()
+                .ints(10_000, 0, 8000)
+                .parallel()
+                .forEach(key -> {
+                            Long expected = null;
+                            if (key % 2 == 0) expected = 1000L + key;
+                            assertEquals(expected, metadata.findKey(keyStore, new LookupKey(String.valueOf(key))));
+                        }
+                );
+
+        // The sort order is still maintained for new keys found missing by the hash index
+        LookupKey newKey = new LookupKey("10001");
+        assertNull(metadata.findKey(keyStore, newKey));
+        metadata.bisect(keyStore, newKey);
+        int insertAfter = newKey.getInsertAfterSortIndex();
+        assertTrue(new LookupKey(keyStore.readBlob(metadata.getKeyStorageOrder()[insertAfter])).compareTo(newKey) < 0);
+        assertTrue(new LookupKey(keyStore.readBlob(metadata.getKeyStorageOrder()[insertAfter + 1])).compareTo(newKey) > 0);
+    }
+
+    @Test
+    public void testHashIndexReadWrite() throws Exception {
+        LookupKey keyA = new LookupKey("a");
+        LookupKey keyB = new LookupKey("b");
+        LookupHashIndex hashIndex = new LookupHashIndex(2);
+        hashIndex.put(LookupHashIndex.fingerprint(keyA), 0);
+        hashIndex.put(LookupHashIndex.fingerprint(keyB), 12);
+        new LookupMetadata(keyA, keyB, new long[]{0, 12}, hashIndex, null, 0).writeTo(metadataBlobs);
+
+        LookupMetadata result = LookupMetadata.open(metadataBlobs, 3);
+        assertArrayEquals(new long[]{0, 12}, result.getKeyStorageOrder());
+        assertEquals(keyA, result.getMinKey());
+        assertEquals(keyB, result.getMaxKey());
+        assertEquals(0, result.getHashIndex().find(LookupHashIndex.fingerprint(keyA), position -> true));
+        assertEquals(12, result.getHashIndex().find(LookupHashIndex.fingerprint(keyB), position -> position == 12));
+        assertEquals(-1, result.getHashIndex().find(LookupHashIndex.fingerprint(new LookupKey("c")), position -> false));
+    }
+
+    @Test
+    public void testHashIndexCollisions() {
+        // Four keys get eight slots: 1 and 9 share slot 1, 2 is pushed past it and 7 and 15 wrap around the end
+        LookupHashIndex hashIndex = new LookupHashIndex(4);
+        hashIndex.put(1, 10);
+        hashIndex.put(9, 20);
+        hashIndex.put(1, 30);
+        hashIndex.put(2, 40);
+        hashIndex.put(7, 50);
+        hashIndex.put(15, 60);
+
+        // Equal fingerprints are told apart by the key at the position
+        assertEquals(10, hashIndex.find(1, position -> position == 10));
+        assertEquals(30, hashIndex.find(1, position -> position == 30));
+        assertEquals(20, hashIndex.find(9, position -> true));
+        assertEquals(40, hashIndex.find(2, position -> true));
+        assertEquals(50, hashIndex.find(7, position -> true));
+        assertEquals(60, hashIndex.find(15, position -> true));
+
+        // Misses probe to the first empty slot
+        assertEquals(-1, hashIndex.find(1, position -> false));
+        assertEquals(-1, hashIndex.find(17, position -> true));
+        assertEquals(-1, hashIndex.find(23, position -> true));
+    }
+
+    @Test
+    public void testIntPositionsFormat() throws Exception {
+        LookupKey keyA = new LookupKey("a");
+        LookupKey keyB = new LookupKey("b");
+        new LookupMetadata(keyA, keyB, new long[]{0, Integer.MAX_VALUE}, 0).writeTo(metadataBlobs);
+
+        byte[] bytes = metadataBlobs.read(0L);
+        assertEquals(2, Ints.fromByteArray(bytes));
+        assertEquals(12 + 2 + 8, bytes.length);
+        LookupMetadata result = LookupMetadata.open(metadataBlobs, 3);
+        assertArrayEquals(new long[]{0, Integer.MAX_VALUE}, result.getKeyStorageOrder());
+        assertEquals(Integer.MAX_VALUE, result.keyPosition(1));
+    }
+
+    @Test
+    public void testLongPositionsReadWrite() throws Exception {
+        LookupKey keyA = new LookupKey("a");
+        LookupKey keyB = new LookupKey("b");
+        long largePosition = 5L * Integer.MAX_VALUE;
+        LookupHashIndex hashIndex = new LookupHashIndex(2);
+        hashIndex.put(LookupHashIndex.fingerprint(keyA), 0);
+        hashIndex.put(LookupHashIndex.fingerprint(keyB), largePosition);
+        new LookupMetadata(keyA, keyB, new long[]{0, largePosition}, hashIndex, null, 0).writeTo(metadataBlobs);
+
+        byte[] bytes = metadataBlobs.read(0L);
+        assertEquals(2 | LookupMetadata.LONG_POSITIONS_FLAG, Ints.fromByteArray(bytes));
+
+        LookupMetadata result = LookupMetadata.open(metadataBlobs, 3);
+        assertEquals(2, result.getNumKeys());
+        assertArrayEquals(new long[]{0, largePosition}, result.getKeyStorageOrder());
+        assertEquals(2, result.getNumSortedKeys());
+        assertEquals(largePosition, result.keyPosition(1));
+        assertEquals(keyA, result.getMinKey());
+        assertEquals(keyB, result.getMaxKey());
+        assertEquals(largePosition, result.getHashIndex().find(LookupHashIndex.fingerprint(keyB), position -> position == largePosition));
+
+        when(mockLongBlobStore.readLong(largePosition)).thenReturn(7L);
+        LookupKey key = new LookupKey("b");
+        assertEquals(Long.valueOf(7), result.bisect(mockLongBlobStore, key));
+        assertEquals(largePosition, key.getPosition());
+    }
+
+    @Test
+    public void testBloomFilterReadWrite() throws Exception {
+        LookupKey keyA = new LookupKey("a");
+        LookupKey keyB = new LookupKey("b");
+        LookupBloomFilter bloomFilter = LookupBloomFilter.create(2, 0.01);
+        bloomFilter.put(keyA);
+        bloomFilter.put(keyB);
+        new LookupMetadata(keyA, keyB, new long[]{0, 12}, null, bloomFilter, 0).writeTo(metadataBlobs);
+
+        LookupMetadata result = LookupMetadata.open(metadataBlobs, 3);
+        assertArrayEquals(new long[]{0, 12}, result.getKeyStorageOrder());
+        assertNull(result.getHashIndex());
+        assertTrue(result.getBloomFilter().mightContain(keyA));
+        assertTrue(result.getBloomFilter().mightContain(keyB));
+        assertFalse(result.getBloomFilter().mightContain(new LookupKey("c")));
+
+        // A definite miss does not read any keys and is marked to be bisected at flush
+        LookupKey keyC = new LookupKey("c");
+        assertNull(result.findKey(mockLongBlobStore, keyC));
+        assertEquals(-1, keyC.getMetaDataGeneration());
+        verifyZeroInteractions(mockLongBlobStore);
+    }
+
+    @Test
+    public void testBloomFilterLookup() {
+        AppendOnlyStoreBuilder defaults = TestHelper.getDefaultTestBuilder()
+                .withLookupPageSize(32 * 1024)
+                .withMaximumLookupKeyCacheWeight(1024 * 1024);
+
+        PageCache pageCache = defaults.buildLookupPageCache(name);
+        LookupCache lookupCache = defaults.buildLookupCache(name);
+
+        VirtualPageFile keysData = new VirtualPageFile(keysPath, NUMBER_OF_STORES, false, pageCache);
+        VirtualLongBlobStore keyStore = new VirtualLongBlobStore(5, keysData);
+
+        LookupData lookupData = new LookupData(keyStore, metadataBlobs, PartitionLookupCache.create("partition", lookupCache), LookupDataOptions.DEFAULT.withBloomFilterFpp(0.01), false);
+        List<Integer> keys = Ints.asList(IntStream.range(0, 4000).map(i -> i * 2).toArray());
+        Collections.shuffle(keys, new Random(1234));
+        // The second flush outgrows the initial filter so it is rebuilt, the third copies it
+        keys.subList(0, 500).forEach(k -> lookupData.put(new LookupKey(String.valueOf(k)), 1000 + k));
+        lookupData.flush();
+        keys.subList(500, 3000).forEach(k -> lookupData.put(new LookupKey(String.valueOf(k)), 1000 + k));
+        lookupData.flush();
+        keys.subList(3000, 4000).forEach(k -> lookupData.put(new LookupKey(String.valueOf(k)), 1000 + k));
+        lookupData.flush();
+
+        LookupMetadata metadata = LookupMetadata.open(metadataBlobs, 2);
+        assertNotNull(metadata.getBloomFilter());
+        assertEquals(4000, metadata.getNumKeys());
+
+        new Random()
+                .ints(10_000, 0, 8000)
+                .parallel()
+                .forEach(key -> {
+                            Long expected = null;
+                            if (key % 2 == 0) expected = 1000L + key;
+                            assertEquals(expected, metadata.findKey(keyStore, new LookupKey(String.valueOf(key))));
+                        }
+                );
+    }
+
+    @Test
+    public void testKeyBlocksReadWrite() throws Exception {
+        // Enough keys for several blocks and a partial last block, sharing long prefixes
+        int numKeys = 3 * LookupKeyBlocks.RESTART_INTERVAL + 5;
+        long[] positions = new long[numKeys];
+        LookupKeyBlocks.Builder builder = new LookupKeyBlocks.Builder(numKeys);
+        for (int i = 0; i < numKeys; i++) {
+            positions[i] = 100L * i;
+            builder.add(String.format("some/common/prefix/%04d", 2 * i).getBytes());
+        }
+        LookupKey minKey = new LookupKey("some/common/prefix/0000");
+        LookupKey maxKey = new LookupKey(String.format("some/common/prefix/%04d", 2 * (numKeys - 1)));
+        LookupMetadata.generateMetadata(minKey, maxKey, positions, null, null, builder.build(), 0L, metadataBlobs, 1);
+
+        LookupMetadata result = LookupMetadata.open(metadataBlobs, 3);
+        assertEquals(numKeys, result.getKeyBlocks().getNumKeys());
+        assertTrue(result.getKeyBlocks().byteSize() < numKeys * minKey.byteLength());
+
+        for (int i = 0; i < numKeys; i++) {
+            when(mockLongBlobStore.readLong(100L * i)).thenReturn((long) i);
+            LookupKey key = new LookupKey(String.format("some/common/prefix/%04d", 2 * i));
+            assertEquals(Long.valueOf(i), result.findKey(mockLongBlobStore, key));
+            assertEquals(100L * i, key.getPosition());
+
+            LookupKey missing = new LookupKey(String.format("some/common/prefix/%04d", 2 * i + 1));
+            assertNull(result.findKey(mockLongBlobStore, missing));
+            assertEquals(3, missing.getMetaDataGeneration());
+            assertEquals(i, missing.getInsertAfterSortIndex());
+        }
+        LookupKey below = new LookupKey("some");
+        assertNull(result.findKey(mockLongBlobStore, below));
+        assertEquals(-1, below.getInsertAfterSortIndex());
+
+        // Keys are compared in memory - only values are read
+        verify(mockLongBlobStore, never()).readBlob(anyLong());
+    }
+
+    @Test
+    public void testKeyBlocksBoundaries() {
+        // Two full blocks and a last block of one key
+        int numKeys = 2 * LookupKeyBlocks.RESTART_INTERVAL + 1;
+        LookupKeyBlocks.Builder builder = new LookupKeyBlocks.Builder(numKeys);
+        for (int i = 0; i < numKeys; i++) {
+            builder.add(String.format("key%04d", 2 * i).getBytes());
+        }
+        LookupKeyBlocks blocks = builder.build();
+
+        for (int i : new int[]{0, 1, 15, 16, 17, 31, 32}) {
+            assertEquals(i, blocks.find(String.format("key%04d", 2 * i).getBytes()));
+            // The key just after each boundary key is inserted after it
+            assertEquals(-(i + 1) - 1, blocks.find(String.format("key%04d", 2 * i + 1).getBytes()));
+        }
+        assertEquals(-1, blocks.find("key".getBytes()));
+        assertEquals(-1, blocks.find(new byte[0]));
+        assertEquals(-numKeys - 1, blocks.find("key9999".getBytes()));
+        assertEquals(-numKeys - 1, blocks.find("l".getBytes()));
+    }
+
+    @Test
+    public void testKeyBlocksLookup() {
+        AppendOnlyStoreBuilder defaults = TestHelper.getDefaultTestBuilder()
+                .withLookupPageSize(32 * 1024)
+                .withMaximumLookupKeyCacheWeight(1024 * 1024);
+
+        PageCache pageCache = defaults.buildLookupPageCache(name);
+        LookupCache lookupCache = defaults.buildLookupCache(name);
+
+        VirtualPageFile keysData = new VirtualPageFile(keysPath, NUMBER_OF_STORES, false, pageCache);
+        VirtualLongBlobStore keyStore = new VirtualLongBlobStore(5, keysData);
+
+        // The first flush is written without blocks so the second reads the keys once to build them
+        LookupData withoutBlocks = new LookupData(keyStore, metadataBlobs, PartitionLookupCache.create("partition", lookupCache), LookupDataOptions.DEFAULT, false);
+        List<Integer> keys = Ints.asList(IntStream.range(0, 2000).map(i -> i * 2).toArray());
+        Collections.shuffle(keys, new Random(1234));
+        keys.subList(0, 500).forEach(k -> withoutBlocks.put(new LookupKey(String.valueOf(k)), 1000 + k));
+        withoutBlocks.flush();
+        assertNull(LookupMetadata.open(metadataBlobs, 1).getKeyBlocks());
+
+        LookupData lookupData = new LookupData(keyStore, metadataBlobs, PartitionLookupCache.create("partition", lookupCache), LookupDataOptions.DEFAULT.withKeyBlocks(true), false);
+        keys.subList(500, 1500).forEach(k -> lookupData.put(new LookupKey(String.valueOf(k)), 1000 + k));
+        lookupData.flush();
+        keys.subList(1500, 2000).forEach(k -> lookupData.put(new LookupKey(String.valueOf(k)), 1000 + k));
+        lookupData.flush();
+
+        LookupMetadata metadata = LookupMetadata.open(metadataBlobs, 2);
+        assertEquals(2000, metadata.getKeyBlocks().getNumKeys());
+
+        new Random()
+                .ints(10_000, 0, 4000)
+                .parallel()
+                .forEach(key -> {
+                            Long expected = null;
+                            if (key % 2 == 0) expected = 1000L + key;
+                            assertEquals(expected, metadata.findKey(keyStore, new LookupKey(String.valueOf(key))));
+                        }
+                );
+    }
+
     @Test
     public void testToString() {
         LookupKey keyA = new LookupKey("00");
         LookupKey keyB = new LookupKey("01");
-        LookupMetadata metadata = new LookupMetadata(keyA, keyB, new int[]{0, 1}, 4);
+        LookupMetadata metadata = new LookupMetadata(keyA, keyB, new long[]{0, 1}, 4);
         String toString = metadata.toString();
         assertTrue(toString.contains("numKeys=2"));
         assertTrue(toString.contains("minKey=00"));
@@ -479,7 +774,7 @@ public class LookupMetadataTest {
         LookupKey key1 = new LookupKey("key1");
         LookupKey key2 = new LookupKey("key2");
         LookupKey key3 = new LookupKey("key3");
-        LookupMetadata initialMetadata = new LookupMetadata(key1, key3, new int[] {0, 1, 2}, 1);
+        LookupMetadata initialMetadata = new LookupMetadata(key1, key3, new long[] {0, 1, 2}, 1);
 
         when(mockLongBlobStore.readBlob(1L)).thenReturn("key2".getBytes());
 
@@ -500,7 +795,7 @@ public class LookupMetadataTest {
     private void buildSimpleTestData(VirtualMutableBlobStore blobStore) throws IOException {
         LookupKey keyA = new LookupKey("a");
         LookupKey keyB = new LookupKey("b");
-        LookupMetadata metadata = new LookupMetadata(keyA, keyB, new int[]{0, 12}, 0);
+        LookupMetadata metadata = new LookupMetadata(keyA, keyB, new long[]{0, 12}, 0);
         Files.createDirectories(path.getParent());
         metadata.writeTo(blobStore);
     }
@@ -0,0 +1,129 @@
+package com.upserve.uppend.lookup;
+
+import com.github.benmanes.caffeine.cache.stats.*;
+import org.junit.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class OffHeapLookupKeyCacheTest {
+
+    private OffHeapLookupKeyCache cache;
+    private AtomicInteger loads;
+
+    @Before
+    public void setup() {
+        cache = new OffHeapLookupKeyCache(64 * 1024, 16, new ConcurrentStatsCounter());
+        loads = new AtomicInteger();
+    }
+
+    private Function<LookupKey, Long> loader(Long value) {
+        return key -> {
+            loads.incrementAndGet();
+            return value;
+        };
+    }
+
+    @Test
+    public void testGetLoadsOnce() {
+        LookupKey key = new LookupKey("foo");
+        assertEquals(Long.valueOf(5), cache.get(0, key, loader(5L)));
+        assertEquals(Long.valueOf(5), cache.get(0, new LookupKey("foo"), loader(6L)));
+        assertEquals(1, loads.get());
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(1, stats.missCount());
+        assertEquals(1, stats.loadSuccessCount());
+    }
+
+    @Test
+    public void testNullIsNotCached() {
+        assertNull(cache.get(0, new LookupKey("foo"), loader(null)));
+        assertNull(cache.get(0, new LookupKey("foo"), loader(null)));
+        assertEquals(2, loads.get());
+        assertEquals(2, cache.stats().loadFailureCount());
+    }
+
+    @Test
+    public void testPut() {
+        cache.put(0, new LookupKey("foo"), 7L);
+        assertEquals(Long.valueOf(7), cache.get(0, new LookupKey("foo"), loader(5L)));
+        cache.put(0, new LookupKey("foo"), 8L);
+        assertEquals(Long.valueOf(8), cache.get(0, new LookupKey("foo"), loader(5L)));
+        assertEquals(0, loads.get());
+    }
+
+    @Test
+    public void testPutWhileLoadingIsKept() {
+        // The put runs on another thread, so it would deadlock if the loader were called holding the set's lock
+        Function<LookupKey, Long> putWhileLoading = key -> {
+            Thread thread = new Thread(() -> cache.put(0, key, 9L));
+            thread.start();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            return 5L;
+        };
+        assertEquals(Long.valueOf(9), cache.get(0, new LookupKey("foo"), putWhileLoading));
+        assertEquals(Long.valueOf(9), cache.get(0, new LookupKey("foo"), loader(6L)));
+    }
+
+    @Test
+    public void testPartitionsAreSeparate() {
+        cache.put(0, new LookupKey("foo"), 1L);
+        cache.put(1, new LookupKey("foo"), 2L);
+        assertEquals(Long.valueOf(1), cache.get(0, new LookupKey("foo"), loader(5L)));
+        assertEquals(Long.valueOf(2), cache.get(1, new LookupKey("foo"), loader(5L)));
+        assertEquals(Long.valueOf(5), cache.get(2, new LookupKey("foo"), loader(5L)));
+    }
+
+    @Test
+    public void testLongKeysAreNotCached() {
+        LookupKey key = new LookupKey("a key longer than sixteen bytes");
+        cache.put(0, key, 1L);
+        assertEquals(Long.valueOf(5), cache.get(0, key, loader(5L)));
+        assertEquals(Long.valueOf(5), cache.get(0, key, loader(5L)));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testEviction() {
+        long capacity = cache.capacity();
+        IntStream.range(0, (int) capacity * 4).forEach(i -> cache.put(0, new LookupKey("key" + i), i));
+
+        long cached = IntStream.range(0, (int) capacity * 4)
+                .filter(i -> {
+                    Long value = cache.get(0, new LookupKey("key" + i), loader(null));
+                    if (value != null) assertEquals(i, value.intValue());
+                    return value != null;
+                })
+                .count();
+        assertTrue(cached <= capacity);
+        assertTrue(cached > 0);
+        assertTrue(cache.stats().evictionCount() >= capacity * 3);
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        cache.put(0, new LookupKey("foo"), 1L);
+        cache.invalidateAll();
+        assertEquals(Long.valueOf(5), cache.get(0, new LookupKey("foo"), loader(5L)));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testBadKeyLength() {
+        try {
+            new OffHeapLookupKeyCache(1024, 0, StatsCounter.disabledStatsCounter());
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("maximumKeyLength"));
+        }
+    }
+}
@@ -10,8 +10,9 @@ import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.function.BiConsumer;
+import java.util.function.*;
 import java.util.stream.Stream;
 
 import static com.upserve.uppend.metrics.AppendOnlyStoreWithMetrics.*;
@@ -47,6 +48,29 @@ public class AppendOnlyStoreWithMetricsTest {
         assertEquals(3, metrics.meter(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), WRITE_BYTES_METER_METRIC_NAME)).getCount());
     }
 
+    @Test
+    public void testAppendBinaryKey() {
+        byte[] key = new byte[]{0x00, (byte) 0xff};
+        byte[] val = new byte[]{0x01, 0x02, 0x03};
+        instance.append("partition", key, val);
+        verify(store).append("partition", key, val);
+        assertNotEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), WRITE_TIMER_METRIC_NAME)).getCount());
+        assertEquals(3, metrics.meter(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), WRITE_BYTES_METER_METRIC_NAME)).getCount());
+    }
+
+    @Test
+    public void testAppendAll() {
+        assertEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), WRITE_TIMER_METRIC_NAME)).getCount());
+        assertEquals(0, metrics.meter(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(),  WRITE_BYTES_METER_METRIC_NAME)).getCount());
+        AppendBatch batch = new AppendBatch()
+                .add("partition", "key", new byte[]{0x01, 0x02, 0x03})
+                .add("partition", "key2", new byte[]{0x04, 0x05});
+        instance.appendAll(batch);
+        verify(store).appendAll(batch);
+        assertNotEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), WRITE_TIMER_METRIC_NAME)).getCount());
+        assertEquals(5, metrics.meter(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), WRITE_BYTES_METER_METRIC_NAME)).getCount());
+    }
+
     @Test
     public void testRead() {
         assertEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_TIMER_METRIC_NAME)).getCount());
@@ -95,6 +119,60 @@ public class AppendOnlyStoreWithMetricsTest {
         assertEquals(4, metrics.meter(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_BYTES_METER_METRIC_NAME)).getCount());
     }
 
+    @Test
+    public void testReadBuffers() {
+        doAnswer(invocation -> {
+            Consumer<ByteBuffer> consumer = invocation.getArgument(2);
+            consumer.accept(ByteBuffer.wrap("first".getBytes()));
+            consumer.accept(ByteBuffer.wrap("second".getBytes()));
+            return null;
+        }).when(store).read(eq("partition"), eq("key1"), any());
+        List<ByteBuffer> buffers = new ArrayList<>();
+        instance.read("partition", "key1", buffers::add);
+        assertEquals(2, buffers.size());
+        assertNotEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_TIMER_METRIC_NAME)).getCount());
+        assertEquals(11, metrics.meter(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_BYTES_METER_METRIC_NAME)).getCount());
+    }
+
+    @Test
+    public void testReadReverse() {
+        when(store.readReverse("partition", "key1"))
+                .thenReturn(Stream.of("second".getBytes(), "first".getBytes()));
+        assertArrayEquals(
+                Arrays.asList("second", "first").toArray(),
+                instance.readReverse("partition", "key1").map(String::new).toArray()
+        );
+        assertNotEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_TIMER_METRIC_NAME)).getCount());
+        assertEquals(11, metrics.meter(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_BYTES_METER_METRIC_NAME)).getCount());
+    }
+
+    @Test
+    public void testReadRange() {
+        when(store.readRange("partition", "key1", 1, 2))
+                .thenReturn(Stream.of("second".getBytes(), "third".getBytes()));
+        when(store.readLastN("partition", "key1", 1))
+                .thenReturn(Stream.of("third".getBytes()));
+        assertArrayEquals(
+                Arrays.asList("second", "third").toArray(),
+                instance.readRange("partition", "key1", 1, 2).map(String::new).toArray()
+        );
+        assertArrayEquals(
+                Arrays.asList("third").toArray(),
+                instance.readLastN("partition", "key1", 1).map(String::new).toArray()
+        );
+        assertNotEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_TIMER_METRIC_NAME)).getCount());
+        assertEquals(16, metrics.meter(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_BYTES_METER_METRIC_NAME)).getCount());
+    }
+
+    @Test
+    public void testCount() {
+        assertEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_TIMER_METRIC_NAME)).getCount());
+        when(store.count("partition", "key1"))
+                .thenReturn(7L);
+        assertEquals(7, instance.count("partition", "key1"));
+        assertNotEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), READ_TIMER_METRIC_NAME)).getCount());
+    }
+
     @Test
     public void testClear() {
         assertEquals(0, metrics.timer(MetricRegistry.name("MetricsRoot", UPPEND_APPEND_STORE, store.getName(), CLEAR_TIMER_METRIC_NAME)).getCount());